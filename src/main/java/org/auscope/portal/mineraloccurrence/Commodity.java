@@ -3,11 +3,9 @@ package org.auscope.portal.mineraloccurrence;
 import java.io.IOException;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -24,18 +22,35 @@ public class Commodity {
     private final Log log = LogFactory.getLog(getClass());
     private Node commodityNode;
 
+    /** Values bound by MineralOccurrenceStreamParser (only used if commodityNode is null) */
+    private String name;
+    private String commodityName;
+    private String commodityImportance;
+    private String source;
+
     public Commodity(Node commodityNode) throws IOException, SAXException, ParserConfigurationException,
             XPathExpressionException {
         this.commodityNode = commodityNode;
     }
 
+    /**
+     * Creates a commodity whose values have already been read (see MineralOccurrenceStreamParser)
+     */
+    Commodity(String name, String commodityName, String commodityImportance, String source) {
+        this.name = name;
+        this.commodityName = commodityName;
+        this.commodityImportance = commodityImportance;
+        this.source = source;
+    }
+
     public String getName() {
+        if (commodityNode == null) {
+            return name;
+        }
+
         String result = "";
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("gml:name");
+            XPathExpression expr = MineralOccurrenceXPath.compile("gml:name");
             NodeList list = (NodeList) expr.evaluate(commodityNode, XPathConstants.NODESET);
             for (int i = 0; i < list.getLength(); i++) {
                 if (list.item(i).getAttributes().getNamedItem("codeSpace").getNodeValue()
@@ -51,12 +66,12 @@ public class Commodity {
     }
 
     public String getCommodityName() throws XPathExpressionException {
+        if (commodityNode == null) {
+            return commodityName;
+        }
 
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("er:commodityName");
+            XPathExpression expr = MineralOccurrenceXPath.compile("er:commodityName");
             Node result = (Node) expr.evaluate(commodityNode, XPathConstants.NODE);
             log.trace("commodity class to get text commodity name " + result.getTextContent() + "was the content");
             return result.getTextContent();
@@ -66,12 +81,12 @@ public class Commodity {
     }
 
     public String getCommodityImportance() throws XPathExpressionException {
+        if (commodityNode == null) {
+            return commodityImportance;
+        }
 
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("er:commodityImportance");
+            XPathExpression expr = MineralOccurrenceXPath.compile("er:commodityImportance");
             Node result = (Node) expr.evaluate(commodityNode, XPathConstants.NODE);
             log.trace("commodity class to getCommodityImportance" + result.getTextContent() + "was the content");
             return result.getTextContent();
@@ -81,12 +96,12 @@ public class Commodity {
     }
 
     public String getSource() {
+        if (commodityNode == null) {
+            return source;
+        }
 
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("er:source");
+            XPathExpression expr = MineralOccurrenceXPath.compile("er:source");
             Node result = (Node) expr.evaluate(commodityNode, XPathConstants.NODE);
             String search = "urn:cgi";
             String s = result.getAttributes().getNamedItem("xlink:href").getTextContent();
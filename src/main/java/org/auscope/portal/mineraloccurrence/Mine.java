@@ -5,11 +5,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,6 +29,12 @@ public class Mine {
     /** The mine node. */
     private Node mineNode;
 
+    /** Values bound by MineralOccurrenceStreamParser (only used if mineNode is null) */
+    private String mineNamePreferred;
+    private String mineNameURI;
+    private List<String> relatedActivities;
+    private List<String> relatedMiningActivities;
+
     /**
      * Instantiates a new mine.
      *
@@ -49,6 +53,25 @@ public class Mine {
         this.mineNode = mineNode;
     }
 
+    /**
+     * Instantiates a mine whose values have already been read (see MineralOccurrenceStreamParser).
+     *
+     * @param mineNamePreferred
+     *            the preferred (or first) mine name
+     * @param mineNameURI
+     *            the mine name uri
+     * @param relatedActivities
+     *            the related activities
+     * @param relatedMiningActivities
+     *            the related mining activities
+     */
+    Mine(String mineNamePreferred, String mineNameURI, List<String> relatedActivities, List<String> relatedMiningActivities) {
+        this.mineNamePreferred = mineNamePreferred;
+        this.mineNameURI = mineNameURI;
+        this.relatedActivities = relatedActivities;
+        this.relatedMiningActivities = relatedMiningActivities;
+    }
+
     /**
      * Gets the mine name preffered or first name in the list..
      *
@@ -57,13 +80,14 @@ public class Mine {
      *             the x path expression exception
      */
     public String getMineNamePreffered() throws XPathExpressionException {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
+        if (mineNode == null) {
+            return mineNamePreferred;
+        }
 
-        XPathExpression expr = xPath.compile("er:mineName/er:MineName/er:isPreferred");
+        XPathExpression expr = MineralOccurrenceXPath.compile("er:mineName/er:MineName/er:isPreferred");
         NodeList prefferedNodes = (NodeList) expr.evaluate(mineNode, XPathConstants.NODESET);
 
-        expr = xPath.compile("er:mineName/er:MineName/er:mineName");
+        expr = MineralOccurrenceXPath.compile("er:mineName/er:MineName/er:mineName");
         NodeList nameNodes = (NodeList) expr.evaluate(mineNode, XPathConstants.NODESET);
 
         for (int i = 0; i < prefferedNodes.getLength(); i++) {
@@ -80,12 +104,12 @@ public class Mine {
      * @return the mine name uri
      */
     public String getMineNameURI() {
+        if (mineNode == null) {
+            return mineNameURI;
+        }
 
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("er:occurrence/er:MiningFeatureOccurrence/er:specification");
+            XPathExpression expr = MineralOccurrenceXPath.compile("er:occurrence/er:MiningFeatureOccurrence/er:specification");
             Node result = (Node) expr.evaluate(mineNode, XPathConstants.NODE);
             return result.getAttributes().getNamedItem("xlink:href").getTextContent();
         } catch (Exception e) {
@@ -99,12 +123,13 @@ public class Mine {
      * @return the related activities
      */
     public List<String> getRelatedActivities() {
+        if (mineNode == null) {
+            return new ArrayList<String>(relatedActivities);
+        }
+
         List<String> result = new ArrayList<String>();
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("er:relatedActivity/er:MiningActivity/er:occurrence/@xlink:href");
+            XPathExpression expr = MineralOccurrenceXPath.compile("er:relatedActivity/er:MiningActivity/er:occurrence/@xlink:href");
             Object relatedNodes = expr.evaluate(mineNode, XPathConstants.NODESET);
             NodeList nodes = (NodeList) relatedNodes;
             String search = "urn:cgi";
@@ -130,14 +155,15 @@ public class Mine {
      * @return the related mining activities
      */
     public List<String> getRelatedMiningActivities() {
+        if (mineNode == null) {
+            return new ArrayList<String>(relatedMiningActivities);
+        }
+
         List<String> result = new ArrayList<String>();
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
             // Deal with local pointer reference eg. xlink:href="#er.mine.361023
-            XPathExpression expr = xPath
-                    .compile("er:occurrence/er:MiningFeatureOccurrence/er:specification[starts-with(@xlink:href,'#']");
+            XPathExpression expr = MineralOccurrenceXPath
+                    .compile("er:occurrence/er:MiningFeatureOccurrence/er:specification/@xlink:href[starts-with(., '#')]");
             Object relatedNodes = expr.evaluate(mineNode, XPathConstants.NODESET);
             NodeList nodes = (NodeList) relatedNodes;
 
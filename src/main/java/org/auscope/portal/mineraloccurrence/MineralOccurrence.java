@@ -3,13 +3,12 @@ package org.auscope.portal.mineraloccurrence;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -21,17 +20,34 @@ import org.xml.sax.SAXException;
 public class MineralOccurrence {
     private Node mineralOccurrenceNode;
 
+    /** Values bound by MineralOccurrenceStreamParser (only used if mineralOccurrenceNode is null) */
+    private String urn;
+    private String type;
+    private String mineralDepositGroup;
+    private List<String> commodityDescriptionURNs;
+
     public MineralOccurrence(Node mineralOccurrenceNode) throws IOException, SAXException,
             ParserConfigurationException, XPathExpressionException {
         this.mineralOccurrenceNode = mineralOccurrenceNode;
     }
 
+    /**
+     * Creates a mineral occurrence whose values have already been read (see MineralOccurrenceStreamParser)
+     */
+    MineralOccurrence(String urn, String type, String mineralDepositGroup, List<String> commodityDescriptionURNs) {
+        this.urn = urn;
+        this.type = type;
+        this.mineralDepositGroup = mineralDepositGroup;
+        this.commodityDescriptionURNs = commodityDescriptionURNs;
+    }
+
     public String getURN() {
-        try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
+        if (mineralOccurrenceNode == null) {
+            return urn;
+        }
 
-            XPathExpression expr = xPath.compile("gml:name");
+        try {
+            XPathExpression expr = MineralOccurrenceXPath.compile("gml:name");
             NodeList nameNodes = (NodeList) expr.evaluate(mineralOccurrenceNode, XPathConstants.NODESET);
 
             // TODO is there updateCSWRecords better way to get the URN than updateCSWRecords string compare?
@@ -47,12 +63,12 @@ public class MineralOccurrence {
     }
 
     public String getType() {
+        if (mineralOccurrenceNode == null) {
+            return type;
+        }
 
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("er:type");
+            XPathExpression expr = MineralOccurrenceXPath.compile("er:type");
             Node result = (Node) expr.evaluate(mineralOccurrenceNode, XPathConstants.NODE);
             return result.getTextContent();
         } catch (Exception e) {
@@ -61,13 +77,13 @@ public class MineralOccurrence {
     }
 
     public String getMineralDepositGroup() {
+        if (mineralOccurrenceNode == null) {
+            return mineralDepositGroup;
+        }
 
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
             XPathExpression expr =
-                    xPath.compile("er:classification/er:MineralDepositModel/er:mineralDepositGroup");
+                    MineralOccurrenceXPath.compile("er:classification/er:MineralDepositModel/er:mineralDepositGroup");
             Node result = (Node) expr.evaluate(mineralOccurrenceNode, XPathConstants.NODE);
             return result.getTextContent();
         } catch (Exception e) {
@@ -76,12 +92,12 @@ public class MineralOccurrence {
     }
 
     public Collection<String> getCommodityDescriptionURNs() {
+        if (mineralOccurrenceNode == null) {
+            return new ArrayList<String>(commodityDescriptionURNs);
+        }
 
         try {
-            XPath xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
-
-            XPathExpression expr = xPath.compile("er:commodityDescription");
+            XPathExpression expr = MineralOccurrenceXPath.compile("er:commodityDescription");
             NodeList commodityNodes = (NodeList) expr.evaluate(mineralOccurrenceNode, XPathConstants.NODESET);
 
             ArrayList<String> commodityDescriptionURNs = new ArrayList<String>();
@@ -0,0 +1,289 @@
+package org.auscope.portal.mineraloccurrence;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parser (StAX) binding for ERML responses.
+ *
+ * Every er:Commodity, er:Mine or er:MineralOccurrence in a response (at any depth, eg - inside a wfs:FeatureCollection)
+ * is read in a single pass into a wrapper whose getters return the same values as a wrapper of the equivalent DOM
+ * node. No DOM is built and no XPath is evaluated. Values of missing elements are empty strings.
+ */
+public class MineralOccurrenceStreamParser {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+    private static final String ER_NAMESPACE = "urn:cgi:xmlns:GGIC:EarthResource:1.1";
+    private static final String GML_NAMESPACE = "http://www.opengis.net/gml";
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+    private static final String URN_PREFIX = "urn:cgi";
+
+    private MineralOccurrenceStreamParser() {
+        //Utility class
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Collects the values of a single feature as its descendant elements are read
+     */
+    private abstract static class Binding<T> {
+        /**
+         * Called at the start of every descendant element
+         * @param path The qualified names of the elements from (but excluding) the feature down to this element
+         * @param reader Positioned at the start element
+         */
+        void startElement(List<String> path, XMLStreamReader reader) {
+        }
+
+        /**
+         * Called at the end of every descendant element
+         * @param path The qualified names of the elements from (but excluding) the feature down to this element
+         * @param text The text content of this element (only accurate for elements without child elements)
+         */
+        void endElement(List<String> path, String text) {
+        }
+
+        abstract T build();
+    }
+
+    /**
+     * Returns the name of the current element using the prefixes of MineralOccurrenceNamespaceContext (unrecognised
+     * namespaces are written in {namespace}localName form)
+     */
+    private static String qualifiedName(XMLStreamReader reader) {
+        String namespace = reader.getNamespaceURI();
+        if (ER_NAMESPACE.equals(namespace)) {
+            return "er:" + reader.getLocalName();
+        } else if (GML_NAMESPACE.equals(namespace)) {
+            return "gml:" + reader.getLocalName();
+        }
+        return "{" + namespace + "}" + reader.getLocalName();
+    }
+
+    /**
+     * Returns true if path consists of exactly names (in order)
+     */
+    private static boolean pathEquals(List<String> path, String... names) {
+        if (path.size() != names.length) {
+            return false;
+        }
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (!names[i].equals(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Binds every featureName element in xml. Features nested inside another bound feature are only visible to the
+     * outer feature's binding.
+     */
+    private static <T> List<T> parseFeatures(InputStream xml, String featureName, Supplier<Binding<T>> bindings) throws XMLStreamException {
+        List<T> features = new ArrayList<T>();
+        List<String> path = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+        Binding<T> binding = null;
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (binding != null) {
+                        path.add(qualifiedName(reader));
+                        text.setLength(0);
+                        binding.startElement(path, reader);
+                    } else if (featureName.equals(qualifiedName(reader))) {
+                        binding = bindings.get();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (binding != null) {
+                        text.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (binding != null) {
+                        if (path.isEmpty()) {
+                            features.add(binding.build());
+                            binding = null;
+                        } else {
+                            binding.endElement(path, text.toString());
+                            path.remove(path.size() - 1);
+                            text.setLength(0);
+                        }
+                    }
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return features;
+    }
+
+    /**
+     * Parses every er:Commodity in an ERML response
+     * @param xml
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<Commodity> parseCommodities(InputStream xml) throws XMLStreamException {
+        return parseFeatures(xml, "er:Commodity", () -> new Binding<Commodity>() {
+            private boolean nameInvalid = false;
+            private boolean rfc2141Name = false;
+            private String name = "";
+            private String commodityName;
+            private String commodityImportance;
+            private String source;
+
+            @Override
+            void startElement(List<String> path, XMLStreamReader reader) {
+                if (pathEquals(path, "gml:name")) {
+                    String codeSpace = reader.getAttributeValue(null, "codeSpace");
+                    nameInvalid |= codeSpace == null;
+                    rfc2141Name = "http://www.ietf.org/rfc/rfc2141".equals(codeSpace);
+                } else if (pathEquals(path, "er:source") && source == null) {
+                    String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+                    int urnStart = href == null ? -1 : href.indexOf(URN_PREFIX);
+                    source = urnStart < 0 ? "" : href.substring(urnStart);
+                }
+            }
+
+            @Override
+            void endElement(List<String> path, String text) {
+                if (pathEquals(path, "gml:name") && rfc2141Name) {
+                    name = text;
+                } else if (pathEquals(path, "er:commodityName") && commodityName == null) {
+                    commodityName = text;
+                } else if (pathEquals(path, "er:commodityImportance") && commodityImportance == null) {
+                    commodityImportance = text;
+                }
+            }
+
+            @Override
+            Commodity build() {
+                return new Commodity(nameInvalid ? "" : name,
+                        commodityName == null ? "" : commodityName,
+                        commodityImportance == null ? "" : commodityImportance,
+                        source == null ? "" : source);
+            }
+        });
+    }
+
+    /**
+     * Parses every er:Mine in an ERML response
+     * @param xml
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<Mine> parseMines(InputStream xml) throws XMLStreamException {
+        return parseFeatures(xml, "er:Mine", () -> new Binding<Mine>() {
+            private List<String> preferred = new ArrayList<String>();
+            private List<String> names = new ArrayList<String>();
+            private String mineNameURI;
+            private List<String> relatedActivities = new ArrayList<String>();
+            private List<String> relatedMiningActivities = new ArrayList<String>();
+
+            @Override
+            void startElement(List<String> path, XMLStreamReader reader) {
+                if (pathEquals(path, "er:occurrence", "er:MiningFeatureOccurrence", "er:specification")) {
+                    String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+                    if (mineNameURI == null) {
+                        mineNameURI = href == null ? "" : href;
+                    }
+                    if (href != null && href.startsWith("#")) {
+                        relatedMiningActivities.add(href);
+                    }
+                } else if (pathEquals(path, "er:relatedActivity", "er:MiningActivity", "er:occurrence")) {
+                    String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+                    int urnStart = href == null ? -1 : href.indexOf(URN_PREFIX);
+                    if (urnStart >= 0) {
+                        relatedActivities.add(href.substring(urnStart));
+                    }
+                }
+            }
+
+            @Override
+            void endElement(List<String> path, String text) {
+                if (pathEquals(path, "er:mineName", "er:MineName", "er:isPreferred")) {
+                    preferred.add(text);
+                } else if (pathEquals(path, "er:mineName", "er:MineName", "er:mineName")) {
+                    names.add(text);
+                }
+            }
+
+            @Override
+            Mine build() {
+                String mineNamePreferred = names.isEmpty() ? "" : names.get(0);
+                for (int i = 0; i < preferred.size() && i < names.size(); i++) {
+                    if (preferred.get(i).equals("true")) {
+                        mineNamePreferred = names.get(i);
+                        break;
+                    }
+                }
+                return new Mine(mineNamePreferred, mineNameURI == null ? "" : mineNameURI, relatedActivities, relatedMiningActivities);
+            }
+        });
+    }
+
+    /**
+     * Parses every er:MineralOccurrence in an ERML response
+     * @param xml
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<MineralOccurrence> parseMineralOccurrences(InputStream xml) throws XMLStreamException {
+        return parseFeatures(xml, "er:MineralOccurrence", () -> new Binding<MineralOccurrence>() {
+            private String urn;
+            private String type;
+            private String mineralDepositGroup;
+            private boolean commodityDescriptionsInvalid = false;
+            private List<String> commodityDescriptionURNs = new ArrayList<String>();
+
+            @Override
+            void startElement(List<String> path, XMLStreamReader reader) {
+                if (pathEquals(path, "er:commodityDescription")) {
+                    String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+                    commodityDescriptionsInvalid |= href == null;
+                    commodityDescriptionURNs.add(href);
+                }
+            }
+
+            @Override
+            void endElement(List<String> path, String text) {
+                if (pathEquals(path, "gml:name") && urn == null && text.startsWith("urn")) {
+                    urn = text;
+                } else if (pathEquals(path, "er:type") && type == null) {
+                    type = text;
+                } else if (pathEquals(path, "er:classification", "er:MineralDepositModel", "er:mineralDepositGroup") && mineralDepositGroup == null) {
+                    mineralDepositGroup = text;
+                }
+            }
+
+            @Override
+            MineralOccurrence build() {
+                return new MineralOccurrence(urn == null ? "" : urn,
+                        type == null ? "" : type,
+                        mineralDepositGroup == null ? "" : mineralDepositGroup,
+                        commodityDescriptionsInvalid ? new ArrayList<String>() : commodityDescriptionURNs);
+            }
+        });
+    }
+}
@@ -0,0 +1,47 @@
+package org.auscope.portal.mineraloccurrence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * Compiled XPath expressions (in the MineralOccurrenceNamespaceContext) shared by the ERML node wrappers.
+ *
+ * XPath, XPathFactory and XPathExpression instances aren't thread safe so each thread compiles (once) and keeps its
+ * own copy of every expression it evaluates.
+ */
+final class MineralOccurrenceXPath {
+
+    private static final ThreadLocal<XPath> XPATH = ThreadLocal.withInitial(() -> {
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
+        return xPath;
+    });
+
+    private static final ThreadLocal<Map<String, XPathExpression>> EXPRESSIONS = ThreadLocal.withInitial(HashMap::new);
+
+    private MineralOccurrenceXPath() {
+        //Utility class
+    }
+
+    /**
+     * Gets the compiled form of expression for the current thread, compiling it on first use.
+     *
+     * @param expression An XPath expression using the MineralOccurrenceNamespaceContext prefixes
+     * @return
+     * @throws XPathExpressionException If expression is malformed (these aren't cached)
+     */
+    static XPathExpression compile(String expression) throws XPathExpressionException {
+        Map<String, XPathExpression> expressions = EXPRESSIONS.get();
+        XPathExpression compiled = expressions.get(expression);
+        if (compiled == null) {
+            compiled = XPATH.get().compile(expression);
+            expressions.put(expression, compiled);
+        }
+        return compiled;
+    }
+}
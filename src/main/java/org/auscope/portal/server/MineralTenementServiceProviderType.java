@@ -7,10 +7,14 @@ package org.auscope.portal.server;
  * enum provides settings for each such that they behave in the same way to the
  * end user.
  * 
+ * The ArcGIS name, owner and shape fields are those the portal has always queried. The type and status fields (TENTYPE
+ * and TENSTATUS) follow the same naming but haven't been confirmed against every ArcGIS provider - filters on them are
+ * skipped by MineralTenementLocalFilter if a provider's CSV doesn't have them.
+ * 
  */
 public enum MineralTenementServiceProviderType {
-    GeoServer("mt:MineralTenement", "#66ff66", "#4B6F44", "mt:name", "mt:owner", "mt:shape","Polygon for mineral tenement"), 
-    ArcGIS("MineralTenement", "#00ff00", "#66ff66", "TENNAME", "TENOWNER", "SHAPE","");
+    GeoServer("mt:MineralTenement", "#66ff66", "#4B6F44", "mt:name", "mt:owner", "mt:tenementType", "mt:status", "mt:shape","Polygon for mineral tenement"), 
+    ArcGIS("MineralTenement", "#00ff00", "#66ff66", "TENNAME", "TENOWNER", "TENTYPE", "TENSTATUS", "SHAPE","");
 
     private final String featureType;
     private final String styleName;
@@ -18,15 +22,19 @@ public enum MineralTenementServiceProviderType {
     private final String borderColour;
     private final String nameField;
     private final String ownerField;
+    private final String typeField;
+    private final String statusField;
     private final String shapeField;
 
     private MineralTenementServiceProviderType(String featureType, String fillColour, String borderColour, String tenementName, String owner,
-                String shape, String style) {
+                String type, String status, String shape, String style) {
         this.featureType = featureType;
         this.fillColour = fillColour;
         this.borderColour = borderColour;
         this.nameField = tenementName;
         this.ownerField = owner;
+        this.typeField = type;
+        this.statusField = status;
         this.shapeField = shape;
         this.styleName = style;
     }
@@ -51,6 +59,14 @@ public enum MineralTenementServiceProviderType {
         return ownerField;
     }
 
+    public String typeField() {
+        return typeField;
+    }
+
+    public String statusField() {
+        return statusField;
+    }
+
     public String shapeField() {
         return shapeField;
     }
@@ -53,6 +53,7 @@ import org.auscope.portal.core.xslt.WfsToKmlTransformer;
 import org.auscope.portal.mscl.MSCLWFSService;
 import org.auscope.portal.server.web.CatalogServicesHealthIndicator;
 import org.auscope.portal.server.web.SearchHttpServiceCaller;
+import org.auscope.portal.server.web.service.ServiceFanOut;
 import org.auscope.portal.server.web.service.monitor.KnownLayerStatusMonitor;
 import org.quartz.Trigger;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -109,6 +110,15 @@ public class AppContext {
     @Value("${spring.data.elasticsearch.manualUpdateOnly:false}")
     private boolean manualUpdateOnly;
 
+    @Value("${env.fanout.maxThreads:16}")
+    private int fanOutMaxThreads;
+
+    @Value("${env.fanout.maxPerHost:4}")
+    private int fanOutMaxPerHost;
+
+    @Value("${env.fanout.deadlineSeconds:600}")
+    private int fanOutDeadlineSeconds;
+
     @Autowired
     private ArrayList<CSWServiceItem> cswServiceList;
 
@@ -210,6 +220,12 @@ public class AppContext {
         return taskExec;
     }
 
+    /* Shared pool for making parallel calls to remote services with a per host concurrency limit */
+    @Bean
+    public ServiceFanOut serviceFanOut() {
+        return new ServiceFanOut(fanOutMaxThreads, fanOutMaxPerHost, fanOutDeadlineSeconds * 1000L);
+    }
+
     // Primary (default) HttpServiceCaller bean
     // Will ignore SSL errors if the test profile is active (locally signed SSL certs)
     @Bean
@@ -0,0 +1,24 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+/**
+ * Content negotiation for Apache Arrow IPC streams.
+ *
+ * Kept apart from ArrowScalarWriter so that checking an Accept header never loads any Arrow classes (the Arrow
+ * memory module needs --add-opens=java.base/java.nio=ALL-UNNAMED to initialise).
+ */
+public class ArrowMediaType {
+
+    public static final String MEDIA_TYPE = "application/vnd.apache.arrow.stream";
+
+    private ArrowMediaType() {
+    }
+
+    /**
+     * Returns true if acceptHeader (the value of an HTTP Accept header) explicitly asks for an Arrow stream
+     * @param acceptHeader
+     * @return
+     */
+    public static boolean isAccepted(String acceptHeader) {
+        return acceptHeader != null && acceptHeader.contains(MEDIA_TYPE);
+    }
+}
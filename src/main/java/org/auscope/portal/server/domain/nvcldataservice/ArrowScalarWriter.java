@@ -0,0 +1,247 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.auscope.portal.server.domain.nvcldataservice.BinnedCSVResponse.Bin;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * Writes NVCL scalar data as an Apache Arrow IPC stream (ArrowMediaType.MEDIA_TYPE).
+ *
+ * Every source is written in the same "long" form - one row per scalar per depth with the columns:
+ * <ul>
+ *   <li>name - The scalar/log name</li>
+ *   <li>depth - Depth in metres</li>
+ *   <li>value - The numeric value (null for class values)</li>
+ *   <li>class - The class value (null for numeric values)</li>
+ *   <li>count - The number of samples behind the value/class (null if unknown)</li>
+ * </ul>
+ * Rows are flushed in record batches of BATCH_SIZE rows.
+ *
+ * The shared root allocator is only created when the first writer is, which requires the JVM to be started with
+ * --add-opens=java.base/java.nio=ALL-UNNAMED.
+ */
+public class ArrowScalarWriter implements Closeable {
+
+    public static final String NAME = "name";
+    public static final String DEPTH = "depth";
+    public static final String VALUE = "value";
+    public static final String CLASS = "class";
+    public static final String COUNT = "count";
+
+    static final int BATCH_SIZE = 4096;
+
+    private static final String MISSING_DATA_STRING = "null";
+    private static final Schema SCHEMA = new Schema(Arrays.asList(
+            new Field(NAME, FieldType.notNullable(ArrowType.Utf8.INSTANCE), null),
+            new Field(DEPTH, FieldType.notNullable(new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE)), null),
+            new Field(VALUE, FieldType.nullable(new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE)), null),
+            new Field(CLASS, FieldType.nullable(ArrowType.Utf8.INSTANCE), null),
+            new Field(COUNT, FieldType.nullable(new ArrowType.Int(32, true)), null)));
+
+    /**
+     * Lazily creates the root allocator on first use
+     */
+    private static class RootAllocatorHolder {
+        static final BufferAllocator INSTANCE = new RootAllocator();
+    }
+
+    private BufferAllocator allocator;
+    private VectorSchemaRoot root;
+    private ArrowStreamWriter writer;
+    private VarCharVector nameVector;
+    private Float8Vector depthVector;
+    private Float8Vector valueVector;
+    private VarCharVector classVector;
+    private IntVector countVector;
+    private int rowCount = 0;
+
+    /**
+     * Starts a new Arrow stream on os. os will be closed when this writer is closed.
+     * @param os
+     * @throws IOException
+     */
+    public ArrowScalarWriter(OutputStream os) throws IOException {
+        allocator = RootAllocatorHolder.INSTANCE.newChildAllocator("nvcl-arrow", 0, Long.MAX_VALUE);
+        root = VectorSchemaRoot.create(SCHEMA, allocator);
+        nameVector = (VarCharVector) root.getVector(NAME);
+        depthVector = (Float8Vector) root.getVector(DEPTH);
+        valueVector = (Float8Vector) root.getVector(VALUE);
+        classVector = (VarCharVector) root.getVector(CLASS);
+        countVector = (IntVector) root.getVector(COUNT);
+        root.allocateNew();
+
+        writer = new ArrowStreamWriter(root, null, os);
+        writer.start();
+    }
+
+    /**
+     * Appends a single row, flushing a record batch if BATCH_SIZE rows have accumulated
+     * @param value NaN for a null value
+     * @param classValue null for a null class
+     * @param count negative for a null count
+     */
+    private void append(byte[] name, double depth, double value, String classValue, int count) throws IOException {
+        nameVector.setSafe(rowCount, name);
+        depthVector.setSafe(rowCount, depth);
+        if (Double.isNaN(value)) {
+            valueVector.setNull(rowCount);
+        } else {
+            valueVector.setSafe(rowCount, value);
+        }
+        if (classValue == null) {
+            classVector.setNull(rowCount);
+        } else {
+            classVector.setSafe(rowCount, classValue.getBytes(StandardCharsets.UTF_8));
+        }
+        if (count < 0) {
+            countVector.setNull(rowCount);
+        } else {
+            countVector.setSafe(rowCount, count);
+        }
+
+        if (++rowCount == BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        if (rowCount == 0) {
+            return;
+        }
+
+        root.setRowCount(rowCount);
+        writer.writeBatch();
+        root.allocateNew();
+        rowCount = 0;
+    }
+
+    /**
+     * Writes every aggregate window of bin. Numeric windows are written with their average value and sample count,
+     * string windows with their most common class (and its count).
+     * @param bin
+     * @throws IOException
+     */
+    public void write(Bin bin) throws IOException {
+        byte[] name = bin.getName().getBytes(StandardCharsets.UTF_8);
+        double[] depths = bin.getStartDepths();
+        for (int i = 0; i < depths.length; i++) {
+            if (bin.isNumeric()) {
+                int[] sampleCounts = bin.getSampleCounts();
+                append(name, depths[i], bin.getNumericValues()[i], null, sampleCounts == null ? -1 : sampleCounts[i]);
+            } else {
+                int highCount = 0;
+                for (int count : bin.getClassCounts()[i]) {
+                    highCount = Math.max(highCount, count);
+                }
+                append(name, depths[i], Double.NaN, bin.getHighStringValues()[i], highCount);
+            }
+        }
+    }
+
+    /**
+     * Writes every point of series under name. Numeric points have no count.
+     * @param name
+     * @param series
+     * @throws IOException
+     */
+    public void write(String name, ScalarSeries series) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        double[] depths = series.getDepths();
+        for (int i = 0; i < series.size(); i++) {
+            if (series.isNumeric()) {
+                append(nameBytes, depths[i], series.getValues()[i], null, -1);
+            } else {
+                append(nameBytes, depths[i], Double.NaN, series.getClassTexts()[i], series.getClassCounts()[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes an NVCL downloadscalars.html CSV response. The first column must be depth and every other column
+     * is treated as a scalar (named by its header). Cells that parse as numbers are written as values,
+     * everything else as classes. Missing cells and lines with an unparseable depth are skipped.
+     *
+     * @param csv Will NOT be closed by this method
+     * @throws IOException
+     */
+    public void writeCSV(InputStream csv) throws IOException {
+        CSVReader reader = new CSVReaderBuilder(new InputStreamReader(csv, StandardCharsets.UTF_8)).build();
+        try {
+            String[] headerLine = reader.readNext();
+            if (headerLine == null || headerLine.length < 2) {
+                throw new IOException("No or malformed CSV header sent");
+            }
+
+            byte[][] names = new byte[headerLine.length][];
+            for (int i = 1; i < headerLine.length; i++) {
+                names[i] = headerLine[i].trim().getBytes(StandardCharsets.UTF_8);
+            }
+
+            String[] dataLine;
+            while ((dataLine = reader.readNext()) != null) {
+                if (dataLine.length != headerLine.length) {
+                    continue; //skip malformed lines
+                }
+
+                double depth;
+                try {
+                    depth = Double.parseDouble(dataLine[0]);
+                } catch (NumberFormatException ex) {
+                    continue;
+                }
+
+                for (int i = 1; i < dataLine.length; i++) {
+                    String cell = dataLine[i].trim();
+                    if (cell.isEmpty() || cell.equals(MISSING_DATA_STRING)) {
+                        continue;
+                    }
+
+                    try {
+                        append(names[i], depth, Double.parseDouble(cell), null, -1);
+                    } catch (NumberFormatException ex) {
+                        append(names[i], depth, Double.NaN, cell, -1);
+                    }
+                }
+            }
+        } catch (CsvValidationException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Flushes any remaining rows and ends the stream
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            writer.end();
+            writer.close();
+        } finally {
+            root.close();
+            allocator.close();
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package org.auscope.portal.server.domain.nvcldataservice;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Represents a NVCL CSV download response down sampled into fixed sized bins of X metres.
  * @author Josh Vote (CSIRO)
@@ -49,28 +53,41 @@ public class BinnedCSVResponse implements Serializable {
 
     /**
      * A (sort-of) typed array of (non null) values for scalar. The data is presented
-     * in an "aggregate" form where each value in a list represents the "average" data over
+     * in an "aggregate" form where each value in an array represents the "average" data over
      * a window of X metres.
      *
+     * All values are stored as columnar primitive arrays. String values are stored against a
+     * dictionary of class labels (classLabels) with classCounts[n][k] holding the number of times
+     * classLabels[k] was seen in the n'th string aggregate window.
+     *
      * @author Josh Vote (CSIRO)
      *
      */
     public class Bin {
         private boolean numeric;
         private String name;
-        private List<Map<String, Integer>> stringValues;
-        private List<Double> numericValues;
-        private List<String> highStringValues;
-        private List<Double> startDepths;
+        private double[] startDepths;
+        private double[] numericValues;
+        private double[] minValues;
+        private double[] maxValues;
+        private int[] sampleCounts;
+        private String[] classLabels;
+        private int[][] classCounts;
+        private String[] highStringValues;
 
-        public Bin(String name, List<Double> startDepths, boolean numeric, List<Map<String, Integer>> stringValues, List<String> highStringValues, List<Double> numericValues) {
+        public Bin(String name, double[] startDepths, boolean numeric, String[] classLabels, int[][] classCounts, String[] highStringValues,
+                double[] numericValues, double[] minValues, double[] maxValues, int[] sampleCounts) {
             super();
             this.name = name;
             this.numeric = numeric;
-            this.stringValues = stringValues;
             this.startDepths = startDepths;
+            this.classLabels = classLabels;
+            this.classCounts = classCounts;
             this.highStringValues = highStringValues;
             this.numericValues = numericValues;
+            this.minValues = minValues;
+            this.maxValues = maxValues;
+            this.sampleCounts = sampleCounts;
         }
         /**
          * The name of the scalar used to generate this bin
@@ -83,14 +100,14 @@ public class BinnedCSVResponse implements Serializable {
          * Each item (n) corresponds to the Start depth in metres of the first sample used to make the n'th aggregate window
          * @return
          */
-        public List<Double> getStartDepths() {
+        public double[] getStartDepths() {
             return startDepths;
         }
         /**
          * Each item (n) corresponds to the Start depth in metres of the first sample used to make the n'th aggregate window
          * @param startDepths
          */
-        public void setStartDepths(List<Double> startDepths) {
+        public void setStartDepths(double[] startDepths) {
             this.startDepths = startDepths;
         }
         /**
@@ -112,26 +129,65 @@ public class BinnedCSVResponse implements Serializable {
         }
 
         /**
-         * Each item (n) corresponds to the counts of each unique string in the n'th aggregate window
+         * Each item (n) corresponds to the counts of each unique string in the n'th aggregate window.
+         *
+         * This is a view built from classLabels/classCounts and is kept for JSON clients.
          * @return
          */
         public List<Map<String, Integer>> getStringValues() {
+            List<Map<String, Integer>> stringValues = new ArrayList<Map<String, Integer>>(classCounts.length);
+            for (int[] counts : classCounts) {
+                Map<String, Integer> window = new HashMap<String, Integer>();
+                for (int k = 0; k < counts.length; k++) {
+                    if (counts[k] > 0) {
+                        window.put(classLabels[k], counts[k]);
+                    }
+                }
+                stringValues.add(window);
+            }
             return stringValues;
         }
 
         /**
-         * Each item (n) corresponds to the counts of each unique string in the n'th aggregate window
-         * @param stringValues
+         * The dictionary of unique string values referenced by classCounts
+         * @return
+         */
+        @JsonIgnore
+        public String[] getClassLabels() {
+            return classLabels;
+        }
+
+        /**
+         * The dictionary of unique string values referenced by classCounts
+         * @param classLabels
+         */
+        public void setClassLabels(String[] classLabels) {
+            this.classLabels = classLabels;
+        }
+
+        /**
+         * Each item (n) corresponds to the count of each classLabel (indexed by dictionary position) in the n'th aggregate window.
+         * Rows may be shorter than classLabels - missing entries are zero.
+         * @return
+         */
+        @JsonIgnore
+        public int[][] getClassCounts() {
+            return classCounts;
+        }
+
+        /**
+         * Each item (n) corresponds to the count of each classLabel (indexed by dictionary position) in the n'th aggregate window.
+         * @param classCounts
          */
-        public void setStringValues(List<Map<String, Integer>> stringValues) {
-            this.stringValues = stringValues;
+        public void setClassCounts(int[][] classCounts) {
+            this.classCounts = classCounts;
         }
 
         /**
          * Each item (n) corresponds to the average numeric value in the n'th aggregate window
          * @return
          */
-        public List<Double> getNumericValues() {
+        public double[] getNumericValues() {
             return numericValues;
         }
 
@@ -139,15 +195,66 @@ public class BinnedCSVResponse implements Serializable {
          * Each item (n) corresponds to the average numeric value in the n'th aggregate window
          * @param numericValues
          */
-        public void setNumericValues(List<Double> numericValues) {
+        public void setNumericValues(double[] numericValues) {
             this.numericValues = numericValues;
         }
 
+        /**
+         * Each item (n) corresponds to the smallest numeric value in the n'th aggregate window
+         * @return
+         */
+        @JsonIgnore
+        public double[] getMinValues() {
+            return minValues;
+        }
+
+        /**
+         * Each item (n) corresponds to the smallest numeric value in the n'th aggregate window
+         * @param minValues
+         */
+        public void setMinValues(double[] minValues) {
+            this.minValues = minValues;
+        }
+
+        /**
+         * Each item (n) corresponds to the largest numeric value in the n'th aggregate window
+         * @return
+         */
+        @JsonIgnore
+        public double[] getMaxValues() {
+            return maxValues;
+        }
+
+        /**
+         * Each item (n) corresponds to the largest numeric value in the n'th aggregate window
+         * @param maxValues
+         */
+        public void setMaxValues(double[] maxValues) {
+            this.maxValues = maxValues;
+        }
+
+        /**
+         * Each item (n) corresponds to the number of numeric samples averaged into the n'th aggregate window
+         * @return
+         */
+        @JsonIgnore
+        public int[] getSampleCounts() {
+            return sampleCounts;
+        }
+
+        /**
+         * Each item (n) corresponds to the number of numeric samples averaged into the n'th aggregate window
+         * @param sampleCounts
+         */
+        public void setSampleCounts(int[] sampleCounts) {
+            this.sampleCounts = sampleCounts;
+        }
+
         /**
          * Each item (n) corresponds to the most common string value in the n'th aggregate window
          * @return
          */
-        public List<String> getHighStringValues() {
+        public String[] getHighStringValues() {
             return highStringValues;
         }
 
@@ -155,7 +262,7 @@ public class BinnedCSVResponse implements Serializable {
          * Each item (n) corresponds to the most common string value in the n'th aggregate window
          * @param highStringValues
          */
-        public void setHighStringValues(List<String> highStringValues) {
+        public void setHighStringValues(String[] highStringValues) {
             this.highStringValues = highStringValues;
         }
     }
@@ -0,0 +1,265 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.auscope.portal.server.domain.nvcldataservice.BinnedCSVResponse.Bin;
+
+/**
+ * A multi resolution set of binned scalars for a single NVCL job/borehole.
+ *
+ * The finest level is binned once from the raw CSV data. Every coarser level is derived from the finest level
+ * (without refetching any data) the first time it is requested and then held in memory.
+ */
+public class BinnedDepthPyramid {
+
+    /**
+     * The bin sizes (in metres) that will be held in memory once derived. The first element is the finest level.
+     */
+    public static final double[] LEVELS = new double[] {1.0, 2.0, 5.0, 10.0, 50.0, 100.0};
+
+    private Bin[] finest;
+    private ConcurrentMap<Double, Bin[]> levels;
+
+    /**
+     * Creates a new pyramid from bins that were binned at LEVELS[0] metres
+     * @param finest
+     */
+    public BinnedDepthPyramid(Bin[] finest) {
+        this.finest = finest;
+        this.levels = new ConcurrentHashMap<Double, Bin[]>();
+        this.levels.put(LEVELS[0], finest);
+    }
+
+    /**
+     * The size in metres of the finest level in this pyramid
+     * @return
+     */
+    public double getFinestBinSize() {
+        return LEVELS[0];
+    }
+
+    /**
+     * Gets the bins at the specified binSize (which must be no smaller than getFinestBinSize()). Bin sizes
+     * in LEVELS are derived once and then cached, other bin sizes are derived on every request.
+     *
+     * @param binSize The size in metres of each aggregate window
+     * @return
+     */
+    public Bin[] getLevel(double binSize) {
+        if (!(binSize > 0)) {
+            throw new IllegalArgumentException("binSize must be greater than 0");
+        }
+        if (binSize < getFinestBinSize()) {
+            throw new IllegalArgumentException("binSize cannot be finer than " + getFinestBinSize());
+        }
+
+        Bin[] level = levels.get(binSize);
+        if (level != null) {
+            return level;
+        }
+
+        BinnedCSVResponse response = new BinnedCSVResponse();
+        response.setBinSize(binSize);
+        level = new Bin[finest.length];
+        for (int i = 0; i < finest.length; i++) {
+            level[i] = coarsen(response, finest[i], binSize);
+        }
+        response.setBinnedValues(level);
+
+        if (Arrays.binarySearch(LEVELS, binSize) >= 0) {
+            levels.putIfAbsent(binSize, level);
+        }
+        return level;
+    }
+
+    /**
+     * Returns true if bin has no aggregate windows (eg - an empty job response)
+     * @param bins
+     * @return
+     */
+    public static boolean isEmpty(Bin[] bins) {
+        for (Bin bin : bins) {
+            if (bin.getStartDepths().length > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Merges consecutive windows of bin into windows of binSize metres. Windows are grouped in the same way as
+     * the original binning - a new window starts at the first window that is at least binSize metres from the
+     * start of the current window. Numeric windows are combined using their sample counts, string windows by
+     * summing their class counts.
+     */
+    private static Bin coarsen(BinnedCSVResponse response, Bin bin, double binSize) {
+        double[] startDepths = bin.getStartDepths();
+        double[] means = bin.getNumericValues();
+        double[] mins = bin.getMinValues();
+        double[] maxs = bin.getMaxValues();
+        int[] counts = bin.getSampleCounts();
+        int[][] classCounts = bin.getClassCounts();
+        String[] labels = bin.getClassLabels();
+
+        //Numeric windows always precede string windows in startDepths
+        int numericLength = means.length;
+        int stringLength = classCounts.length;
+
+        double[] newDepths = new double[numericLength + stringLength];
+        double[] newMeans = new double[numericLength];
+        double[] newMins = new double[numericLength];
+        double[] newMaxs = new double[numericLength];
+        int[] newCounts = new int[numericLength];
+        int n = 0;
+
+        double windowStart = -Double.MAX_VALUE;
+        double sum = 0.0;
+        int count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < numericLength; i++) {
+            if (startDepths[i] - windowStart >= binSize) {
+                if (count > 0) {
+                    newDepths[n] = windowStart;
+                    newMeans[n] = sum / (double) count;
+                    newMins[n] = min;
+                    newMaxs[n] = max;
+                    newCounts[n] = count;
+                    n++;
+                }
+                windowStart = startDepths[i];
+                sum = 0.0;
+                count = 0;
+                min = Double.POSITIVE_INFINITY;
+                max = Double.NEGATIVE_INFINITY;
+            }
+
+            int sampleCount = counts == null ? 1 : counts[i];
+            sum += means[i] * sampleCount;
+            count += sampleCount;
+            min = Math.min(min, mins == null ? means[i] : mins[i]);
+            max = Math.max(max, maxs == null ? means[i] : maxs[i]);
+        }
+        if (count > 0) {
+            newDepths[n] = windowStart;
+            newMeans[n] = sum / (double) count;
+            newMins[n] = min;
+            newMaxs[n] = max;
+            newCounts[n] = count;
+            n++;
+        }
+        int numericCount = n;
+
+        int[][] newClassCounts = new int[stringLength][];
+        String[] newHighStrings = new String[stringLength];
+        int s = 0;
+        int[] window = new int[labels.length];
+        boolean windowHasData = false;
+        windowStart = -Double.MAX_VALUE;
+        for (int i = 0; i < stringLength; i++) {
+            double depth = startDepths[numericLength + i];
+            if (depth - windowStart >= binSize) {
+                if (windowHasData) {
+                    newDepths[n++] = windowStart;
+                    newClassCounts[s] = window;
+                    newHighStrings[s] = labels[argmax(window)];
+                    s++;
+                    window = new int[labels.length];
+                }
+                windowStart = depth;
+                windowHasData = false;
+            }
+
+            int[] row = classCounts[i];
+            for (int k = 0; k < row.length; k++) {
+                window[k] += row[k];
+            }
+            windowHasData = true;
+        }
+        if (windowHasData) {
+            newDepths[n++] = windowStart;
+            newClassCounts[s] = window;
+            newHighStrings[s] = labels[argmax(window)];
+            s++;
+        }
+
+        return response.new Bin(bin.getName(),
+                Arrays.copyOf(newDepths, n),
+                bin.isNumeric(),
+                labels,
+                Arrays.copyOf(newClassCounts, s),
+                Arrays.copyOf(newHighStrings, s),
+                Arrays.copyOf(newMeans, numericCount),
+                Arrays.copyOf(newMins, numericCount),
+                Arrays.copyOf(newMaxs, numericCount),
+                Arrays.copyOf(newCounts, numericCount));
+    }
+
+    private static int argmax(int[] counts) {
+        int largestIndex = 0;
+        for (int i = 1; i < counts.length; i++) {
+            if (counts[i] > counts[largestIndex]) {
+                largestIndex = i;
+            }
+        }
+        return largestIndex;
+    }
+
+    /**
+     * Creates a copy of bin that only includes the aggregate windows that overlap [startDepth, endDepth]
+     *
+     * @param response The response that will own the returned Bin
+     * @param bin The bin to slice
+     * @param binSize The size of each window in bin (in metres)
+     * @param startDepth [Optional] The shallowest depth (in metres) to include
+     * @param endDepth [Optional] The deepest depth (in metres) to include
+     * @return
+     */
+    public static Bin sliceDepthRange(BinnedCSVResponse response, Bin bin, double binSize, Double startDepth, Double endDepth) {
+        double from = startDepth == null ? -Double.MAX_VALUE : startDepth - binSize;
+        double to = endDepth == null ? Double.MAX_VALUE : endDepth;
+
+        double[] startDepths = bin.getStartDepths();
+        int numericLength = bin.getNumericValues().length;
+        int[] numericIndexes = new int[numericLength];
+        int[] stringIndexes = new int[startDepths.length - numericLength];
+        int numericCount = 0;
+        int stringCount = 0;
+        for (int i = 0; i < startDepths.length; i++) {
+            if (startDepths[i] > from && startDepths[i] <= to) {
+                if (i < numericLength) {
+                    numericIndexes[numericCount++] = i;
+                } else {
+                    stringIndexes[stringCount++] = i - numericLength;
+                }
+            }
+        }
+
+        double[] depths = new double[numericCount + stringCount];
+        double[] means = new double[numericCount];
+        double[] mins = new double[numericCount];
+        double[] maxs = new double[numericCount];
+        int[] counts = new int[numericCount];
+        for (int i = 0; i < numericCount; i++) {
+            int index = numericIndexes[i];
+            depths[i] = startDepths[index];
+            means[i] = bin.getNumericValues()[index];
+            mins[i] = bin.getMinValues()[index];
+            maxs[i] = bin.getMaxValues()[index];
+            counts[i] = bin.getSampleCounts()[index];
+        }
+
+        int[][] classCounts = new int[stringCount][];
+        String[] highStrings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            int index = stringIndexes[i];
+            depths[numericCount + i] = startDepths[numericLength + index];
+            classCounts[i] = bin.getClassCounts()[index];
+            highStrings[i] = bin.getHighStringValues()[index];
+        }
+
+        return response.new Bin(bin.getName(), depths, bin.isNumeric(), bin.getClassLabels(), classCounts, highStrings, means, mins, maxs, counts);
+    }
+}
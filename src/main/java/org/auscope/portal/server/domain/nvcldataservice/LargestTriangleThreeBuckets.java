@@ -0,0 +1,77 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling (Steinarsson, 2013).
+ *
+ * Picks a subset of points from a series that preserves its visual shape when plotted. The first and last
+ * points are always kept, the rest of the series is split into equally sized buckets and from each bucket
+ * the point forming the largest triangle with the previously selected point and the average of the next
+ * bucket is kept.
+ */
+public class LargestTriangleThreeBuckets {
+
+    private LargestTriangleThreeBuckets() {
+        //Static utility
+    }
+
+    /**
+     * Selects (at most) threshold points from the series x,y (which must be sorted by x)
+     *
+     * @param x The x values of the series
+     * @param y The y values of the series (same length as x)
+     * @param threshold The maximum number of points to select
+     * @return The indexes (in increasing order) of the selected points
+     */
+    public static int[] select(double[] x, double[] y, int threshold) {
+        int n = x.length;
+        if (threshold >= n) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        if (threshold <= 2) {
+            return threshold <= 1 ? new int[] {0} : new int[] {0, n - 1};
+        }
+
+        int[] sampled = new int[threshold];
+        int sampledCount = 0;
+        double bucketSize = (double) (n - 2) / (threshold - 2);
+
+        int a = 0;
+        sampled[sampledCount++] = a;
+        for (int i = 0; i < threshold - 2; i++) {
+            //Average point of the next bucket
+            int avgStart = (int) Math.floor((i + 1) * bucketSize) + 1;
+            int avgEnd = Math.min((int) Math.floor((i + 2) * bucketSize) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += x[j];
+                avgY += y[j];
+            }
+            avgX /= (avgEnd - avgStart);
+            avgY /= (avgEnd - avgStart);
+
+            //Point in this bucket forming the largest triangle with a and the average of the next bucket
+            int rangeStart = (int) Math.floor(i * bucketSize) + 1;
+            int rangeEnd = (int) Math.floor((i + 1) * bucketSize) + 1;
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((x[a] - avgX) * (y[j] - y[a]) - (x[a] - x[j]) * (avgY - y[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+
+            sampled[sampledCount++] = next;
+            a = next;
+        }
+        sampled[sampledCount++] = n - 1;
+
+        return sampled;
+    }
+}
@@ -0,0 +1,300 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pull parsers (StAX) for the XML responses of the NVCL data services.
+ *
+ * Each response is read in a single pass directly into its response objects - no DOM is built and no XPath
+ * is evaluated. Missing elements are treated as empty strings (matching the XPath string value of an empty node set).
+ */
+public class NVCLResponseParser {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+
+    private NVCLResponseParser() {
+        //Utility class
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Returns true if path consists of exactly names (in order)
+     */
+    private static boolean pathEquals(List<String> path, String... names) {
+        if (path.size() != names.length) {
+            return false;
+        }
+        for (int i = names.length - 1; i >= 0; i--) {
+            if (!names[i].equals(path.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads every rootName/recordName element in xml. The text content of each child element of a record is
+     * collected (by local name, first occurrence wins) and passed to binder.
+     *
+     * @param xml The response to parse
+     * @param rootName The local name of the document element
+     * @param recordName The local name of each record element
+     * @param binder Converts the child values of a record into a response object. Returning null skips the record
+     * @return
+     * @throws XMLStreamException
+     */
+    private static <T> List<T> parseRecords(InputStream xml, String rootName, String recordName, Function<Map<String, String>, T> binder) throws XMLStreamException {
+        List<T> records = new ArrayList<T>();
+        StringBuilder text = new StringBuilder();
+        Map<String, String> fields = null;
+        boolean inRoot = false;
+        int depth = 0;
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (depth == 1) {
+                        inRoot = rootName.equals(reader.getLocalName());
+                    } else if (depth == 2 && inRoot && recordName.equals(reader.getLocalName())) {
+                        fields = new HashMap<String, String>();
+                    } else if (depth == 3) {
+                        text.setLength(0);
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (depth >= 3 && fields != null) {
+                        text.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 3 && fields != null) {
+                        fields.putIfAbsent(reader.getLocalName(), text.toString());
+                    } else if (depth == 2 && fields != null) {
+                        T record = binder.apply(fields);
+                        if (record != null) {
+                            records.add(record);
+                        }
+                        fields = null;
+                    }
+                    depth--;
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return records;
+    }
+
+    /**
+     * Parses a getDatasetCollection response
+     * @param xml
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<GetDatasetCollectionResponse> parseDatasetCollection(InputStream xml) throws XMLStreamException {
+        return parseRecords(xml, "DatasetCollection", "Dataset", fields -> new GetDatasetCollectionResponse(
+                fields.getOrDefault("DatasetID", ""),
+                fields.getOrDefault("DatasetName", ""),
+                fields.getOrDefault("OmUrl", "")));
+    }
+
+    /**
+     * Parses a getLogCollection response
+     * @param xml
+     * @param logNameElement The element holding the log name (the NVCL services return LogName for mosaic requests and logName otherwise)
+     * @param publicOnly If true, logs whose ispublic element is set to anything other than true will be skipped
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<GetLogCollectionResponse> parseLogCollection(InputStream xml, final String logNameElement, final boolean publicOnly) throws XMLStreamException {
+        return parseRecords(xml, "LogCollection", "Log", fields -> {
+            String isPublic = fields.getOrDefault("ispublic", "");
+            if (publicOnly && !isPublic.isEmpty() && !isPublic.equals("true")) {
+                return null;
+            }
+
+            String sampleCountString = fields.getOrDefault("SampleCount", "").trim();
+            int sampleCount = sampleCountString.isEmpty() ? 0 : Integer.parseInt(sampleCountString);
+            return new GetLogCollectionResponse(fields.getOrDefault("LogID", ""), fields.getOrDefault(logNameElement, ""), sampleCount);
+        });
+    }
+
+    /**
+     * Parses a getImageTrayDepth response
+     * @param xml
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<ImageTrayDepthResponse> parseImageTrayDepths(InputStream xml) throws XMLStreamException {
+        return parseRecords(xml, "ImageTrayCollection", "ImageTray", fields -> new ImageTrayDepthResponse(
+                fields.getOrDefault("SampleNo", ""),
+                fields.getOrDefault("StartValue", ""),
+                fields.getOrDefault("EndValue", "")));
+    }
+
+    /**
+     * Parses a getClassifications response
+     * @param xml
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<AlgorithmOutputClassification> parseClassifications(InputStream xml) throws XMLStreamException {
+        return parseRecords(xml, "ClassificationsCollection", "classifications", fields -> new AlgorithmOutputClassification(
+                fields.getOrDefault("classText", ""),
+                Integer.parseInt(fields.getOrDefault("colour", "").trim()),
+                Integer.parseInt(fields.getOrDefault("index", "").trim())));
+    }
+
+    /**
+     * Parses a getAlgorithms response in a single streaming pass
+     * @param xml
+     * @return
+     * @throws XMLStreamException
+     */
+    public static List<AlgorithmOutputResponse> parseAlgorithms(InputStream xml) throws XMLStreamException {
+        ArrayList<AlgorithmOutputResponse> responseObjs = new ArrayList<AlgorithmOutputResponse>();
+        List<String> path = new ArrayList<String>();
+        StringBuilder text = new StringBuilder();
+
+        //Outputs are only emitted at the end of their algorithm (algorithmID/name may appear after them)
+        List<AlgorithmOutputResponse> algorithmOutputs = new ArrayList<AlgorithmOutputResponse>();
+        List<AlgorithmVersion> versions = null;
+        String algorithmId = null;
+        String algorithmName = null;
+        String outputName = null;
+        String algorithmOutputId = null;
+        String versionId = null;
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    path.add(reader.getLocalName());
+                    text.setLength(0);
+                    if (pathEquals(path, "Algorithms", "algorithms")) {
+                        algorithmOutputs.clear();
+                        algorithmId = null;
+                        algorithmName = null;
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "outputs")) {
+                        versions = new ArrayList<AlgorithmVersion>();
+                        outputName = null;
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "outputs", "versions")) {
+                        algorithmOutputId = null;
+                        versionId = null;
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    text.append(reader.getText());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    String value = text.toString().trim();
+                    if (pathEquals(path, "Algorithms", "algorithms", "algorithmID") && algorithmId == null) {
+                        algorithmId = value;
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "name") && algorithmName == null) {
+                        algorithmName = value;
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "outputs", "name") && outputName == null) {
+                        outputName = value;
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "outputs", "versions", "algorithmoutputID") && algorithmOutputId == null) {
+                        algorithmOutputId = value;
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "outputs", "versions", "version") && versionId == null) {
+                        versionId = value;
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "outputs", "versions")) {
+                        versions.add(new AlgorithmVersion(Integer.parseInt(algorithmOutputId), Integer.parseInt(versionId)));
+                    } else if (pathEquals(path, "Algorithms", "algorithms", "outputs")) {
+                        algorithmOutputs.add(new AlgorithmOutputResponse(0, null, outputName == null ? "" : outputName, versions));
+                    } else if (pathEquals(path, "Algorithms", "algorithms")) {
+                        for (AlgorithmOutputResponse output : algorithmOutputs) {
+                            output.setAlgorithmId(Integer.parseInt(algorithmId));
+                            output.setAlgorithmName(algorithmName == null ? "" : algorithmName);
+                        }
+                        responseObjs.addAll(algorithmOutputs);
+                    }
+                    path.remove(path.size() - 1);
+                    text.setLength(0);
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return responseObjs;
+    }
+
+    /**
+     * Parses a ScannedBoreholeCollection WFS response into the borehole ID's of every scannedBorehole (in document order).
+     * The ID is the last path segment of each xlink:href - hrefs without a path are skipped.
+     *
+     * @param xml
+     * @return
+     * @throws XMLStreamException If xml is malformed or is an OWS exception report
+     */
+    public static List<String> parseScannedBoreholeIDs(InputStream xml) throws XMLStreamException {
+        List<String> ids = new ArrayList<String>();
+        StringBuilder exceptionText = null;
+        int depth = 0;
+
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(xml);
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (depth == 1 && "ExceptionReport".equals(reader.getLocalName())) {
+                        exceptionText = new StringBuilder();
+                    } else if (exceptionText == null && "scannedBorehole".equals(reader.getLocalName())) {
+                        String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+                        if (href != null) {
+                            String[] urnBlocks = href.split("/");
+                            if (urnBlocks.length > 1) {
+                                ids.add(urnBlocks[urnBlocks.length - 1].trim());
+                            }
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (exceptionText != null) {
+                        exceptionText.append(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (exceptionText != null) {
+            throw new XMLStreamException("Service returned an exception report: " + exceptionText.toString().trim());
+        }
+        return ids;
+    }
+}
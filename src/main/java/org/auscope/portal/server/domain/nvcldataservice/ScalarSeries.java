@@ -0,0 +1,254 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The depth series of a single NVCL log (as returned by getDownsampledData.html) held in primitive arrays.
+ *
+ * A series is either numeric (roundedDepth/averageValue pairs) or classified (roundedDepth, classCount,
+ * classText and colour). Numeric series can be reduced to a target number of points with
+ * LargestTriangleThreeBuckets when written out.
+ */
+public class ScalarSeries {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private double[] depths;
+    private double[] values;
+    private int[] classCounts;
+    private String[] classTexts;
+    private int[] colours;
+    private int size;
+
+    private ScalarSeries(boolean numeric) {
+        depths = new double[INITIAL_CAPACITY];
+        if (numeric) {
+            values = new double[INITIAL_CAPACITY];
+        } else {
+            classCounts = new int[INITIAL_CAPACITY];
+            classTexts = new String[INITIAL_CAPACITY];
+            colours = new int[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * True if this is a series of averaged numeric values, false if it's a series of class counts
+     * @return
+     */
+    public boolean isNumeric() {
+        return values != null;
+    }
+
+    /**
+     * The number of points in this series
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Each item (n) corresponds to the depth in metres of the n'th point
+     * @return
+     */
+    public double[] getDepths() {
+        return depths;
+    }
+
+    /**
+     * The averaged values of a numeric series (or null for a classified series)
+     * @return
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * The class counts of a classified series (or null for a numeric series)
+     * @return
+     */
+    public int[] getClassCounts() {
+        return classCounts;
+    }
+
+    /**
+     * The class names of a classified series (or null for a numeric series)
+     * @return
+     */
+    public String[] getClassTexts() {
+        return classTexts;
+    }
+
+    /**
+     * The (BGR) class colours of a classified series (or null for a numeric series)
+     * @return
+     */
+    public int[] getColours() {
+        return colours;
+    }
+
+    /**
+     * Returns a copy of this series reduced to at most targetPoints points. Only numeric series are reduced (using
+     * LargestTriangleThreeBuckets) - classified series are returned unchanged.
+     *
+     * @param targetPoints [Optional] If null (or non positive) this series will be returned unchanged.
+     * @return
+     */
+    public ScalarSeries downsample(Integer targetPoints) {
+        if (!isNumeric() || targetPoints == null || targetPoints <= 0 || targetPoints >= size) {
+            return this;
+        }
+
+        int[] indexes = LargestTriangleThreeBuckets.select(depths, values, targetPoints);
+        ScalarSeries reduced = new ScalarSeries(true);
+        reduced.depths = new double[indexes.length];
+        reduced.values = new double[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            reduced.depths[i] = depths[indexes[i]];
+            reduced.values[i] = values[indexes[i]];
+        }
+        reduced.size = indexes.length;
+        return reduced;
+    }
+
+    private void grow() {
+        int capacity = depths.length * 2;
+        depths = Arrays.copyOf(depths, capacity);
+        if (isNumeric()) {
+            values = Arrays.copyOf(values, capacity);
+        } else {
+            classCounts = Arrays.copyOf(classCounts, capacity);
+            classTexts = Arrays.copyOf(classTexts, capacity);
+            colours = Arrays.copyOf(colours, capacity);
+        }
+    }
+
+    private void trim() {
+        depths = Arrays.copyOf(depths, size);
+        if (isNumeric()) {
+            values = Arrays.copyOf(values, size);
+        } else {
+            classCounts = Arrays.copyOf(classCounts, size);
+            classTexts = Arrays.copyOf(classTexts, size);
+            colours = Arrays.copyOf(colours, size);
+        }
+    }
+
+    /**
+     * Parses a getDownsampledData.html JSON response. The type of the series is determined by the first object
+     * in the response. Numeric points without a depth/value are skipped.
+     *
+     * @param parser Positioned before the start of the response array
+     * @return The series or null if the response is empty or of an unrecognised type
+     * @throws IOException
+     */
+    public static ScalarSeries parse(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            return null;
+        }
+
+        ScalarSeries series = null;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            double depth = Double.NaN;
+            double value = Double.NaN;
+            int classCount = 0;
+            String classText = "";
+            int colour = 0;
+            boolean hasValue = false;
+            boolean hasClassCount = false;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                case "roundedDepth":
+                    depth = token.isNumeric() ? parser.getDoubleValue() : Double.NaN;
+                    break;
+                case "averageValue":
+                    hasValue = true;
+                    value = token.isNumeric() ? parser.getDoubleValue() : Double.NaN;
+                    break;
+                case "classCount":
+                    hasClassCount = true;
+                    classCount = token.isNumeric() ? parser.getIntValue() : 0;
+                    break;
+                case "classText":
+                    classText = token == JsonToken.VALUE_NULL ? "" : parser.getValueAsString("");
+                    break;
+                case "colour":
+                    colour = token.isNumeric() ? parser.getIntValue() : 0;
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+                }
+            }
+
+            if (series == null) {
+                if (hasClassCount) {
+                    series = new ScalarSeries(false);
+                } else if (hasValue) {
+                    series = new ScalarSeries(true);
+                } else {
+                    return null;
+                }
+            }
+
+            if (series.size == series.depths.length) {
+                series.grow();
+            }
+            if (series.isNumeric()) {
+                if (Double.isNaN(depth) || Double.isNaN(value)) {
+                    continue;
+                }
+                series.values[series.size] = value;
+            } else {
+                series.classCounts[series.size] = classCount;
+                series.classTexts[series.size] = classText;
+                series.colours[series.size] = colour;
+            }
+            series.depths[series.size++] = depth;
+        }
+
+        if (series != null) {
+            series.trim();
+        }
+        return series;
+    }
+
+    /**
+     * Writes this series as a JSON object of the form {"logId": logId, "numericValues": [...]} (or "stringValues"
+     * for a classified series). Each point is written in the same form as the original getDownsampledData.html response.
+     *
+     * @param generator Where to write the object
+     * @param logId The log that this series belongs to
+     * @param targetPoints [Optional] If set, numeric series will be reduced to this many points (see downsample)
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator, String logId, Integer targetPoints) throws IOException {
+        ScalarSeries series = downsample(targetPoints);
+
+        generator.writeStartObject();
+        generator.writeStringField("logId", logId);
+        generator.writeArrayFieldStart(isNumeric() ? "numericValues" : "stringValues");
+        for (int i = 0; i < series.size; i++) {
+            generator.writeStartObject();
+            generator.writeNumberField("roundedDepth", series.depths[i]);
+            if (isNumeric()) {
+                generator.writeNumberField("averageValue", series.values[i]);
+            } else {
+                generator.writeNumberField("classCount", series.classCounts[i]);
+                generator.writeStringField("classText", series.classTexts[i]);
+                generator.writeNumberField("colour", series.colours[i]);
+            }
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,483 @@
+package org.auscope.portal.server.domain.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Transcodes a WFS GetFeature (GML 2, 3.1 or 3.2) response into a GeoJSON FeatureCollection as it streams in.
+ *
+ * Only a single feature (and its geometry) is ever held in memory. Each feature becomes a GeoJSON feature with:
+ * <ul>
+ * <li>id - the gml:id (or GML 2 fid) of the feature</li>
+ * <li>geometry - the first GML geometry found anywhere in the feature (others are ignored)</li>
+ * <li>properties - every non geometry leaf element as a string, keyed by the local names of the path to that leaf
+ * (eg - collarLocation.BoreholeCollar.elevation). Empty elements with an xlink:href use the href as their value.
+ * Repeated keys are suffixed with _2, _3 etc.</li>
+ * </ul>
+ *
+ * Coordinates are written in x/y (lon/lat) order but are not reprojected.
+ */
+public class GMLGeoJSONTranscoder {
+
+    /** The media type of GeoJSON responses */
+    public static final String MEDIA_TYPE = "application/geo+json";
+
+    private static final String GML_NAMESPACE = "http://www.opengis.net/gml";
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final Set<String> POINTS = new HashSet<String>(Arrays.asList("Point"));
+    private static final Set<String> LINES = new HashSet<String>(Arrays.asList("LineString", "LinearRing", "Curve", "LineStringSegment", "Ring", "OrientableCurve"));
+    private static final Set<String> POLYGONS = new HashSet<String>(Arrays.asList("Polygon", "PolygonPatch"));
+    private static final Set<String> COLLECTIONS = new HashSet<String>(Arrays.asList("MultiPoint", "MultiLineString", "MultiCurve", "CompositeCurve",
+            "MultiPolygon", "MultiSurface", "CompositeSurface", "Surface", "MultiGeometry"));
+    private static final Set<String> RINGS = new HashSet<String>(Arrays.asList("exterior", "interior", "outerBoundaryIs", "innerBoundaryIs"));
+
+    /**
+     * A geometry read from GML. coordinates is a position (double[]) or a (nested) list of positions
+     */
+    private static class Geometry {
+        private String type;
+        private Object coordinates;
+        private List<Geometry> geometries;
+
+        private Geometry(String type, Object coordinates) {
+            this.type = type;
+            this.coordinates = coordinates;
+        }
+    }
+
+    /**
+     * State for the srsName/srsDimension of the element currently being read
+     */
+    private static class SrsContext {
+        private String srsName;
+        private int srsDimension;
+
+        private SrsContext(String srsName, int srsDimension) {
+            this.srsName = srsName;
+            this.srsDimension = srsDimension;
+        }
+
+        private SrsContext inherit(XMLStreamReader reader) {
+            String name = reader.getAttributeValue(null, "srsName");
+            String dimension = reader.getAttributeValue(null, "srsDimension");
+            if (name == null && dimension == null) {
+                return this;
+            }
+            return new SrsContext(name == null ? srsName : name, dimension == null ? srsDimension : Integer.parseInt(dimension.trim()));
+        }
+    }
+
+    private GMLGeoJSONTranscoder() {
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+
+    /**
+     * Returns true if outputFormat requests GeoJSON. A plain application/json is passed through to the
+     * service untouched (some services support it natively)
+     */
+    public static boolean isGeoJSON(String outputFormat) {
+        return outputFormat != null && (outputFormat.equalsIgnoreCase("geojson") || outputFormat.equalsIgnoreCase(MEDIA_TYPE));
+    }
+
+    /**
+     * Returns true if coordinates in srsName are ordered latitude then longitude (the axis order of the EPSG
+     * geographic CRS's when written as URN's or http URI's). Everything else is assumed to be x/y (lon/lat)
+     */
+    public static boolean isLatLonOrder(String srsName) {
+        if (srsName == null) {
+            return false;
+        }
+        String srs = srsName.toLowerCase();
+        if (!srs.startsWith("urn:") && !srs.contains("opengis.net/def/crs")) {
+            return false;
+        }
+        return srs.endsWith("4326") || srs.endsWith("4283") || srs.endsWith("7844") || srs.endsWith("4258");
+    }
+
+    private static boolean isGml(XMLStreamReader reader, String localName) {
+        String namespace = reader.getNamespaceURI();
+        return localName.equals(reader.getLocalName()) && namespace != null && namespace.startsWith(GML_NAMESPACE);
+    }
+
+    private static boolean isGeometry(XMLStreamReader reader) {
+        String namespace = reader.getNamespaceURI();
+        if (namespace == null || !namespace.startsWith(GML_NAMESPACE)) {
+            return false;
+        }
+        String name = reader.getLocalName();
+        return POINTS.contains(name) || LINES.contains(name) || POLYGONS.contains(name) || COLLECTIONS.contains(name);
+    }
+
+    /**
+     * Parses the positions of a gml:pos, gml:posList or gml:coordinates element (whose start has just been read)
+     */
+    private static void readPositions(XMLStreamReader reader, SrsContext srs, List<double[]> positions) throws XMLStreamException {
+        boolean tuples = "coordinates".equals(reader.getLocalName());
+        String text = reader.getElementText().trim();
+        if (text.isEmpty()) {
+            return;
+        }
+
+        boolean swap = isLatLonOrder(srs.srsName);
+        if (tuples) {
+            for (String tuple : text.split("\\s+")) {
+                String[] values = tuple.split(",");
+                addPosition(values, 0, values.length, swap, positions);
+            }
+        } else {
+            String[] values = text.split("\\s+");
+            int dimension = srs.srsDimension > 0 ? srs.srsDimension : 2;
+            for (int i = 0; i + dimension <= values.length; i += dimension) {
+                addPosition(values, i, dimension, swap, positions);
+            }
+        }
+    }
+
+    private static void addPosition(String[] values, int offset, int dimension, boolean swap, List<double[]> positions) {
+        if (dimension < 2) {
+            return;
+        }
+        double[] position = new double[Math.min(dimension, 3)];
+        for (int i = 0; i < position.length; i++) {
+            position[i] = Double.parseDouble(values[offset + i]);
+        }
+        if (swap) {
+            double lat = position[0];
+            position[0] = position[1];
+            position[1] = lat;
+        }
+        positions.add(position);
+    }
+
+    /**
+     * Reads every position inside the element whose start has just been read
+     */
+    private static List<double[]> readAllPositions(XMLStreamReader reader, SrsContext srs) throws XMLStreamException {
+        List<double[]> positions = new ArrayList<double[]>();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                SrsContext childSrs = srs.inherit(reader);
+                if (isGml(reader, "pos") || isGml(reader, "posList") || isGml(reader, "coordinates")) {
+                    readPositions(reader, childSrs, positions);
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamReader.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Reads the rings of a polygon (whose start has just been read)
+     */
+    private static List<List<double[]>> readRings(XMLStreamReader reader, SrsContext srs) throws XMLStreamException {
+        List<List<double[]>> rings = new ArrayList<List<double[]>>();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                if (RINGS.contains(reader.getLocalName())) {
+                    List<double[]> ring = readAllPositions(reader, srs.inherit(reader));
+                    if ("exterior".equals(reader.getLocalName()) || "outerBoundaryIs".equals(reader.getLocalName())) {
+                        rings.add(0, ring);
+                    } else {
+                        rings.add(ring);
+                    }
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamReader.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return rings;
+    }
+
+    /**
+     * Reads the member geometries of a collection (whose start has just been read)
+     */
+    private static Geometry readCollection(XMLStreamReader reader, SrsContext srs) throws XMLStreamException {
+        List<Geometry> members = new ArrayList<Geometry>();
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                if (isGeometry(reader)) {
+                    Geometry member = readGeometry(reader, srs);
+                    if (member.geometries != null) {
+                        members.addAll(member.geometries);
+                    } else if (member.type.startsWith("Multi")) {
+                        for (Object coordinates : (List<?>) member.coordinates) {
+                            members.add(new Geometry(member.type.substring("Multi".length()), coordinates));
+                        }
+                    } else {
+                        members.add(member);
+                    }
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamReader.END_ELEMENT) {
+                depth--;
+            }
+        }
+
+        Set<String> types = new HashSet<String>();
+        for (Geometry member : members) {
+            types.add(member.type);
+        }
+        if (members.size() == 1) {
+            return members.get(0);
+        }
+        if (types.size() == 1) {
+            List<Object> coordinates = new ArrayList<Object>(members.size());
+            for (Geometry member : members) {
+                coordinates.add(member.coordinates);
+            }
+            return new Geometry("Multi" + types.iterator().next(), coordinates);
+        }
+        Geometry collection = new Geometry("GeometryCollection", null);
+        collection.geometries = members;
+        return collection;
+    }
+
+    /**
+     * Reads a GML geometry (whose start has just been read). Afterwards the reader will be at the end of the geometry.
+     */
+    private static Geometry readGeometry(XMLStreamReader reader, SrsContext parentSrs) throws XMLStreamException {
+        SrsContext srs = parentSrs.inherit(reader);
+        String name = reader.getLocalName();
+        if (POINTS.contains(name)) {
+            List<double[]> positions = readAllPositions(reader, srs);
+            return new Geometry("Point", positions.isEmpty() ? null : positions.get(0));
+        } else if (LINES.contains(name)) {
+            return new Geometry("LineString", readAllPositions(reader, srs));
+        } else if (POLYGONS.contains(name)) {
+            return new Geometry("Polygon", readRings(reader, srs));
+        } else {
+            return readCollection(reader, srs);
+        }
+    }
+
+    private static void writeCoordinates(JsonGenerator generator, Object coordinates) throws IOException {
+        if (coordinates instanceof double[]) {
+            double[] position = (double[]) coordinates;
+            generator.writeArray(position, 0, position.length);
+        } else {
+            generator.writeStartArray();
+            for (Object child : (List<?>) coordinates) {
+                writeCoordinates(generator, child);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static void writeGeometry(JsonGenerator generator, Geometry geometry) throws IOException {
+        if (geometry == null || (geometry.coordinates == null && geometry.geometries == null)) {
+            generator.writeNull();
+            return;
+        }
+
+        generator.writeStartObject();
+        generator.writeStringField("type", geometry.type);
+        if (geometry.geometries != null) {
+            generator.writeArrayFieldStart("geometries");
+            for (Geometry member : geometry.geometries) {
+                writeGeometry(generator, member);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeFieldName("coordinates");
+            writeCoordinates(generator, geometry.coordinates);
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Writes a property value (making the key unique within the feature)
+     */
+    private static void writeProperty(JsonGenerator generator, Map<String, Integer> keyCounts, String key, String value) throws IOException {
+        Integer count = keyCounts.merge(key, 1, Integer::sum);
+        generator.writeStringField(count == 1 ? key : key + "_" + count, value);
+    }
+
+    /**
+     * Writes every leaf of a property element (whose start has just been read) into the current properties object.
+     * Any geometry (inside the property) is returned rather than written.
+     */
+    private static Geometry writePropertyLeaves(XMLStreamReader reader, JsonGenerator generator, Map<String, Integer> keyCounts,
+            String key, SrsContext srs) throws XMLStreamException, IOException {
+        Geometry geometry = null;
+        String href = reader.getAttributeValue(XLINK_NAMESPACE, "href");
+        StringBuilder text = new StringBuilder();
+        boolean hasChildren = false;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                hasChildren = true;
+                if (isGeometry(reader)) {
+                    Geometry childGeometry = readGeometry(reader, srs);
+                    geometry = geometry == null ? childGeometry : geometry;
+                } else {
+                    Geometry childGeometry = writePropertyLeaves(reader, generator, keyCounts, key + "." + reader.getLocalName(), srs.inherit(reader));
+                    geometry = geometry == null ? childGeometry : geometry;
+                }
+            } else if (event == XMLStreamReader.CHARACTERS || event == XMLStreamReader.CDATA || event == XMLStreamReader.SPACE) {
+                if (!hasChildren) {
+                    text.append(reader.getText());
+                }
+            } else if (event == XMLStreamReader.END_ELEMENT) {
+                break;
+            }
+        }
+
+        if (!hasChildren) {
+            String value = text.toString().trim();
+            if (!value.isEmpty()) {
+                writeProperty(generator, keyCounts, key, value);
+            } else if (href != null) {
+                writeProperty(generator, keyCounts, key, href);
+            }
+        } else if (href != null) {
+            writeProperty(generator, keyCounts, key, href);
+        }
+        return geometry;
+    }
+
+    /**
+     * Writes a single feature (whose start has just been read) as a GeoJSON feature
+     */
+    private static void writeFeature(XMLStreamReader reader, JsonGenerator generator, SrsContext srs) throws XMLStreamException, IOException {
+        String id = reader.getAttributeValue(null, "fid");
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String namespace = reader.getAttributeNamespace(i);
+            if ("id".equals(reader.getAttributeLocalName(i)) && namespace != null && namespace.startsWith(GML_NAMESPACE)) {
+                id = reader.getAttributeValue(i);
+            }
+        }
+        SrsContext featureSrs = srs.inherit(reader);
+
+        generator.writeStartObject();
+        generator.writeStringField("type", "Feature");
+        if (id != null) {
+            generator.writeStringField("id", id);
+        }
+        generator.writeObjectFieldStart("properties");
+
+        Geometry geometry = null;
+        Map<String, Integer> keyCounts = new HashMap<String, Integer>();
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                Geometry propertyGeometry;
+                if (isGml(reader, "boundedBy")) {
+                    readAllPositions(reader, featureSrs);
+                    propertyGeometry = null;
+                } else if (isGeometry(reader)) {
+                    propertyGeometry = readGeometry(reader, featureSrs);
+                } else {
+                    propertyGeometry = writePropertyLeaves(reader, generator, keyCounts, reader.getLocalName(), featureSrs.inherit(reader));
+                }
+                geometry = geometry == null ? propertyGeometry : geometry;
+            } else if (event == XMLStreamReader.END_ELEMENT) {
+                break;
+            }
+        }
+
+        generator.writeEndObject();
+        generator.writeFieldName("geometry");
+        writeGeometry(generator, geometry);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Transcodes a WFS GetFeature (GML) response into a GeoJSON FeatureCollection.
+     *
+     * The root element is checked before anything is written so that an exception report (or non XML response) fails
+     * without writing any output.
+     *
+     * @param gml The response to transcode (will not be closed)
+     * @param os Receives the GeoJSON (UTF-8, will not be closed)
+     * @return The number of features written
+     * @throws XMLStreamException If the response is malformed or an exception report
+     * @throws IOException
+     */
+    public static int transcode(InputStream gml, OutputStream os) throws XMLStreamException, IOException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(gml);
+        try {
+            while (reader.hasNext() && reader.next() != XMLStreamReader.START_ELEMENT) {
+                //Skip to the root element
+            }
+            if (!reader.isStartElement() || "ExceptionReport".equals(reader.getLocalName()) || "ServiceExceptionReport".equals(reader.getLocalName())) {
+                throw new XMLStreamException("Service didn't return a feature collection");
+            }
+
+            int features = 0;
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(os, JsonEncoding.UTF8)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.writeStartObject();
+                generator.writeStringField("type", "FeatureCollection");
+                generator.writeArrayFieldStart("features");
+
+                SrsContext srs = new SrsContext(null, 0).inherit(reader);
+                int depth = 1;
+                int membersDepth = -1;
+                while (depth > 0 && reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamReader.START_ELEMENT) {
+                        depth++;
+                        if (depth == membersDepth + 1) {
+                            writeFeature(reader, generator, srs);
+                            features++;
+                            depth--;
+                        } else if (isGml(reader, "featureMembers") || isGml(reader, "featureMember") || "member".equals(reader.getLocalName())) {
+                            membersDepth = depth;
+                        } else {
+                            srs = srs.inherit(reader);
+                        }
+                    } else if (event == XMLStreamReader.END_ELEMENT) {
+                        if (depth == membersDepth) {
+                            membersDepth = -1;
+                        }
+                        depth--;
+                    }
+                }
+
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            return features;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -148,6 +148,32 @@ public class NVCL2_0_DataServiceMethodMaker extends AbstractMethodMaker {
 
         return method;
     }
+
+    /**
+     * Generates a method for making a request for the image of a single core tray
+     *
+     * The response will be a JPEG image
+     *
+     * @param serviceUrl
+     *            The URL of the NVCLDataService
+     * @param logId
+     *            The logID (from a getLogCollection request) of the tray image log
+     * @param sampleNo
+     *            The sample number (from a getImageTrayDepth request) of the tray
+     * @return
+     * @throws URISyntaxException
+     */
+    public HttpRequestBase getTrayImageMethod(String serviceUrl, String logId, String sampleNo) throws URISyntaxException {
+        HttpGet method = new HttpGet();
+
+        URIBuilder builder = new URIBuilder(urlPathConcat(serviceUrl, "Display_Tray_Thumb.html"));
+        builder.setParameter("logid", logId);
+        builder.setParameter("sampleno", sampleNo);
+
+        method.setURI(builder.build());
+
+        return method;
+    }
     
 
     /**
@@ -0,0 +1,38 @@
+package org.auscope.portal.server.web.controllers;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Helpers for answering conditional (If-None-Match) requests against responses with a known ETag
+ */
+final class ConditionalRequests {
+
+    private ConditionalRequests() {
+    }
+
+    /**
+     * Sets the ETag header on response and returns true (after setting a 304 status) if request is a
+     * conditional GET/HEAD whose If-None-Match header already matches eTag.
+     */
+    static boolean checkNotModified(HttpServletRequest request, HttpServletResponse response, String eTag) {
+        response.setHeader("ETag", eTag);
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null || !("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod()))) {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+        }
+        return false;
+    }
+}
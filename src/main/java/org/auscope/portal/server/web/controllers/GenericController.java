@@ -2,12 +2,15 @@ package org.auscope.portal.server.web.controllers;
 
 import java.io.ByteArrayInputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import jakarta.servlet.http.HttpServletResponse;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.server.web.service.GenericService;
+import org.auscope.portal.server.web.service.SLDTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -85,34 +88,7 @@ public class GenericController extends BasePortalController {
      * @return
      */    
     private String getStyle(String filter, String layerName, String spatialPropertyName, String styleType, String styleColor) {
-      String header = "<sld:StyledLayerDescriptor version=\"1.0.0\" xmlns:gsmlp=\"http://xmlns.geosciml.org/geosciml-portrayal/4.0\" xsi:schemaLocation=\"http://schemas.opengis.net/sld/1.0.0/StyledLayerDescriptor.xsd\" xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:gsml=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\" xmlns:sld=\"http://www.opengis.net/sld\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
-          + "<sld:NamedLayer>" + "<sld:Name>" + layerName + "</sld:Name>" + "<sld:UserStyle>" + "<sld:Name>portal-style</sld:Name>"
-          + "<sld:FeatureTypeStyle>";
-      String tail = "</sld:FeatureTypeStyle>" + "</sld:UserStyle>" + "</sld:NamedLayer>" + "</sld:StyledLayerDescriptor>";
-
-      String rule = "";
-    switch (styleType) {
-      case "POLYGON":
-          rule = "<sld:Rule>" + filter + "<sld:PolygonSymbolizer>" 
-          + "<sld:Fill>" + "<sld:CssParameter name=\"fill\">" + styleColor + "</sld:CssParameter>" + "<sld:CssParameter name=\"fill-opacity\">0.1</sld:CssParameter>" + "</sld:Fill>"
-          + "<sld:Stroke>" + "<sld:CssParameter name=\"stroke\">" + styleColor + "</sld:CssParameter>" + "<sld:CssParameter name=\"stroke-width\">0.1</sld:CssParameter>" + "</sld:Stroke>"
-          + "</sld:PolygonSymbolizer>" + "</sld:Rule>";
-          break;
-	  case "LINE":
-          rule = "<sld:Rule>" + filter + "<sld:LineSymbolizer>" 
-          + "<sld:Stroke>" + "<sld:CssParameter name=\"stroke\">" + styleColor + "</sld:CssParameter>" + "<sld:CssParameter name=\"stroke-width\">0.1</sld:CssParameter>" + "</sld:Stroke>"
-          + "</sld:LineSymbolizer>" + "</sld:Rule>";
-          break;
-      case "POINT":
-      default:
-          rule = "<sld:Rule>" + filter + "<sld:PointSymbolizer>" + "<sld:Graphic>" + "<sld:Mark>" + "<sld:WellKnownName>circle</sld:WellKnownName>" 
-                  + "<sld:Fill>" + "<sld:CssParameter name=\"fill\">" + styleColor + "</sld:CssParameter>"
-                  + "<sld:CssParameter name=\"fill-opacity\">0.4</sld:CssParameter>" + "</sld:Fill>"
-                  + "</sld:Mark>" + "<sld:Size>8</sld:Size>" + "</sld:Graphic>" + "</sld:PointSymbolizer>" + "</sld:Rule>";
-          break;
-      }
-      String style = header + rule + tail;
-      return style;
+      return renderStyle(filter, layerName, styleType, styleColor, null, "http://schemas.opengis.net/sld/1.0.0/StyledLayerDescriptor.xsd");
     } 
     
     /**
@@ -125,36 +101,35 @@ public class GenericController extends BasePortalController {
      * @return
      */    
     private String getStyleWithLabel(String filter, String layerName, String spatialPropertyName, String styleType, String styleColor, String labelProperty) {
-      String header = "<sld:StyledLayerDescriptor version=\"1.0.0\" xmlns:gsmlp=\"http://xmlns.geosciml.org/geosciml-portrayal/4.0\" xsi:schemaLocation=\"http://www.opengis.net/sld StyledLayerDescriptor.xsd\" xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:gsml=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\" xmlns:sld=\"http://www.opengis.net/sld\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
-          + "<sld:NamedLayer>" + "<sld:Name>" + layerName + "</sld:Name>" + "<sld:UserStyle>" + "<sld:Name>portal-style</sld:Name>"
-          + "<sld:FeatureTypeStyle>";
-      String tail = "</sld:FeatureTypeStyle>" + "</sld:UserStyle>" + "</sld:NamedLayer>" + "</sld:StyledLayerDescriptor>";
-
-      String rule = "";
-      String textSymbolizer = "<TextSymbolizer><Label><ogc:PropertyName>" + labelProperty + "</ogc:PropertyName></Label><Font><CssParameter name=\"font-family\">Arial</CssParameter><CssParameter name=\"font-size\">12</CssParameter><CssParameter name=\"font-style\">normal</CssParameter><CssParameter name=\"font-weight\">normal</CssParameter></Font><LabelPlacement><PointPlacement><Displacement><DisplacementX>6</DisplacementX><DisplacementY>-6</DisplacementY></Displacement></PointPlacement></LabelPlacement><Fill><CssParameter name=\"fill\">#000000</CssParameter></Fill></TextSymbolizer>";
+      return renderStyle(filter, layerName, styleType, styleColor, labelProperty, "http://www.opengis.net/sld StyledLayerDescriptor.xsd");
+    }     
 
-    switch (styleType) {
+    /**
+     * Renders GenericController_getStyle.sld (one rule with a symbolizer for styleType and an optional label)
+     */
+    private String renderStyle(String filter, String layerName, String styleType, String styleColor, String labelProperty, String schemaLocation) {
+      Map<String, Object> values = new HashMap<String, Object>();
+      values.put("schemaLocation", schemaLocation);
+      values.put("layerName", layerName);
+      values.put("filter", filter);
+      values.put("color", styleColor);
+      switch (styleType) {
       case "POLYGON":
-          rule = "<sld:Rule>" + filter + "<sld:PolygonSymbolizer>" 
-          + "<sld:Fill>" + "<sld:CssParameter name=\"fill\">" + styleColor + "</sld:CssParameter>" + "<sld:CssParameter name=\"fill-opacity\">0.1</sld:CssParameter>" + "</sld:Fill>"
-          + "<sld:Stroke>" + "<sld:CssParameter name=\"stroke\">" + styleColor + "</sld:CssParameter>" + "<sld:CssParameter name=\"stroke-width\">0.1</sld:CssParameter>" + "</sld:Stroke>"
-          + "</sld:PolygonSymbolizer>" + textSymbolizer + "</sld:Rule>";
+          values.put("polygon", Boolean.TRUE);
           break;
-	  case "LINE":
-          rule = "<sld:Rule>" + filter + "<sld:LineSymbolizer>" 
-          + "<sld:Stroke>" + "<sld:CssParameter name=\"stroke\">" + styleColor + "</sld:CssParameter>" + "<sld:CssParameter name=\"stroke-width\">0.1</sld:CssParameter>" + "</sld:Stroke>"
-          + "</sld:LineSymbolizer>" + textSymbolizer + "</sld:Rule>";
+      case "LINE":
+          values.put("line", Boolean.TRUE);
           break;
       case "POINT":
       default:
-          rule = "<sld:Rule>" + filter + "<sld:PointSymbolizer>" + "<sld:Graphic>" + "<sld:Mark>" + "<sld:WellKnownName>circle</sld:WellKnownName>" 
-                  + "<sld:Fill>" + "<sld:CssParameter name=\"fill\">" + styleColor + "</sld:CssParameter>"
-                  + "<sld:CssParameter name=\"fill-opacity\">0.4</sld:CssParameter>" + "</sld:Fill>"
-                  + "</sld:Mark>" + "<sld:Size>8</sld:Size>" + "</sld:Graphic>" + "</sld:PointSymbolizer>" + textSymbolizer + "</sld:Rule>";
+          values.put("point", Boolean.TRUE);
           break;
       }
-      String style = header + rule + tail;
-      return style;
-    }     
+      if (labelProperty != null) {
+          values.put("label", Boolean.TRUE);
+          values.put("labelProperty", labelProperty);
+      }
+      return SLDTemplate.load("GenericController_getStyle.sld").render(values);
+    }
 
 }
@@ -4,19 +4,29 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
 import org.apache.commons.io.IOUtils;
 import java.nio.charset.StandardCharsets;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.services.WMSService;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
-import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.core.util.SLDLoader;
 import org.auscope.portal.server.MineralTenementServiceProviderType;
+import org.auscope.portal.server.web.service.DiskLruCache;
+import org.auscope.portal.server.web.service.MineralTenementDatasetCache;
 import org.auscope.portal.server.web.service.MineralTenementService;
+import org.auscope.portal.server.web.service.PagedWFSDownloadService;
+import org.auscope.portal.server.web.service.SLDTemplate;
+import org.auscope.portal.server.web.service.download.CSVPipeline;
+import org.auscope.portal.server.web.service.download.MineralTenementLocalFilter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -29,11 +39,35 @@ import org.springframework.web.bind.annotation.RequestParam;
 public class MineralTenementController extends BasePortalController {
 
     private MineralTenementService mineralTenementService;
+    private PagedWFSDownloadService wfsDownloadService;
+    private MineralTenementDatasetCache datasetCache;
     private HashMap<String, String> MINERAL_TENEMENT_COLOUR_MAP = new HashMap<String, String>();    
 
+    /** The ccProperty values with their own colour coding (anything else is a single "Tenement" rule) */
+    private static final String[] CC_PROPERTIES = {"TenementType", "TenementStatus", ""};
+
+    /**
+     * A rendered SLD and its ETag
+     */
+    private static class Style {
+        private final String sld;
+        private final String eTag;
+
+        private Style(String sld) {
+            this.sld = sld;
+            this.eTag = "\"" + DiskLruCache.keyFor(sld) + "\"";
+        }
+    }
+
+    /** Styles without optional filters, for every legend/ccProperty/provider layer, keyed by styleKey. Never modified */
+    private final Map<String, Style> precomputedStyles;
+
     @Autowired
-    public MineralTenementController(MineralTenementService mineralTenementService, WMSService wmsService) {
+    public MineralTenementController(MineralTenementService mineralTenementService, WMSService wmsService,
+            PagedWFSDownloadService wfsDownloadService, MineralTenementDatasetCache datasetCache) {
         this.mineralTenementService = mineralTenementService;
+        this.wfsDownloadService = wfsDownloadService;
+        this.datasetCache = datasetCache;
         MINERAL_TENEMENT_COLOUR_MAP.put("exploration", "#0000FF");
         MINERAL_TENEMENT_COLOUR_MAP.put("prospecting", "#00FFFF");
         MINERAL_TENEMENT_COLOUR_MAP.put("miscellaneous", "#00FF00");
@@ -45,8 +79,44 @@ public class MineralTenementController extends BasePortalController {
         MINERAL_TENEMENT_COLOUR_MAP.put("PENDING", "#FF0000");
         
         MINERAL_TENEMENT_COLOUR_MAP.put("MineralTenement", "#0000FF");
-        
+
+        this.precomputedStyles = precomputeStyles();
+    }
+
+    /**
+     * The precomputedStyles key for a style request
+     */
+    private static String styleKey(boolean isLegend, String ccProperty, String layerName) {
+        return isLegend + "|" + normaliseCCProperty(ccProperty) + "|" + layerName;
+    }
+
+    /**
+     * Maps a ccProperty onto the CC_PROPERTIES value that shares its colour coding
+     */
+    private static String normaliseCCProperty(String ccProperty) {
+        for (int i = 0; ccProperty != null && i < CC_PROPERTIES.length - 1; i++) {
+            if (ccProperty.contains(CC_PROPERTIES[i])) {
+                return CC_PROPERTIES[i];
+            }
         }
+        return "";
+    }
+
+    /**
+     * Renders the styles (without optional filters) that every tenement layer requests by default
+     */
+    private Map<String, Style> precomputeStyles() {
+        Map<String, Style> styles = new HashMap<String, Style>();
+        for (MineralTenementServiceProviderType type : MineralTenementServiceProviderType.values()) {
+            for (String ccProperty : CC_PROPERTIES) {
+                for (boolean isLegend : new boolean[] {false, true}) {
+                    styles.put(styleKey(isLegend, ccProperty, type.featureType()),
+                            new Style(renderStyle(isLegend, ccProperty, type.featureType(), null)));
+                }
+            }
+        }
+        return Collections.unmodifiableMap(styles);
+    }
 
 
     /**
@@ -60,12 +130,22 @@ public class MineralTenementController extends BasePortalController {
      *        mineral tenement type
      * @param owner
      *        name of owner of mineral tenement
+     * @param status
+     *        [Optional] mineral tenement status (only applied by providers that are filtered locally)
      * @param size
      *        size of mineral tenement area
      * @param endDate
      *        mineral tenement expiry date
      * @param bbox
      *        bounding box in JSON format
+     * @param csvFilter
+     *        [Optional] Only return rows matching these conditions (see CSVPipeline.fromParameters)
+     * @param csvDistinct
+     *        [Optional] Remove rows duplicating these key columns (* for entire rows)
+     * @param csvColumns
+     *        [Optional] Only return these columns (in this order)
+     * @param csvRename
+     *        [Optional] Rename output columns (oldName=newName,...)
      * @return mineral tenement features in CSV format
      * @throws Exception
      */
@@ -75,39 +155,53 @@ public class MineralTenementController extends BasePortalController {
             @RequestParam(required = false, value = "name") String name,
             @RequestParam(required = false, value = "tenementType") String tenementType,
             @RequestParam(required = false, value = "owner") String owner,
+            @RequestParam(required = false, value = "status") String status,
             @RequestParam(required = false, value = "size") String size,
             @RequestParam(required = false, value = "endDate") String endDate,
             @RequestParam(required = false, value = "bbox") String bboxJson,
             @RequestParam(required = false, value="filter") String filter,
             @RequestParam(required = false, value="maxFeatures",defaultValue = "100000") Integer maxFeatures,
+            @RequestParam(required = false, value = "csvFilter") String csvFilter,
+            @RequestParam(required = false, value = "csvDistinct") String csvDistinct,
+            @RequestParam(required = false, value = "csvColumns") String csvColumns,
+            @RequestParam(required = false, value = "csvRename") String csvRename,
             HttpServletResponse response) throws Exception {
 
 
             OutputStream outputStream = response.getOutputStream();
             try {
+                CSVPipeline pipeline = CSVPipeline.fromParameters(csvFilter, csvDistinct, csvColumns, csvRename);
                 response.setContentType("text/csv");
                 MineralTenementServiceProviderType mineralTenementServiceProviderType = MineralTenementServiceProviderType.parseUrl(serviceUrl);
 
                 FilterBoundingBox box = FilterBoundingBox.attemptParseFromJSON(bboxJson);
                 
                 String filterString;
+                boolean polygonFilter = filter != null && filter.indexOf("ogc:Filter")>0;
 
                 InputStream result = null;
-                if (filter != null && filter.indexOf("ogc:Filter")>0) { //Polygon filter
+                if (mineralTenementServiceProviderType == MineralTenementServiceProviderType.ArcGIS) {
+                    // ArcGIS ignores filters (and doesn't reliably support hits/startIndex) so the whole dataset is
+                    // downloaded (and cached) and then filtered locally. Only a CSV of tenements (names and shapes) is cached
+                    final String featureType = mineralTenementServiceProviderType.featureType();
+                    String[] requiredColumns = new String[] {mineralTenementServiceProviderType.nameField(), mineralTenementServiceProviderType.shapeField()};
+                    result = this.datasetCache.open(() -> this.mineralTenementService.downloadCSV(serviceUrl, featureType, "", null),
+                            requiredColumns, "csv", serviceUrl, featureType);
+                    CSVPipeline localFilter = MineralTenementLocalFilter.build(mineralTenementServiceProviderType, name, tenementType, owner, status,
+                            polygonFilter ? null : box, polygonFilter ? filter : null);
+                    if (polygonFilter && maxFeatures != null) {
+                        localFilter.limit(maxFeatures);
+                    }
+                    pipeline = localFilter.then(pipeline);
+                } else if (polygonFilter) {
                     filterString = filter.replace("gsmlp:shape","mt:shape");
-                    result = this.mineralTenementService.downloadCSVByPolygonFilter(serviceUrl, mineralTenementServiceProviderType.featureType(), filterString, maxFeatures);
+                    result = this.wfsDownloadService.downloadCSV(serviceUrl, mineralTenementServiceProviderType.featureType(), filterString, maxFeatures);
                 } else {
                     filterString = this.mineralTenementService.getMineralTenementFilter(box, null, mineralTenementServiceProviderType);
-                    // Some ArcGIS servers do not support filters (not enabled?)
-                    if (mineralTenementServiceProviderType == MineralTenementServiceProviderType.ArcGIS) {
-                        filterString = "";
-                    }
-
-                    outputStream = response.getOutputStream();
-                    result = this.mineralTenementService.downloadCSV(serviceUrl, mineralTenementServiceProviderType.featureType(), filterString, null);
+                    result = this.wfsDownloadService.downloadCSV(serviceUrl, mineralTenementServiceProviderType.featureType(), filterString, null);
                 }            
                 
-                FileIOUtil.writeInputToOutputStream(result, outputStream, 8 * 1024, true);
+                pipeline.transformOrCopy(result, outputStream);
                 outputStream.close();
             } catch (Exception e) {
                 log.warn(String.format("Unable to request/transform WFS response from '%1$s': %2$s", serviceUrl,e));
@@ -118,6 +212,48 @@ public class MineralTenementController extends BasePortalController {
 
     }
 
+    /**
+     * Returns the (colour coded) SLD for a mineral tenement layer. Requests without optional filters are served
+     * from styles rendered at startup and every response carries an ETag.
+     *
+     * @param ccProperty
+     *        [Optional] TenementType or TenementStatus to colour code by (anything else is unstyled)
+     * @param layerName
+     *        The layer (feature type) being styled
+     * @param isLegend
+     *        If true the SLD is for a legend (no filters or namespaces)
+     * @param optionalFilters
+     *        [Optional] Only style tenements matching these filters
+     */
+    @RequestMapping("/getMineralTenementStyle.do")
+    public void getMineralTenementStyle(
+            @RequestParam(required = false, value = "ccProperty") String ccProperty,
+            @RequestParam(required = false, value = "layerName", defaultValue = "mt:MineralTenement") String layerName,
+            @RequestParam(required = false, value = "isLegend", defaultValue = "false") boolean isLegend,
+            @RequestParam(required = false, value = "optionalFilters") String optionalFilters,
+            HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+        Style style = getStyleEntry(isLegend, ccProperty, layerName, optionalFilters);
+        response.setContentType("text/xml");
+        if (ConditionalRequests.checkNotModified(request, response, style.eTag)) {
+            return;
+        }
+
+        try (OutputStream outputStream = response.getOutputStream()) {
+            outputStream.write(style.sld.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private Style getStyleEntry(boolean isLegend, String ccProperty, String layerName, String optionalFilters) {
+        if (optionalFilters == null || optionalFilters.isEmpty()) {
+            Style style = precomputedStyles.get(styleKey(isLegend, ccProperty, layerName));
+            if (style != null) {
+                return style;
+            }
+        }
+        return new Style(renderStyle(isLegend, ccProperty, layerName, optionalFilters));
+    }
+
     /**
      * Generate an SLD content for tenement filter
      * @param isLegend
@@ -127,52 +263,40 @@ public class MineralTenementController extends BasePortalController {
      * @return
      */
     public String getStyle(boolean isLegend,String ccProperty, String layerName, String optionalFilters) {
-        String rules = getRules(isLegend,ccProperty, optionalFilters);
-        String header="";
-        if (isLegend) {
-            header = "<StyledLayerDescriptor version=\"1.0.0\" " +
-                    "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"> ";
-        } else {
-            header = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" +
-                    "<StyledLayerDescriptor version=\"1.0.0\" " +
-                    "xsi:schemaLocation=\"http://www.opengis.net/sld StyledLayerDescriptor.xsd\" " +
-                    "xmlns=\"http://www.opengis.net/sld\" " +
-                    "xmlns:mt=\"http://xmlns.geoscience.gov.au/mineraltenementml/1.0\" " +
-                    "xmlns:ogc=\"http://www.opengis.net/ogc\" " +
-                    "xmlns:ows=\"http://www.opengis.net/ows\" " +
-                    "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"> ";
-        }
-        String style =  header +
-                    "<NamedLayer>" +
-                    "<Name>" + layerName + "</Name>" +
-                    "<UserStyle>" +
-                    "<FeatureTypeStyle>" + rules + "</FeatureTypeStyle>" +
-                    "</UserStyle>" +
-                    "</NamedLayer>" +
-                    "</StyledLayerDescriptor>";
-        return style;
+        return getStyleEntry(isLegend, ccProperty, layerName, optionalFilters).sld;
+    }
+
+    private String renderStyle(boolean isLegend,String ccProperty, String layerName, String optionalFilters) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("legend", isLegend);
+        values.put("layerName", layerName);
+        values.put("rules", getRules(isLegend, normaliseCCProperty(ccProperty), optionalFilters));
+        return SLDTemplate.load("MineralTenement_getStyle.sld").render(values);
     }
 
-    private String getRules(boolean isLegend, String ccProperty, String optionalFilters) {
+    private List<Map<String, Object>> getRules(boolean isLegend, String ccProperty, String optionalFilters) {
 
-        String rules = "";
+        List<Map<String, Object>> rules = new ArrayList<Map<String, Object>>();
         if (ccProperty.contains("TenementType")){
-            rules += getRuleByName(isLegend,ccProperty,"exploration", optionalFilters);
-            rules += getRuleByName(isLegend,ccProperty,"prospecting", optionalFilters);
-            rules += getRuleByName(isLegend,ccProperty,"miscellaneous", optionalFilters);
-            rules += getRuleByName(isLegend,ccProperty,"mining", optionalFilters);
-            rules += getRuleByName(isLegend,ccProperty,"licence", optionalFilters);
+            rules.add(getRuleByName(isLegend,ccProperty,"exploration", optionalFilters));
+            rules.add(getRuleByName(isLegend,ccProperty,"prospecting", optionalFilters));
+            rules.add(getRuleByName(isLegend,ccProperty,"miscellaneous", optionalFilters));
+            rules.add(getRuleByName(isLegend,ccProperty,"mining", optionalFilters));
+            rules.add(getRuleByName(isLegend,ccProperty,"licence", optionalFilters));
         } else if (ccProperty.contains("TenementStatus")){
-            rules += getRuleByName(isLegend,ccProperty,"LIVE", optionalFilters);
-            rules += getRuleByName(isLegend,ccProperty,"CURRENT", optionalFilters);
-            rules += getRuleByName(isLegend,ccProperty,"PENDING", optionalFilters);
+            rules.add(getRuleByName(isLegend,ccProperty,"LIVE", optionalFilters));
+            rules.add(getRuleByName(isLegend,ccProperty,"CURRENT", optionalFilters));
+            rules.add(getRuleByName(isLegend,ccProperty,"PENDING", optionalFilters));
         } else {
-            rules = getRuleByName(isLegend,ccProperty,"Tenement", optionalFilters);
+            rules.add(getRuleByName(isLegend,ccProperty,"Tenement", optionalFilters));
         }
         return rules;
     }
 
-    private String getRuleByName(boolean isLegend,String ccProperty,String ruleName, String optionalFilters) {
+    /**
+     * Gets the values of a single [#rules] section of MineralTenement_getStyle.sld
+     */
+    private Map<String, Object> getRuleByName(boolean isLegend,String ccProperty,String ruleName, String optionalFilters) {
         String filter = "";
         if (isLegend) {
             filter = "";
@@ -183,68 +307,11 @@ public class MineralTenementController extends BasePortalController {
                 e.printStackTrace();
             }            
         }
-        String color = MINERAL_TENEMENT_COLOUR_MAP.get(ruleName);
-        String rule = "<Rule>" +
-        "<Name>T</Name>" +
-        "<Title>" + ruleName + "</Title>" +
-        "<MaxScaleDenominator>4000000</MaxScaleDenominator>" +
-        filter +
-        "<PolygonSymbolizer>" +
-        "<Fill>" +
-        "<CssParameter name=\"fill\">" + color + "</CssParameter>" +
-        "<CssParameter name=\"fill-opacity\">0.4</CssParameter>" +
-        "</Fill>" +
-        "<Stroke>" +
-        "<CssParameter name=\"stroke\">" + color + "</CssParameter>" +
-        "<CssParameter name=\"stroke-width\">0.5</CssParameter>" +
-        "</Stroke>" +
-        "</PolygonSymbolizer>" +
-        "<TextSymbolizer>" +
-        "<Label>" +
-        "<ogc:Function name=\"strSubstringStart\">" +
-        "<ogc:PropertyName>mt:name</ogc:PropertyName>" +
-        "<ogc:Function name=\"parseInt\">" +
-        "<ogc:Literal>27</ogc:Literal>" +
-        "</ogc:Function>" +
-        "</ogc:Function>" +
-        "</Label>" +
-        "<Font>" +
-        "<CssParameter name=\"font-family\">Arial</CssParameter>" +
-        "<CssParameter name=\"font-size\">12</CssParameter>" +
-        "<CssParameter name=\"font-style\">normal</CssParameter>" +
-        "<CssParameter name=\"font-weight\">normal</CssParameter>" +
-        "</Font>" +
-		"<LabelPlacement>" +
-		"<PointPlacement>" +
-		"<AnchorPoint>" +
-		"<AnchorPointX>0.5</AnchorPointX>" +
-		"<AnchorPointY>0.5</AnchorPointY>" +
-		"</AnchorPoint>" +
-		"</PointPlacement>" +
-		"</LabelPlacement>" +
-        "<Fill>" +
-        "<CssParameter name=\"fill\">#000000</CssParameter>" +
-        "</Fill>" +
-        "</TextSymbolizer>" +
-        "</Rule>" +
-        "<Rule>" +
-        "<Name>T</Name>" +
-        "<Title>" + ruleName + "1</Title>" +
-		"<MinScaleDenominator>4000000</MinScaleDenominator>" +
-        filter +
-        "<PolygonSymbolizer>" +
-        "<Fill>" +
-        "<CssParameter name=\"fill\">" + color + "</CssParameter>" +
-        "<CssParameter name=\"fill-opacity\">0.4</CssParameter>" +
-        "</Fill>" +
-        "<Stroke>" +
-        "<CssParameter name=\"stroke\">" + color + "</CssParameter>" +
-        "<CssParameter name=\"stroke-width\">0.5</CssParameter>" +
-        "</Stroke>" +
-        "</PolygonSymbolizer>" +
-        "</Rule>";
+        Map<String, Object> rule = new HashMap<String, Object>();
+        rule.put("ruleName", ruleName);
+        rule.put("filter", filter);
+        rule.put("color", MINERAL_TENEMENT_COLOUR_MAP.get(ruleName));
         return rule;
-
     }
 }
 
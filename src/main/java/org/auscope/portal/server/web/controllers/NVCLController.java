@@ -5,39 +5,50 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.nio.charset.StandardCharsets;
+import java.util.Map;
 
 import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import org.json.JSONArray;
 
 import org.apache.http.HttpStatus;
-import org.apache.commons.io.IOUtils;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.services.CSWCacheService;
 import org.auscope.portal.core.services.csw.CSWRecordsHostFilter;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
 import org.auscope.portal.core.services.responses.wfs.WFSResponse;
 import org.auscope.portal.core.util.FileIOUtil;
-import org.auscope.portal.core.util.MimeUtil;
 import org.auscope.portal.server.domain.nvcldataservice.AbstractStreamResponse;
 import org.auscope.portal.server.domain.nvcldataservice.AlgorithmOutputClassification;
 import org.auscope.portal.server.domain.nvcldataservice.AlgorithmOutputResponse;
+import org.auscope.portal.server.domain.nvcldataservice.ArrowMediaType;
+import org.auscope.portal.server.domain.nvcldataservice.ArrowScalarWriter;
 import org.auscope.portal.server.domain.nvcldataservice.BinnedCSVResponse;
 import org.auscope.portal.server.domain.nvcldataservice.CSVDownloadResponse;
 import org.auscope.portal.server.domain.nvcldataservice.GetDatasetCollectionResponse;
 import org.auscope.portal.server.domain.nvcldataservice.GetLogCollectionResponse;
 import org.auscope.portal.server.domain.nvcldataservice.ImageTrayDepthResponse;
-import org.auscope.portal.server.domain.nvcldataservice.MosaicResponse;
+import org.auscope.portal.server.domain.nvcldataservice.ScalarSeries;
 import org.auscope.portal.server.domain.nvcldataservice.TSGDownloadResponse;
 import org.auscope.portal.server.domain.nvcldataservice.TSGStatusResponse;
-import org.auscope.portal.server.domain.nvcldataservice.TrayThumbNailResponse;
 import org.auscope.portal.server.web.service.BoreholeService;
+import org.auscope.portal.server.web.service.ByteReplacingInputStream;
+import org.auscope.portal.server.web.service.FederatedDownloadService;
+import org.auscope.portal.server.web.service.HyloggerBoreholeIndex;
 import org.auscope.portal.server.web.service.NVCL2_0_DataService;
 import org.auscope.portal.server.web.service.NVCLDataService;
+import org.auscope.portal.server.web.service.NVCLImageCache;
+import org.auscope.portal.server.web.service.ReferenceDataCache;
+import org.auscope.portal.server.web.service.download.StreamingCSVMerger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -45,13 +56,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 
 
-import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import org.auscope.portal.core.configuration.ServiceConfiguration;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
-import org.auscope.portal.core.server.http.download.DownloadResponse;
-import org.auscope.portal.core.server.http.download.ServiceDownloadManager;
 /**
  * Controller for handling requests for the NVCL boreholes
  *
@@ -66,10 +71,17 @@ public class NVCLController extends BasePortalController {
     private NVCL2_0_DataService dataService2_0;
     private CSWCacheService cswService;
     private HttpServiceCaller serviceCaller;
-    private ServiceConfiguration serviceConfiguration;
+    private FederatedDownloadService downloadService;
+    private NVCLImageCache imageCache;
+    private HyloggerBoreholeIndex hyloggerBoreholeIndex;
 
     private int BUFFERSIZE = 1024 * 1024;
 
+    /** NVCL imagery never changes for a given request (see NVCLImageCache) */
+    private static final String IMAGE_CACHE_CONTROL = "public, max-age=31536000, immutable";
+    /** Sent with imagery responses that weren't cached (they aren't what was asked for) */
+    private static final String NO_STORE_CACHE_CONTROL = "no-store";
+
     
     @Autowired
     public NVCLController(BoreholeService boreholeService,
@@ -77,14 +89,18 @@ public class NVCLController extends BasePortalController {
             NVCLDataService dataService,
             NVCL2_0_DataService dataService2_0,
             HttpServiceCaller serviceCaller,
-            ServiceConfiguration serviceConfiguration) {
+            FederatedDownloadService downloadService,
+            NVCLImageCache imageCache,
+            HyloggerBoreholeIndex hyloggerBoreholeIndex) {
 
         this.boreholeService = boreholeService;
         this.cswService = cswService;
         this.dataService = dataService;
         this.dataService2_0 = dataService2_0;
         this.serviceCaller = serviceCaller;
-        this.serviceConfiguration = serviceConfiguration;
+        this.downloadService = downloadService;
+        this.imageCache = imageCache;
+        this.hyloggerBoreholeIndex = hyloggerBoreholeIndex;
     }
  
     
@@ -107,8 +123,7 @@ public class NVCLController extends BasePortalController {
         List<String> hyloggerBoreholeIDs = null;
         if (onlyHylogger) {
             try {
-                hyloggerBoreholeIDs = this.boreholeService.discoverHyloggerBoreholeIDs(this.cswService,
-                        new CSWRecordsHostFilter(serviceUrl));
+                hyloggerBoreholeIDs = this.hyloggerBoreholeIndex.getBoreholeIDs(new CSWRecordsHostFilter(serviceUrl));
             } catch (Exception e) {
                 log.warn(String
                         .format("Error requesting list of hylogger borehole ID's from %1$s: %2$s", serviceUrl, e));
@@ -233,6 +248,76 @@ public class NVCLController extends BasePortalController {
         }
     }
 
+    /**
+     * Pipes serviceResponse to servletResponse, replacing every occurrence of the keys of rewrites with their values
+     * as the bytes pass through. Nothing beyond a small lookahead is buffered.
+     */
+    private void writeRewrittenResponse(HttpServletResponse servletResponse, InputStream serviceResponse,
+            Map<String, String> rewrites) throws IOException {
+        try (InputStream rewritten = new ByteReplacingInputStream(serviceResponse, rewrites);
+                OutputStream responseOutput = servletResponse.getOutputStream()) {
+            rewritten.transferTo(responseOutput);
+        }
+    }
+
+    /**
+     * Sets the caching headers for image and checks them against request.
+     * @return true if the client already has image (and a 304 has been sent)
+     */
+    private boolean checkImageNotModified(HttpServletRequest request, HttpServletResponse servletResponse, NVCLImageCache.CachedImage image) {
+        if (!image.isCached()) {
+            //Not what we asked for (eg - an error page) so don't let anything hold on to it
+            servletResponse.setHeader("Cache-Control", NO_STORE_CACHE_CONTROL);
+            return false;
+        }
+
+        servletResponse.setHeader("Cache-Control", IMAGE_CACHE_CONTROL);
+        return ConditionalRequests.checkNotModified(request, servletResponse, image.getETag());
+    }
+
+    /**
+     * Writes an image response to servletResponse (or just a 304 if the client already has it) and closes it. Cached
+     * bodies are transferred straight from the cache file to the response.
+     */
+    private void writeCachedImage(HttpServletRequest request, HttpServletResponse servletResponse, NVCLImageCache.CachedImage image)
+            throws IOException {
+        try (image) {
+            if (checkImageNotModified(request, servletResponse, image)) {
+                return;
+            }
+
+            if (!image.getContentType().isEmpty()) {
+                servletResponse.setContentType(image.getContentType());
+            }
+
+            if (!image.isCached()) {
+                try (OutputStream responseOutput = servletResponse.getOutputStream()) {
+                    image.getBody().transferTo(responseOutput);
+                }
+                return;
+            }
+
+            servletResponse.setContentLengthLong(image.getLength());
+            writeCachedBody(servletResponse, image);
+        }
+    }
+
+    private void writeCachedBody(HttpServletResponse servletResponse, NVCLImageCache.CachedImage image) throws IOException {
+        FileChannel channel = image.getChannel();
+        try (WritableByteChannel responseChannel = Channels.newChannel(servletResponse.getOutputStream())) {
+            long position = image.getOffset();
+            long remaining = image.getLength();
+            while (remaining > 0) {
+                long transferred = channel.transferTo(position, remaining, responseChannel);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
     /**
      * Proxies an NVCL Mosaic request for mosaic imagery. Writes directly to the HttpServletResponse
      *
@@ -248,12 +333,14 @@ public class NVCLController extends BasePortalController {
             @RequestParam(required = false, value = "width") Integer width,
             @RequestParam(required = false, value = "startSampleNo") Integer startSampleNo,
             @RequestParam(required = false, value = "endSampleNo") Integer endSampleNo,
+            HttpServletRequest request,
             HttpServletResponse response) throws Exception {
 
-        //Make our request
-        MosaicResponse serviceResponse = null;
+        //Make our request (unless we've already cached it)
+        NVCLImageCache.CachedImage image = null;
         try {
-            serviceResponse = dataService.getMosaic(serviceUrl, logId, width, startSampleNo, endSampleNo);
+            image = imageCache.get(() -> dataService.getMosaic(serviceUrl, logId, width, startSampleNo, endSampleNo),
+                    "mosaic", serviceUrl, logId, width, startSampleNo, endSampleNo);
         } catch (Exception ex) {
             log.warn(String.format("Error requesting mosaic for logid '%1$s' from %2$s: %3$s", logId, serviceUrl, ex));
             log.debug("Exception:", ex);
@@ -261,7 +348,7 @@ public class NVCLController extends BasePortalController {
             return;
         }
 
-        writeStreamResponse(response, serviceResponse);
+        writeCachedImage(request, response, image);
     }
 
     /**
@@ -280,13 +367,14 @@ public class NVCLController extends BasePortalController {
             @RequestParam(required = false, value = "width") Integer width,
             @RequestParam(required = false, value = "startSampleNo") Integer startSampleNo,
             @RequestParam(required = false, value = "endSampleNo") Integer endSampleNo,
+            HttpServletRequest request,
             HttpServletResponse response) throws Exception {
 
-        //Make our request
-        TrayThumbNailResponse serviceResponse = null;
+        //Make our request (unless we've already cached it)
+        NVCLImageCache.CachedImage image = null;
         try {
-            serviceResponse = this.dataService2_0.getTrayThumbNail(dataSetId, serviceUrl, logId, width, startSampleNo,
-                    endSampleNo);
+            image = imageCache.getPage(() -> this.dataService2_0.getTrayThumbNail(dataSetId, serviceUrl, logId, width, startSampleNo,
+                    endSampleNo), "thumbnail", dataSetId, serviceUrl, logId, width, startSampleNo, endSampleNo);
         } catch (Exception ex) {
             log.warn(String.format("Error requesting mosaic for logid '%1$s' from %2$s: %3$s", logId, serviceUrl, ex));
             log.debug("Exception:", ex);
@@ -294,19 +382,25 @@ public class NVCLController extends BasePortalController {
             return;
         }
 
-        response.setContentType(serviceResponse.getContentType());
-        //vt:we have to hack the response because the html response has relative url and when
-        //the result is proxied, the service url becomes portal's url.
-        String stringResponse = IOUtils.toString(serviceResponse.getResponse(), StandardCharsets.UTF_8);
-        stringResponse = stringResponse.replace("./Display_Tray_Thumb.html", serviceUrl + "Display_Tray_Thumb.html");
-        if (!stringResponse.contains("style=\"max-width: 33%")) {
-            stringResponse = stringResponse.replace("<img",
-                    "<img style=\"max-width: 33%;height: auto;width: auto\\9;\" ");
-        }
-
-        FileIOUtil.writeInputToOutputStream(new ByteArrayInputStream(stringResponse.getBytes()),
-                response.getOutputStream(), BUFFERSIZE, true);
+        try (NVCLImageCache.CachedImage thumbnail = image) {
+            //The rewritten response only depends on serviceUrl (which is part of the cache key) so the ETag still holds
+            if (checkImageNotModified(request, response, thumbnail)) {
+                return;
+            }
 
+            if (!thumbnail.getContentType().isEmpty()) {
+                response.setContentType(thumbnail.getContentType());
+            }
+            //vt:we have to hack the response because the html response has relative url and when
+            //the result is proxied, the service url becomes portal's url.
+            //Images that are already constrained (the mapping to itself) are left alone
+            Map<String, String> rewrites = new LinkedHashMap<String, String>();
+            rewrites.put("./Display_Tray_Thumb.html", serviceUrl + "Display_Tray_Thumb.html");
+            rewrites.put("<img", "<img style=\"max-width: 33%;height: auto;width: auto\\9;\" ");
+            rewrites.put("<img style=\"max-width: 33%", "<img style=\"max-width: 33%");
+
+            writeRewrittenResponse(response, thumbnail.getBody(), rewrites);
+        }
     }
 
 
@@ -317,11 +411,12 @@ public class NVCLController extends BasePortalController {
      *            The URL of an observation and measurements URL (obtained from a getDatasetCollection response)
      * @param datasetId
      *            The dataset to download
-     * @return
+     * @return The CSV response or (if the request accepts ArrowMediaType.MEDIA_TYPE) an Arrow stream
      */
     @RequestMapping("getNVCL2_0_CSVDownload.do")
     public void getNVCL2_0_CSVDownload(@RequestParam("serviceUrl") String serviceUrl,
             @RequestParam("logIds") String[] logIds,
+            HttpServletRequest request,
             HttpServletResponse response) throws Exception {
 
         //Make our request
@@ -347,6 +442,16 @@ public class NVCLController extends BasePortalController {
             }
         }
 
+        if (ArrowMediaType.isAccepted(request.getHeader("Accept"))) {
+            response.setContentType(ArrowMediaType.MEDIA_TYPE);
+            response.setHeader("Content-Disposition", "attachment; filename=downloadScalar.arrows");
+            try (InputStream csv = serviceResponse.getResponse();
+                    ArrowScalarWriter writer = new ArrowScalarWriter(response.getOutputStream())) {
+                writer.writeCSV(csv);
+            }
+            return;
+        }
+
         response.setHeader("Content-Disposition", "attachment; filename=downloadScalar.csv");
         writeStreamResponse(response, serviceResponse);
     }
@@ -358,15 +463,33 @@ public class NVCLController extends BasePortalController {
      *            The URL of an observation and measurements URL (obtained from a getDatasetCollection response)
      * @param datasetId
      *            The dataset to download
-     * @return
+     * @param targetPoints
+     *            [Optional] Numeric logs will be reduced (with Largest-Triangle-Three-Buckets) to at most this many points
+     * @return JSON or (if the request accepts ArrowMediaType.MEDIA_TYPE) null after writing an Arrow stream to response
      */
     @RequestMapping("getNVCL2_0_JSONDataBinned.do")
     public ModelAndView getNVCL2_0_JSONDataBinned(@RequestParam("serviceUrl") String serviceUrl,
-            @RequestParam("logIds") String[] logIds) throws Exception {
+            @RequestParam("logIds") String[] logIds,
+            @RequestParam(required = false, value = "targetPoints") Integer targetPoints,
+            HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
 
         //Make our request
         try {
-            String responseStr = dataService2_0.getNVCL2_0_JSONDownsampledData(serviceUrl, logIds);
+            if (ArrowMediaType.isAccepted(request.getHeader("Accept"))) {
+                ScalarSeries[] logSeries = dataService2_0.getNVCL2_0_ScalarSeries(serviceUrl, logIds);
+                response.setContentType(ArrowMediaType.MEDIA_TYPE);
+                try (ArrowScalarWriter writer = new ArrowScalarWriter(response.getOutputStream())) {
+                    for (int i = 0; i < logIds.length; i++) {
+                        if (logSeries[i] != null) {
+                            writer.write(logIds[i], logSeries[i].downsample(targetPoints));
+                        }
+                    }
+                }
+                return null;
+            }
+
+            String responseStr = dataService2_0.getNVCL2_0_JSONDownsampledData(serviceUrl, logIds, targetPoints);
             return generateJSONResponseMAV(true, responseStr, "");
 
         } catch (Exception ex) {
@@ -382,13 +505,39 @@ public class NVCLController extends BasePortalController {
      *          job id of data to be downloaded
      * @param boreholeId
      *          borehole id of data to be downloaded
+     * @param binSize
+     *          [Optional] size in metres of each averaged bin (must be greater than 0). Defaults to 1.0
+     * @param startDepth
+     *          [Optional] shallowest depth (in metres) to return
+     * @param endDepth
+     *          [Optional] deepest depth (in metres) to return
+     * @return JSON or (if the request accepts ArrowMediaType.MEDIA_TYPE) null after writing an Arrow stream to servletResponse
      */
     @RequestMapping("getNVCL2_0_JobsScalarBinned.do")
-    public ModelAndView getNVCL2_0_JobsScalarBinned(@RequestParam("jobIds") String[] jobIds, @RequestParam("boreholeId") String boreholeId) {
-        
+    public ModelAndView getNVCL2_0_JobsScalarBinned(@RequestParam("jobIds") String[] jobIds, @RequestParam("boreholeId") String boreholeId,
+            @RequestParam(required = false, value = "binSize", defaultValue = "1.0") double binSize,
+            @RequestParam(required = false, value = "startDepth") Double startDepth,
+            @RequestParam(required = false, value = "endDepth") Double endDepth,
+            HttpServletRequest request,
+            HttpServletResponse servletResponse) {
+
+        if (!(binSize > 0)) {
+            return generateJSONResponseMAV(false, null, "binSize must be greater than 0");
+        }
+
         //Make our request
         try {
-            BinnedCSVResponse response = dataService2_0.getNVCL2_0_JobsScalarBinned(jobIds, boreholeId, 1.0);
+            BinnedCSVResponse response = dataService2_0.getNVCL2_0_JobsScalarBinned(jobIds, boreholeId, binSize, startDepth, endDepth);
+
+            if (ArrowMediaType.isAccepted(request.getHeader("Accept"))) {
+                servletResponse.setContentType(ArrowMediaType.MEDIA_TYPE);
+                try (ArrowScalarWriter writer = new ArrowScalarWriter(servletResponse.getOutputStream())) {
+                    for (BinnedCSVResponse.Bin bin : response.getBinnedValues()) {
+                        writer.write(bin);
+                    }
+                }
+                return null;
+            }
 
             return generateJSONResponseMAV(true, Arrays.asList(response), "");
 
@@ -512,12 +661,10 @@ public class NVCLController extends BasePortalController {
         }
 
         response.setContentType(serviceResponse.getContentType());
-        String stringResponse = IOUtils.toString(serviceResponse.getResponse(), StandardCharsets.UTF_8);
-        stringResponse = stringResponse.replace("downloadtsg.html", serviceUrl + "downloadtsg.html");
-
-        FileIOUtil.writeInputToOutputStream(new ByteArrayInputStream(stringResponse.getBytes()),
-                response.getOutputStream(), BUFFERSIZE, true);
+        Map<String, String> rewrites = new LinkedHashMap<String, String>();
+        rewrites.put("downloadtsg.html", serviceUrl + "downloadtsg.html");
 
+        writeRewrittenResponse(response, serviceResponse.getResponse(), rewrites);
     }
 
     /**
@@ -551,14 +698,11 @@ public class NVCLController extends BasePortalController {
         }
 
         response.setContentType(serviceResponse.getContentType());
-        String stringResponse = IOUtils.toString(serviceResponse.getResponse(), StandardCharsets.UTF_8);
-        stringResponse = stringResponse.replace("downloadtsg.html", serviceUrl + "downloadtsg.html");
-        stringResponse = stringResponse.replace("href", " target='_blank' href");
+        Map<String, String> rewrites = new LinkedHashMap<String, String>();
+        rewrites.put("downloadtsg.html", serviceUrl + "downloadtsg.html");
+        rewrites.put("href", " target='_blank' href");
 
-        FileIOUtil.writeInputToOutputStream(new ByteArrayInputStream(stringResponse.getBytes()),
-                response.getOutputStream(), BUFFERSIZE, true);
-
-        //writeStreamResponse(response, serviceResponse);
+        writeRewrittenResponse(response, serviceResponse.getResponse(), rewrites);
     }
 
     private static InputStream get404HTMLError() throws IOException {
@@ -574,10 +718,15 @@ public class NVCLController extends BasePortalController {
      * @return
      */
     @RequestMapping("getTsgAlgorithms.do")
-    public ModelAndView getTsgAlgorithms(@RequestParam("tsgAlgName") String tsgAlgName) throws Exception {
+    public ModelAndView getTsgAlgorithms(@RequestParam("tsgAlgName") String tsgAlgName,
+            HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
         try {
-            String algorithms = dataService2_0.getTsgAlgorithms(tsgAlgName);
-            return generateJSONResponseMAV(true, algorithms, "");
+            ReferenceDataCache.Entry<String> algorithms = dataService2_0.getCachedTsgAlgorithms(tsgAlgName);
+            if (ConditionalRequests.checkNotModified(request, response, algorithms.getETag())) {
+                return null;
+            }
+            return generateJSONResponseMAV(true, algorithms.getValue(), "");
         } catch (Exception ex) {
             log.warn("Unable to fetch Tsg algorithms for " + tsgAlgName + ex);
             return generateJSONResponseMAV(false);
@@ -592,10 +741,15 @@ public class NVCLController extends BasePortalController {
      * @return
      */
     @RequestMapping("getNVCLAlgorithms.do")
-    public ModelAndView getNVCLWFSDownloadStatus(@RequestParam("serviceUrl") String serviceUrl) throws Exception {
+    public ModelAndView getNVCLWFSDownloadStatus(@RequestParam("serviceUrl") String serviceUrl,
+            HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
         try {
-            List<AlgorithmOutputResponse> algorithms = dataService2_0.getAlgorithms(serviceUrl);
-            return generateJSONResponseMAV(true, algorithms, "");
+            ReferenceDataCache.Entry<List<AlgorithmOutputResponse>> algorithms = dataService2_0.getCachedAlgorithms(serviceUrl);
+            if (ConditionalRequests.checkNotModified(request, response, algorithms.getETag())) {
+                return null;
+            }
+            return generateJSONResponseMAV(true, algorithms.getValue(), "");
         } catch (Exception ex) {
             log.warn("Unable to fetch NVCL algorithms for " + serviceUrl, ex);
             return generateJSONResponseMAV(false);
@@ -612,7 +766,9 @@ public class NVCLController extends BasePortalController {
     @RequestMapping("getNVCLClassifications.do")
     public ModelAndView getNVCLWFSDownloadStatus(
             @RequestParam("serviceUrl") String serviceUrl,
-            @RequestParam("algorithmOutputId") String[] algorithmOutputIdStrings) throws Exception {
+            @RequestParam("algorithmOutputId") String[] algorithmOutputIdStrings,
+            HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
 
         int[] algorithmOutputIds = new int[algorithmOutputIdStrings.length];
         for (int i = 0; i < algorithmOutputIds.length; i++) {
@@ -620,8 +776,11 @@ public class NVCLController extends BasePortalController {
         }
 
         try {
-            List<AlgorithmOutputClassification> classifications = dataService2_0.getClassifications(serviceUrl, algorithmOutputIds);
-            return generateJSONResponseMAV(true, classifications, "");
+            ReferenceDataCache.Entry<List<AlgorithmOutputClassification>> classifications = dataService2_0.getCachedClassifications(serviceUrl, algorithmOutputIds);
+            if (ConditionalRequests.checkNotModified(request, response, classifications.getETag())) {
+                return null;
+            }
+            return generateJSONResponseMAV(true, classifications.getValue(), "");
         } catch (Exception ex) {
             log.warn("Unable to fetch NVCL classifications for " + serviceUrl + " and algorithmOutputId " + algorithmOutputIdStrings, ex);
             return generateJSONResponseMAV(false);
@@ -673,48 +832,28 @@ public class NVCLController extends BasePortalController {
             outputStream.close();
             return;
         }
-        //downloadCSV with filter
-        ExecutorService threadpool = Executors.newCachedThreadPool();
 
         log.trace("downloadTsgFiles.do: No. of serviceUrls: " + serviceUrls.length);
 
-        String extension = null;
-        String outputFormat = "csv";
-        if (outputFormat != null) {
-            String ext = MimeUtil.mimeToFileExtension(outputFormat);
-            if (ext != null && !ext.isEmpty()) {
-                extension = "." + ext;
-            }
-        }
-
-        ServiceDownloadManager downloadManager = new ServiceDownloadManager(serviceUrls, serviceCaller, threadpool, this.serviceConfiguration, extension);
-        //build the tsgFileUrls fore each record in downloadCSV.
-        String retTsgFileUrls = "";
-        int totalUrls = 0;
-        if (email != null && email.length() > 0 && outputFormat.equals("csv")) {
+        //build the tsgFileUrls for each provider's CSV as soon as it arrives.
+        if (email != null && email.length() > 0) {
             // set the content type for text
             response.setContentType("text");
-            ArrayList<DownloadResponse> gmlDownloads = downloadManager.downloadAll();
-            //Loop all serviceUrls to find the matched datasetName and URI for it.
-            for (int i = 0; i < gmlDownloads.size(); i++) {
-                String csv = FileIOUtil.writeResponseToString(gmlDownloads.get(i));
-                if (csv == null) {
-                    continue;
-                }
-                String endpoint = gmlDownloads.get(i).getRequestURL();
-                endpoint = "https://" + new URL(endpoint).getHost() + "/";
+            final StringBuilder retTsgFileUrls = new StringBuilder();
+            this.downloadService.download("tsg", serviceUrls, (serviceUrl, csv) -> {
+                String endpoint = "https://" + new URL(serviceUrl).getHost() + "/";
 
-                String tsgFileUrls = this.dataService.getTsgFileUrls(endpoint, csv);
+                String tsgFileUrls = this.dataService.getTsgFileUrls(endpoint, new String(csv, StandardCharsets.UTF_8));
                 if (tsgFileUrls == null || tsgFileUrls.isEmpty() || tsgFileUrls.indexOf("http") < 0) {
-                    continue;
+                    return;
                 }
-                retTsgFileUrls += tsgFileUrls;
-                totalUrls++;
+                retTsgFileUrls.append(tsgFileUrls);
                 outputStream.write(tsgFileUrls.getBytes());
-            }
+                outputStream.flush();
+            });
             outputStream.close();
-            if (totalUrls > 0) {
-                this.dataService.sendMail(email, retTsgFileUrls);
+            if (retTsgFileUrls.length() > 0) {
+                this.dataService.sendMail(email, retTsgFileUrls.toString());
             }
         }
         return;
@@ -750,36 +889,17 @@ public class NVCLController extends BasePortalController {
             @RequestParam("serviceUrls") final String[] serviceUrls,
             HttpServletResponse response) throws Exception {
 
-        OutputStream outputStream = response.getOutputStream();
-        //downloadCSV with filter
-        ExecutorService threadpool = Executors.newCachedThreadPool();
-
         log.trace("downloadNvclCSV.do: No. of serviceUrls: " + serviceUrls.length);
 
-        String extension = null;
-        String outputFormat = "csv";
-        if (outputFormat != null) {
-            String ext = MimeUtil.mimeToFileExtension(outputFormat);
-            if (ext != null && !ext.isEmpty()) {
-                extension = "." + ext;
-            }
-        }
+        // set the content type for text
+        response.setContentType("text");
+        OutputStream outputStream = response.getOutputStream();
 
-        ServiceDownloadManager downloadManager = new ServiceDownloadManager(serviceUrls, serviceCaller, threadpool, this.serviceConfiguration, extension);
-        if (outputFormat.equals("csv")) {
-            // set the content type for text
-            response.setContentType("text");
-            ArrayList<DownloadResponse> gmlDownloads = downloadManager.downloadAll();
-            //Loop all serviceUrls to find the matched datasetName and URI for it.
-            for (int i = 0; i < gmlDownloads.size(); i++) {
-                String csv = FileIOUtil.writeResponseToString(gmlDownloads.get(i));
-                if (csv == null || csv.split("\n").length == 1) {
-                    continue;
-                }
-                outputStream.write(csv.getBytes());
-            }
-            outputStream.close();
+        //Providers don't all expose the same columns - each provider is spooled as it arrives and written under one header
+        try (StreamingCSVMerger merger = new StreamingCSVMerger(outputStream)) {
+            this.downloadService.download("nvclcsv", serviceUrls, (serviceUrl, csv) -> merger.add(new ByteArrayInputStream(csv)));
+            merger.finish();
         }
-        return;
+        outputStream.close();
     }
 }
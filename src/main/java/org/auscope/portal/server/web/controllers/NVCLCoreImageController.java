@@ -0,0 +1,111 @@
+package org.auscope.portal.server.web.controllers;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpStatus;
+import org.auscope.portal.core.server.controllers.BasePortalController;
+import org.auscope.portal.server.web.service.CoreImageTileService;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Controller for serving NVCL tray imagery as a depth tiled "virtual core" (see CoreImageTileService)
+ */
+@Controller
+public class NVCLCoreImageController extends BasePortalController {
+
+    /** Tiles for a given log never change once rendered */
+    private static final String TILE_CACHE_CONTROL = "public, max-age=86400";
+    /** Tiles missing one or more trays will be rendered again on the next request */
+    private static final String INCOMPLETE_TILE_CACHE_CONTROL = "no-store";
+
+    private CoreImageTileService tileService;
+
+    @Autowired
+    public NVCLCoreImageController(CoreImageTileService tileService) {
+        this.tileService = tileService;
+    }
+
+    /**
+     * Describes the tile pyramid for a tray image log.
+     *
+     * @param serviceUrl
+     *            The URL of an NVCL Data service
+     * @param logId
+     *            The unique ID of a tray image log (from a getNVCLLogs.do request)
+     * @return
+     */
+    @RequestMapping("getNVCLCoreTileInfo.do")
+    public ModelAndView getNVCLCoreTileInfo(@RequestParam("serviceUrl") String serviceUrl,
+            @RequestParam("logId") String logId) {
+        double[] range;
+        try {
+            range = tileService.getDepthRange(serviceUrl, logId);
+        } catch (Exception ex) {
+            log.warn(String.format("Error requesting tray depths for logid '%1$s' from %2$s: %3$s", logId, serviceUrl, ex));
+            log.debug("Exception:", ex);
+            return generateJSONResponseMAV(false, null, "Error occured whilst communicating to remote service: " + ex.getMessage());
+        }
+
+        if (range == null) {
+            return generateJSONResponseMAV(false, null, "The log has no tray images");
+        }
+
+        JSONArray metresPerTile = new JSONArray();
+        for (int level = 0; level < CoreImageTileService.LEVELS; level++) {
+            metresPerTile.put(CoreImageTileService.getMetresPerTile(level));
+        }
+
+        JSONObject info = new JSONObject();
+        info.put("tileWidth", CoreImageTileService.TILE_WIDTH);
+        info.put("tileHeight", CoreImageTileService.TILE_HEIGHT);
+        info.put("metresPerTile", metresPerTile);
+        info.put("startDepth", range[0]);
+        info.put("endDepth", range[1]);
+        return generateJSONResponseMAV(true, info.toMap(), "");
+    }
+
+    /**
+     * Writes a single (JPEG) core imagery tile directly to the HttpServletResponse
+     *
+     * @param serviceUrl
+     *            The URL of an NVCL Data service
+     * @param logId
+     *            The unique ID of a tray image log (from a getNVCLLogs.do request)
+     * @param level
+     *            The zoom level (0 is the finest)
+     * @param tile
+     *            The index of the tile counting down from 0m
+     */
+    @RequestMapping("getNVCLCoreTile.do")
+    public void getNVCLCoreTile(@RequestParam("serviceUrl") String serviceUrl,
+            @RequestParam("logId") String logId,
+            @RequestParam("level") int level,
+            @RequestParam("tile") int tile,
+            HttpServletResponse response) throws Exception {
+        CoreImageTileService.Tile tileImage;
+        try {
+            tileImage = tileService.getTile(serviceUrl, logId, level, tile);
+        } catch (Exception ex) {
+            log.warn(String.format("Error rendering core tile %1$d/%2$d for logid '%3$s' from %4$s: %5$s", level, tile, logId, serviceUrl, ex));
+            log.debug("Exception:", ex);
+            response.sendError(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        if (tileImage == null) {
+            response.sendError(HttpStatus.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setContentType(CoreImageTileService.TILE_CONTENT_TYPE);
+        response.setHeader("Cache-Control", tileImage.isComplete() ? TILE_CACHE_CONTROL : INCOMPLETE_TILE_CACHE_CONTROL);
+        response.setContentLength(tileImage.getData().length);
+        response.getOutputStream().write(tileImage.getData());
+    }
+}
@@ -11,19 +11,26 @@ import jakarta.servlet.http.HttpServletResponse;
 import org.apache.commons.io.IOUtils;
 import org.auscope.portal.core.server.controllers.BasePortalController;
 import org.auscope.portal.core.services.CSWCacheService;
-import org.auscope.portal.core.services.WFSService;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
 import org.auscope.portal.core.services.responses.wfs.WFSResponse;
 import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.gsml.SF0BoreholeFilter;
+import org.auscope.portal.server.domain.xml.GMLGeoJSONTranscoder;
+import org.auscope.portal.server.web.service.BoreholeClusterIndex;
+import org.auscope.portal.server.web.service.BoreholeClusterService;
 import org.auscope.portal.server.web.service.NVCL2_0_DataService;
+import org.auscope.portal.server.web.service.PagedWFSDownloadService;
 import org.auscope.portal.server.web.service.SF0BoreholeService;
+import org.auscope.portal.server.web.service.download.CSVPipeline;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.ModelAndView;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
 /**
  * Controller for handling requests for the SF0 Borehole
  *
@@ -33,16 +40,21 @@ import org.springframework.web.servlet.ModelAndView;
 @Controller
 public class SF0BoreholeController extends BasePortalController {
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
     private SF0BoreholeService boreholeService;
 
     private NVCL2_0_DataService nvclDataService;
-    private WFSService wfsService;
+    private PagedWFSDownloadService wfsDownloadService;
+    private BoreholeClusterService clusterService;
 
     @Autowired
-    public SF0BoreholeController(SF0BoreholeService sf0BoreholeService, CSWCacheService cswService, NVCL2_0_DataService nvclDataService, WFSService wfsService) {
+    public SF0BoreholeController(SF0BoreholeService sf0BoreholeService, CSWCacheService cswService, NVCL2_0_DataService nvclDataService,
+            PagedWFSDownloadService wfsDownloadService, BoreholeClusterService clusterService) {
         this.boreholeService = sf0BoreholeService;
         this.nvclDataService = nvclDataService;
-        this.wfsService = wfsService;
+        this.wfsDownloadService = wfsDownloadService;
+        this.clusterService = clusterService;
     }
 
     /**
@@ -54,28 +66,110 @@ public class SF0BoreholeController extends BasePortalController {
      *            the name of the mine to query for
      * @param request
      *            the HTTP client request
+     * @param outputFormat
+     *            [Optional] the WFS output format. If geojson the GML response is streamed back as a GeoJSON FeatureCollection
+     *            (instead of being embedded in a JSON response)
      * @param omitGsmlpShapeProperty
      *            if true, omit the gsmlp:shape property from the generated filter (can cause problems with GADDS 2.0)
-     * @return a WFS response converted into KML
+     * @return a WFS response converted into KML (or null if GeoJSON was written to servletResponse)
      * @throws Exception
      */
     @RequestMapping("/doBoreholeViewFilter.do")
     public ModelAndView doBoreholeFilter(String serviceUrl, String boreholeName, String custodian,
             String dateOfDrillingStart, String dateOfDrillingEnd, int maxFeatures, String bbox, String typeName,
             @RequestParam(required=false, value="outputFormat") String outputFormat,
-            @RequestParam(required=false, defaultValue="false") boolean omitGsmlpShapeProperty) throws Exception {
+            @RequestParam(required=false, defaultValue="false") boolean omitGsmlpShapeProperty,
+            HttpServletResponse servletResponse) throws Exception {
 
         try {
             FilterBoundingBox box = FilterBoundingBox.attemptParseFromJSON(bbox);
+            if (GMLGeoJSONTranscoder.isGeoJSON(outputFormat)) {
+                try (InputStream gml = this.boreholeService.getAllBoreholesAsStream(serviceUrl, boreholeName, custodian,
+                        dateOfDrillingStart, dateOfDrillingEnd, maxFeatures, box, typeName, omitGsmlpShapeProperty)) {
+                    //Nothing is written until the response is known to be a feature collection
+                    servletResponse.setContentType(GMLGeoJSONTranscoder.MEDIA_TYPE);
+                    GMLGeoJSONTranscoder.transcode(gml, servletResponse.getOutputStream());
+                }
+                return null;
+            }
+
             WFSResponse response = this.boreholeService.getAllBoreholes(serviceUrl, boreholeName, custodian,
                     dateOfDrillingStart, dateOfDrillingEnd, maxFeatures, box, outputFormat, typeName, omitGsmlpShapeProperty);
             return generateNamedJSONResponseMAV(true, "gml", response.getData(), response.getMethod());
         } catch (Exception e) {
+            if (servletResponse.isCommitted()) {
+                //A partially written GeoJSON response can't be replaced with an error
+                log.warn(String.format("GeoJSON response from '%1$s' was interrupted: %2$s", serviceUrl, e));
+                log.debug("Exception: ", e);
+                return null;
+            }
+            servletResponse.resetBuffer();
             return this.generateExceptionResponse(e, serviceUrl);
         }
     }
 
-    
+    /**
+     * Returns the boreholes matching a filter as clusters (centroid, borehole count and NVCL borehole count) for a
+     * map zoom level. The clusters are taken from an index of every matching borehole which is only requested from
+     * the WFS once per filter, so panning/zooming doesn't make any further WFS requests.
+     *
+     * The response is of the form {"success":true,"data":{"level":n,"pointCount":n,"nvclCount":n,"clusters":[[lon,lat,count,nvclCount],...]}}
+     *
+     * @param serviceUrl
+     *            the url of the service to query
+     * @param zoom
+     *            the map zoom level (256 pixel tiles)
+     * @param bbox
+     *            [Optional] Only return clusters intersecting this (lon/lat) bounding box
+     * @param justNVCL
+     *            [Optional] if true only boreholes with NVCL data are clustered
+     */
+    @RequestMapping("/doBoreholeViewClusters.do")
+    public void doBoreholeViewClusters(HttpServletResponse response,
+            @RequestParam("serviceUrl") String serviceUrl,
+            @RequestParam("zoom") int zoom,
+            @RequestParam(required = false, value = "bbox") String bbox,
+            @RequestParam(required = false, value = "typeName") String typeName,
+            @RequestParam(required = false, value = "boreholeName", defaultValue = "") String boreholeName,
+            @RequestParam(required = false, value = "custodian", defaultValue = "") String custodian,
+            @RequestParam(required = false, value = "dateOfDrillingStart", defaultValue = "") String dateOfDrillingStart,
+            @RequestParam(required = false, value = "dateOfDrillingEnd", defaultValue = "") String dateOfDrillingEnd,
+            @RequestParam(required = false, value = "justNVCL", defaultValue = "false") boolean justNVCL,
+            @RequestParam(required = false, value = "optionalFilters") String optionalFilters) throws Exception {
+
+        response.setContentType("application/json");
+        OutputStream outputStream = response.getOutputStream();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+            try {
+                double[] bounds = null;
+                FilterBoundingBox box = FilterBoundingBox.attemptParseFromJSON(bbox);
+                if (box != null) {
+                    String srs = box.getBboxSrs() == null ? "" : box.getBboxSrs().toUpperCase();
+                    if (!srs.endsWith("4326") && !srs.endsWith("CRS:84") && !srs.endsWith("CRS84")) {
+                        throw new IllegalArgumentException("Cluster bounding boxes must be in EPSG:4326");
+                    }
+                    bounds = new double[] {box.getLowerCornerPoints()[0], box.getLowerCornerPoints()[1],
+                            box.getUpperCornerPoints()[0], box.getUpperCornerPoints()[1]};
+                }
+
+                BoreholeClusterIndex index = clusterService.getClusterIndex(serviceUrl, typeName, boreholeName, custodian,
+                        dateOfDrillingStart, dateOfDrillingEnd, justNVCL, optionalFilters);
+                generator.writeStartObject();
+                generator.writeBooleanField("success", true);
+                generator.writeFieldName("data");
+                index.write(generator, BoreholeClusterIndex.levelForZoom(zoom), bounds);
+                generator.writeEndObject();
+            } catch (Exception ex) {
+                log.warn(String.format("Unable to cluster boreholes from '%1$s': %2$s", serviceUrl, ex));
+                log.debug("Exception: ", ex);
+                generator.writeStartObject();
+                generator.writeBooleanField("success", false);
+                generator.writeStringField("msg", ex.getMessage());
+                generator.writeEndObject();
+            }
+        }
+    }
+
     /**
      * Handles the borehole filter queries, but returns CSV values
      *
@@ -85,6 +179,14 @@ public class SF0BoreholeController extends BasePortalController {
      *            the name of the mine to query for
      * @param request
      *            the HTTP client request
+     * @param csvFilter
+     *            [Optional] Only return rows matching these conditions (see CSVPipeline.fromParameters)
+     * @param csvDistinct
+     *            [Optional] Remove rows duplicating these key columns (* for entire rows)
+     * @param csvColumns
+     *            [Optional] Only return these columns (in this order)
+     * @param csvRename
+     *            [Optional] Rename output columns (oldName=newName,...)
      * @return a WFS response converted into CSV
      * @throws Exception
      */
@@ -94,10 +196,15 @@ public class SF0BoreholeController extends BasePortalController {
             @RequestParam(required=false, value="outputFormat") String outputFormat,
             @RequestParam(required=false, value="filter") String filter,
             @RequestParam(required=false, value="maxFeatures",defaultValue = "100000") Integer maxFeatures,
+            @RequestParam(required=false, value="csvFilter") String csvFilter,
+            @RequestParam(required=false, value="csvDistinct") String csvDistinct,
+            @RequestParam(required=false, value="csvColumns") String csvColumns,
+            @RequestParam(required=false, value="csvRename") String csvRename,
             HttpServletResponse response) throws Exception {
     	
     	OutputStream outputStream = response.getOutputStream();
         try {
+            CSVPipeline pipeline = CSVPipeline.fromParameters(csvFilter, csvDistinct, csvColumns, csvRename);
         	response.setContentType("text/csv");
         	
             FilterBoundingBox box = FilterBoundingBox.attemptParseFromJSON(bbox);
@@ -108,11 +215,13 @@ public class SF0BoreholeController extends BasePortalController {
             InputStream result = null;
             if (filter != null && filter.indexOf("ogc:Filter")>0) { //Polygon filter
                 filterString = filter;
-                result = wfsService.downloadCSVByPolygonFilter(serviceUrl, typeName, filterString, maxFeatures);
+                result = wfsDownloadService.downloadCSV(serviceUrl, typeName, filterString, maxFeatures);
                 // LJ filtering out records of nvclCollection == false
-                @SuppressWarnings("unused")
-                int totalReturnLine = nvclDataService.nvclCollectionFilter(result, outputStream);
-                //System.out.print(totalReturnLine);
+                try {
+                    nvclDataService.nvclCollectionFilter(result, outputStream, pipeline);
+                } finally {
+                    result.close();
+                }
             } else {
                 if (box == null ) {
                     filterString = sf0BoreholeFilter.getFilterStringAllRecords();
@@ -120,10 +229,10 @@ public class SF0BoreholeController extends BasePortalController {
                     filterString = sf0BoreholeFilter.getFilterStringBoundingBox(box);
                 }
 
-                result = wfsService.downloadCSV(serviceUrl, typeName, filterString,maxFeatures);
+                result = wfsDownloadService.downloadCSV(serviceUrl, typeName, filterString, maxFeatures);
+                pipeline.transformOrCopy(result, outputStream);
             }            
             
-            FileIOUtil.writeInputToOutputStream(result, outputStream, 8 * 1024, true);
             outputStream.close();
             
         } catch (Exception e) {
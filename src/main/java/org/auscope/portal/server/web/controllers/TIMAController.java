@@ -6,10 +6,11 @@ import java.io.OutputStream;
 import jakarta.servlet.http.HttpServletResponse;
 
 import org.auscope.portal.core.server.controllers.BasePortalController;
-import org.auscope.portal.core.services.WFSService;
 import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
-import org.auscope.portal.core.util.FileIOUtil;
 import org.auscope.portal.gsml.TIMAGeosampleFilter;
+import org.auscope.portal.server.web.service.FilterStringCache;
+import org.auscope.portal.server.web.service.PagedWFSDownloadService;
+import org.auscope.portal.server.web.service.download.CSVPipeline;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -21,12 +22,16 @@ import org.springframework.web.bind.annotation.RequestParam;
 @Controller
 public class TIMAController extends BasePortalController {
 
-    /** Used for making general WFS requests */
-    private WFSService wfsService;
+    /** Used for making (paged) WFS CSV requests */
+    private PagedWFSDownloadService wfsDownloadService;
+
+    /** Replaced by the application's FilterStringCache (if there is one) */
+    @Autowired(required = false)
+    private FilterStringCache filterStringCache = FilterStringCache.UNCACHED;
 
     @Autowired
-    public TIMAController(WFSService wfsService) {
-        this.wfsService = wfsService;
+    public TIMAController(PagedWFSDownloadService wfsDownloadService) {
+        this.wfsDownloadService = wfsDownloadService;
     }
 
 
@@ -45,6 +50,14 @@ public class TIMAController extends BasePortalController {
      *            Extra WFS filters to insert into query
      * @param outputFormat
      *             (not used)
+     * @param csvFilter
+     *            [Optional] Only return rows matching these conditions (see CSVPipeline.fromParameters)
+     * @param csvDistinct
+     *            [Optional] Remove rows duplicating these key columns (* for entire rows)
+     * @param csvColumns
+     *            [Optional] Only return these columns (in this order)
+     * @param csvRename
+     *            [Optional] Rename output columns (oldName=newName,...)
      * @return a WFS response converted into CSV
      * @throws Exception
      */
@@ -57,6 +70,10 @@ public class TIMAController extends BasePortalController {
             @RequestParam(required = false, value = "maxFeatures",defaultValue = "100000") Integer maxFeatures,
             @RequestParam(required = false, value = "optionalFilters") String optionalFilters,
             @RequestParam(required = false, value = "outputFormat") String outputFormat,
+            @RequestParam(required = false, value = "csvFilter") String csvFilter,
+            @RequestParam(required = false, value = "csvDistinct") String csvDistinct,
+            @RequestParam(required = false, value = "csvColumns") String csvColumns,
+            @RequestParam(required = false, value = "csvRename") String csvRename,
             HttpServletResponse response)
                     throws Exception {
 
@@ -68,20 +85,21 @@ public class TIMAController extends BasePortalController {
         OutputStream outputStream = response.getOutputStream();
 
         try {
+            CSVPipeline pipeline = CSVPipeline.fromParameters(csvFilter, csvDistinct, csvColumns, csvRename);
             if (filter != null && filter.indexOf("ogc:Filter")>0) { //Polygon filter
                 filterString = filter.replace("gsmlp:shape","gml:location");
-                result = wfsService.downloadCSVByPolygonFilter(serviceUrl, "tima:geosample_and_mineralogy", filterString, maxFeatures);
+                result = wfsDownloadService.downloadCSV(serviceUrl, "tima:geosample_and_mineralogy", filterString, maxFeatures);
             } else{ //BBox or no filter
                 //Build our filter details
                 filterString = generateGeoSampleFilter(sampleName, igsn, bboxJson, optionalFilters);
-                result = wfsService.downloadCSV(serviceUrl, "tima:geosample_and_mineralogy", filterString, maxFeatures);
+                result = wfsDownloadService.downloadCSV(serviceUrl, "tima:geosample_and_mineralogy", filterString, maxFeatures);
             }
+            pipeline.transformOrCopy(result, outputStream);
         } catch (Exception ex) {
             log.warn(String.format("Unable to request/transform WFS response for '%1$s' from '%2$s': %3$s", sampleName,
                     serviceUrl, ex));
             log.debug("Exception: ", ex);
         }
-        FileIOUtil.writeInputToOutputStream(result, outputStream, 8 * 1024, true);
         outputStream.close();
     }
 
@@ -94,6 +112,14 @@ public class TIMAController extends BasePortalController {
      * @param sampleName
      *            The name of the sample
      * @param igsn
+     * @param csvFilter
+     *            [Optional] Only return rows matching these conditions (see CSVPipeline.fromParameters)
+     * @param csvDistinct
+     *            [Optional] Remove rows duplicating these key columns (* for entire rows)
+     * @param csvColumns
+     *            [Optional] Only return these columns (in this order)
+     * @param csvRename
+     *            [Optional] Rename output columns (oldName=newName,...)
      * @return a WFS response converted into CSV
      * @throws Exception
      */
@@ -106,6 +132,10 @@ public class TIMAController extends BasePortalController {
             @RequestParam(required = false, value = "maxFeatures",defaultValue = "200") Integer maxFeatures,
             @RequestParam(required = false, value = "optionalFilters") String optionalFilters,
             @RequestParam(required = false, value = "outputFormat") String outputFormat,
+            @RequestParam(required = false, value = "csvFilter") String csvFilter,
+            @RequestParam(required = false, value = "csvDistinct") String csvDistinct,
+            @RequestParam(required = false, value = "csvColumns") String csvColumns,
+            @RequestParam(required = false, value = "csvRename") String csvRename,
             HttpServletResponse response)
                     throws Exception {
 
@@ -117,20 +147,21 @@ public class TIMAController extends BasePortalController {
         InputStream results = null;
 
         try {
+            CSVPipeline pipeline = CSVPipeline.fromParameters(csvFilter, csvDistinct, csvColumns, csvRename);
             if (filter != null && filter.indexOf("ogc:Filter")>0) { //Polygon filter
                 filterString = filter.replace("gsmlp:shape","gml:location");
-                results = wfsService.downloadCSVByPolygonFilter(serviceUrl, "tima:view_shrimp_geochronology_result", filterString, maxFeatures);
+                results = wfsDownloadService.downloadCSV(serviceUrl, "tima:view_shrimp_geochronology_result", filterString, maxFeatures);
             } else{ //BBox or no filter
                 //Build our filter details
                 filterString = generateGeoSampleFilter(sampleName, igsn, bboxJson, optionalFilters);
-                results = wfsService.downloadCSV(serviceUrl, "tima:view_shrimp_geochronology_result", filterString, maxFeatures);
+                results = wfsDownloadService.downloadCSV(serviceUrl, "tima:view_shrimp_geochronology_result", filterString, maxFeatures);
             }
+            pipeline.transformOrCopy(results, outputStream);
         } catch (Exception ex) {
             log.warn(String.format("Unable to request/transform WFS response for '%1$s' from '%2$s': %3$s", sampleName,
                     serviceUrl, ex));
             log.debug("Exception: ", ex);
         }
-        FileIOUtil.writeInputToOutputStream(results, outputStream, 8 * 1024, true);
         outputStream.close();
     }
 
@@ -142,12 +173,8 @@ public class TIMAController extends BasePortalController {
      */
     private String generateGeoSampleFilter(String name, String igsn, String bboxString,String optionalFilters) {
         FilterBoundingBox bbox = FilterBoundingBox.attemptParseFromJSON(bboxString);
-        TIMAGeosampleFilter timaGeosampleFilter = new TIMAGeosampleFilter(name, igsn,optionalFilters);
-        if (bbox == null) {
-            return timaGeosampleFilter.getFilterStringAllRecords();
-        } else {
-            return timaGeosampleFilter.getFilterStringBoundingBox(bbox);
-        }
+        return filterStringCache.getFilterString(TIMAGeosampleFilter.class, bbox, () -> new TIMAGeosampleFilter(name, igsn, optionalFilters),
+                name, igsn, optionalFilters);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A hierarchical grid of borehole (lon/lat) points for clustering at any map zoom.
+ *
+ * Points are counted into the cells of the finest grid (MAX_LEVEL) as they are added. Each coarser level halves the
+ * number of cells in each direction and is built (once, on first use) by merging the cells of the finest level. Every
+ * cell keeps its point count, NVCL point count and centroid.
+ */
+public class BoreholeClusterIndex {
+
+    /**
+     * A single cluster of points
+     */
+    public static class Cluster {
+        private double sumLon;
+        private double sumLat;
+        private int count;
+        private int nvclCount;
+
+        private void add(double lon, double lat, int count, int nvclCount) {
+            this.sumLon += lon;
+            this.sumLat += lat;
+            this.count += count;
+            this.nvclCount += nvclCount;
+        }
+
+        /**
+         * The mean longitude of the clustered points
+         */
+        public double getLon() {
+            return sumLon / count;
+        }
+
+        /**
+         * The mean latitude of the clustered points
+         */
+        public double getLat() {
+            return sumLat / count;
+        }
+
+        /**
+         * The number of clustered points
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * The number of clustered points with NVCL data
+         */
+        public int getNvclCount() {
+            return nvclCount;
+        }
+    }
+
+    /** The finest grid level (cells of roughly 0.005 degrees) */
+    public static final int MAX_LEVEL = 16;
+    /** The finest grid level is this many levels finer than the corresponding map (256 pixel tile) zoom */
+    public static final int ZOOM_OFFSET = 2;
+    private static final double COORDINATE_PRECISION = 100000.0;
+
+    /** Cells keyed by cellKey for each level (only the finest level is populated until the others are used) */
+    @SuppressWarnings("unchecked")
+    private Map<Long, Cluster>[] levels = new Map[MAX_LEVEL + 1];
+    private int pointCount;
+    private int nvclCount;
+    private long createdMillis = System.currentTimeMillis();
+
+    public BoreholeClusterIndex() {
+        levels[MAX_LEVEL] = new HashMap<Long, Cluster>();
+    }
+
+    private static long cellKey(long x, long y) {
+        return (x << 32) | y;
+    }
+
+    private static double cellSize(int level) {
+        return 360.0 / (1L << level);
+    }
+
+    private static long cellX(double lon, int level) {
+        long cells = 1L << level;
+        return Math.max(0, Math.min(cells - 1, (long) Math.floor((lon + 180.0) / cellSize(level))));
+    }
+
+    private static long cellY(double lat, int level) {
+        long cells = Math.max(1, (1L << level) / 2);
+        return Math.max(0, Math.min(cells - 1, (long) Math.floor((lat + 90.0) / cellSize(level))));
+    }
+
+    /**
+     * Gets the grid level to cluster at for a map zoom level
+     */
+    public static int levelForZoom(int zoom) {
+        return Math.max(0, Math.min(MAX_LEVEL, zoom + ZOOM_OFFSET));
+    }
+
+    /**
+     * Adds a single point. Points outside of the valid lon/lat range are ignored
+     *
+     * @param lon
+     * @param lat
+     * @param nvcl True if the borehole at this point has NVCL data
+     * @return True if the point was added
+     */
+    public synchronized boolean add(double lon, double lat, boolean nvcl) {
+        if (!(lon >= -180.0 && lon <= 180.0 && lat >= -90.0 && lat <= 90.0)) {
+            return false;
+        }
+
+        long key = cellKey(cellX(lon, MAX_LEVEL), cellY(lat, MAX_LEVEL));
+        levels[MAX_LEVEL].computeIfAbsent(key, k -> new Cluster()).add(lon, lat, 1, nvcl ? 1 : 0);
+        for (int i = 0; i < MAX_LEVEL; i++) {
+            levels[i] = null;
+        }
+        pointCount++;
+        if (nvcl) {
+            nvclCount++;
+        }
+        return true;
+    }
+
+    /**
+     * The total number of points in this index
+     */
+    public synchronized int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * The total number of points (with NVCL data) in this index
+     */
+    public synchronized int getNvclCount() {
+        return nvclCount;
+    }
+
+    /**
+     * When this index was created (in milliseconds since the unix epoch)
+     */
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * Gets (building if required) the cells of a level
+     */
+    private synchronized Map<Long, Cluster> getLevel(int level) {
+        if (levels[level] == null) {
+            int shift = MAX_LEVEL - level;
+            Map<Long, Cluster> cells = new HashMap<Long, Cluster>();
+            for (Map.Entry<Long, Cluster> entry : levels[MAX_LEVEL].entrySet()) {
+                long x = entry.getKey() >>> 32;
+                long y = entry.getKey() & 0xFFFFFFFFL;
+                Cluster fine = entry.getValue();
+                cells.computeIfAbsent(cellKey(x >> shift, y >> shift), k -> new Cluster())
+                    .add(fine.sumLon, fine.sumLat, fine.count, fine.nvclCount);
+            }
+            levels[level] = cells;
+        }
+        return levels[level];
+    }
+
+    /**
+     * Gets the clusters at a level whose cells intersect a lon/lat bounding box
+     *
+     * @param level The grid level (0 to MAX_LEVEL)
+     * @param bounds [Optional] minLon, minLat, maxLon, maxLat. minLon can exceed maxLon for boxes crossing the anti meridian.
+     *               If null every cluster is returned
+     * @return
+     */
+    public List<Cluster> getClusters(int level, double[] bounds) {
+        level = Math.max(0, Math.min(MAX_LEVEL, level));
+        Map<Long, Cluster> cells = getLevel(level);
+
+        long minX = 0, maxX = Long.MAX_VALUE, minY = 0, maxY = Long.MAX_VALUE;
+        if (bounds != null) {
+            minX = cellX(bounds[0], level);
+            maxX = cellX(bounds[2], level);
+            minY = cellY(bounds[1], level);
+            maxY = cellY(bounds[3], level);
+        }
+
+        List<Cluster> clusters = new ArrayList<Cluster>();
+        for (Map.Entry<Long, Cluster> entry : cells.entrySet()) {
+            long x = entry.getKey() >>> 32;
+            long y = entry.getKey() & 0xFFFFFFFFL;
+            boolean inX = minX <= maxX ? (x >= minX && x <= maxX) : (x >= minX || x <= maxX);
+            if (inX && y >= minY && y <= maxY) {
+                clusters.add(entry.getValue());
+            }
+        }
+        return clusters;
+    }
+
+    private static double round(double coordinate) {
+        return Math.round(coordinate * COORDINATE_PRECISION) / COORDINATE_PRECISION;
+    }
+
+    /**
+     * Writes the clusters (see getClusters) as a JSON object of the form
+     * {"level":level,"pointCount":n,"nvclCount":n,"clusters":[[lon,lat,count,nvclCount],...]}
+     *
+     * @param generator
+     * @param level
+     * @param bounds
+     * @throws IOException
+     */
+    public void write(JsonGenerator generator, int level, double[] bounds) throws IOException {
+        List<Cluster> clusters = getClusters(level, bounds);
+        generator.writeStartObject();
+        generator.writeNumberField("level", Math.max(0, Math.min(MAX_LEVEL, level)));
+        generator.writeNumberField("pointCount", getPointCount());
+        generator.writeNumberField("nvclCount", getNvclCount());
+        generator.writeArrayFieldStart("clusters");
+        for (Cluster cluster : clusters) {
+            generator.writeStartArray();
+            generator.writeNumber(round(cluster.getLon()));
+            generator.writeNumber(round(cluster.getLat()));
+            generator.writeNumber(cluster.getCount());
+            generator.writeNumber(cluster.getNvclCount());
+            generator.writeEndArray();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+}
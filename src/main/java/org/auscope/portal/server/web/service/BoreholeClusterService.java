@@ -0,0 +1,262 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.BaseWFSService;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker.ResultType;
+import org.auscope.portal.gsml.SF0BoreholeFilter;
+import org.auscope.portal.server.domain.xml.GMLGeoJSONTranscoder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Builds (and caches) BoreholeClusterIndex instances from the gsmlp:BoreholeView features of a WFS.
+ *
+ * Each index holds every borehole matching a filter (no bounding box) so that a single index answers cluster queries
+ * at any zoom level or map extent. The WFS response is parsed as it streams in - only the point and NVCL flag of each
+ * feature are kept.
+ */
+@Service
+public class BoreholeClusterService extends BaseWFSService {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+    private static final String GML_NAMESPACE = "http://www.opengis.net/gml";
+
+    private final Log log = LogFactory.getLog(getClass());
+    private long ttlMillis;
+
+    /** Replaced by the application's FilterStringCache (if there is one) */
+    @Autowired(required = false)
+    private FilterStringCache filterStringCache = FilterStringCache.UNCACHED;
+
+    /** Indexes (being) built, keyed by endpoint/type name/filter in access order */
+    private Map<String, FutureTask<BoreholeClusterIndex>> indexes;
+
+    /**
+     * @param maxIndexes The most indexes (distinct filters) kept in memory
+     * @param ttlMinutes How long an index is used before it is rebuilt
+     */
+    @Autowired
+    public BoreholeClusterService(HttpServiceCaller httpServiceCaller, WFSGetFeatureMethodMaker methodMaker,
+            @Value("${env.boreholeClusters.maxIndexes:16}") final int maxIndexes,
+            @Value("${env.boreholeClusters.ttlMinutes:60}") long ttlMinutes) {
+        super(httpServiceCaller, methodMaker);
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<String, FutureTask<BoreholeClusterIndex>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<BoreholeClusterIndex>> eldest) {
+                return size() > maxIndexes;
+            }
+        });
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+
+    /**
+     * Adds the point of a single gml:pos (or gml:coordinates) to index
+     */
+    private static void addPoint(BoreholeClusterIndex index, String coordinates, String srsName, boolean nvcl) {
+        String[] parts = coordinates.trim().split("[\\s,]+");
+        if (parts.length < 2) {
+            return;
+        }
+
+        try {
+            double first = Double.parseDouble(parts[0]);
+            double second = Double.parseDouble(parts[1]);
+            if (GMLGeoJSONTranscoder.isLatLonOrder(srsName)) {
+                index.add(second, first, nvcl);
+            } else {
+                index.add(first, second, nvcl);
+            }
+        } catch (NumberFormatException ex) {
+            //Unparseable points are skipped
+        }
+    }
+
+    /**
+     * Reads the point and gsmlp:nvclCollection flag of every feature in a WFS GetFeature (GML) response into index
+     *
+     * @param gml The response (will not be closed)
+     * @param index Receives every feature with a (lon/lat) point
+     * @return The number of features read (including those without usable points)
+     * @throws XMLStreamException If the response is malformed or an exception report
+     */
+    public static int readFeatures(InputStream gml, BoreholeClusterIndex index) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(gml);
+        try {
+            int depth = 0;
+            int membersDepth = -1;
+            int featureDepth = -1;
+            int features = 0;
+            String srsName = null;
+            String coordinates = null;
+            String coordinatesSrs = null;
+            boolean nvcl = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamReader.START_ELEMENT) {
+                    depth++;
+                    String localName = reader.getLocalName();
+                    String namespace = reader.getNamespaceURI() == null ? "" : reader.getNamespaceURI();
+                    if (depth == 1 && "ExceptionReport".equals(localName)) {
+                        throw new XMLStreamException("Service returned an exception report");
+                    }
+
+                    String srsAttribute = reader.getAttributeValue(null, "srsName");
+                    if (srsAttribute != null) {
+                        srsName = srsAttribute;
+                    }
+
+                    if (featureDepth < 0) {
+                        if (depth == membersDepth + 1) {
+                            featureDepth = depth;
+                            coordinates = null;
+                            nvcl = false;
+                        } else if (namespace.startsWith(GML_NAMESPACE) && ("featureMembers".equals(localName) || "featureMember".equals(localName))) {
+                            membersDepth = depth;
+                        }
+                    } else if (coordinates == null && namespace.startsWith(GML_NAMESPACE) && ("pos".equals(localName) || "coordinates".equals(localName))) {
+                        coordinatesSrs = srsName;
+                        coordinates = reader.getElementText();
+                        depth--;
+                    } else if ("nvclCollection".equals(localName)) {
+                        nvcl = "true".equalsIgnoreCase(reader.getElementText().trim());
+                        depth--;
+                    }
+                } else if (event == XMLStreamReader.END_ELEMENT) {
+                    if (depth == featureDepth) {
+                        features++;
+                        if (coordinates != null) {
+                            addPoint(index, coordinates, coordinatesSrs, nvcl);
+                        }
+                        featureDepth = -1;
+                    } else if (depth == membersDepth) {
+                        membersDepth = -1;
+                    }
+                    depth--;
+                }
+            }
+            return features;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Requests every borehole matching a filter and builds a new index of them
+     */
+    private BoreholeClusterIndex buildIndex(String serviceUrl, String typeName, String filterString) throws PortalServiceException {
+        HttpRequestBase method = null;
+        try {
+            method = generateWFSRequest(serviceUrl, typeName, null, filterString, 0, null, ResultType.Results, null);
+            BoreholeClusterIndex index = new BoreholeClusterIndex();
+            int features;
+            try (InputStream gml = httpServiceCaller.getMethodResponseAsStream(method)) {
+                features = readFeatures(gml, index);
+            }
+            log.debug(String.format("Clustered %1$d of %2$d %3$s features from %4$s", index.getPointCount(), features, typeName, serviceUrl));
+            return index;
+        } catch (Exception ex) {
+            throw new PortalServiceException(method, ex);
+        }
+    }
+
+    /**
+     * Gets the (possibly cached) cluster index of every borehole matching the specified filter. Concurrent requests
+     * for the same index share a single WFS request.
+     *
+     * @param serviceUrl The WFS endpoint
+     * @param typeName [Optional] The feature type (defaults to gsmlp:BoreholeView)
+     * @param boreholeName
+     * @param custodian
+     * @param dateOfDrillingStart
+     * @param dateOfDrillingEnd
+     * @param justNVCL If true only boreholes with NVCL data are included
+     * @param optionalFilters
+     * @return
+     * @throws PortalServiceException
+     */
+    public BoreholeClusterIndex getClusterIndex(final String serviceUrl, String typeName, String boreholeName, String custodian,
+            String dateOfDrillingStart, String dateOfDrillingEnd, Boolean justNVCL, String optionalFilters) throws PortalServiceException {
+        final String type = typeName == null || typeName.isEmpty() ? "gsmlp:BoreholeView" : typeName;
+        final String filterString = filterStringCache.getFilterString(SF0BoreholeFilter.class, null,
+                () -> new SF0BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, null, null, justNVCL, optionalFilters),
+                boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, null, null, justNVCL, optionalFilters);
+        String key = DiskLruCache.keyFor(serviceUrl, type, TiledWFSFeatureCache.normaliseFilter(filterString));
+
+        FutureTask<BoreholeClusterIndex> task;
+        boolean owner = false;
+        synchronized (indexes) {
+            task = indexes.get(key);
+            if (task != null && task.isDone() && !isUsable(task)) {
+                task = null;
+            }
+            if (task == null) {
+                task = new FutureTask<BoreholeClusterIndex>(() -> buildIndex(serviceUrl, type, filterString));
+                indexes.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            task.run();
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PortalServiceException("Interrupted while building cluster index");
+        } catch (ExecutionException ex) {
+            indexes.remove(key, task);
+            if (ex.getCause() instanceof PortalServiceException) {
+                throw (PortalServiceException) ex.getCause();
+            }
+            throw new PortalServiceException((HttpRequestBase) null, ex.getCause());
+        }
+    }
+
+    /**
+     * Returns true if a completed task holds an index that is young enough to use
+     */
+    private boolean isUsable(FutureTask<BoreholeClusterIndex> task) {
+        try {
+            return System.currentTimeMillis() - task.get().getCreatedMillis() < ttlMillis;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes every cached index
+     */
+    public void clear() {
+        indexes.clear();
+    }
+}
@@ -1,10 +1,18 @@
 package org.auscope.portal.server.web.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-
-import javax.xml.xpath.XPathConstants;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,17 +29,14 @@ import org.auscope.portal.core.services.methodmakers.filter.IFilter;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
 import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
 import org.auscope.portal.core.services.responses.csw.CSWRecord;
-import org.auscope.portal.core.services.responses.ows.OWSExceptionParser;
 import org.auscope.portal.core.services.responses.wfs.WFSResponse;
-import org.auscope.portal.core.util.DOMUtil;
 import org.auscope.portal.gsml.BoreholeFilter;
 import org.auscope.portal.gsml.BoreholeWithConfigurableFilter;
 import org.auscope.portal.nvcl.NVCLNamespaceContext;
+import org.auscope.portal.server.domain.nvcldataservice.NVCLResponseParser;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 /**
  * A utility class which provides methods for querying borehole service
@@ -67,18 +72,65 @@ public class BoreholeService extends BaseWFSService {
         }
     }
 
+    /**
+     * How a list of borehole ID's is applied to a borehole query
+     */
+    public enum IdSetStrategy {
+        /** Every ID in a single OGC filter */
+        SINGLE_FILTER,
+        /** The ID's are split across several (parallel) filtered requests whose responses are merged */
+        CHUNKED_FILTER,
+        /** The query is made without the ID's and its response is joined against them as it streams in */
+        LOCAL_JOIN
+    }
+
     // -------------------------------------------------------------- Constants
 
+    public static final int DEFAULT_MAX_FILTER_IDS = 100;
+    public static final int DEFAULT_MAX_FILTER_CHUNKS = 8;
+
+    /** The prefix that BoreholeFilter applies to each ID to form a gml:id */
+    private static final String BOREHOLE_ID_PREFIX = "gsml.borehole.";
+
     private final Log log = LogFactory.getLog(getClass());
 
     private String gsmlpNameSpace = null;
+    private ServiceFanOut serviceFanOut;
+    protected TiledWFSFeatureCache tileCache;
+    private int maxFilterIds = DEFAULT_MAX_FILTER_IDS;
+    private int maxFilterChunks = DEFAULT_MAX_FILTER_CHUNKS;
+
+    /** Replaced by the application's FilterStringCache (if there is one) */
+    @Autowired(required = false)
+    protected FilterStringCache filterStringCache = FilterStringCache.UNCACHED;
+
     // ----------------------------------------------------------- Constructors
 
-    @Autowired
+    /**
+     * Creates a BoreholeService that makes chunked ID requests one at a time
+     */
     public BoreholeService(HttpServiceCaller serviceCaller, WFSGetFeatureMethodMaker methodMaker) {
         super(serviceCaller, methodMaker);
     }
 
+    /**
+     * @param serviceFanOut Used for making chunked ID requests in parallel
+     * @param tileCache [Optional] Bounding box queries will be assembled from cached tiles
+     * @param maxFilterIds The most ID's that will be put into a single OGC filter
+     * @param maxFilterChunks The most chunked requests made for a single query. Larger ID sets are joined locally
+     */
+    @Autowired
+    public BoreholeService(HttpServiceCaller serviceCaller, WFSGetFeatureMethodMaker methodMaker, ServiceFanOut serviceFanOut,
+            TiledWFSFeatureCache tileCache,
+            @Value("${env.borehole.maxFilterIds:100}") int maxFilterIds,
+            @Value("${env.borehole.maxFilterChunks:8}") int maxFilterChunks) {
+        super(serviceCaller, methodMaker);
+        this.serviceFanOut = serviceFanOut;
+        this.tileCache = tileCache;
+        this.maxFilterIds = Math.max(1, maxFilterIds);
+        this.maxFilterChunks = Math.max(1, maxFilterChunks);
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -89,31 +141,45 @@ public class BoreholeService extends BaseWFSService {
      *            Set to the bounding box in which to fetch results, otherwise set it to null
      * @param restrictToIDList
      *            [Optional] A list of gml:id values that the resulting filter should restrict its search space to
+     *            (see chooseIdSetStrategy for how large lists are handled)
      * @return
      * @throws Exception
      */
     public WFSResponse getAllBoreholes(String serviceUrl, String boreholeName, String custodian,
             String dateOfDrillingStart,String dateOfDrillingEnd, int maxFeatures, FilterBoundingBox bbox, List<String> restrictToIDList, String outputFormat,String optionalFilters)
                     throws Exception {
-        String filterString;
+        int idCount = restrictToIDList == null ? 0 : restrictToIDList.size();
+        IdSetStrategy strategy = chooseIdSetStrategy(idCount, outputFormat);
+        if (strategy != IdSetStrategy.SINGLE_FILTER) {
+            log.debug(String.format("Restricting %1$s to %2$d boreholes with %3$s", serviceUrl, idCount, strategy));
+        }
 
-        if(optionalFilters==null || optionalFilters.isEmpty()){
-            BoreholeFilter nvclFilter = new BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd,restrictToIDList,null);
-            if (bbox == null) {
-                filterString = nvclFilter.getFilterStringAllRecords();
-            } else {
-                filterString = nvclFilter.getFilterStringBoundingBox(bbox);
-            }
-        }else{
-            BoreholeWithConfigurableFilter nvclFilter = new BoreholeWithConfigurableFilter(optionalFilters,restrictToIDList);
-            if (bbox == null) {
-                filterString = nvclFilter.getFilterStringAllRecords();
-            } else {
-                filterString = nvclFilter.getFilterStringBoundingBox(bbox);
-            }
+        switch (strategy) {
+        case CHUNKED_FILTER:
+            return getBoreholesChunked(serviceUrl, boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd,
+                    maxFeatures, bbox, restrictToIDList, outputFormat, optionalFilters);
+        case LOCAL_JOIN:
+            return getBoreholesJoined(serviceUrl, boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd,
+                    maxFeatures, bbox, restrictToIDList, outputFormat, optionalFilters);
+        default:
+            break;
         }
 
+        if (tileCache != null && tileCache.isCacheable(bbox, maxFeatures, outputFormat)) {
+            try {
+                String allRecordsFilter = generateBoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd,
+                        null, restrictToIDList, optionalFilters);
+                return tileCache.getFeatures(serviceUrl, getTypeName(), allRecordsFilter, bbox, outputFormat,
+                        tile -> this.generateWFSRequest(serviceUrl, getTypeName(), null,
+                                generateBoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, tile, restrictToIDList, optionalFilters),
+                                0, null, ResultType.Results, outputFormat));
+            } catch (Exception ex) {
+                throw new PortalServiceException((HttpRequestBase) null, ex);
+            }
+        }
 
+        String filterString = generateBoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd,
+                bbox, restrictToIDList, optionalFilters);
 
         HttpRequestBase method = null;
         try {
@@ -128,34 +194,153 @@ public class BoreholeService extends BaseWFSService {
         }
     }
 
-    private void appendHyloggerBoreholeIDs(String url, String typeName, List<String> idList)
+    /**
+     * Chooses how a set of idCount borehole ID's will be applied to a query. Small sets go into a single filter,
+     * medium sets are split across several filtered requests and anything larger is joined locally (rather than
+     * sending the service a filter it may reject). Only GML responses can be merged/joined - other output formats
+     * always use a single filter.
+     *
+     * @param idCount The number of ID's restricting the query
+     * @param outputFormat The requested output format (null for the default GML)
+     * @return
+     */
+    public IdSetStrategy chooseIdSetStrategy(int idCount, String outputFormat) {
+        if (idCount <= maxFilterIds || !isGMLOutputFormat(outputFormat)) {
+            return IdSetStrategy.SINGLE_FILTER;
+        }
+        if (idCount <= (long) maxFilterIds * maxFilterChunks) {
+            return IdSetStrategy.CHUNKED_FILTER;
+        }
+        return IdSetStrategy.LOCAL_JOIN;
+    }
+
+    private static boolean isGMLOutputFormat(String outputFormat) {
+        if (outputFormat == null || outputFormat.isEmpty()) {
+            return true;
+        }
+        String lower = outputFormat.toLowerCase();
+        return lower.contains("gml") || lower.contains("xml");
+    }
+
+    /**
+     * Generates the OGC filter for a borehole query
+     *
+     * @param ids [Optional] Restricts the filter to these borehole ID's
+     */
+    private String generateBoreholeFilter(String boreholeName, String custodian, String dateOfDrillingStart, String dateOfDrillingEnd,
+            FilterBoundingBox bbox, List<String> ids, String optionalFilters) {
+        if (optionalFilters == null || optionalFilters.isEmpty()) {
+            return filterStringCache.getFilterString(BoreholeFilter.class, bbox,
+                    () -> new BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, null),
+                    boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, null);
+        }
+        return filterStringCache.getFilterString(BoreholeWithConfigurableFilter.class, bbox,
+                () -> new BoreholeWithConfigurableFilter(optionalFilters, ids), optionalFilters, ids);
+    }
+
+    /**
+     * Splits ids into (as few as possible) evenly sized chunks of at most maxFilterIds
+     */
+    List<List<String>> chunkIds(List<String> ids) {
+        int chunkCount = (ids.size() + maxFilterIds - 1) / maxFilterIds;
+        int chunkSize = (ids.size() + chunkCount - 1) / chunkCount;
+        List<List<String>> chunks = new ArrayList<List<String>>(chunkCount);
+        for (int i = 0; i < ids.size(); i += chunkSize) {
+            chunks.add(ids.subList(i, Math.min(ids.size(), i + chunkSize)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Makes one filtered request per chunk of ids (in parallel when a ServiceFanOut is available) and merges the
+     * responses into a single feature collection of at most maxFeatures.
+     */
+    private WFSResponse getBoreholesChunked(String serviceUrl, String boreholeName, String custodian, String dateOfDrillingStart,
+            String dateOfDrillingEnd, int maxFeatures, FilterBoundingBox bbox, List<String> ids, String outputFormat, String optionalFilters)
+                    throws Exception {
+        List<List<String>> chunks = chunkIds(ids);
+        final List<HttpRequestBase> methods = new ArrayList<HttpRequestBase>(chunks.size());
+        final String[] responses = new String[chunks.size()];
+        try {
+            for (List<String> chunk : chunks) {
+                String filterString = generateBoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd,
+                        bbox, chunk, optionalFilters);
+                methods.add(this.generateWFSRequest(serviceUrl, getTypeName(), null, filterString, maxFeatures, null,
+                        ResultType.Results, outputFormat));
+            }
+
+            if (serviceFanOut == null) {
+                for (int i = 0; i < methods.size(); i++) {
+                    responses[i] = this.httpServiceCaller.getMethodResponseAsString(methods.get(i));
+                }
+            } else {
+                List<ServiceFanOut.Task<String>> tasks = new ArrayList<ServiceFanOut.Task<String>>(methods.size());
+                for (final HttpRequestBase method : methods) {
+                    tasks.add(new ServiceFanOut.Task<String>(serviceUrl, () -> this.httpServiceCaller.getMethodResponseAsString(method)));
+                }
+                serviceFanOut.invokeAll(tasks, (i, response) -> responses[i] = response);
+            }
+
+            List<Reader> readers = new ArrayList<Reader>(responses.length);
+            for (String response : responses) {
+                readers.add(new StringReader(response));
+            }
+            String responseData = new GMLFeatureCollectionMerger(null, maxFeatures).merge(readers);
+            return new WFSResponse(responseData, methods.get(0));
+        } catch (Exception ex) {
+            throw new PortalServiceException(methods.isEmpty() ? null : methods.get(0), ex);
+        }
+    }
+
+    /**
+     * Makes a single request without any ID's and keeps only the features in ids (up to maxFeatures) as the response streams in
+     */
+    private WFSResponse getBoreholesJoined(String serviceUrl, String boreholeName, String custodian, String dateOfDrillingStart,
+            String dateOfDrillingEnd, int maxFeatures, FilterBoundingBox bbox, List<String> ids, String outputFormat, String optionalFilters)
+                    throws Exception {
+        final Set<String> gmlIds = new HashSet<String>(ids.size() * 2);
+        for (String id : ids) {
+            if (id != null && !id.isEmpty()) {
+                gmlIds.add(BOREHOLE_ID_PREFIX + id);
+            }
+        }
+
+        //maxFeatures can't be applied upstream as most of the unrestricted features will be discarded
+        String filterString = generateBoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd,
+                bbox, null, optionalFilters);
+        HttpRequestBase method = null;
+        try {
+            method = this.generateWFSRequest(serviceUrl, getTypeName(), null, filterString, 0, null,
+                    ResultType.Results, outputFormat);
+            try (Reader reader = new InputStreamReader(this.httpServiceCaller.getMethodResponseAsStream(method), StandardCharsets.UTF_8)) {
+                GMLFeatureCollectionMerger joiner = new GMLFeatureCollectionMerger(gmlIds::contains, maxFeatures);
+                String responseData = joiner.merge(Arrays.asList(reader));
+                log.debug(String.format("Joined %1$d of %2$d boreholes from %3$s", joiner.getFeatureCount(), gmlIds.size(), serviceUrl));
+                return new WFSResponse(responseData, method);
+            }
+        } catch (Exception ex) {
+            throw new PortalServiceException(method, ex);
+        }
+    }
+
+    /**
+     * Requests the scanned boreholes published by a single service
+     *
+     * @param url The WFS endpoint
+     * @param typeName Should be NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME
+     * @return The borehole ID's (in response order)
+     * @throws PortalServiceException If the request fails or the service returns an exception report
+     * @throws URISyntaxException
+     */
+    public List<String> getHyloggerBoreholeIDs(String url, String typeName)
             throws PortalServiceException, URISyntaxException {
         //Make request
         HttpRequestBase method = wfsMethodMaker.makeGetMethod(url, typeName, (Integer) null, null);
         try {
             String wfsResponse = httpServiceCaller.getMethodResponseAsString(method);
 
-            //Parse response
-            Document doc = DOMUtil.buildDomFromString(wfsResponse);
-            OWSExceptionParser.checkForExceptionResponse(doc);
-
-            NVCLNamespaceContext nc = new NVCLNamespaceContext();
-
-            //Get our ID's
-            NodeList publishedDatasets = (NodeList) DOMUtil.compileXPathExpr("/wfs:FeatureCollection/gml:featureMembers/" + NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME + "/nvcl:scannedBorehole", nc)
-                    .evaluate(doc, XPathConstants.NODESET);
-            for (int i = 0; i < publishedDatasets.getLength(); i++) {
-                Node holeIdentifier = (Node) DOMUtil.compileXPathExpr("@xlink:href", nc)
-                        .evaluate(publishedDatasets.item(i), XPathConstants.NODE);
-                if (holeIdentifier != null) {
-                    String[] urnBlocks = holeIdentifier.getTextContent().split("/");
-                    if (urnBlocks.length > 1) {
-                        // skip invalid URIs
-                        idList.add(urnBlocks[urnBlocks.length - 1].trim());
-                    }
-                }
-
-            }
+            //Parse response (a single streaming pass - no DOM/XPath)
+            return NVCLResponseParser.parseScannedBoreholeIDs(new ByteArrayInputStream(wfsResponse.getBytes(StandardCharsets.UTF_8)));
         } catch (Exception ex) {
             throw new PortalServiceException(method, ex);
         }
@@ -167,6 +352,8 @@ public class BoreholeService extends BaseWFSService {
      *
      * If any of the services queried fail to return valid responses they will be skipped
      *
+     * Every matching service is queried (in sequence) on each call - see HyloggerBoreholeIndex for a cached alternative.
+     *
      * @param cswService
      *            Will be used to find the appropriate service to query
      * @param CSWRecordsFilterVisitor
@@ -180,7 +367,7 @@ public class BoreholeService extends BaseWFSService {
             for (AbstractCSWOnlineResource resource : record.getOnlineResourcesByType(visitor, OnlineResourceType.WFS)) {
                 if (resource.getName().equals(NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME)) {
                     try {
-                        appendHyloggerBoreholeIDs(resource.getLinkage().toString(), resource.getName(), ids);
+                        ids.addAll(getHyloggerBoreholeIDs(resource.getLinkage().toString(), resource.getName()));
                     } catch (Exception ex) {
                         log.warn(String.format("Discovering boreholes at '%1$s' failed", resource.getLinkage()), ex);
                     }
@@ -193,8 +380,9 @@ public class BoreholeService extends BaseWFSService {
 
     public String getFilter(String boreholeName, String custodian, String dateOfDrillingStart,String dateOfDrillingEnd,
             int maxFeatures, FilterBoundingBox bbox, List<String> ids, Boolean justNVCL,String optionalFilters) throws Exception {
-        BoreholeFilter filter = new BoreholeFilter(boreholeName, custodian, dateOfDrillingStart,dateOfDrillingEnd, ids,optionalFilters);
-        return generateFilterString(filter, bbox);
+        return filterStringCache.getFilterString(BoreholeFilter.class, bbox,
+                () -> new BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, optionalFilters),
+                boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, optionalFilters);
     }
 
     /**
@@ -236,110 +424,22 @@ public class BoreholeService extends BaseWFSService {
             setGsmlpNameSpace(gsmlpNameSpace);
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        sb.append("<StyledLayerDescriptor version=\"1.0.0\" xmlns:gsmlp=\"" + getGsmlpNameSpace() + "\" ");
-        sb.append("xsi:schemaLocation=\"http://www.opengis.net/sld StyledLayerDescriptor.xsd\" xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:gsml=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\" xmlns:sld=\"http://www.opengis.net/sld\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">");
-        sb.append("<NamedLayer>" + "<Name>");
-        sb.append(getTypeName());
-        sb.append("</Name>");
-        sb.append("<UserStyle>");
-        sb.append("<Name>portal-style</Name>");
-        sb.append("<Title>portal-style</Title>");
-        sb.append("<Abstract>portal-style</Abstract>");
-        sb.append("<IsDefault>1</IsDefault>");
+        List<Map<String, Object>> styles = new ArrayList<Map<String, Object>>();
         for (int i = 0; i < filters.size(); i++) {
-            sb.append("<FeatureTypeStyle>");
-            sb.append("<Rule>");
-            sb.append("<Name>" + names.get(i) + "</Name>");
-            sb.append("<Abstract>" + names.get(i) + "</Abstract>");
-            sb.append("<MaxScaleDenominator>4000000</MaxScaleDenominator>");
-            sb.append(filters.get(i));
-            sb.append("<PointSymbolizer>");
-            sb.append("<Geometry><ogc:PropertyName>" + getGeometryName() + "</ogc:PropertyName></Geometry>");
-            sb.append("<Graphic>");
-            sb.append("<Mark>");
-            sb.append("<WellKnownName>" + marks.get(i) + "</WellKnownName>");
-            sb.append("<Fill>");
-            sb.append("<CssParameter name=\"fill\">");
-            sb.append(colors.get(i));
-            sb.append("</CssParameter>");
-            sb.append("<CssParameter name=\"fill-opacity\">0.4</CssParameter>");            
-            sb.append("</Fill>");
-            sb.append("<Stroke>");
-            sb.append("<CssParameter name=\"stroke\">");
-            sb.append(colors.get(i));
-            sb.append("</CssParameter>");
-            sb.append("<CssParameter name=\"stroke-width\">0.5</CssParameter>");            
-            sb.append("</Stroke>");
-            sb.append("</Mark>");
-            sb.append("<Size>8</Size>");
-            sb.append("</Graphic>");
-            sb.append("</PointSymbolizer>");
-            sb.append("<TextSymbolizer>");
-            sb.append("<Label>");
-            sb.append("<ogc:Function name=\"strSubstringStart\">");
-            sb.append("<ogc:PropertyName>gsmlp:name</ogc:PropertyName>");
-            sb.append("<ogc:Function name=\"parseInt\">");
-            sb.append("<ogc:Literal>27</ogc:Literal>");
-            sb.append("</ogc:Function>");
-            sb.append("</ogc:Function>");
-            sb.append("</Label>");
-            sb.append("<Font>");
-            sb.append("<CssParameter name=\"font-family\">Arial</CssParameter>");
-            sb.append("<CssParameter name=\"font-size\">12</CssParameter>");
-            sb.append("<CssParameter name=\"font-style\">normal</CssParameter>");
-            sb.append("<CssParameter name=\"font-weight\">normal</CssParameter>");
-            sb.append("</Font>");
-            sb.append("<LabelPlacement>");
-            sb.append("<PointPlacement>");
-            sb.append("<Displacement>");
-            sb.append("<DisplacementX>6</DisplacementX>");
-            sb.append("<DisplacementY>-6</DisplacementY>");
-            sb.append("</Displacement>");
-            sb.append("</PointPlacement>");
-            sb.append("</LabelPlacement>");
-            sb.append("<Fill>");
-            sb.append("<CssParameter name=\"fill\">#000000</CssParameter>");
-            sb.append("</Fill>");
-            sb.append("</TextSymbolizer>");
-            sb.append("</Rule>");
-            // No Labels at high zoom levels
-            sb.append("<Rule>");
-            sb.append("<Name>" + names.get(i) + "</Name>");
-            sb.append("<Abstract>" + names.get(i) + "</Abstract>");
-			sb.append("<MinScaleDenominator>4000000</MinScaleDenominator>");
-            sb.append(filters.get(i));
-            sb.append("<PointSymbolizer>");
-            sb.append("<Geometry><ogc:PropertyName>" + getGeometryName() + "</ogc:PropertyName></Geometry>");
-            sb.append("<Graphic>");
-            sb.append("<Mark>");
-            sb.append("<WellKnownName>" + marks.get(i) + "</WellKnownName>");
-            sb.append("<Fill>");
-            sb.append("<CssParameter name=\"fill\">");
-            sb.append(colors.get(i));
-            sb.append("</CssParameter>");
-            sb.append("<CssParameter name=\"fill-opacity\">0.4</CssParameter>");            
-            sb.append("</Fill>");
-            sb.append("<Stroke>");
-            sb.append("<CssParameter name=\"stroke\">");
-            sb.append(colors.get(i));
-            sb.append("</CssParameter>");
-            sb.append("<CssParameter name=\"stroke-width\">0.5</CssParameter>");            
-            sb.append("</Stroke>");
-            sb.append("</Mark>");
-            sb.append("<Size>8</Size>");
-            sb.append("</Graphic>");
-            sb.append("</PointSymbolizer>");
-            sb.append("</Rule>");
-            sb.append("</FeatureTypeStyle>");
+            Map<String, Object> style = new HashMap<String, Object>();
+            style.put("name", names.get(i));
+            style.put("filter", filters.get(i));
+            style.put("color", colors.get(i));
+            style.put("mark", marks.get(i));
+            style.put("geometryName", getGeometryName());
+            styles.add(style);
         }
 
-        sb.append("</UserStyle>");
-        sb.append("</NamedLayer>");
-        sb.append("</StyledLayerDescriptor>");
-
-        return sb.toString();
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("gsmlpNameSpace", getGsmlpNameSpace());
+        values.put("typeName", getTypeName());
+        values.put("styles", styles);
+        return SLDTemplate.load("BoreholeService_getStyle.sld").render(values);
     }
 
     public String getTypeName() {
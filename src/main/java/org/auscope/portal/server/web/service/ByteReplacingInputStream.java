@@ -0,0 +1,182 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * An InputStream that replaces literal byte sequences in an underlying stream as the bytes pass through.
+ *
+ * Used for rewriting the (relative) URLs in HTML proxied from remote services without first reading the
+ * entire response into memory. Only a lookahead of the longest target is ever buffered.
+ *
+ * Where more than one target matches at the same position the longest one wins, so a target can be
+ * "protected" from a shorter one by mapping it to itself (eg - "&lt;img style=" to "&lt;img style=" alongside
+ * "&lt;img" to "&lt;img style=..."). Replacement output is never rescanned.
+ */
+public class ByteReplacingInputStream extends FilterInputStream {
+
+    private static final int READ_SIZE = 8192;
+
+    private byte[][] targets;
+    private byte[][] replacements;
+    private int maxTargetLength = 0;
+
+    /** Unscanned bytes from the underlying stream live in window[windowStart, windowEnd) */
+    private byte[] window;
+    private int windowStart = 0;
+    private int windowEnd = 0;
+    private boolean eof = false;
+
+    /** The replacement currently being emitted */
+    private byte[] pending = new byte[0];
+    private int pendingPos = 0;
+
+    /**
+     * @param in The stream to rewrite
+     * @param replacements Target strings mapped to their replacements (both UTF-8 encoded)
+     */
+    public ByteReplacingInputStream(InputStream in, Map<String, String> replacements) {
+        super(in);
+        this.targets = new byte[replacements.size()][];
+        this.replacements = new byte[replacements.size()][];
+
+        int i = 0;
+        for (Map.Entry<String, String> entry : replacements.entrySet()) {
+            if (entry.getKey().isEmpty()) {
+                throw new IllegalArgumentException("Replacement targets cannot be empty");
+            }
+            this.targets[i] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            this.replacements[i] = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            maxTargetLength = Math.max(maxTargetLength, this.targets[i].length);
+            i++;
+        }
+
+        this.window = new byte[Math.max(READ_SIZE, maxTargetLength * 2)];
+    }
+
+    /**
+     * True if there are enough bytes in window to test every target (or there is nothing more to read)
+     */
+    private boolean canScan() {
+        return eof || windowEnd - windowStart >= maxTargetLength;
+    }
+
+    /**
+     * Reads from the underlying stream until canScan() is true
+     */
+    private void fill() throws IOException {
+        while (!canScan()) {
+            if (windowEnd == window.length) {
+                System.arraycopy(window, windowStart, window, 0, windowEnd - windowStart);
+                windowEnd -= windowStart;
+                windowStart = 0;
+            }
+
+            int read = in.read(window, windowEnd, window.length - windowEnd);
+            if (read < 0) {
+                eof = true;
+            } else {
+                windowEnd += read;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the longest target starting at windowStart or -1 if there is none
+     */
+    private int longestMatch() {
+        int available = windowEnd - windowStart;
+        int best = -1;
+        for (int i = 0; i < targets.length; i++) {
+            byte[] target = targets[i];
+            if (target.length > available || (best >= 0 && target.length <= targets[best].length)) {
+                continue;
+            }
+
+            boolean matches = true;
+            for (int j = 0; j < target.length && matches; j++) {
+                matches = window[windowStart + j] == target[j];
+            }
+            if (matches) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            if (pendingPos < pending.length) {
+                return pending[pendingPos++] & 0xff;
+            }
+
+            fill();
+            if (windowStart == windowEnd) {
+                return -1;
+            }
+
+            int match = longestMatch();
+            if (match < 0) {
+                return window[windowStart++] & 0xff;
+            }
+
+            windowStart += targets[match].length;
+            pending = replacements[match];
+            pendingPos = 0;
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        while (count < len) {
+            //Don't block on the underlying stream if we already have something to return
+            if (count > 0 && pendingPos == pending.length && !canScan()) {
+                break;
+            }
+
+            int next = read();
+            if (next < 0) {
+                break;
+            }
+            b[off + count++] = (byte) next;
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() >= 0) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return pending.length - pendingPos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,315 @@
+package org.auscope.portal.server.web.service;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.server.domain.nvcldataservice.ImageTrayDepthResponse;
+import org.auscope.portal.server.web.NVCL2_0_DataServiceMethodMaker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Renders NVCL core tray imagery as a continuous, depth indexed "virtual core" strip.
+ *
+ * The strip is cut into fixed size tiles (TILE_WIDTH x TILE_HEIGHT pixels). A level 0 tile covers
+ * FINEST_METRES_PER_TILE metres of core and each subsequent level doubles that. Level 0 tiles are drawn
+ * from the tray images (each tray scaled into the depth interval reported by getImageTrayDepth), coarser
+ * levels are drawn from the two tiles beneath them. Every rendered tile is held in a DiskLruCache unless one
+ * of the trays it covers (directly or through its child tiles) couldn't be loaded - those tiles are rendered
+ * without the missing trays, flagged as incomplete and rendered again on the next request.
+ */
+@Service
+public class CoreImageTileService {
+
+    public static final int TILE_WIDTH = 256;
+    public static final int TILE_HEIGHT = 512;
+    public static final double FINEST_METRES_PER_TILE = 2.5;
+    public static final int LEVELS = 5;
+    public static final String TILE_CONTENT_TYPE = "image/jpeg";
+
+    private static final int MAX_CACHED_TRAY_DEPTHS = 256;
+    private static final Color BACKGROUND = new Color(32, 32, 32);
+
+    /**
+     * A single core tray and the depth interval it covers
+     */
+    private static class Tray {
+        String sampleNo;
+        double startDepth;
+        double endDepth;
+
+        Tray(String sampleNo, double startDepth, double endDepth) {
+            this.sampleNo = sampleNo;
+            this.startDepth = startDepth;
+            this.endDepth = endDepth;
+        }
+    }
+
+    /**
+     * A (JPEG encoded) tile
+     */
+    public static class Tile {
+        private byte[] data;
+        private boolean complete;
+
+        Tile(byte[] data, boolean complete) {
+            this.data = data;
+            this.complete = complete;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * False if one or more of the trays covered by this tile couldn't be loaded (and are missing from it)
+         * @return
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    private final Log log = LogFactory.getLog(getClass());
+    private NVCL2_0_DataService dataService2_0;
+    private NVCL2_0_DataServiceMethodMaker methodMaker;
+    private HttpServiceCaller httpServiceCaller;
+    private ServiceFanOut serviceFanOut;
+    private DiskLruCache tileCache;
+
+    /** Trays (sorted by startDepth) keyed by serviceUrl|logId */
+    private Map<String, List<Tray>> trays = Collections.synchronizedMap(new LinkedHashMap<String, List<Tray>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Tray>> eldest) {
+            return size() > MAX_CACHED_TRAY_DEPTHS;
+        }
+    });
+
+    @Autowired
+    public CoreImageTileService(NVCL2_0_DataService dataService2_0,
+            NVCL2_0_DataServiceMethodMaker methodMaker,
+            HttpServiceCaller httpServiceCaller,
+            ServiceFanOut serviceFanOut,
+            @Value("${env.nvcl.coreTileCache.dir:#{null}}") String cacheDir,
+            @Value("${env.nvcl.coreTileCache.maxMegabytes:512}") long maxMegabytes) throws IOException {
+        this(dataService2_0, methodMaker, httpServiceCaller, serviceFanOut, new DiskLruCache(
+                cacheDir == null || cacheDir.isEmpty() ? new File(System.getProperty("java.io.tmpdir"), "nvcl-core-tiles") : new File(cacheDir),
+                maxMegabytes * 1024L * 1024L));
+    }
+
+    public CoreImageTileService(NVCL2_0_DataService dataService2_0,
+            NVCL2_0_DataServiceMethodMaker methodMaker,
+            HttpServiceCaller httpServiceCaller,
+            ServiceFanOut serviceFanOut,
+            DiskLruCache tileCache) {
+        this.dataService2_0 = dataService2_0;
+        this.methodMaker = methodMaker;
+        this.httpServiceCaller = httpServiceCaller;
+        this.serviceFanOut = serviceFanOut;
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * The number of metres of core covered by a single tile at level
+     * @param level
+     * @return
+     */
+    public static double getMetresPerTile(int level) {
+        return FINEST_METRES_PER_TILE * (1 << level);
+    }
+
+    private List<Tray> getTrays(String serviceUrl, String logId) throws Exception {
+        String key = serviceUrl + "|" + logId;
+        List<Tray> cached = trays.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        List<Tray> parsed = new ArrayList<Tray>();
+        for (ImageTrayDepthResponse depth : dataService2_0.getImageTrayDepths(serviceUrl, logId)) {
+            try {
+                double start = Double.parseDouble(depth.getStartValue().trim());
+                double end = Double.parseDouble(depth.getEndValue().trim());
+                if (end > start) {
+                    parsed.add(new Tray(depth.getSampleNo().trim(), start, end));
+                }
+            } catch (NumberFormatException ex) {
+                log.debug(String.format("Skipping tray '%1$s' of log '%2$s' with unparseable depths", depth.getSampleNo(), logId));
+            }
+        }
+        parsed.sort(Comparator.comparingDouble((Tray t) -> t.startDepth));
+        parsed = Collections.unmodifiableList(parsed);
+
+        trays.put(key, parsed);
+        return parsed;
+    }
+
+    /**
+     * Gets the depth range (in metres) covered by the tray images of a log
+     * @param serviceUrl The URL of the NVCLDataService
+     * @param logId The tray image log
+     * @return [startDepth, endDepth] or null if the log has no tray images
+     * @throws Exception
+     */
+    public double[] getDepthRange(String serviceUrl, String logId) throws Exception {
+        List<Tray> logTrays = getTrays(serviceUrl, logId);
+        if (logTrays.isEmpty()) {
+            return null;
+        }
+
+        double start = Double.MAX_VALUE;
+        double end = -Double.MAX_VALUE;
+        for (Tray tray : logTrays) {
+            start = Math.min(start, tray.startDepth);
+            end = Math.max(end, tray.endDepth);
+        }
+        return new double[] {start, end};
+    }
+
+    /**
+     * Gets the (JPEG encoded) tile at tileIndex for the specified level. Tile n at level l covers the depths
+     * [n * getMetresPerTile(l), (n + 1) * getMetresPerTile(l)).
+     *
+     * @param serviceUrl The URL of the NVCLDataService
+     * @param logId The tray image log
+     * @param level The zoom level (0 is the finest)
+     * @param tileIndex The index of the tile (counting from 0m)
+     * @return The tile or null if the tile lies outside the imaged depths of the log
+     * @throws Exception
+     */
+    public Tile getTile(String serviceUrl, String logId, int level, int tileIndex) throws Exception {
+        if (level < 0 || level >= LEVELS || tileIndex < 0) {
+            return null;
+        }
+
+        double[] range = getDepthRange(serviceUrl, logId);
+        double top = tileIndex * getMetresPerTile(level);
+        double bottom = top + getMetresPerTile(level);
+        if (range == null || top >= range[1] || bottom <= range[0]) {
+            return null;
+        }
+
+        String key = DiskLruCache.keyFor("coretile", serviceUrl, logId, level, tileIndex);
+        try (FileInputStream cached = tileCache.open(key)) {
+            if (cached != null) {
+                return new Tile(cached.readAllBytes(), true);
+            }
+        }
+
+        boolean complete;
+        BufferedImage image = new BufferedImage(TILE_WIDTH, TILE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, TILE_WIDTH, TILE_HEIGHT);
+            if (level == 0) {
+                complete = drawTrays(g, serviceUrl, logId, top, bottom);
+            } else {
+                complete = drawChildTiles(g, serviceUrl, logId, level, tileIndex);
+            }
+        } finally {
+            g.dispose();
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bos);
+        if (complete) {
+            tileCache.put(key, bos.toByteArray());
+        }
+        return new Tile(bos.toByteArray(), complete);
+    }
+
+    /**
+     * Draws every tray overlapping [top, bottom) into its depth interval. Trays are fetched in parallel.
+     * @return false if any of the trays couldn't be read
+     */
+    private boolean drawTrays(Graphics2D g, final String serviceUrl, final String logId, double top, double bottom) throws Exception {
+        final List<Tray> overlapping = new ArrayList<Tray>();
+        for (Tray tray : getTrays(serviceUrl, logId)) {
+            if (tray.endDepth > top && tray.startDepth < bottom) {
+                overlapping.add(tray);
+            }
+        }
+        if (overlapping.isEmpty()) {
+            return true;
+        }
+
+        List<ServiceFanOut.Task<BufferedImage>> tasks = new ArrayList<ServiceFanOut.Task<BufferedImage>>(overlapping.size());
+        for (final Tray tray : overlapping) {
+            tasks.add(new ServiceFanOut.Task<BufferedImage>(serviceUrl, () -> readTrayImage(serviceUrl, logId, tray.sampleNo)));
+        }
+
+        final double pixelsPerMetre = TILE_HEIGHT / (bottom - top);
+        final boolean[] complete = new boolean[] {true};
+        serviceFanOut.invokeAll(tasks, (index, trayImage) -> {
+            if (trayImage == null) {
+                complete[0] = false;
+                return;
+            }
+            Tray tray = overlapping.get(index);
+            int y0 = (int) Math.round((tray.startDepth - top) * pixelsPerMetre);
+            int y1 = (int) Math.round((tray.endDepth - top) * pixelsPerMetre);
+            g.drawImage(trayImage, 0, y0, TILE_WIDTH, Math.max(1, y1 - y0), null);
+        });
+        return complete[0];
+    }
+
+    /**
+     * Draws the two tiles at level - 1 that make up tileIndex at level (one above the other)
+     * @return false if either of the child tiles is incomplete
+     */
+    private boolean drawChildTiles(Graphics2D g, String serviceUrl, String logId, int level, int tileIndex) throws Exception {
+        boolean complete = true;
+        for (int i = 0; i < 2; i++) {
+            Tile child = getTile(serviceUrl, logId, level - 1, (tileIndex * 2) + i);
+            if (child == null) {
+                continue;
+            }
+
+            complete &= child.isComplete();
+            BufferedImage childImage = ImageIO.read(new ByteArrayInputStream(child.getData()));
+            if (childImage != null) {
+                g.drawImage(childImage, 0, i * (TILE_HEIGHT / 2), TILE_WIDTH, TILE_HEIGHT / 2, null);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Fetches and decodes a single tray image. Returns null if the service responds with something that isn't an image
+     */
+    private BufferedImage readTrayImage(String serviceUrl, String logId, String sampleNo) throws Exception {
+        HttpRequestBase method = methodMaker.getTrayImageMethod(serviceUrl, logId, sampleNo);
+        try (InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method)) {
+            BufferedImage image = ImageIO.read(responseStream);
+            if (image == null) {
+                log.warn(String.format("Tray '%1$s' of log '%2$s' from %3$s is not a readable image", sampleNo, logId, serviceUrl));
+            }
+            return image;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A simple on disk cache of immutable blobs (eg - images) with a total size budget.
+ *
+ * Each entry is stored as a single file named after its key. When the total size of all entries exceeds
+ * maxBytes the least recently used entries are deleted. Entries are written to a temporary file first and
+ * then moved into place so readers never see a partially written entry.
+ *
+ * Entries can be evicted (deleted) at any time by another thread so they should be read through open/putAndOpen,
+ * which open the entry while it's guaranteed to exist. An open stream keeps reading an entry that is evicted after
+ * it was opened.
+ */
+public class DiskLruCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Log log = LogFactory.getLog(getClass());
+    private File directory;
+    private long maxBytes;
+    private long currentBytes = 0;
+    /** Entry sizes keyed by key, in access order */
+    private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(256, 0.75f, true);
+
+    /**
+     * Creates a cache in directory, picking up any entries left from a previous run
+     *
+     * @param directory Where the entries will be stored (will be created if it doesn't exist)
+     * @param maxBytes The total size budget (in bytes) for all entries
+     * @throws IOException
+     */
+    public DiskLruCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory.toPath());
+
+        //Oldest files are treated as the least recently used
+        File[] existing = directory.listFiles();
+        if (existing != null) {
+            Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+            for (File f : existing) {
+                if (!f.isFile()) {
+                    continue;
+                }
+                if (f.getName().endsWith(TEMP_SUFFIX)) {
+                    f.delete();
+                    continue;
+                }
+                entries.put(f.getName(), f.length());
+                currentBytes += f.length();
+            }
+        }
+
+        synchronized (this) {
+            evict(null);
+        }
+    }
+
+    /**
+     * Generates a cache key (a hex encoded SHA-256 digest) from an ordered list of parts
+     * @param parts
+     * @return
+     */
+    public static String keyFor(Object... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Object part : parts) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Gets the file holding the entry for key (marking it as recently used) or null if there is no such entry.
+     *
+     * The file may be evicted before the caller reads it - use open to read the entry.
+     * @param key
+     * @return
+     */
+    public synchronized File get(String key) {
+        if (entries.get(key) == null) {
+            return null;
+        }
+
+        File f = new File(directory, key);
+        if (!f.isFile()) {
+            //Removed from underneath us
+            currentBytes -= entries.remove(key);
+            return null;
+        }
+        return f;
+    }
+
+    /**
+     * Opens the entry for key (marking it as recently used)
+     * @param key
+     * @return A new stream of the entry (the caller is responsible for closing it) or null if there is no such entry
+     * @throws IOException
+     */
+    public synchronized FileInputStream open(String key) throws IOException {
+        if (entries.get(key) == null) {
+            return null;
+        }
+
+        try {
+            return new FileInputStream(new File(directory, key));
+        } catch (FileNotFoundException ex) {
+            //Removed from underneath us
+            currentBytes -= entries.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Stores data against key (replacing any existing entry) and opens the new entry before anything else can evict it.
+     * data will NOT be closed.
+     * @param key
+     * @param data
+     * @return A new stream of the new entry. The caller is responsible for closing it
+     * @throws IOException
+     */
+    public FileInputStream putAndOpen(String key, InputStream data) throws IOException {
+        File tmp = Files.createTempFile(directory.toPath(), key, TEMP_SUFFIX).toFile();
+        try {
+            Files.copy(data, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            synchronized (this) {
+                return new FileInputStream(commit(key, tmp));
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Stores data against key (replacing any existing entry). data will NOT be closed.
+     * @param key
+     * @param data
+     * @return The file holding the new entry
+     * @throws IOException
+     */
+    public File put(String key, InputStream data) throws IOException {
+        File tmp = Files.createTempFile(directory.toPath(), key, TEMP_SUFFIX).toFile();
+        try {
+            Files.copy(data, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return commit(key, tmp);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Stores data against key (replacing any existing entry)
+     * @param key
+     * @param data
+     * @return The file holding the new entry
+     * @throws IOException
+     */
+    public File put(String key, byte[] data) throws IOException {
+        File tmp = Files.createTempFile(directory.toPath(), key, TEMP_SUFFIX).toFile();
+        try {
+            Files.write(tmp.toPath(), data);
+            return commit(key, tmp);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private synchronized File commit(String key, File tmp) throws IOException {
+        File f = new File(directory, key);
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Long oldSize = entries.put(key, f.length());
+        if (oldSize != null) {
+            currentBytes -= oldSize;
+        }
+        currentBytes += f.length();
+        evict(key);
+        return f;
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits within maxBytes. The entry for keep (if any)
+     * will never be deleted.
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            File f = new File(directory, eldest.getKey());
+            if (!f.delete() && f.exists()) {
+                log.warn("Unable to evict cache entry " + f);
+            }
+            currentBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * The total size in bytes of every entry in this cache
+     * @return
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * The total size budget (in bytes) for this cache
+     * @return
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,217 @@
+package org.auscope.portal.server.web.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jakarta.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Makes the same download request against a number of providers (eg - one WFS per state) and hands back each
+ * provider's response as soon as that provider completes.
+ *
+ * All downloads share a single bounded pool with a per host limit. Failed requests (connection errors, HTTP 429 and 5xx)
+ * are retried with exponential backoff - a provider that still fails is logged and skipped rather than failing the whole
+ * download. If the result handler throws (eg - because the client has disconnected) every outstanding request is aborted.
+ *
+ * The following metrics are recorded:
+ * <ul>
+ *   <li>portal.download.provider - Timer tagged with download, host and outcome (success, failure or cancelled)</li>
+ *   <li>portal.download.retries - Counter tagged with download and host</li>
+ * </ul>
+ */
+@Service
+public class FederatedDownloadService {
+
+    public static final String METRIC_PROVIDER = "portal.download.provider";
+    public static final String METRIC_RETRIES = "portal.download.retries";
+
+    /** Requests with longer URLs than this are sent as a form encoded POST */
+    static final int MAX_GET_LENGTH = 4096;
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Receives each provider's response (on the thread that started the download)
+     */
+    public interface ResultHandler {
+        /**
+         * @param serviceUrl The URL that generated response
+         * @param response The complete response body
+         */
+        void handle(String serviceUrl, byte[] response) throws Exception;
+    }
+
+    private final Log log = LogFactory.getLog(getClass());
+    private HttpServiceCaller serviceCaller;
+    private MeterRegistry meterRegistry;
+    private ServiceFanOut fanOut;
+    private int maxAttempts;
+    private long initialBackoffMillis;
+
+    @Autowired
+    public FederatedDownloadService(HttpServiceCaller serviceCaller,
+            MeterRegistry meterRegistry,
+            @Value("${env.download.maxThreads:8}") int maxThreads,
+            @Value("${env.download.maxPerHost:2}") int maxPerHost,
+            @Value("${env.download.deadlineMinutes:30}") long deadlineMinutes,
+            @Value("${env.download.maxAttempts:3}") int maxAttempts,
+            @Value("${env.download.initialBackoffMillis:1000}") long initialBackoffMillis) {
+        this(serviceCaller, meterRegistry, new ServiceFanOut(maxThreads, maxPerHost, deadlineMinutes * 60 * 1000L), maxAttempts, initialBackoffMillis);
+    }
+
+    /**
+     * @param fanOut The pool that will run every download
+     * @param maxAttempts The maximum number of requests made to each provider
+     * @param initialBackoffMillis The delay before the first retry (doubling for each subsequent retry)
+     */
+    public FederatedDownloadService(HttpServiceCaller serviceCaller, MeterRegistry meterRegistry, ServiceFanOut fanOut,
+            int maxAttempts, long initialBackoffMillis) {
+        this.serviceCaller = serviceCaller;
+        this.meterRegistry = meterRegistry;
+        this.fanOut = fanOut;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fanOut.shutdown();
+    }
+
+    /**
+     * Generates the request for serviceUrl - overly long URLs have their query string sent as a form encoded POST
+     * @param serviceUrl
+     * @return
+     */
+    HttpRequestBase makeMethod(String serviceUrl) {
+        int queryIndex = serviceUrl.indexOf('?');
+        if (serviceUrl.length() <= MAX_GET_LENGTH || queryIndex < 0) {
+            return new HttpGet(serviceUrl);
+        }
+
+        HttpPost method = new HttpPost(serviceUrl.substring(0, queryIndex));
+        method.setEntity(new StringEntity(serviceUrl.substring(queryIndex + 1),
+                ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8)));
+        return method;
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == SC_TOO_MANY_REQUESTS || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Downloads serviceUrl (retrying as required)
+     *
+     * @param name Identifies the download in logs/metrics
+     * @param serviceUrl
+     * @param inFlight Every request made will be added to this set for as long as it's running
+     * @return The response body or null if the provider failed
+     * @throws InterruptedException If the download was cancelled
+     */
+    private byte[] downloadProvider(String name, String serviceUrl, Set<HttpRequestBase> inFlight) throws InterruptedException {
+        String host = ServiceFanOut.hostOf(serviceUrl);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "failure";
+        try {
+            for (int attempt = 1; ; attempt++) {
+                HttpRequestBase method;
+                try {
+                    method = makeMethod(serviceUrl);
+                } catch (IllegalArgumentException ex) {
+                    log.warn(String.format("%1$s: Skipping malformed URL %2$s: %3$s", name, serviceUrl, ex.getMessage()));
+                    return null;
+                }
+
+                inFlight.add(method);
+                try {
+                    HttpResponse httpResponse = serviceCaller.getMethodResponseAsHttpResponse(method);
+                    int status = httpResponse.getStatusLine().getStatusCode();
+                    if (status == HttpStatus.SC_OK) {
+                        byte[] body = EntityUtils.toByteArray(httpResponse.getEntity());
+                        outcome = "success";
+                        return body;
+                    }
+
+                    EntityUtils.consumeQuietly(httpResponse.getEntity());
+                    if (!isRetryable(status) || attempt >= maxAttempts) {
+                        log.warn(String.format("%1$s: %2$s returned HTTP %3$d after %4$d attempt(s)", name, serviceUrl, status, attempt));
+                        return null;
+                    }
+                } catch (Exception ex) {
+                    if (method.isAborted() || Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException("Download from " + serviceUrl + " cancelled");
+                    }
+                    if (attempt >= maxAttempts) {
+                        log.warn(String.format("%1$s: %2$s failed after %3$d attempt(s): %4$s", name, serviceUrl, attempt, ex.getMessage()));
+                        log.debug("Exception:", ex);
+                        return null;
+                    }
+                } finally {
+                    inFlight.remove(method);
+                }
+
+                meterRegistry.counter(METRIC_RETRIES, "download", name, "host", host).increment();
+                Thread.sleep(initialBackoffMillis << (attempt - 1));
+            }
+        } catch (InterruptedException ex) {
+            outcome = "cancelled";
+            throw ex;
+        } finally {
+            sample.stop(meterRegistry.timer(METRIC_PROVIDER, "download", name, "host", host, "outcome", outcome));
+        }
+    }
+
+    /**
+     * Downloads every one of serviceUrls in parallel, passing each successful response to handler as soon as it's available
+     * (in completion order). Providers that fail are skipped.
+     *
+     * @param name Identifies this download in logs/metrics (eg - "tsg")
+     * @param serviceUrls The URLs to download
+     * @param handler Receives each response. If this throws, all outstanding requests are aborted and the exception rethrown.
+     * @throws Exception
+     */
+    public void download(final String name, final String[] serviceUrls, final ResultHandler handler) throws Exception {
+        final Set<HttpRequestBase> inFlight = ConcurrentHashMap.newKeySet();
+        List<ServiceFanOut.Task<byte[]>> tasks = new ArrayList<ServiceFanOut.Task<byte[]>>(serviceUrls.length);
+        for (final String serviceUrl : serviceUrls) {
+            tasks.add(new ServiceFanOut.Task<byte[]>(serviceUrl, () -> downloadProvider(name, serviceUrl, inFlight)));
+        }
+
+        boolean completed = false;
+        try {
+            fanOut.invokeAll(tasks, (index, response) -> {
+                if (response != null) {
+                    handler.handle(serviceUrls[index], response);
+                }
+            });
+            completed = true;
+        } finally {
+            if (!completed) {
+                log.debug(String.format("%1$s: Aborting %2$d outstanding request(s)", name, inFlight.size()));
+                for (HttpRequestBase method : inFlight) {
+                    method.abort();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.auscope.portal.server.web.service;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.services.methodmakers.filter.IFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * An in memory cache of generated OGC filter strings.
+ *
+ * Filters are keyed by their class, the parameters they were constructed from and their (optional) bounding box.
+ * Identical requests skip constructing the filter (and parsing any optional filters) and regenerating its markup.
+ *
+ * If bboxGrid is positive, bounding boxes are expanded outward to multiples of bboxGrid (in the units of the box's CRS)
+ * before the filter is generated so that nearby boxes share an entry. This widens the queried area - leave it at 0 to
+ * keep filters exact.
+ */
+@Service
+public class FilterStringCache {
+
+    /** Generates filters without caching them */
+    public static final FilterStringCache UNCACHED = new FilterStringCache(0, 0, 0);
+
+    private int maxEntries;
+    private long maxBytes;
+    private double bboxGrid;
+
+    private long currentBytes = 0;
+    /** Filter strings keyed by filter key, in access order. Guarded by this */
+    private LinkedHashMap<String, String> filters = new LinkedHashMap<String, String>(256, 0.75f, true);
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param maxEntries The most filter strings that will be cached (0 disables caching)
+     * @param maxKilobytes The total size budget for all cached filter strings
+     * @param bboxGrid If positive, bounding boxes are snapped outward to multiples of this
+     */
+    @Autowired
+    public FilterStringCache(@Value("${env.filterCache.maxEntries:10000}") int maxEntries,
+            @Value("${env.filterCache.maxKilobytes:16384}") long maxKilobytes,
+            @Value("${env.filterCache.bboxGrid:0}") double bboxGrid) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxKilobytes * 1024L;
+        this.bboxGrid = bboxGrid;
+    }
+
+    /**
+     * The number of filter strings served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of filter strings requested
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Snaps a single ordinate to a multiple of grid (rounding down if floor is set, up otherwise)
+     */
+    private static double snap(double value, double grid, boolean floor) {
+        double cells = value / grid;
+        long cell = (long) (floor ? Math.floor(cells) : Math.ceil(cells));
+        return BigDecimal.valueOf(grid).multiply(BigDecimal.valueOf(cell)).doubleValue();
+    }
+
+    /**
+     * Returns the smallest bounding box aligned to multiples of grid that contains bbox (or bbox if it can't be aligned)
+     */
+    static FilterBoundingBox quantise(FilterBoundingBox bbox, double grid) {
+        if (bbox == null || !(grid > 0)) {
+            return bbox;
+        }
+
+        double[] lower = bbox.getLowerCornerPoints();
+        double[] upper = bbox.getUpperCornerPoints();
+        if (lower == null || upper == null || lower.length != upper.length) {
+            return bbox;
+        }
+
+        double[] snappedLower = new double[lower.length];
+        double[] snappedUpper = new double[upper.length];
+        for (int i = 0; i < lower.length; i++) {
+            if (!Double.isFinite(lower[i]) || !Double.isFinite(upper[i])) {
+                return bbox;
+            }
+            snappedLower[i] = snap(lower[i], grid, true);
+            snappedUpper[i] = snap(upper[i], grid, false);
+        }
+        return new FilterBoundingBox(bbox.getBboxSrs(), snappedLower, snappedUpper);
+    }
+
+    /**
+     * Writes value to sb in a form that can't be confused with any other value (nulls, empty strings and lists of
+     * strings containing separators all encode differently)
+     */
+    private static void appendParameter(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append('n');
+        } else if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            sb.append('l').append(values.size()).append('[');
+            for (Object v : values) {
+                appendParameter(sb, v);
+            }
+            sb.append(']');
+        } else {
+            String s = value.toString();
+            sb.append(value instanceof String ? 's' : value.getClass().getSimpleName());
+            sb.append(s.length()).append(':').append(s);
+        }
+    }
+
+    /**
+     * Generates the cache key for a filter. Keys are hashed so they're the same size however long the parameters are (eg - ID lists)
+     */
+    static String keyFor(Class<? extends IFilter> filterClass, FilterBoundingBox bbox, Object... parameters) {
+        StringBuilder sb = new StringBuilder();
+        for (Object parameter : parameters) {
+            appendParameter(sb, parameter);
+        }
+
+        String bboxKey = "n";
+        if (bbox != null) {
+            StringBuilder bboxSb = new StringBuilder();
+            appendParameter(bboxSb, bbox.getBboxSrs());
+            for (double d : bbox.getLowerCornerPoints()) {
+                bboxSb.append(',').append(d);
+            }
+            bboxSb.append(';');
+            for (double d : bbox.getUpperCornerPoints()) {
+                bboxSb.append(',').append(d);
+            }
+            bboxKey = bboxSb.toString();
+        }
+
+        return DiskLruCache.keyFor(filterClass.getName(), sb, bboxKey);
+    }
+
+    private synchronized String getCached(String key) {
+        return filters.get(key);
+    }
+
+    private synchronized void putCached(String key, String filter) {
+        long size = (key.length() + filter.length()) * 2L;
+        if (size > maxBytes) {
+            return;
+        }
+
+        String old = filters.put(key, filter);
+        if (old != null) {
+            currentBytes -= (key.length() + old.length()) * 2L;
+        }
+        currentBytes += size;
+
+        Iterator<Map.Entry<String, String>> it = filters.entrySet().iterator();
+        while ((currentBytes > maxBytes || filters.size() > maxEntries) && it.hasNext()) {
+            Map.Entry<String, String> eldest = it.next();
+            currentBytes -= (eldest.getKey().length() + eldest.getValue().length()) * 2L;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes every cached filter string
+     */
+    public synchronized void clear() {
+        filters.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Gets the filter string for filter (constrained to bbox if set), generating it if it isn't cached.
+     *
+     * @param filterClass The class of filter created by filter
+     * @param bbox [Optional] The spatial bounds to constrain the filter to (subject to the bboxGrid)
+     * @param filter Creates the filter (only called if the filter string isn't cached)
+     * @param parameters Every value that filter is constructed from
+     * @return
+     */
+    public <T extends IFilter> String getFilterString(Class<T> filterClass, FilterBoundingBox bbox, Supplier<T> filter, Object... parameters) {
+        FilterBoundingBox quantisedBbox = quantise(bbox, bboxGrid);
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            return generateFilterString(filter.get(), quantisedBbox);
+        }
+
+        requests.incrementAndGet();
+        String key = keyFor(filterClass, quantisedBbox, parameters);
+        String filterString = getCached(key);
+        if (filterString != null) {
+            hits.incrementAndGet();
+            return filterString;
+        }
+
+        filterString = generateFilterString(filter.get(), quantisedBbox);
+        if (filterString != null) {
+            putCached(key, filterString);
+        }
+        return filterString;
+    }
+
+    private static String generateFilterString(IFilter filter, FilterBoundingBox bbox) {
+        return bbox == null ? filter.getFilterStringAllRecords() : filter.getFilterStringBoundingBox(bbox);
+    }
+}
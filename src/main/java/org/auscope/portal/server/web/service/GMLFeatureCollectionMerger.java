@@ -0,0 +1,278 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Merges one or more WFS GetFeature (GML) responses into a single feature collection, optionally only keeping
+ * features whose gml:id is accepted by a predicate.
+ *
+ * The first response provides the collection (and everything other than its features). The features of every other
+ * response are appended after the first response's features. Every response is read in a single streaming pass (StAX)
+ * and rejected features are skipped without being buffered.
+ *
+ * Both the gml:featureMembers (GML 3.1+) and gml:featureMember styles of collection are supported.
+ */
+public class GMLFeatureCollectionMerger {
+
+    private static final String GML_NAMESPACE = "http://www.opengis.net/gml";
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = createXMLOutputFactory();
+    private static final XMLEventFactory XML_EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    private Predicate<String> acceptId;
+    private int maxFeatures;
+    private int featureCount;
+    private boolean truncated;
+
+    /**
+     * @param acceptId [Optional] Only features whose gml:id (or fid) is accepted will be kept. If null every feature is kept
+     * @param maxFeatures The maximum number of features to keep (0 for no limit)
+     */
+    public GMLFeatureCollectionMerger(Predicate<String> acceptId, int maxFeatures) {
+        this.acceptId = acceptId;
+        this.maxFeatures = maxFeatures;
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return factory;
+    }
+
+    private static XMLOutputFactory createXMLOutputFactory() {
+        //Features copied from other responses may use prefixes that the first response never declared
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+        return factory;
+    }
+
+    /**
+     * The number of features kept by the last merge
+     */
+    public int getFeatureCount() {
+        return featureCount;
+    }
+
+    /**
+     * True if features were dropped by the last merge because of maxFeatures
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    private static boolean isGml(QName name, String localName) {
+        return localName.equals(name.getLocalPart()) && name.getNamespaceURI().startsWith(GML_NAMESPACE);
+    }
+
+    /**
+     * Gets the gml:id (or GML 2 fid) of a feature element
+     */
+    private static String getFeatureId(StartElement feature) {
+        Iterator<?> attributes = feature.getAttributes();
+        while (attributes.hasNext()) {
+            Attribute attribute = (Attribute) attributes.next();
+            QName name = attribute.getName();
+            if (("id".equals(name.getLocalPart()) && name.getNamespaceURI().startsWith(GML_NAMESPACE))
+                    || ("fid".equals(name.getLocalPart()) && name.getNamespaceURI().isEmpty())) {
+                return attribute.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The collection element without any feature count attributes (which will no longer be accurate)
+     */
+    private static StartElement withoutCounts(StartElement collection) {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        Iterator<?> it = collection.getAttributes();
+        while (it.hasNext()) {
+            Attribute attribute = (Attribute) it.next();
+            String name = attribute.getName().getLocalPart();
+            if (!name.equals("numberOfFeatures") && !name.equals("numberReturned") && !name.equals("numberMatched")) {
+                attributes.add(attribute);
+            }
+        }
+        return XML_EVENT_FACTORY.createStartElement(collection.getName(), attributes.iterator(), collection.getNamespaces());
+    }
+
+    /**
+     * Copies (or skips) the remainder of the element whose start has just been read
+     */
+    private static void copyElement(XMLEventReader reader, XMLEventWriter writer) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+            if (writer != null) {
+                writer.add(event);
+            }
+        }
+    }
+
+    /**
+     * Handles a feature element (whose start has just been read). The feature is written (inside wrapper if set)
+     * if it is accepted and there is room, otherwise it is skipped.
+     */
+    private void handleFeature(StartElement feature, StartElement wrapper, XMLEventReader reader, XMLEventWriter writer) throws XMLStreamException {
+        boolean keep = acceptId == null || acceptId.test(getFeatureId(feature));
+        if (keep && maxFeatures > 0 && featureCount >= maxFeatures) {
+            truncated = true;
+            keep = false;
+        }
+
+        if (!keep) {
+            copyElement(reader, null);
+            return;
+        }
+
+        featureCount++;
+        if (wrapper != null) {
+            writer.add(wrapper);
+        }
+        writer.add(feature);
+        copyElement(reader, writer);
+        if (wrapper != null) {
+            writer.add(XML_EVENT_FACTORY.createEndElement(wrapper.getName(), null));
+        }
+    }
+
+    /**
+     * Reads every feature in response (passing each to handleFeature)
+     *
+     * @param wrapper If set, each feature will be wrapped in a copy of this element
+     */
+    private void appendFeatures(Reader response, StartElement wrapper, XMLEventWriter writer) throws XMLStreamException {
+        XMLEventReader reader = XML_INPUT_FACTORY.createXMLEventReader(response);
+        try {
+            int depth = 0;
+            int membersDepth = -1;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    depth++;
+                    if (depth == 1) {
+                        checkCollection(start);
+                    } else if (depth == membersDepth + 1) {
+                        handleFeature(start, wrapper, reader, writer);
+                        depth--;
+                    } else if (isGml(start.getName(), "featureMembers") || isGml(start.getName(), "featureMember")) {
+                        membersDepth = depth;
+                    }
+                } else if (event.isEndElement()) {
+                    if (depth == membersDepth) {
+                        membersDepth = -1;
+                    }
+                    depth--;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void checkCollection(StartElement root) throws XMLStreamException {
+        if ("ExceptionReport".equals(root.getName().getLocalPart())) {
+            throw new XMLStreamException("Service returned an exception report");
+        }
+    }
+
+    /**
+     * Merges responses into a single feature collection
+     *
+     * @param responses The GML responses to merge (at least one). Each will be read to completion but not closed
+     * @return
+     * @throws XMLStreamException If a response is malformed or is an exception report
+     */
+    public String merge(List<Reader> responses) throws XMLStreamException {
+        featureCount = 0;
+        truncated = false;
+
+        StringWriter output = new StringWriter();
+        XMLEventWriter writer = XML_OUTPUT_FACTORY.createXMLEventWriter(output);
+        XMLEventReader reader = XML_INPUT_FACTORY.createXMLEventReader(responses.get(0));
+        List<Reader> others = responses.subList(1, responses.size());
+        try {
+            int depth = 0;
+            int membersDepth = -1;
+            boolean othersAppended = false;
+            StartElement wrapper = null;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    depth++;
+                    if (depth == 1) {
+                        checkCollection(start);
+                        writer.add(withoutCounts(start));
+                    } else if (wrapper != null) {
+                        //The wrapper is only written if its feature is kept
+                        handleFeature(start, wrapper, reader, writer);
+                        depth--;
+                    } else if (depth == membersDepth + 1) {
+                        handleFeature(start, null, reader, writer);
+                        depth--;
+                    } else if (isGml(start.getName(), "featureMember")) {
+                        wrapper = start;
+                    } else {
+                        if (isGml(start.getName(), "featureMembers")) {
+                            membersDepth = depth;
+                        }
+                        writer.add(event);
+                    }
+                } else if (event.isEndElement()) {
+                    if (wrapper != null) {
+                        wrapper = null;
+                    } else {
+                        if (depth == membersDepth && !othersAppended) {
+                            for (Reader other : others) {
+                                appendFeatures(other, null, writer);
+                            }
+                            othersAppended = true;
+                            membersDepth = -1;
+                        } else if (depth == 1 && !othersAppended) {
+                            StartElement member = XML_EVENT_FACTORY.createStartElement(new QName(GML_NAMESPACE, "featureMember", "gml"), null, null);
+                            for (Reader other : others) {
+                                appendFeatures(other, member, writer);
+                            }
+                            othersAppended = true;
+                        }
+                        writer.add(event);
+                    }
+                    depth--;
+                } else if (wrapper == null) {
+                    writer.add(event);
+                }
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+
+        return output.toString();
+    }
+}
@@ -17,6 +17,10 @@ import org.springframework.stereotype.Service;
 @Service
 public class GenericService extends BaseWFSService {
 
+    /** Replaced by the application's FilterStringCache (if there is one) */
+    @Autowired(required = false)
+    private FilterStringCache filterStringCache = FilterStringCache.UNCACHED;
+
     @Autowired
     public GenericService(
             HttpServiceCaller httpServiceCaller,
@@ -45,7 +49,6 @@ public class GenericService extends BaseWFSService {
     }
 
     public String getFilter(FilterBoundingBox bbox,String optionalFilters) throws Exception {
-      GenericFilter2 filter = new GenericFilter2(optionalFilters);
-        return generateFilterString(filter, bbox);
+        return filterStringCache.getFilterString(GenericFilter2.class, bbox, () -> new GenericFilter2(optionalFilters), optionalFilters);
     }
 }
@@ -0,0 +1,249 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.CSWCacheService;
+import org.auscope.portal.core.services.csw.CSWRecordsFilterVisitor;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.nvcl.NVCLNamespaceContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * An in memory index of the boreholes with Hylogger data, keyed by the service publishing them.
+ *
+ * Services are discovered from the CSW cache (every WFS online resource offering
+ * NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME). Each service is requested (in parallel on the shared
+ * ServiceFanOut) the first time it is needed and then refreshed in the background. The ID's of each service
+ * are held as a sorted, de-duplicated array so they can be merged without re-sorting each service.
+ *
+ * A service that fails to respond keeps its previous ID's until the next refresh. A service that has never responded
+ * contributes no ID's and is requested again by the first lookup after retrySeconds.
+ */
+@Service
+public class HyloggerBoreholeIndex {
+
+    private static final String[] NO_IDS = new String[0];
+    public static final long DEFAULT_RETRY_SECONDS = 60;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private BoreholeService boreholeService;
+    private CSWCacheService cswService;
+    private ServiceFanOut serviceFanOut;
+    private long refreshMinutes;
+    private long retryNanos;
+    private ScheduledExecutorService scheduler;
+
+    /** Service URL -> System.nanoTime() after which a service that has never responded may be requested again */
+    private final Map<String, Long> retryAfter = new ConcurrentHashMap<String, Long>();
+
+    /** Service URL -> sorted borehole ID's. The map is replaced (never modified) on update */
+    private final AtomicReference<Map<String, String[]>> index = new AtomicReference<Map<String, String[]>>(Collections.<String, String[]>emptyMap());
+
+    /**
+     * @param refreshMinutes How often the known services are re-requested (0 or less to never refresh)
+     */
+    public HyloggerBoreholeIndex(BoreholeService boreholeService, CSWCacheService cswService, ServiceFanOut serviceFanOut,
+            long refreshMinutes) {
+        this(boreholeService, cswService, serviceFanOut, refreshMinutes, DEFAULT_RETRY_SECONDS);
+    }
+
+    /**
+     * @param refreshMinutes How often the known services are re-requested (0 or less to never refresh)
+     * @param retrySeconds How long to wait before re-requesting a service that has never responded
+     */
+    @Autowired
+    public HyloggerBoreholeIndex(BoreholeService boreholeService, CSWCacheService cswService, ServiceFanOut serviceFanOut,
+            @Value("${env.nvcl.hyloggerIndexRefreshMinutes:60}") long refreshMinutes,
+            @Value("${env.nvcl.hyloggerIndexRetrySeconds:60}") long retrySeconds) {
+        this.boreholeService = boreholeService;
+        this.cswService = cswService;
+        this.serviceFanOut = serviceFanOut;
+        this.refreshMinutes = refreshMinutes;
+        this.retryNanos = TimeUnit.SECONDS.toNanos(Math.max(0, retrySeconds));
+    }
+
+    /**
+     * Sorts and removes duplicates from ids
+     */
+    static String[] toSortedArray(String[] ids) {
+        if (ids.length == 0) {
+            return NO_IDS;
+        }
+
+        Arrays.sort(ids);
+        int count = 1;
+        for (int i = 1; i < ids.length; i++) {
+            if (!ids[i].equals(ids[count - 1])) {
+                ids[count++] = ids[i];
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Gets every service (from the CSW cache) publishing scanned boreholes
+     *
+     * @param visitor [Optional] Restricts the online resources considered
+     */
+    private List<String> getServiceUrls(CSWRecordsFilterVisitor visitor) {
+        Set<String> urls = new LinkedHashSet<String>();
+        for (CSWRecord record : cswService.getWFSRecords()) {
+            for (AbstractCSWOnlineResource resource : record.getOnlineResourcesByType(visitor, OnlineResourceType.WFS)) {
+                if (NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME.equals(resource.getName())) {
+                    urls.add(resource.getLinkage().toString());
+                }
+            }
+        }
+        return new ArrayList<String>(urls);
+    }
+
+    /**
+     * Requests the ID's of every service in urls (in parallel) and merges them into the index.
+     *
+     * @param keepOnly If true, services not in urls are dropped from the index
+     */
+    private Map<String, String[]> update(final List<String> urls, final boolean keepOnly) {
+        final Map<String, String[]> loaded = new HashMap<String, String[]>();
+        List<ServiceFanOut.Task<String[]>> tasks = new ArrayList<ServiceFanOut.Task<String[]>>(urls.size());
+        for (final String url : urls) {
+            tasks.add(new ServiceFanOut.Task<String[]>(url, () -> {
+                try {
+                    List<String> ids = boreholeService.getHyloggerBoreholeIDs(url, NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME);
+                    return toSortedArray(ids.toArray(new String[ids.size()]));
+                } catch (Exception ex) {
+                    log.warn(String.format("Discovering boreholes at '%1$s' failed: %2$s", url, ex));
+                    log.debug("Exception:", ex);
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            serviceFanOut.invokeAll(tasks, (i, ids) -> {
+                if (ids != null) {
+                    loaded.put(urls.get(i), ids);
+                }
+            });
+        } catch (Exception ex) {
+            //Whatever finished before the deadline is still worth keeping
+            log.warn(String.format("Only %1$d of %2$d Hylogger services were indexed: %3$s", loaded.size(), urls.size(), ex));
+        }
+
+        long retryAt = System.nanoTime() + retryNanos;
+        for (String url : urls) {
+            if (loaded.containsKey(url)) {
+                retryAfter.remove(url);
+            } else {
+                retryAfter.put(url, retryAt);
+            }
+        }
+
+        return index.updateAndGet(current -> {
+            Map<String, String[]> updated = new HashMap<String, String[]>(current);
+            if (keepOnly) {
+                updated.keySet().retainAll(urls);
+            }
+            updated.putAll(loaded);
+            return Collections.unmodifiableMap(updated);
+        });
+    }
+
+    /**
+     * Re-requests every service publishing scanned boreholes
+     */
+    public void refresh() {
+        try {
+            List<String> urls = getServiceUrls(null);
+            Map<String, String[]> updated = update(urls, true);
+            log.debug(String.format("Indexed Hylogger boreholes from %1$d services", updated.size()));
+        } catch (Exception ex) {
+            log.warn("Unable to refresh Hylogger borehole index: " + ex);
+            log.debug("Exception:", ex);
+        }
+    }
+
+    /**
+     * Gets the ID's of every borehole with Hylogger data (published by the services matching visitor). Services
+     * that haven't been indexed yet are requested before returning.
+     *
+     * @param visitor [Optional] Restricts the services considered. Use null if not required
+     * @return The sorted, unique borehole ID's. Empty if no services match (or none have responded)
+     */
+    public List<String> getBoreholeIDs(CSWRecordsFilterVisitor visitor) {
+        List<String> urls = getServiceUrls(visitor);
+        Map<String, String[]> current = index.get();
+
+        List<String> missing = new ArrayList<String>();
+        long now = System.nanoTime();
+        for (String url : urls) {
+            Long retryAt = retryAfter.get(url);
+            if (!current.containsKey(url) && (retryAt == null || now - retryAt >= 0)) {
+                missing.add(url);
+            }
+        }
+        if (!missing.isEmpty()) {
+            current = update(missing, false);
+        }
+
+        if (urls.size() == 1) {
+            return Collections.unmodifiableList(Arrays.asList(current.getOrDefault(urls.get(0), NO_IDS)));
+        }
+
+        int total = 0;
+        for (String url : urls) {
+            total += current.getOrDefault(url, NO_IDS).length;
+        }
+        String[] merged = new String[total];
+        int offset = 0;
+        for (String url : urls) {
+            String[] ids = current.getOrDefault(url, NO_IDS);
+            System.arraycopy(ids, 0, merged, offset, ids.length);
+            offset += ids.length;
+        }
+        return Collections.unmodifiableList(Arrays.asList(toSortedArray(merged)));
+    }
+
+    @PostConstruct
+    public synchronized void startRefresh() {
+        if (refreshMinutes <= 0 || scheduler != null) {
+            return;
+        }
+
+        //Services are indexed on first use (the CSW cache is unlikely to be populated at startup)
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "nvcl-hylogger-index-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshMinutes, refreshMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public synchronized void stopRefresh() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -27,6 +27,10 @@ public class MineralOccurrenceService extends BaseWFSService {
 
     // ----------------------------------------------------- Instance variables
 
+    /** Replaced by the application's FilterStringCache (if there is one) */
+    @Autowired(required = false)
+    private FilterStringCache filterStringCache = FilterStringCache.UNCACHED;
+
     // ----------------------------------------------------------- Constructors
 
     @Autowired
@@ -57,7 +61,7 @@ public class MineralOccurrenceService extends BaseWFSService {
 
 
     public String getMineFilter(String mineName, FilterBoundingBox bbox, String optionalFilters) {
-        MineFilter filter = new MineFilter(mineName, optionalFilters);
-        return generateFilterString(filter, bbox);
+        return filterStringCache.getFilterString(MineFilter.class, bbox, () -> new MineFilter(mineName, optionalFilters),
+                mineName, optionalFilters);
     }
 }
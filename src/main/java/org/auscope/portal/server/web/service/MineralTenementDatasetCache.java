@@ -0,0 +1,140 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.server.web.service.download.MineralTenementLocalFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * An on disk cache of complete (unfiltered) mineral tenement datasets for providers that can't filter server side.
+ *
+ * Entries are reused until they are older than the TTL. Concurrent requests for a missing/expired dataset share a
+ * single download. A download is only cached if its CSV header has every required column, so error responses (eg - an
+ * OWS exception report returned with a 200) are never reused.
+ */
+@Service
+public class MineralTenementDatasetCache {
+
+    /**
+     * Makes the (uncached) request for an entire dataset
+     */
+    public interface Loader {
+        InputStream load() throws Exception;
+    }
+
+    /** The longest CSV header that will be read when checking a download */
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private DiskLruCache cache;
+    private long ttlMillis;
+    private ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    @Autowired
+    public MineralTenementDatasetCache(@Value("${env.mineralTenement.datasetCache.dir:#{null}}") String cacheDir,
+            @Value("${env.mineralTenement.datasetCache.maxMegabytes:1024}") long maxMegabytes,
+            @Value("${env.mineralTenement.datasetCache.ttlMinutes:720}") long ttlMinutes) throws IOException {
+        this(new DiskLruCache(
+                cacheDir == null || cacheDir.isEmpty() ? new File(System.getProperty("java.io.tmpdir"), "mineral-tenements") : new File(cacheDir),
+                maxMegabytes * 1024L * 1024L), TimeUnit.MINUTES.toMillis(ttlMinutes));
+    }
+
+    public MineralTenementDatasetCache(DiskLruCache cache, long ttlMillis) {
+        this.cache = cache;
+        this.ttlMillis = ttlMillis;
+    }
+
+    private File getFresh(String key) {
+        File file = cache.get(key);
+        if (file != null && System.currentTimeMillis() - file.lastModified() < ttlMillis) {
+            return file;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first line of data (which must support mark/reset) without consuming it
+     */
+    private static String peekFirstLine(InputStream data) throws IOException {
+        data.mark(MAX_HEADER_BYTES);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while (line.size() < MAX_HEADER_BYTES && (b = data.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        data.reset();
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Downloads the dataset with loader and caches it under key
+     *
+     * @throws IOException If the response isn't a CSV with every one of requiredColumns
+     */
+    private File download(String key, Loader loader, String[] requiredColumns) throws Exception {
+        try (InputStream data = new BufferedInputStream(loader.load())) {
+            String firstLine = peekFirstLine(data);
+            String[] header;
+            try (CSVReader reader = new CSVReader(new StringReader(firstLine))) {
+                header = reader.readNext();
+            } catch (CsvValidationException | IOException ex) {
+                header = null;
+            }
+            for (String column : requiredColumns) {
+                if (header == null || MineralTenementLocalFilter.findColumn(header, column) < 0) {
+                    String start = firstLine.length() > 200 ? firstLine.substring(0, 200) + "..." : firstLine;
+                    throw new IOException(String.format("Dataset has no column '%1$s' - not caching response starting '%2$s'", column, start));
+                }
+            }
+            return cache.put(key, data);
+        }
+    }
+
+    /**
+     * Opens the cached dataset identified by keyParts, downloading it with loader if it's missing or expired.
+     *
+     * @param loader Makes the request if there is no fresh entry
+     * @param requiredColumns The columns (matched as MineralTenementLocalFilter.findColumn) a download must have to be cached
+     * @param keyParts Uniquely identifies the dataset (eg - serviceUrl, feature type, format)
+     * @return A new stream of the dataset. The caller is responsible for closing it
+     * @throws Exception If the dataset has to be downloaded and loader fails (or returns something without requiredColumns)
+     */
+    public InputStream open(Loader loader, String[] requiredColumns, Object... keyParts) throws Exception {
+        String key = DiskLruCache.keyFor(keyParts);
+        File file = getFresh(key);
+        if (file == null) {
+            synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+                file = getFresh(key);
+                if (file == null) {
+                    long start = System.currentTimeMillis();
+                    file = download(key, loader, requiredColumns);
+                    log.debug(String.format("Cached %1$d byte dataset in %2$dms", file.length(), System.currentTimeMillis() - start));
+                }
+            }
+        }
+
+        //An open stream keeps reading an entry that is evicted/replaced but the entry could go before it's opened
+        try {
+            return new FileInputStream(file);
+        } catch (FileNotFoundException ex) {
+            return new FileInputStream(download(key, loader, requiredColumns));
+        }
+    }
+}
@@ -20,6 +20,10 @@ import org.springframework.stereotype.Service;
 @Service
 public class MineralTenementService extends BaseWFSService {
 
+    /** Replaced by the application's FilterStringCache (if there is one) */
+    @Autowired(required = false)
+    private FilterStringCache filterStringCache = FilterStringCache.UNCACHED;
+
     @Autowired
     public MineralTenementService(
             HttpServiceCaller httpServiceCaller,
@@ -50,8 +54,9 @@ public class MineralTenementService extends BaseWFSService {
     public String getMineralTenementFilter(FilterBoundingBox bbox,String optionalFilters,
     		MineralTenementServiceProviderType mineralTenementServiceProviderType)
                     throws Exception {
-        MineralTenementFilter filter = new MineralTenementFilter(optionalFilters, mineralTenementServiceProviderType);
-        return generateFilterString(filter, bbox);
+        return filterStringCache.getFilterString(MineralTenementFilter.class, bbox,
+                () -> new MineralTenementFilter(optionalFilters, mineralTenementServiceProviderType),
+                optionalFilters, mineralTenementServiceProviderType);
     }
     public String getMineralTenementFilterCCProperty(String optionalFilters, FilterBoundingBox bbox, String ccProperty, String ccPropertyValue)
                     throws Exception {
@@ -1,19 +1,22 @@
 package org.auscope.portal.server.web.service;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -22,25 +25,27 @@ import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
-import org.auscope.portal.core.util.DOMUtil;
 import org.auscope.portal.server.domain.nvcldataservice.AlgorithmOutputClassification;
 import org.auscope.portal.server.domain.nvcldataservice.AlgorithmOutputResponse;
-import org.auscope.portal.server.domain.nvcldataservice.AlgorithmVersion;
 import org.auscope.portal.server.domain.nvcldataservice.AnalyticalJobStatus;
 import org.auscope.portal.server.domain.nvcldataservice.BinnedCSVResponse;
 import org.auscope.portal.server.domain.nvcldataservice.BinnedCSVResponse.Bin;
+import org.auscope.portal.server.domain.nvcldataservice.BinnedDepthPyramid;
 import org.auscope.portal.server.domain.nvcldataservice.CSVDownloadResponse;
 import org.auscope.portal.server.domain.nvcldataservice.GetLogCollectionResponse;
 import org.auscope.portal.server.domain.nvcldataservice.ImageTrayDepthResponse;
+import org.auscope.portal.server.domain.nvcldataservice.NVCLResponseParser;
+import org.auscope.portal.server.domain.nvcldataservice.ScalarSeries;
 import org.auscope.portal.server.domain.nvcldataservice.TrayThumbNailResponse;
 import org.auscope.portal.server.web.NVCL2_0_DataServiceMethodMaker;
+import org.auscope.portal.server.web.service.download.CSVPipeline;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.opencsv.CSVParser;
 import com.opencsv.CSVParserBuilder;
 import com.opencsv.CSVReader;
@@ -54,14 +59,69 @@ public class NVCL2_0_DataService {
     private NVCL2_0_DataServiceMethodMaker nvclMethodMaker;
     private HttpServiceCaller httpServiceCaller;
     private String analyticalServicesUrl;
+    private ServiceFanOut serviceFanOut;
+
+    private static final int MAX_CACHED_PYRAMIDS = 64;
+    private static final int MAX_CACHED_SCALAR_SERIES = 256;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final int DEFAULT_FANOUT_THREADS = 16;
+    private static final int DEFAULT_FANOUT_PER_HOST = 4;
+    private static final long DEFAULT_FANOUT_DEADLINE_MS = 10 * 60 * 1000;
+    private static final long REFERENCE_DATA_TTL_MS = 60 * 60 * 1000;
+    private static final long REFERENCE_DATA_MAX_STALE_MS = 23 * 60 * 60 * 1000;
+
+    /** The most recently used job scalar pyramids, keyed by jobId|boreholeId */
+    private Map<String, BinnedDepthPyramid> jobsScalarPyramids = Collections.synchronizedMap(new LinkedHashMap<String, BinnedDepthPyramid>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BinnedDepthPyramid> eldest) {
+            return size() > MAX_CACHED_PYRAMIDS;
+        }
+    });
+
+    /** The most recently used getDownsampledData responses, keyed by serviceUrl|logId */
+    private Map<String, ScalarSeries> scalarSeries = Collections.synchronizedMap(new LinkedHashMap<String, ScalarSeries>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScalarSeries> eldest) {
+            return size() > MAX_CACHED_SCALAR_SERIES;
+        }
+    });
+
+    /** getAlgorithms responses keyed by serviceUrl */
+    private ReferenceDataCache<List<AlgorithmOutputResponse>> algorithmsCache;
+    /** getClassifications responses keyed by serviceUrl|algorithmOutputId */
+    private ReferenceDataCache<List<AlgorithmOutputClassification>> classificationsCache;
+    /** getTsgAlgorithms responses keyed by tsgAlgName */
+    private ReferenceDataCache<String> tsgAlgorithmsCache;
+
+    public NVCL2_0_DataService(HttpServiceCaller httpServiceCaller,
+            NVCL2_0_DataServiceMethodMaker nvclMethodMaker,
+            String analyticalServicesUrl) {
+        this(httpServiceCaller, nvclMethodMaker, analyticalServicesUrl, new ServiceFanOut(DEFAULT_FANOUT_THREADS, DEFAULT_FANOUT_PER_HOST, DEFAULT_FANOUT_DEADLINE_MS));
+    }
 
     @Autowired
     public NVCL2_0_DataService(HttpServiceCaller httpServiceCaller,
             NVCL2_0_DataServiceMethodMaker nvclMethodMaker,
-            @Value("${env.nvcl.AnalyticalServiceUrl}") String analyticalServicesUrl) {
+            @Value("${env.nvcl.AnalyticalServiceUrl}") String analyticalServicesUrl,
+            ServiceFanOut serviceFanOut) {
         this.nvclMethodMaker = nvclMethodMaker;
         this.httpServiceCaller = httpServiceCaller;
         this.analyticalServicesUrl = analyticalServicesUrl;
+        this.serviceFanOut = serviceFanOut;
+        this.algorithmsCache = new ReferenceDataCache<List<AlgorithmOutputResponse>>(REFERENCE_DATA_TTL_MS, REFERENCE_DATA_MAX_STALE_MS, serviceFanOut::runInBackground);
+        this.classificationsCache = new ReferenceDataCache<List<AlgorithmOutputClassification>>(REFERENCE_DATA_TTL_MS, REFERENCE_DATA_MAX_STALE_MS, serviceFanOut::runInBackground);
+        this.tsgAlgorithmsCache = new ReferenceDataCache<String>(REFERENCE_DATA_TTL_MS, REFERENCE_DATA_MAX_STALE_MS, serviceFanOut::runInBackground);
+    }
+
+    /**
+     * Generates a quoted ETag from the current state of digest
+     */
+    private static String toETag(MessageDigest digest) {
+        return "\"" + HexFormat.of().formatHex(digest.digest()) + "\"";
     }
 
 
@@ -101,57 +161,33 @@ public class NVCL2_0_DataService {
      * @return
      * @throws Exception
      */
-    public  int nvclCollectionFilter(InputStream inputstreamCSV, OutputStream outputStream) throws Exception {
-        int ret = 0;
-        CSVParser parser = new CSVParserBuilder().withSeparator(',').withQuoteChar('"').build();
-        CSVReader reader = new CSVReaderBuilder(new InputStreamReader(inputstreamCSV)).withCSVParser(parser).build();
-        String[] headerLine = reader.readNext();
-        int indexOfIdentifier = Arrays.asList(headerLine).indexOf("gsmlp:identifier");
-        int indexOfNvclCollection = Arrays.asList(headerLine).indexOf("gsmlp:nvclCollection");
-
-        if (headerLine == null || headerLine.length <= 2 || indexOfIdentifier < 0) {
-            throw new Exception("No or malformed CSV header sent");
-        }
-
-        outputStream.write(String.join(",", headerLine).getBytes());
-        outputStream.write('\n');
-
-        //Start parsing our data - loading it into bins
-        String[] dataLine = null;
-        while ((dataLine = reader.readNext()) != null) {
-            if (dataLine.length != headerLine.length) {
-                continue; //skip malformed lines
-            }
-            if (dataLine[indexOfNvclCollection].trim().equalsIgnoreCase("false")){
-                continue; //skip none nvclCollection lines.
-            }
-            //example: http://geossdi.dmp.wa.gov.au/resource/feature/gswa/borehole/ABDP1
-            String boreholeURI = dataLine[indexOfIdentifier];
-            //Filter out bad boreholeURI
-            if (!boreholeURI.startsWith("http")){
-                continue;
-            }
-            outputStream.write(String.join(",", dataLine).getBytes());
-            outputStream.write('\n');
-            ret++;
-        }
-        return ret;
+    public int nvclCollectionFilter(InputStream inputstreamCSV, OutputStream outputStream) throws Exception {
+        return nvclCollectionFilter(inputstreamCSV, outputStream, new CSVPipeline());
     }
-    
-    private String getMostCountedValue(HashMap<String, Integer> map) {
-        String largestValue = null;
-        int largestCount = Integer.MIN_VALUE;
-
-        for (Entry<String, Integer> entry : map.entrySet()) {
-            if (entry.getValue() > largestCount) {
-                largestCount = entry.getValue();
-                largestValue = entry.getKey();
-            }
-        }
 
-        return largestValue;
+    /**
+     * Filter out the csvRecord which is not nvclCollection (or has a malformed gsmlp:identifier) and then applies
+     * pipeline to the remaining rows.
+     *
+     * @param inputstreamCSV
+     *            inputstream of CSV
+     * @param outputStream
+     *            outputStream
+     * @param pipeline
+     *            Any further transformations to apply (after the nvclCollection filtering)
+     * @return The number of rows written
+     * @throws Exception
+     */
+    public int nvclCollectionFilter(InputStream inputstreamCSV, OutputStream outputStream, CSVPipeline pipeline) throws Exception {
+        CSVPipeline nvclPipeline = new CSVPipeline()
+                .filter("gsmlp:nvclCollection", nvclCollection -> !nvclCollection.trim().equalsIgnoreCase("false"))
+                //example: http://geossdi.dmp.wa.gov.au/resource/feature/gswa/borehole/ABDP1
+                .filter("gsmlp:identifier", boreholeURI -> boreholeURI.startsWith("http"))
+                .then(pipeline);
+
+        return (int) nvclPipeline.transform(inputstreamCSV, outputStream);
     }
-
+    
     /**
      * Makes a request for scalar data from NVCL Analytics job and initiates binning
      * @param serviceUrl
@@ -161,165 +197,343 @@ public class NVCL2_0_DataService {
      * @throws Exception
      */
     public BinnedCSVResponse getNVCL2_0_JobsScalarBinned(String[] jobIds, String boreholeId, double binSizeMetres) throws Exception {
-        BinnedCSVResponse binnedResponse = new BinnedCSVResponse();
+        return getNVCL2_0_JobsScalarBinned(jobIds, boreholeId, binSizeMetres, null, null);
+    }
+
+    /**
+     * Makes a request for scalar data from NVCL Analytics job and initiates binning. The binned data for each
+     * (jobId, boreholeId) is held in a BinnedDepthPyramid so that subsequent requests at any bin size/depth range
+     * are served from memory.
+     *
+     * @param jobIds
+     * @param boreholeId
+     * @param binSizeMetres The size of each aggregate window in metres (must be greater than 0)
+     * @param startDepth [Optional] Only windows overlapping depths at or below this value (in metres) will be returned
+     * @param endDepth [Optional] Only windows overlapping depths at or above this value (in metres) will be returned
+     * @return
+     * @throws Exception
+     */
+    public BinnedCSVResponse getNVCL2_0_JobsScalarBinned(String[] jobIds, final String boreholeId, final double binSizeMetres, final Double startDepth, final Double endDepth) throws Exception {
+        if (!(binSizeMetres > 0)) {
+            throw new IllegalArgumentException("binSizeMetres must be greater than 0");
+        }
+
+        final BinnedCSVResponse binnedResponse = new BinnedCSVResponse();
+        List<ServiceFanOut.Task<Bin[]>> tasks = new ArrayList<ServiceFanOut.Task<Bin[]>>(jobIds.length);
+        for (final String jobId: jobIds) {
+            tasks.add(new ServiceFanOut.Task<Bin[]>(analyticalServicesUrl, () -> {
+                Bin[] bins = null;
+                if (binSizeMetres < BinnedDepthPyramid.LEVELS[0]) {
+                    //Finer than anything we hold - bin the raw data directly
+                    HttpRequestBase method = nvclMethodMaker.getNVCLJobsScalarMethod(analyticalServicesUrl, jobId, boreholeId);
+                    bins = doBinning(binnedResponse, method, binSizeMetres, '"', 1, 2, jobId);
+                } else {
+                    bins = getJobsScalarPyramid(jobId, boreholeId).getLevel(binSizeMetres);
+                }
+
+                if (startDepth != null || endDepth != null) {
+                    bins = bins.clone(); //don't modify the cached level
+                    for (int i = 0; i < bins.length; i++) {
+                        bins[i] = BinnedDepthPyramid.sliceDepthRange(binnedResponse, bins[i], binSizeMetres, startDepth, endDepth);
+                    }
+                }
+                return bins;
+            }));
+        }
+
+        //Each job is slotted into place as it arrives so the output order matches jobIds
+        final Bin[][] jobBins = new Bin[jobIds.length][];
+        serviceFanOut.invokeAll(tasks, (index, bins) -> jobBins[index] = bins);
+
         Bin[] totalBins = new Bin[0];
-        for (String jobId: jobIds) {
-            HttpRequestBase method = nvclMethodMaker.getNVCLJobsScalarMethod(analyticalServicesUrl, jobId, boreholeId);
-            Bin[] bins = doBinning(binnedResponse, method, binSizeMetres, '"', 1, 2, jobId);
+        for (Bin[] bins : jobBins) {
             totalBins = (Bin[])ArrayUtils.addAll(totalBins, bins);
         }
         binnedResponse.setBinnedValues(totalBins);
         binnedResponse.setBinSize(binSizeMetres);
-        return binnedResponse;        
+        return binnedResponse;
     }
-        
-        
+
+    /**
+     * Gets the (possibly cached) depth pyramid for the specified job/borehole. Empty results are not cached
+     * as they are likely to come from jobs that haven't finished yet.
+     */
+    private BinnedDepthPyramid getJobsScalarPyramid(String jobId, String boreholeId) throws Exception {
+        String key = jobId + "|" + boreholeId;
+        BinnedDepthPyramid pyramid = jobsScalarPyramids.get(key);
+        if (pyramid != null) {
+            return pyramid;
+        }
+
+        HttpRequestBase method = nvclMethodMaker.getNVCLJobsScalarMethod(analyticalServicesUrl, jobId, boreholeId);
+        BinnedCSVResponse finestResponse = new BinnedCSVResponse();
+        Bin[] finest = doBinning(finestResponse, method, BinnedDepthPyramid.LEVELS[0], '"', 1, 2, jobId);
+        finestResponse.setBinnedValues(finest);
+        finestResponse.setBinSize(BinnedDepthPyramid.LEVELS[0]);
+
+        pyramid = new BinnedDepthPyramid(finest);
+        if (!BinnedDepthPyramid.isEmpty(finest)) {
+            jobsScalarPyramids.put(key, pyramid);
+        }
+        return pyramid;
+    }
+
     /**
      * Performs the binning by parsing the resulting data into a series of binSizeMetres bins where
      * each bin represents the average value for that range of the borehole. Uses CSV header as name for each bin.
+     *
+     * Values are accumulated into growable primitive arrays (one BinAccumulator per column) so the working
+     * memory for each aggregate window is constant regardless of how many samples fall into it.
      * @param method
      * @param binSizeMetres
      * @param startAtCol column number (1..N) where the data starts. If -1 use then it defaults to 2
      * @param stopAtCol column number (1..N) where the data stops (non-inclusive) -1 = data goes all the way to the last column
      * @param altName alternative name for a bin. Use null to force it to use CSV header
      * @return
-     */     
+     */
     private Bin[] doBinning(BinnedCSVResponse binnedResponse, HttpRequestBase method, double binSizeMetres, char quoteChar, int startAtCol, int stopAtCol, String altName) throws Exception {
+        InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
+        return doBinning(binnedResponse, responseStream, binSizeMetres, quoteChar, startAtCol, stopAtCol, altName);
+    }
+
+    /**
+     * Performs the binning of an already opened CSV stream. See doBinning(BinnedCSVResponse, HttpRequestBase, ...)
+     * @param responseStream Will be closed by this method
+     */
+    Bin[] doBinning(BinnedCSVResponse binnedResponse, InputStream responseStream, double binSizeMetres, char quoteChar, int startAtCol, int stopAtCol, String altName) throws Exception {
         final String MISSING_DATA_STRING = "null";
-        final int INITIAL_LIST_SIZE = 512;
-        
-        Bin[] bins = null;
-        
+
         //Prepare parsing
-        InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
         CSVParser parser = new CSVParserBuilder().withSeparator(',').withQuoteChar(quoteChar).build();
-        CSVReader reader = new CSVReaderBuilder(new InputStreamReader(responseStream)).withCSVParser(parser).build();
-        String[] headerLine = reader.readNext();
-        if (headerLine == null || headerLine.length <= startAtCol) {
-            throw new IOException("No or malformed CSV header sent");
-        }
-        // Set start & stop columns to default
-        if (stopAtCol<0) {
-            stopAtCol=headerLine.length;
-        }
-        if (startAtCol<0) {
-            startAtCol=2;
-        }
-        //Prepare our bins
-        bins = new Bin[stopAtCol - startAtCol];
-        List<HashMap<String, Integer>> valueCounts = new ArrayList<HashMap<String, Integer>>(bins.length);
-        double[] numericTotal = new double[bins.length];
-        int[] numericCount = new int[bins.length];
-        double currentBinStartDepth = -Double.MAX_VALUE;
-        int currentBinSize = 0;
-        for (int i = 0; i < bins.length; i++) {
-            String name = headerLine[startAtCol + i];
-            if (altName!=null) {
-                name=altName;
+        try (CSVReader reader = new CSVReaderBuilder(new InputStreamReader(responseStream)).withCSVParser(parser).build()) {
+            String[] headerLine = reader.readNext();
+            if (headerLine == null || headerLine.length <= startAtCol) {
+                throw new IOException("No or malformed CSV header sent");
             }
-            bins[i] = binnedResponse.new Bin(name, new ArrayList<Double>(INITIAL_LIST_SIZE), true, new ArrayList<Map<String, Integer>>(INITIAL_LIST_SIZE), new ArrayList<String>(INITIAL_LIST_SIZE), new ArrayList<Double>(INITIAL_LIST_SIZE));
-            bins[i].setNumeric(true);
-            valueCounts.add(new HashMap<String, Integer>());
-        }
-
-        //Start parsing our data - loading it into bins
-        String[] dataLine = null;
-        while ((dataLine = reader.readNext()) != null) {
-            if (dataLine.length != headerLine.length) {
-                continue; //skip malformed lines
+            // Set start & stop columns to default
+            if (stopAtCol<0) {
+                stopAtCol=headerLine.length;
+            }
+            if (startAtCol<0) {
+                startAtCol=2;
+            }
+            //Prepare our bins
+            BinAccumulator[] accumulators = new BinAccumulator[stopAtCol - startAtCol];
+            double currentBinStartDepth = -Double.MAX_VALUE;
+            int currentBinSize = 0;
+            for (int i = 0; i < accumulators.length; i++) {
+                accumulators[i] = new BinAccumulator(altName != null ? altName : headerLine[startAtCol + i]);
             }
 
-            //If we've exceeded our current bin size - save the data and start a new bin
-            double depth = Double.parseDouble(dataLine[0]);
-            if (depth - currentBinStartDepth >= binSizeMetres) {
-
-                if (currentBinStartDepth == -Double.MAX_VALUE) {
-                    currentBinStartDepth = depth;
+            //Start parsing our data - loading it into bins
+            String[] dataLine = null;
+            while ((dataLine = reader.readNext()) != null) {
+                if (dataLine.length != headerLine.length) {
+                    continue; //skip malformed lines
                 }
 
-                for (int i = 0; i < bins.length; i++) {
-                    if (bins[i].isNumeric()) {
-                        if (numericCount[i] > 0) {
-                            bins[i].getNumericValues().add(numericTotal[i] / (double) numericCount[i]);
-                            bins[i].getStartDepths().add(currentBinStartDepth);
-                        }
-                    } else {
-                        String value = getMostCountedValue(valueCounts.get(i));
-                        if (value != null) {
-                            bins[i].getStartDepths().add(currentBinStartDepth);
-                            bins[i].getHighStringValues().add(value);
-                            bins[i].getStringValues().add(valueCounts.get(i));
-                        }
+                //If we've exceeded our current bin size - save the data and start a new bin
+                double depth = Double.parseDouble(dataLine[0]);
+                if (depth - currentBinStartDepth >= binSizeMetres) {
+
+                    if (currentBinStartDepth == -Double.MAX_VALUE) {
+                        currentBinStartDepth = depth;
+                    }
+
+                    for (BinAccumulator accumulator : accumulators) {
+                        accumulator.flush(currentBinStartDepth);
                     }
-                }
 
-                //Reset our working bin data
-                for (int i = 0; i < bins.length; i++) {
-                    valueCounts.set(i, new HashMap<String, Integer>());
-                    numericTotal[i] = 0.0;
-                    numericCount[i] = 0;
+                    currentBinStartDepth = depth;
+                    currentBinSize = 0;
                 }
 
-                currentBinStartDepth = depth;
-                currentBinSize = 0;
-            }
+                //Build up our current bin
+                boolean dataAdded = false;
+                for (int i = 0; i < accumulators.length; i++) {
+                    String rawBinData = dataLine[startAtCol + i];
+                    if (rawBinData == null || rawBinData.isEmpty() || rawBinData.equals(MISSING_DATA_STRING)) {
+                        continue; //skip missing data
+                    }
 
-            //Build up our current bin
-            boolean dataAdded = false;
-            for (int i = 0; i < bins.length; i++) {
-                String rawBinData = dataLine[startAtCol + i];
-                if (rawBinData == null || rawBinData.isEmpty() || rawBinData.equals(MISSING_DATA_STRING)) {
-                    continue; //skip missing data
-                } else {
                     dataAdded = true;
+                    accumulators[i].add(rawBinData);
                 }
+                if (dataAdded) {
+                    currentBinSize++;
+                }
+            }
 
-                if (bins[i].isNumeric()) {
-                    try {
-                        double newData = Double.parseDouble(rawBinData);
-                        numericCount[i]++;
-                        numericTotal[i] += newData;
-                    } catch (NumberFormatException nfe) {
-                        //OK - this column isn't actually numeric
-                        bins[i].setNumeric(false);
-                    }
+            //If we've got a partial bin at the end - let's include the data
+            Bin[] bins = new Bin[accumulators.length];
+            for (int i = 0; i < accumulators.length; i++) {
+                if (currentBinSize > 0) {
+                    accumulators[i].flush(currentBinStartDepth);
                 }
+                bins[i] = accumulators[i].toBin(binnedResponse);
+            }
+            return bins;
+        }
+    }
+
+    /**
+     * Accumulates the aggregate windows for a single CSV column using growable primitive arrays.
+     *
+     * String values are interned into a per column dictionary so that each window only needs an int[] of counts
+     * (indexed by dictionary position) rather than a new HashMap.
+     */
+    private static class BinAccumulator {
+        private static final int INITIAL_SIZE = 512;
+        private static final int INITIAL_LABELS = 16;
+
+        private final String name;
+        private boolean numeric = true;
+
+        //The current (working) aggregate window
+        private double windowSum;
+        private int windowCount;
+        private double windowMin = Double.POSITIVE_INFINITY;
+        private double windowMax = Double.NEGATIVE_INFINITY;
+        private int[] windowClassCounts = new int[INITIAL_LABELS];
+
+        //Class label dictionary
+        private final Map<String, Integer> labelIndexes = new HashMap<String, Integer>();
+        private String[] labels = new String[INITIAL_LABELS];
+        private int labelCount = 0;
+
+        //Completed aggregate windows
+        private double[] startDepths = new double[INITIAL_SIZE];
+        private int depthCount = 0;
+        private double[] means = new double[INITIAL_SIZE];
+        private double[] mins = new double[INITIAL_SIZE];
+        private double[] maxs = new double[INITIAL_SIZE];
+        private int[] counts = new int[INITIAL_SIZE];
+        private int numericCount = 0;
+        private int[][] classCounts = new int[INITIAL_SIZE][];
+        private String[] highStrings = new String[INITIAL_SIZE];
+        private int stringCount = 0;
+
+        public BinAccumulator(String name) {
+            this.name = name;
+        }
 
-                if (!bins[i].isNumeric()) {
-                    Integer currentCount = valueCounts.get(i).get(rawBinData);
-                    if (currentCount == null) {
-                        valueCounts.get(i).put(rawBinData, 1);
-                    } else {
-                        valueCounts.get(i).put(rawBinData, currentCount + 1);
+        /**
+         * Adds a (non missing) raw value to the current window. The first non numeric value permanently
+         * switches this column over to counting string values.
+         */
+        public void add(String rawValue) {
+            if (numeric) {
+                try {
+                    double value = Double.parseDouble(rawValue);
+                    windowCount++;
+                    windowSum += value;
+                    if (value < windowMin) {
+                        windowMin = value;
                     }
+                    if (value > windowMax) {
+                        windowMax = value;
+                    }
+                    return;
+                } catch (NumberFormatException nfe) {
+                    //OK - this column isn't actually numeric
+                    numeric = false;
                 }
             }
-            if (dataAdded) {
-                currentBinSize++;
+
+            Integer labelIndex = labelIndexes.get(rawValue);
+            if (labelIndex == null) {
+                labelIndex = labelCount;
+                if (labelCount == labels.length) {
+                    labels = Arrays.copyOf(labels, labelCount * 2);
+                    windowClassCounts = Arrays.copyOf(windowClassCounts, labelCount * 2);
+                }
+                labels[labelCount++] = rawValue;
+                labelIndexes.put(rawValue, labelIndex);
             }
+            windowClassCounts[labelIndex]++;
         }
 
-        //If we've got a partial bin at the end - let's include the data
-        if (currentBinSize > 0) {
-            for (int i = 0; i < bins.length; i++) {
-                if (bins[i].isNumeric()) {
-                    if (numericCount[i] > 0) {
-                        bins[i].getNumericValues().add(numericTotal[i] / (double) numericCount[i]);
-                        bins[i].getStartDepths().add(currentBinStartDepth);
+        /**
+         * Saves the current window (if it has any data) against startDepth and then resets it
+         */
+        public void flush(double startDepth) {
+            if (numeric) {
+                if (windowCount > 0) {
+                    if (numericCount == means.length) {
+                        int newSize = numericCount * 2;
+                        means = Arrays.copyOf(means, newSize);
+                        mins = Arrays.copyOf(mins, newSize);
+                        maxs = Arrays.copyOf(maxs, newSize);
+                        counts = Arrays.copyOf(counts, newSize);
                     }
-                } else {
-                    String value = getMostCountedValue(valueCounts.get(i));
-                    if (value != null) {
-                        bins[i].getStartDepths().add(currentBinStartDepth);
-                        bins[i].getHighStringValues().add(value);
-                        bins[i].getStringValues().add(valueCounts.get(i));
+                    means[numericCount] = windowSum / (double) windowCount;
+                    mins[numericCount] = windowMin;
+                    maxs[numericCount] = windowMax;
+                    counts[numericCount] = windowCount;
+                    numericCount++;
+                    addStartDepth(startDepth);
+                }
+            } else {
+                int highIndex = getMostCountedIndex();
+                if (highIndex >= 0) {
+                    if (stringCount == highStrings.length) {
+                        highStrings = Arrays.copyOf(highStrings, stringCount * 2);
+                        classCounts = Arrays.copyOf(classCounts, stringCount * 2);
                     }
+                    addStartDepth(startDepth);
+                    highStrings[stringCount] = labels[highIndex];
+                    classCounts[stringCount] = Arrays.copyOf(windowClassCounts, labelCount);
+                    stringCount++;
+                }
+            }
+
+            //Reset our working bin data
+            windowSum = 0.0;
+            windowCount = 0;
+            windowMin = Double.POSITIVE_INFINITY;
+            windowMax = Double.NEGATIVE_INFINITY;
+            Arrays.fill(windowClassCounts, 0, labelCount, 0);
+        }
+
+        /**
+         * Argmax over the current window's class counts. Returns -1 if the window has no string values
+         */
+        private int getMostCountedIndex() {
+            int largestIndex = -1;
+            int largestCount = 0;
+            for (int i = 0; i < labelCount; i++) {
+                if (windowClassCounts[i] > largestCount) {
+                    largestCount = windowClassCounts[i];
+                    largestIndex = i;
                 }
             }
+            return largestIndex;
+        }
+
+        private void addStartDepth(double startDepth) {
+            if (depthCount == startDepths.length) {
+                startDepths = Arrays.copyOf(startDepths, depthCount * 2);
+            }
+            startDepths[depthCount++] = startDepth;
+        }
+
+        /**
+         * Trims the accumulated columns into a new Bin
+         */
+        public Bin toBin(BinnedCSVResponse binnedResponse) {
+            return binnedResponse.new Bin(name,
+                    Arrays.copyOf(startDepths, depthCount),
+                    numeric,
+                    Arrays.copyOf(labels, labelCount),
+                    Arrays.copyOf(classCounts, stringCount),
+                    Arrays.copyOf(highStrings, stringCount),
+                    Arrays.copyOf(means, numericCount),
+                    Arrays.copyOf(mins, numericCount),
+                    Arrays.copyOf(maxs, numericCount),
+                    Arrays.copyOf(counts, numericCount));
         }
-        return bins;
     }
-        
+
     /**
      * Given logIds, convert classifications to a set of colour tables, indexed on logName
      * Each colour table uses RGB hex colour strings, indexed on mineral name
@@ -331,12 +545,16 @@ public class NVCL2_0_DataService {
      */
     
     public String getNVCL2_0_MineralColourTable(String serviceUrl, String[] logIds) throws Exception {
-        JSONObject outObj = new JSONObject();
-        for (String logId : logIds) {
-            HttpRequestBase method = nvclMethodMaker.getGetClassificationsMethod(serviceUrl, logId);
-            String httpResponseStr = httpServiceCaller.getMethodResponseAsString(method);
-            JSONObject inObj = new JSONObject(httpResponseStr);
-            if (inObj.has("classifications")) {
+        List<ServiceFanOut.Task<JSONObject>> tasks = new ArrayList<ServiceFanOut.Task<JSONObject>>(logIds.length);
+        for (final String logId : logIds) {
+            final HttpRequestBase method = nvclMethodMaker.getGetClassificationsMethod(serviceUrl, logId);
+            tasks.add(new ServiceFanOut.Task<JSONObject>(serviceUrl, () -> {
+                String httpResponseStr = httpServiceCaller.getMethodResponseAsString(method);
+                JSONObject inObj = new JSONObject(httpResponseStr);
+                if (!inObj.has("classifications")) {
+                    return null;
+                }
+
                 JSONArray jsonClassList = inObj.getJSONArray("classifications");
                 JSONObject colourTable = new JSONObject();
                 for (int i = 0; i < jsonClassList.length(); i++)
@@ -348,13 +566,20 @@ public class NVCL2_0_DataService {
                         colourTable.put(mineralName, hexColourStr);
                     }
                 }
-                outObj.put(logId, colourTable);
-            }
+                return colourTable;
+            }));
         }
+
+        final JSONObject outObj = new JSONObject();
+        serviceFanOut.invokeAll(tasks, (index, colourTable) -> {
+            if (colourTable != null) {
+                outObj.put(logIds[index], colourTable);
+            }
+        });
         return outObj.toString();
     }
-    
-    
+
+
     /**
      * Makes JSON download requests from an NVCL 2.0 service and parses the resulting data
      * @param serviceUrl
@@ -363,31 +588,91 @@ public class NVCL2_0_DataService {
      * @throws Exception
      */
     public String getNVCL2_0_JSONDownsampledData(String serviceUrl, String[] logIds) throws Exception {
-        serviceUrl += "getDownsampledData.html";
-        JSONArray outArr = new JSONArray();
-        for (String logId: logIds) {
-            HttpRequestBase method = nvclMethodMaker.getDownloadJSONMethod(serviceUrl, logId);
-            String httpResponseStr = httpServiceCaller.getMethodResponseAsString(method);
-            JSONArray inArr = new JSONArray(httpResponseStr);
-            if (inArr.length() > 0) {
-                JSONObject firstObj = inArr.getJSONObject(0);
-                if (firstObj.has("classCount")) {
-                    JSONObject baseObj = new JSONObject();
-                    baseObj.put("logId", logId);
-                    baseObj.put("stringValues", inArr);
-                    outArr.put(baseObj);
-                } else if (firstObj.has("averageValue")) {
-                    JSONObject baseObj = new JSONObject();
-                    baseObj.put("logId", logId);
-                    baseObj.put("numericValues", inArr);
-                    outArr.put(baseObj);
-                }                    
+        return getNVCL2_0_JSONDownsampledData(serviceUrl, logIds, null);
+    }
+
+    /**
+     * Makes JSON download requests from an NVCL 2.0 service and parses the resulting data, optionally reducing
+     * each numeric log to targetPoints points (see ScalarSeries.write)
+     * @param serviceUrl
+     * @param logIds
+     * @param targetPoints [Optional] The maximum number of points to return for each numeric log
+     * @return
+     * @throws Exception
+     */
+    public String getNVCL2_0_JSONDownsampledData(String serviceUrl, String[] logIds, Integer targetPoints) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeNVCL2_0_JSONDownsampledData(serviceUrl, logIds, targetPoints, bos);
+        return bos.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes JSON download requests from an NVCL 2.0 service and streams the resulting data (as a JSON array
+     * with one object per log) to os. Each log is only requested from the service once, after that it's served
+     * from memory.
+     *
+     * @param serviceUrl
+     * @param logIds
+     * @param targetPoints [Optional] The maximum number of points to return for each numeric log
+     * @param os Receives the response (will not be closed)
+     * @throws Exception
+     */
+    public void writeNVCL2_0_JSONDownsampledData(String serviceUrl, String[] logIds, Integer targetPoints, OutputStream os) throws Exception {
+        ScalarSeries[] logSeries = getNVCL2_0_ScalarSeries(serviceUrl, logIds);
+
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(os)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            for (int i = 0; i < logIds.length; i++) {
+                if (logSeries[i] != null) {
+                    logSeries[i].write(generator, logIds[i], targetPoints);
+                }
             }
+            generator.writeEndArray();
         }
-        return outArr.toString();
     }
-    
-    
+
+    /**
+     * Gets the (possibly cached) getDownsampledData.html series for each of logIds
+     *
+     * @param serviceUrl
+     * @param logIds
+     * @return One series for each of logIds (or null if the log has no data or is of an unrecognised type)
+     * @throws Exception
+     */
+    public ScalarSeries[] getNVCL2_0_ScalarSeries(String serviceUrl, String[] logIds) throws Exception {
+        final String requestUrl = serviceUrl + "getDownsampledData.html";
+        final ScalarSeries[] logSeries = new ScalarSeries[logIds.length];
+        List<ServiceFanOut.Task<ScalarSeries>> tasks = new ArrayList<ServiceFanOut.Task<ScalarSeries>>(logIds.length);
+        List<Integer> taskIndexes = new ArrayList<Integer>(logIds.length);
+        for (int i = 0; i < logIds.length; i++) {
+            final String key = serviceUrl + "|" + logIds[i];
+            logSeries[i] = scalarSeries.get(key);
+            if (logSeries[i] != null) {
+                continue;
+            }
+
+            final HttpRequestBase method = nvclMethodMaker.getDownloadJSONMethod(requestUrl, logIds[i]);
+            taskIndexes.add(i);
+            tasks.add(new ServiceFanOut.Task<ScalarSeries>(requestUrl, () -> {
+                String httpResponseStr = httpServiceCaller.getMethodResponseAsString(method);
+                ScalarSeries series;
+                try (JsonParser parser = JSON_FACTORY.createParser(httpResponseStr)) {
+                    series = ScalarSeries.parse(parser);
+                }
+                if (series != null) {
+                    scalarSeries.put(key, series);
+                }
+                return series;
+            }));
+        }
+
+        //Each log is slotted into place as it arrives so the output order matches logIds
+        serviceFanOut.invokeAll(tasks, (index, series) -> logSeries[taskIndexes.get(index)] = series);
+        return logSeries;
+    }
+
+
     /**
      * Convert BGR integers to Javascript-style hex #RRGGBB strings
      * @param BGRColorNumber
@@ -425,35 +710,10 @@ public class NVCL2_0_DataService {
             throws Exception {
         HttpRequestBase method = nvclMethodMaker.getLogCollectionMethod(serviceUrl, datasetId, forMosaicService);
 
-        //Make our request, parse it into a DOM document
-        InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
-        Document responseDoc = DOMUtil.buildDomFromStream(responseStream);
-
-        //Get our dataset nodes
-        XPathExpression expr = DOMUtil.compileXPathExpr("LogCollection/Log");
-        NodeList nodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
-
-        //Parse our response objects
-        List<GetLogCollectionResponse> responseObjs = new ArrayList<GetLogCollectionResponse>();
-        XPathExpression exprLogId = DOMUtil.compileXPathExpr("LogID");
-        XPathExpression exprLogName = DOMUtil.compileXPathExpr("LogName");
-        XPathExpression exprSampleCount = DOMUtil.compileXPathExpr("SampleCount");
-
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-
-            String logId = (String) exprLogId.evaluate(node, XPathConstants.STRING);
-            String logName = (String) exprLogName.evaluate(node, XPathConstants.STRING);
-            String sampleCountString = (String) exprSampleCount.evaluate(node, XPathConstants.STRING);
-            int sampleCount = 0;
-            if (sampleCountString != null && !sampleCountString.isEmpty()) {
-                sampleCount = Integer.parseInt(sampleCountString);
-            }
-
-            responseObjs.add(new GetLogCollectionResponse(logId, logName, sampleCount));
+        //Make our request, parse it as it streams in
+        try (InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method)) {
+            return NVCLResponseParser.parseLogCollection(responseStream, "LogName", false);
         }
-
-        return responseObjs;
     }
     
     
@@ -469,114 +729,68 @@ public class NVCL2_0_DataService {
      */
     public List<ImageTrayDepthResponse> getImageTrayDepths(String serviceUrl, String logId) throws Exception {
         HttpRequestBase method = nvclMethodMaker.getImageTrayDepthMethod(serviceUrl, logId);
-        
-        //Make our request, parse it into a DOM document
-        InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
-        Document responseDoc = DOMUtil.buildDomFromStream(responseStream);
-        
-        //Get our dataset nodes
-        XPathExpression expr = DOMUtil.compileXPathExpr("ImageTrayCollection/ImageTray");
-        NodeList nodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
-        
-        //Parse our response objects
-        List<ImageTrayDepthResponse> responseObjs = new ArrayList<ImageTrayDepthResponse>();
-        XPathExpression exprSampleNo = DOMUtil.compileXPathExpr("SampleNo");
-        XPathExpression exprStartValue = DOMUtil.compileXPathExpr("StartValue");
-        XPathExpression exprEndValue = DOMUtil.compileXPathExpr("EndValue");
-        
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
 
-            String sampleNo = (String) exprSampleNo.evaluate(node, XPathConstants.STRING);
-            String startValue = (String) exprStartValue.evaluate(node, XPathConstants.STRING);
-            String endValue = (String) exprEndValue.evaluate(node, XPathConstants.STRING);
-            responseObjs.add(new ImageTrayDepthResponse(sampleNo, startValue, endValue));
+        //Make our request, parse it as it streams in
+        try (InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method)) {
+            return NVCLResponseParser.parseImageTrayDepths(responseStream);
         }
-
-        return responseObjs;
     }
 
     /**
-     * Makes and parses an NVCL getAlgorithms request.
+     * Makes and parses an NVCL getAlgorithms request. Responses are cached in memory per serviceUrl.
      * @param serviceUrl
      * @return
      */
     public List<AlgorithmOutputResponse> getAlgorithms(String serviceUrl) throws Exception {
-        HttpRequestBase method = nvclMethodMaker.getAlgorithms(serviceUrl);
-        String responseText = httpServiceCaller.getMethodResponseAsString(method);
-        Document responseDoc = DOMUtil.buildDomFromString(responseText, false);
-
-        XPathExpression expr = DOMUtil.compileXPathExpr("Algorithms/algorithms");
-        XPathExpression exprOutputs = DOMUtil.compileXPathExpr("outputs");
-        XPathExpression exprVersions = DOMUtil.compileXPathExpr("versions");
-        XPathExpression exprVersion = DOMUtil.compileXPathExpr("version");
-        XPathExpression exprAlgorithmOutputId = DOMUtil.compileXPathExpr("algorithmoutputID");
-        NodeList algorithmNodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
-
-        XPathExpression exprAlgorithmId = DOMUtil.compileXPathExpr("algorithmID");
-        XPathExpression exprName = DOMUtil.compileXPathExpr("name");
-
-        ArrayList<AlgorithmOutputResponse> responseObjs = new ArrayList<AlgorithmOutputResponse>();
-
-        for (int i = 0; i < algorithmNodeList.getLength(); i++) {
-            Node node = algorithmNodeList.item(i);
-
-            int algorithmId = Integer.parseInt((String) exprAlgorithmId.evaluate(node, XPathConstants.STRING));
-            String algorithmName = (String) exprName.evaluate(node, XPathConstants.STRING);
-
-            NodeList outputNodeList = (NodeList) exprOutputs.evaluate(node, XPathConstants.NODESET);
-            for (int j = 0; j < outputNodeList.getLength(); j++) {
-                Node outputNode = outputNodeList.item(j);
-                String outputName = (String) exprName.evaluate(outputNode, XPathConstants.STRING);
-
-                NodeList versionNodeList = (NodeList) exprVersions.evaluate(outputNode, XPathConstants.NODESET);
-                ArrayList<AlgorithmVersion> versions = new ArrayList<AlgorithmVersion>(versionNodeList.getLength());
-                for (int k = 0; k < versionNodeList.getLength(); k++) {
-                    Node versionNode = versionNodeList.item(k);
-
-                    int versionId = Integer.parseInt((String) exprVersion.evaluate(versionNode, XPathConstants.STRING));
-                    int algorithmOutputId = Integer.parseInt((String) exprAlgorithmOutputId.evaluate(versionNode, XPathConstants.STRING));
-
-                    versions.add(new AlgorithmVersion(algorithmOutputId, versionId));
-                }
+        return getCachedAlgorithms(serviceUrl).getValue();
+    }
 
-                responseObjs.add(new AlgorithmOutputResponse(algorithmId, algorithmName, outputName, versions));
+    /**
+     * Gets the (possibly cached) parsed getAlgorithms response for serviceUrl along with its ETag
+     * @param serviceUrl
+     * @return
+     * @throws Exception
+     */
+    public ReferenceDataCache.Entry<List<AlgorithmOutputResponse>> getCachedAlgorithms(final String serviceUrl) throws Exception {
+        return algorithmsCache.get(serviceUrl, () -> {
+            HttpRequestBase method = nvclMethodMaker.getAlgorithms(serviceUrl);
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            try (InputStream responseStream = new DigestInputStream(httpServiceCaller.getMethodResponseAsStream(method), digest)) {
+                List<AlgorithmOutputResponse> algorithms = NVCLResponseParser.parseAlgorithms(responseStream);
+                responseStream.transferTo(OutputStream.nullOutputStream());
+                return new ReferenceDataCache.Entry<List<AlgorithmOutputResponse>>(Collections.unmodifiableList(algorithms), toETag(digest));
             }
-        }
-
-        return responseObjs;
+        });
     }
 
     /**
-     * Makes and parses a getClassifications request
+     * Makes and parses a getClassifications request. Responses are cached in memory per serviceUrl/algorithmOutputId.
      * @param serviceUrl
      * @param algorithmOutputId
      * @return
      * @throws Exception
      */
     public List<AlgorithmOutputClassification> getClassifications(String serviceUrl, int algorithmOutputId) throws Exception {
-        HttpRequestBase method = nvclMethodMaker.getClassifications(serviceUrl, algorithmOutputId);
-        String responseText = httpServiceCaller.getMethodResponseAsString(method);
-        Document responseDoc = DOMUtil.buildDomFromString(responseText, false);
-
-        XPathExpression exprNodes = DOMUtil.compileXPathExpr("ClassificationsCollection/classifications");
-        XPathExpression exprClassText = DOMUtil.compileXPathExpr("classText");
-        XPathExpression exprColor = DOMUtil.compileXPathExpr("colour");
-        XPathExpression exprIndex = DOMUtil.compileXPathExpr("index");
-
-        NodeList classNodeList = (NodeList) exprNodes.evaluate(responseDoc, XPathConstants.NODESET);
-        ArrayList<AlgorithmOutputClassification> responseObjs = new ArrayList<AlgorithmOutputClassification>(classNodeList.getLength());
-        for (int i = 0; i < classNodeList.getLength(); i++) {
-            Node classNode = classNodeList.item(i);
-
-            String classText = (String) exprClassText.evaluate(classNode, XPathConstants.STRING);
-            int color = Integer.parseInt((String) exprColor.evaluate(classNode, XPathConstants.STRING));
-            int index = Integer.parseInt((String) exprIndex.evaluate(classNode, XPathConstants.STRING));
-
-            responseObjs.add(new AlgorithmOutputClassification(classText, color, index));
-        }
+        return getCachedClassifications(serviceUrl, algorithmOutputId).getValue();
+    }
 
-        return responseObjs;
+    /**
+     * Gets the (possibly cached) parsed getClassifications response for serviceUrl/algorithmOutputId along with its ETag
+     * @param serviceUrl
+     * @param algorithmOutputId
+     * @return
+     * @throws Exception
+     */
+    public ReferenceDataCache.Entry<List<AlgorithmOutputClassification>> getCachedClassifications(final String serviceUrl, final int algorithmOutputId) throws Exception {
+        return classificationsCache.get(serviceUrl + "|" + algorithmOutputId, () -> {
+            HttpRequestBase method = nvclMethodMaker.getClassifications(serviceUrl, algorithmOutputId);
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            try (InputStream responseStream = new DigestInputStream(httpServiceCaller.getMethodResponseAsStream(method), digest)) {
+                List<AlgorithmOutputClassification> classifications = NVCLResponseParser.parseClassifications(responseStream);
+                responseStream.transferTo(OutputStream.nullOutputStream());
+                return new ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>(Collections.unmodifiableList(classifications), toETag(digest));
+            }
+        });
     }
 
     /**
@@ -588,18 +802,42 @@ public class NVCL2_0_DataService {
      * @throws Exception
      */
     public List<AlgorithmOutputClassification> getClassifications(String serviceUrl, int[] algorithmOutputIds) throws Exception {
+        return getCachedClassifications(serviceUrl, algorithmOutputIds).getValue();
+    }
+
+    /**
+     * Gets the union of the (possibly cached) getClassifications responses for every algorithmOutputId. Uncached
+     * responses are requested in parallel. The returned ETag is derived from the ETags of every individual response.
+     * @param serviceUrl
+     * @param algorithmOutputIds
+     * @return
+     * @throws Exception
+     */
+    public ReferenceDataCache.Entry<List<AlgorithmOutputClassification>> getCachedClassifications(final String serviceUrl, int[] algorithmOutputIds) throws Exception {
         if (algorithmOutputIds.length == 1) {
-            return getClassifications(serviceUrl, algorithmOutputIds[0]);
+            return getCachedClassifications(serviceUrl, algorithmOutputIds[0]);
+        }
+
+        List<ServiceFanOut.Task<ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>>> tasks = new ArrayList<ServiceFanOut.Task<ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>>>(algorithmOutputIds.length);
+        for (final int algorithmOutputId : algorithmOutputIds) {
+            tasks.add(new ServiceFanOut.Task<ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>>(serviceUrl, () -> getCachedClassifications(serviceUrl, algorithmOutputId)));
         }
 
-        Map<String, AlgorithmOutputClassification> distinctClassifications = new HashMap<String, AlgorithmOutputClassification>();
-        for (int algorithmOutputId : algorithmOutputIds) {
-            for (AlgorithmOutputClassification classification : getClassifications(serviceUrl, algorithmOutputId)) {
+        final List<ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>> entries = new ArrayList<ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>>(Collections.nCopies(algorithmOutputIds.length, (ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>) null));
+        serviceFanOut.invokeAll(tasks, (index, entry) -> entries.set(index, entry));
+
+        //Merge in request order so the result (and its ETag) is stable
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        Map<String, AlgorithmOutputClassification> distinctClassifications = new LinkedHashMap<String, AlgorithmOutputClassification>();
+        for (ReferenceDataCache.Entry<List<AlgorithmOutputClassification>> entry : entries) {
+            digest.update(entry.getETag().getBytes(StandardCharsets.UTF_8));
+            for (AlgorithmOutputClassification classification : entry.getValue()) {
                 distinctClassifications.put(classification.getClassText(), classification);
             }
         }
 
-        return new ArrayList<AlgorithmOutputClassification>(distinctClassifications.values());
+        List<AlgorithmOutputClassification> classifications = new ArrayList<AlgorithmOutputClassification>(distinctClassifications.values());
+        return new ReferenceDataCache.Entry<List<AlgorithmOutputClassification>>(Collections.unmodifiableList(classifications), toETag(digest));
     }
 
     /**
@@ -690,10 +928,30 @@ public class NVCL2_0_DataService {
     }
 
 
+    /**
+     * Makes a getTsgAlgorithms request against the analytical services. Responses are cached in memory per tsgAlgName.
+     * @param tsgAlgName
+     * @return
+     * @throws Exception
+     */
     public String getTsgAlgorithms(String tsgAlgName) throws Exception {
-        HttpRequestBase method = nvclMethodMaker.getTsgAlgorithms(analyticalServicesUrl, tsgAlgName);
-        String responseText = httpServiceCaller.getMethodResponseAsString(method);
-        return responseText;
+        return getCachedTsgAlgorithms(tsgAlgName).getValue();
+    }
+
+    /**
+     * Gets the (possibly cached) getTsgAlgorithms response for tsgAlgName along with its ETag
+     * @param tsgAlgName
+     * @return
+     * @throws Exception
+     */
+    public ReferenceDataCache.Entry<String> getCachedTsgAlgorithms(final String tsgAlgName) throws Exception {
+        return tsgAlgorithmsCache.get(tsgAlgName, () -> {
+            HttpRequestBase method = nvclMethodMaker.getTsgAlgorithms(analyticalServicesUrl, tsgAlgName);
+            String responseText = httpServiceCaller.getMethodResponseAsString(method);
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(responseText.getBytes(StandardCharsets.UTF_8));
+            return new ReferenceDataCache.Entry<String>(responseText, toETag(digest));
+        });
     }
     
     /**
@@ -1,31 +1,48 @@
 package org.auscope.portal.server.web.service;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-
-import com.google.gson.Gson;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.opencsv.CSVParser;
 import com.opencsv.CSVParserBuilder;
 import com.opencsv.CSVReader;
 import com.opencsv.CSVReaderBuilder;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpServiceCaller;
 import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
-import org.auscope.portal.core.util.DOMUtil;
 import org.auscope.portal.server.domain.nvcldataservice.GetDatasetCollectionResponse;
 import org.auscope.portal.server.domain.nvcldataservice.GetLogCollectionResponse;
 import org.auscope.portal.server.domain.nvcldataservice.MosaicResponse;
+import org.auscope.portal.server.domain.nvcldataservice.NVCLResponseParser;
 import org.auscope.portal.server.domain.nvcldataservice.TSGDownloadResponse;
 import org.auscope.portal.server.domain.nvcldataservice.TSGStatusResponse;
 import org.auscope.portal.server.web.NVCLDataServiceMethodMaker;
@@ -34,9 +51,6 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.mail.MailSender;
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.stereotype.Service;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
@@ -49,44 +63,79 @@ import org.apache.http.client.utils.URIBuilder;
  */
 @Service
 public class NVCLDataService {
+    private static final String DEFAULT_TSG_MAP_SNAPSHOT = "nvcl-tsg-download-map.json";
+    private static final long DEFAULT_TSG_MAP_REFRESH_HOURS = 24;
+    private static final long DEFAULT_FANOUT_DEADLINE_MS = 10 * 60 * 1000;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final Log log = LogFactory.getLog(getClass());
     @Autowired
     private MailSender mailSender;
     private HttpServiceCaller httpServiceCaller;
     private NVCLDataServiceMethodMaker methodMaker;
-	class Dataset{
-        String datasetID;
-        String boreholeURI;
-        String datasetName;
-        String description;
-        String spectralLogCollection;
-        String imageLogCollection;
-        String profLogCollection;
-        String logCollection;
-        String trayID;
-        String sectionID;
-        String domainID;
-    }
-    class DatasetCollection {
-        Dataset[] datasetCollection;
-    }
-    private HashMap<String, HashMap> mapEndpoint = new HashMap<String, HashMap>();
-    private HashMap<String, String> mapTsgCachePath = new HashMap<String,String>();
+    private ServiceFanOut serviceFanOut;
+    /** Endpoint -> TSG file cache URL (as configured by tsgFileCacheUrl) */
+    private Map<String, String> mapTsgCachePath;
+    /** Endpoint -> (borehole URI -> dataset name). Only ever replaced as a whole, the maps are never modified in place */
+    private AtomicReference<Map<String, Map<String, String>>> mapEndpoint = new AtomicReference<Map<String, Map<String, String>>>(Collections.emptyMap());
+    private File tsgMapSnapshot;
+    private long tsgMapRefreshHours;
+    private ScheduledExecutorService tsgMapScheduler;
     private String nvclTsgFileCacheUrl;
-    private String nvclTsgDownloadServiceMsg;    
+    private String nvclTsgDownloadServiceMsg;
+
+    /**
+     * Creates a new NVCLDataService with the specified dependencies. The TSG download map will not be persisted.
+     */
+    public NVCLDataService(HttpServiceCaller httpServiceCaller,
+                            NVCLDataServiceMethodMaker methodMaker,
+                            WFSGetFeatureMethodMaker wfsMethodMaker,
+                            String nvclTsgFileCacheUrl,
+                            String nvclTsgDownloadServiceMsg) {
+        this(httpServiceCaller, methodMaker, wfsMethodMaker, nvclTsgFileCacheUrl, nvclTsgDownloadServiceMsg,
+                new ServiceFanOut(4, 1, DEFAULT_FANOUT_DEADLINE_MS), (File) null, DEFAULT_TSG_MAP_REFRESH_HOURS);
+    }
+
     /**
      * Creates a new NVCLDataService with the specified dependencies
      */
     @Autowired
-    public NVCLDataService(HttpServiceCaller httpServiceCaller, 
+    public NVCLDataService(HttpServiceCaller httpServiceCaller,
                             NVCLDataServiceMethodMaker methodMaker,
-                            WFSGetFeatureMethodMaker wfsMethodMaker, 
+                            WFSGetFeatureMethodMaker wfsMethodMaker,
                             @Value("${env.nvcl.tsgFileCacheUrl:#{null}}") String nvclTsgFileCacheUrl,
-                            @Value("${env.nvcl.tsgDownloadServiceMsg:#{null}}") String nvclTsgDownloadServiceMsg) {
+                            @Value("${env.nvcl.tsgDownloadServiceMsg:#{null}}") String nvclTsgDownloadServiceMsg,
+                            ServiceFanOut serviceFanOut,
+                            @Value("${env.nvcl.tsgMapSnapshot:#{null}}") String tsgMapSnapshot,
+                            @Value("${env.nvcl.tsgMapRefreshHours:24}") long tsgMapRefreshHours) {
+        this(httpServiceCaller, methodMaker, wfsMethodMaker, nvclTsgFileCacheUrl, nvclTsgDownloadServiceMsg, serviceFanOut,
+                tsgMapSnapshot == null || tsgMapSnapshot.isEmpty() ? new File(System.getProperty("java.io.tmpdir"), DEFAULT_TSG_MAP_SNAPSHOT) : new File(tsgMapSnapshot),
+                tsgMapRefreshHours);
+    }
+
+    /**
+     * Creates a new NVCLDataService with the specified dependencies
+     *
+     * @param tsgMapSnapshot [Optional] Where the TSG download map is persisted between restarts
+     * @param tsgMapRefreshHours How often the TSG download map is reloaded from the remote services (<= 0 to only load it once at startup)
+     */
+    public NVCLDataService(HttpServiceCaller httpServiceCaller,
+                            NVCLDataServiceMethodMaker methodMaker,
+                            WFSGetFeatureMethodMaker wfsMethodMaker,
+                            String nvclTsgFileCacheUrl,
+                            String nvclTsgDownloadServiceMsg,
+                            ServiceFanOut serviceFanOut,
+                            File tsgMapSnapshot,
+                            long tsgMapRefreshHours) {
         this.httpServiceCaller = httpServiceCaller;
         this.methodMaker = methodMaker;
         this.nvclTsgFileCacheUrl = nvclTsgFileCacheUrl;
         this.nvclTsgDownloadServiceMsg = nvclTsgDownloadServiceMsg;
-        this.loadTsgDownloadMaps();
+        this.serviceFanOut = serviceFanOut;
+        this.tsgMapSnapshot = tsgMapSnapshot;
+        this.tsgMapRefreshHours = tsgMapRefreshHours;
+        this.mapTsgCachePath = parseTsgCachePaths(nvclTsgFileCacheUrl);
+        this.loadTsgDownloadMapSnapshot();
     }
     public void sendMail(String email, String tsgFileUrls) {
 
@@ -129,29 +178,10 @@ public class NVCLDataService {
             throws Exception {
         HttpRequestBase method = methodMaker.getDatasetCollectionMethod(serviceUrl, holeIdentifier);
 
-        //Make our request, parse it into a DOM document
-        InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
-        Document responseDoc = DOMUtil.buildDomFromStream(responseStream);
-
-        //Get our dataset nodes
-        XPathExpression expr = DOMUtil.compileXPathExpr("DatasetCollection/Dataset");
-        NodeList nodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
-
-        //Parse our response objects
-        List<GetDatasetCollectionResponse> responseObjs = new ArrayList<GetDatasetCollectionResponse>();
-        XPathExpression exprDatasetId = DOMUtil.compileXPathExpr("DatasetID");
-        XPathExpression exprDatasetName = DOMUtil.compileXPathExpr("DatasetName");
-        XPathExpression exprOmUrl = DOMUtil.compileXPathExpr("OmUrl");
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-
-            String datasetId = (String) exprDatasetId.evaluate(node, XPathConstants.STRING);
-            String datasetName = (String) exprDatasetName.evaluate(node, XPathConstants.STRING);
-            String omUrl = (String) exprOmUrl.evaluate(node, XPathConstants.STRING);
-            responseObjs.add(new GetDatasetCollectionResponse(datasetId, datasetName, omUrl));
+        //Make our request, parse it as it streams in
+        try (InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method)) {
+            return NVCLResponseParser.parseDatasetCollection(responseStream);
         }
-
-        return responseObjs;
     }
 
     /**
@@ -169,43 +199,13 @@ public class NVCLDataService {
             throws Exception {
         HttpRequestBase method = methodMaker.getLogCollectionMethod(serviceUrl, datasetId, forMosaicService);
 
-        //Make our request, parse it into a DOM document
-        InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
-        Document responseDoc = DOMUtil.buildDomFromStream(responseStream);
-
-        //Get our dataset nodes
-        XPathExpression expr = DOMUtil.compileXPathExpr("LogCollection/Log");
-        NodeList nodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
+        //both logName and LogName get returned according to the value of forMosaicService
+        String logNameElement = (forMosaicService != null && forMosaicService.booleanValue()) ? "LogName" : "logName";
 
-        //Parse our response objects
-        List<GetLogCollectionResponse> responseObjs = new ArrayList<GetLogCollectionResponse>();
-        XPathExpression exprLogId = DOMUtil.compileXPathExpr("LogID");
-        XPathExpression exprLogName = null; //both logName and LogName get returned according to the value of forMosaicService
-        if (forMosaicService != null && forMosaicService.booleanValue()) {
-            exprLogName = DOMUtil.compileXPathExpr("LogName");
-        } else {
-            exprLogName = DOMUtil.compileXPathExpr("logName");
-        }
-        XPathExpression exprispublic = DOMUtil.compileXPathExpr("ispublic");
-        XPathExpression exprSampleCount = DOMUtil.compileXPathExpr("SampleCount");
-        for (int i = 0; i < nodeList.getLength(); i++) {
-            Node node = nodeList.item(i);
-
-            String logId = (String) exprLogId.evaluate(node, XPathConstants.STRING);
-            String logName = (String) exprLogName.evaluate(node, XPathConstants.STRING);
-            String sampleCountString = (String) exprSampleCount.evaluate(node, XPathConstants.STRING);
-            String ispub = (String) exprispublic.evaluate(node, XPathConstants.STRING);
-
-            int sampleCount = 0;
-            if (sampleCountString != null && !sampleCountString.isEmpty()) {
-                sampleCount = Integer.parseInt(sampleCountString);
-            }
-            if(ispub==null || ispub.isEmpty() || ispub.equals("true")) {
-                responseObjs.add(new GetLogCollectionResponse(logId, logName, sampleCount));
-            }
+        //Make our request, parse it as it streams in (dropping any non public logs)
+        try (InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method)) {
+            return NVCLResponseParser.parseLogCollection(responseStream, logNameElement, true);
         }
-
-        return responseObjs;
     }
 
     /**
@@ -310,7 +310,7 @@ public class NVCLDataService {
      * @throws Exception
      */
     public String  getTsgFileUrls(String endpoint, String  csv) throws Exception {
-        HashMap<String, String> mapDatasetCollection = this.mapEndpoint.get(endpoint);
+        Map<String, String> mapDatasetCollection = this.mapEndpoint.get().get(endpoint);
         String cacheUrlPath  = this.mapTsgCachePath.get(endpoint);
         if (mapDatasetCollection == null) {
             return null;
@@ -367,7 +367,8 @@ public class NVCLDataService {
     }    
 
     /**
-     * getDatasetCollectionMap to get a map for <boreholeURI, datasetName> 
+     * getDatasetCollectionMap to get a map for <boreholeURI, datasetName>. The boreholeURI keys are lower case
+     * with their http:// or https:// prefix removed.
      *
      * @param serviceUrl
      *            The URL of the NVCLDataService
@@ -375,77 +376,254 @@ public class NVCLDataService {
      * @return
      * @throws Exception
      */
-    public HashMap<String, String> getDatasetCollectionMap(String serviceUrl, String holeIdentifier) throws Exception {
+    public Map<String, String> getDatasetCollectionMap(String serviceUrl, String holeIdentifier) throws Exception {
         //https://geology.data.nt.gov.au/NVCLDataServices/getDatasetCollection.html?holeidentifier=all&headersonly=yes&outputformat=json
-        HashMap<String, String> mapDatasetCollection = new HashMap<String, String>();
+        Map<String, String> mapDatasetCollection = new HashMap<String, String>();
         HttpGet method = new HttpGet();
         URIBuilder builder = new URIBuilder(serviceUrl + "getDatasetCollection.html");
-        System.out.println("getDatasetCollectionMap:" + serviceUrl);
         //set all of the parameters.
         builder.setParameter("holeidentifier", holeIdentifier);
         builder.setParameter("headersonly", "yes");
         builder.setParameter("outputformat", "json");
         method.setURI(builder.build());
 
-        HttpServiceCaller httpServiceCaller = new HttpServiceCaller(90000);
-        //Make our request, parse it into a DOM document
-        String response = httpServiceCaller.getMethodResponseAsString(method);
-        DatasetCollection datasetCollection = new Gson().fromJson(response, DatasetCollection.class);
+        //The "all" response can be large - stream through it rather than building a String/object graph
+        try (InputStream responseStream = httpServiceCaller.getMethodResponseAsStream(method);
+                JsonParser parser = JSON_FACTORY.createParser(responseStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected getDatasetCollection response from " + serviceUrl);
+            }
 
-        for (Dataset dataset : datasetCollection.datasetCollection) {
-            String boreholeURI =dataset.boreholeURI;
-            //remove starter of http or https.
-            int index = dataset.boreholeURI.indexOf("//");
-            if (index > 0 ) {
-                boreholeURI = boreholeURI.substring( index +2);
-            }  
-            mapDatasetCollection.put(boreholeURI.toLowerCase(), dataset.datasetName);
-            //System.out.println(boreholeURI +  ',' + dataset.datasetName);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if (parser.nextToken() != JsonToken.START_ARRAY || !"datasetCollection".equals(field)) {
+                    parser.skipChildren();
+                    continue;
+                }
+
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    String boreholeURI = null;
+                    String datasetName = null;
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String datasetField = parser.currentName();
+                        JsonToken token = parser.nextToken();
+                        String value = token.isScalarValue() ? parser.getValueAsString() : null;
+                        parser.skipChildren();
+                        if ("boreholeURI".equals(datasetField)) {
+                            boreholeURI = value;
+                        } else if ("datasetName".equals(datasetField)) {
+                            datasetName = value;
+                        }
+                    }
+
+                    if (boreholeURI == null || datasetName == null) {
+                        continue;
+                    }
+
+                    //remove starter of http or https.
+                    int index = boreholeURI.indexOf("//");
+                    if (index > 0) {
+                        boreholeURI = boreholeURI.substring(index + 2);
+                    }
+                    mapDatasetCollection.put(boreholeURI.toLowerCase(), datasetName);
+                }
+            }
         }
-        System.out.println("getDatasetCollectionMap:" + mapDatasetCollection.size());
+
+        log.debug("getDatasetCollectionMap: " + serviceUrl + " returned " + mapDatasetCollection.size() + " datasets");
         return mapDatasetCollection;
     }
 
     /**
-     * loadTsgDownloadMaps to prepare map for DatasetCollection. 
+     * Parses tsgFileCacheUrl into an (ordered) map of endpoint -> TSG file cache URL.
+     *
+     * eg: DEFAULT, https://nvclanalyticscache.z8.web.core.windows.net, https://www.mrt.tas.gov.au/,$DEFAULT/Tas/,https://geossdi.dmp.wa.gov.au/,$DEFAULT/WA/
+     *
+     * @param tsgFileCacheUrl [Optional]
      * @return
      */
-    private void loadTsgDownloadMaps() {
-        if (this.nvclTsgFileCacheUrl == null) {
-            return;
+    private Map<String, String> parseTsgCachePaths(String tsgFileCacheUrl) {
+        Map<String, String> cachePaths = new LinkedHashMap<String, String>();
+        if (tsgFileCacheUrl == null || tsgFileCacheUrl.isEmpty()) {
+            return Collections.unmodifiableMap(cachePaths);
         }
-        if (this.mapEndpoint.size() > 0) {
+
+        String[] urlArrays = tsgFileCacheUrl.split(",");
+        String defaultUrl = null;
+        int start = 0;
+        if (urlArrays[0].contains("DEFAULT") && urlArrays.length > 1) {
+            defaultUrl = urlArrays[1].trim();
+            start = 2; //skip the default;
+        }
+        for (int i = start; i + 1 < urlArrays.length; i += 2) {
+            String endpoint = urlArrays[i].trim();
+            String cacheUrl = urlArrays[i + 1].trim();
+            if (defaultUrl != null) {
+                cacheUrl = cacheUrl.replace("$DEFAULT", defaultUrl);
+            }
+            cachePaths.put(endpoint, cacheUrl);
+        }
+        if ((urlArrays.length - start) % 2 != 0) {
+            log.warn("Ignoring unpaired endpoint in tsgFileCacheUrl: " + urlArrays[urlArrays.length - 1].trim());
+        }
+
+        return Collections.unmodifiableMap(cachePaths);
+    }
+
+    /**
+     * Replaces the dataset names for a single endpoint (leaving all others untouched)
+     */
+    private void putDatasetNames(String endpoint, Map<String, String> datasetNames) {
+        final Map<String, String> immutableNames = Collections.unmodifiableMap(datasetNames);
+        mapEndpoint.updateAndGet(current -> {
+            Map<String, Map<String, String>> next = new HashMap<String, Map<String, String>>(current);
+            next.put(endpoint, immutableNames);
+            return Collections.unmodifiableMap(next);
+        });
+    }
+
+    /**
+     * Starts the periodic (background) reload of the TSG download map. The first load begins immediately - until it
+     * completes any map loaded from the snapshot file will be served. If tsgMapRefreshHours <= 0 the map is only loaded once.
+     */
+    @PostConstruct
+    public synchronized void startTsgDownloadMapRefresh() {
+        if (mapTsgCachePath.isEmpty() || tsgMapScheduler != null) {
             return;
         }
-        this.mapEndpoint.clear();
-        this.mapTsgCachePath.clear();
 
+        tsgMapScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "nvcl-tsg-map-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        if (tsgMapRefreshHours > 0) {
+            tsgMapScheduler.scheduleWithFixedDelay(this::refreshTsgDownloadMaps, 0, tsgMapRefreshHours, TimeUnit.HOURS);
+        } else {
+            tsgMapScheduler.execute(this::refreshTsgDownloadMaps);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stopTsgDownloadMapRefresh() {
+        if (tsgMapScheduler != null) {
+            tsgMapScheduler.shutdownNow();
+            tsgMapScheduler = null;
+        }
+    }
+
+    /**
+     * Reloads the dataset names of every configured endpoint in parallel. Each endpoint is swapped in as soon as it
+     * loads - an endpoint that fails will continue to serve its previous names. The snapshot file is rewritten if
+     * anything was reloaded.
+     *
+     * Never throws.
+     */
+    public void refreshTsgDownloadMaps() {
+        List<String> endpoints = new ArrayList<String>(mapTsgCachePath.keySet());
+        List<ServiceFanOut.Task<Map<String, String>>> tasks = new ArrayList<ServiceFanOut.Task<Map<String, String>>>(endpoints.size());
+        for (final String endpoint : endpoints) {
+            tasks.add(new ServiceFanOut.Task<Map<String, String>>(endpoint, () -> {
+                try {
+                    return getDatasetCollectionMap(endpoint + "NVCLDataServices/", "all");
+                } catch (Exception ex) {
+                    log.warn("Unable to load TSG download map for " + endpoint + ": " + ex.getMessage());
+                    log.debug("Exception:", ex);
+                    return null;
+                }
+            }));
+        }
+
+        final int[] loaded = new int[] {0};
         try {
+            serviceFanOut.invokeAll(tasks, (index, datasetNames) -> {
+                if (datasetNames != null) {
+                    putDatasetNames(endpoints.get(index), datasetNames);
+                    loaded[0]++;
+                }
+            });
+        } catch (Exception ex) {
+            log.warn("TSG download map refresh did not complete: " + ex.getMessage());
+            log.debug("Exception:", ex);
+        }
+
+        log.info("Reloaded TSG download map for " + loaded[0] + " of " + endpoints.size() + " endpoints");
+        if (loaded[0] > 0) {
+            saveTsgDownloadMapSnapshot();
+        }
+    }
 
-            String[] urlArrays = this.nvclTsgFileCacheUrl.split(",");
-            //Sample:tsgFileCacheUrl: DEFAULT, https://nvclanalyticscache.z8.web.core.windows.net, https://www.mrt.tas.gov.au/,$DEFAULT/Tas/,https://geossdi.dmp.wa.gov.au/,$DEFAULT/WA/,https://geology.data.nt.gov.au/,$DEFAULT/NT/,https://gs.geoscience.nsw.gov.au/,$DEFAULT/NSW/,https://sarigdata.pir.sa.gov.au/,$DEFAULT/SA/
+    /**
+     * Loads the TSG download map from tsgMapSnapshot (if it exists). Endpoints that are no longer configured are ignored.
+     */
+    private void loadTsgDownloadMapSnapshot() {
+        if (tsgMapSnapshot == null || !tsgMapSnapshot.isFile()) {
+            return;
+        }
 
-            String endpoint, cacheUrl;
-            String defaultUrl = null;
-            int start = 0;
-            if (urlArrays[0].contains("DEFAULT")) {
-                defaultUrl = urlArrays[1].trim();
-                start = 2; //skip the default;
+        Map<String, Map<String, String>> snapshot = new HashMap<String, Map<String, String>>();
+        try (JsonParser parser = JSON_FACTORY.createParser(tsgMapSnapshot)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Snapshot is not a JSON object");
             }
-            for (int i = start; i<urlArrays.length; i+=2) {
-                endpoint = urlArrays[i].trim();
-                cacheUrl = urlArrays[i+1].trim();
-                if (defaultUrl != null) {
-                    cacheUrl = cacheUrl.replace("$DEFAULT",defaultUrl);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String endpoint = parser.currentName();
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Malformed snapshot entry for " + endpoint);
+                }
+
+                Map<String, String> datasetNames = new HashMap<String, String>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String boreholeURI = parser.currentName();
+                    parser.nextToken();
+                    datasetNames.put(boreholeURI, parser.getValueAsString());
                 }
 
-                this.mapTsgCachePath.put(endpoint,cacheUrl);
-                this.mapEndpoint.put(endpoint,this.getDatasetCollectionMap(endpoint + "NVCLDataServices/", "all"));
+                if (mapTsgCachePath.containsKey(endpoint)) {
+                    snapshot.put(endpoint, Collections.unmodifiableMap(datasetNames));
+                }
             }
+        } catch (IOException ex) {
+            log.warn("Unable to read TSG download map snapshot " + tsgMapSnapshot + ": " + ex.getMessage());
+            return;
+        }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        mapEndpoint.set(Collections.unmodifiableMap(snapshot));
+        log.info("Loaded TSG download map for " + snapshot.size() + " endpoints from " + tsgMapSnapshot);
+    }
+
+    /**
+     * Writes the current TSG download map to tsgMapSnapshot (replacing it atomically)
+     */
+    private synchronized void saveTsgDownloadMapSnapshot() {
+        if (tsgMapSnapshot == null) {
+            return;
         }
-        return;
-    }        
+
+        Map<String, Map<String, String>> current = mapEndpoint.get();
+        try {
+            File dir = tsgMapSnapshot.getAbsoluteFile().getParentFile();
+            Files.createDirectories(dir.toPath());
+            Path tmp = Files.createTempFile(dir.toPath(), tsgMapSnapshot.getName(), ".tmp");
+            try {
+                try (JsonGenerator generator = JSON_FACTORY.createGenerator(Files.newOutputStream(tmp))) {
+                    generator.writeStartObject();
+                    for (Map.Entry<String, Map<String, String>> endpoint : current.entrySet()) {
+                        generator.writeObjectFieldStart(endpoint.getKey());
+                        for (Map.Entry<String, String> dataset : endpoint.getValue().entrySet()) {
+                            generator.writeStringField(dataset.getKey(), dataset.getValue());
+                        }
+                        generator.writeEndObject();
+                    }
+                    generator.writeEndObject();
+                }
+                Files.move(tmp, tsgMapSnapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException ex) {
+            log.warn("Unable to write TSG download map snapshot " + tsgMapSnapshot + ": " + ex.getMessage());
+        }
+    }
 }
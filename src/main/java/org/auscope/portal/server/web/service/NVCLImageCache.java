@@ -0,0 +1,295 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.server.domain.nvcldataservice.AbstractStreamResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * An on disk cache of NVCL imagery responses (mosaics, tray thumbnails etc).
+ *
+ * NVCL imagery never changes for a given dataset/log/sample range so a response is cached forever (subject
+ * to the LRU size budget) under a key built from the request parameters. That key also serves as the ETag
+ * of the response. Each entry is stored as a single file made up of the content type, a newline and then
+ * the raw response body.
+ *
+ * Only responses that look like what was asked for are cached - an image content type AND image data for get,
+ * an HTML page referencing at least one image for getPage. Anything else (eg - an error page returned with a 200)
+ * is passed back uncached and without an ETag.
+ */
+@Service
+public class NVCLImageCache {
+
+    /** The largest HTML page that will be cached */
+    public static final int MAX_PAGE_BYTES = 1024 * 1024;
+
+    /**
+     * Makes the (uncached) request for an image
+     */
+    public interface Loader {
+        AbstractStreamResponse load() throws Exception;
+    }
+
+    /**
+     * A (possibly) cached response. Cached responses have an ETag and a known length and can be read
+     * through getChannel. The body can only be read once and the response must be closed after use.
+     */
+    public static class CachedImage implements Closeable {
+        private FileInputStream file;
+        private long offset;
+        private long length;
+        private InputStream body;
+        private String contentType;
+        private String eTag;
+
+        /**
+         * A cached response whose body starts at offset in file (which must be positioned at offset)
+         */
+        CachedImage(FileInputStream file, long offset, String contentType, String eTag) throws IOException {
+            this.file = file;
+            this.offset = offset;
+            this.length = file.getChannel().size() - offset;
+            this.body = file;
+            this.contentType = contentType;
+            this.eTag = eTag;
+        }
+
+        /**
+         * A response that wasn't cached
+         */
+        CachedImage(InputStream body, String contentType) {
+            this.offset = 0;
+            this.length = -1;
+            this.body = body;
+            this.contentType = contentType;
+        }
+
+        /**
+         * Whether this response came from (or was written to) the cache
+         * @return
+         */
+        public boolean isCached() {
+            return file != null;
+        }
+
+        /**
+         * The cache file holding this response (or null if it isn't cached). The body starts at getOffset
+         * @return
+         */
+        public FileChannel getChannel() {
+            return file == null ? null : file.getChannel();
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * The length of the body in bytes (or -1 if it isn't known)
+         * @return
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * A (quoted) strong entity tag for this response (or null if it isn't cached)
+         * @return
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * The body of this response. It can only be read once
+         * @return
+         */
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    private final Log log = LogFactory.getLog(getClass());
+    private DiskLruCache cache;
+
+    @Autowired
+    public NVCLImageCache(@Value("${env.nvcl.imageCache.dir:#{null}}") String cacheDir,
+            @Value("${env.nvcl.imageCache.maxMegabytes:256}") long maxMegabytes) throws IOException {
+        this(new DiskLruCache(
+                cacheDir == null || cacheDir.isEmpty() ? new File(System.getProperty("java.io.tmpdir"), "nvcl-images") : new File(cacheDir),
+                maxMegabytes * 1024L * 1024L));
+    }
+
+    public NVCLImageCache(DiskLruCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns true if data starts with the signature of a JPEG, PNG, GIF, BMP, TIFF or WebP image
+     */
+    static boolean hasImageSignature(byte[] data) {
+        return startsWith(data, 0xFF, 0xD8, 0xFF)
+                || startsWith(data, 0x89, 'P', 'N', 'G')
+                || startsWith(data, 'G', 'I', 'F', '8')
+                || startsWith(data, 'B', 'M')
+                || startsWith(data, 'I', 'I', '*', 0)
+                || startsWith(data, 'M', 'M', 0, '*')
+                || (startsWith(data, 'R', 'I', 'F', 'F') && data.length >= 12 && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P');
+    }
+
+    private static boolean startsWith(byte[] data, int... signature) {
+        if (data.length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((data[i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasContentType(String contentType, String prefix) {
+        return contentType != null && contentType.trim().toLowerCase().startsWith(prefix);
+    }
+
+    /**
+     * Opens the cached response for key (or returns null if there isn't one)
+     */
+    private CachedImage openCached(String key, String eTag) throws IOException {
+        FileInputStream is = cache.open(key);
+        if (is == null) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            int b;
+            while ((b = is.read()) != -1 && b != '\n') {
+                header.write(b);
+            }
+            return new CachedImage(is, header.size() + 1, header.toString(StandardCharsets.UTF_8), eTag);
+        } catch (IOException ex) {
+            is.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes body (prefixed by the content type header) to the cache and opens the new entry
+     */
+    private CachedImage putCached(String key, String eTag, String contentType, InputStream body) throws IOException {
+        byte[] header = (contentType + "\n").getBytes(StandardCharsets.UTF_8);
+        FileInputStream is = cache.putAndOpen(key, new SequenceInputStream(new ByteArrayInputStream(header), body));
+        try {
+            is.skipNBytes(header.length);
+            return new CachedImage(is, header.length, contentType, eTag);
+        } catch (IOException ex) {
+            is.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the cached image identified by keyParts, making the request with loader if there is no such entry. The
+     * response is only cached if it has an image/* content type and starts with a recognised image signature.
+     *
+     * @param loader Makes the request if it isn't cached
+     * @param keyParts Uniquely identifies the request (eg - request type, serviceUrl, logId, width...)
+     * @return The response. The caller is responsible for closing it
+     * @throws Exception
+     */
+    public CachedImage get(Loader loader, Object... keyParts) throws Exception {
+        String key = DiskLruCache.keyFor(keyParts);
+        String eTag = "\"" + key + "\"";
+
+        CachedImage cached = openCached(key, eTag);
+        if (cached != null) {
+            return cached;
+        }
+
+        AbstractStreamResponse response = loader.load();
+        String contentType = response.getContentType() == null ? "" : response.getContentType();
+        BufferedInputStream body = new BufferedInputStream(response.getResponse());
+        try {
+            body.mark(16);
+            byte[] signature = body.readNBytes(12);
+            body.reset();
+
+            if (hasContentType(contentType, "image/") && hasImageSignature(signature)) {
+                try (InputStream is = body) {
+                    return putCached(key, eTag, contentType, is);
+                }
+            }
+        } catch (IOException ex) {
+            body.close();
+            throw ex;
+        }
+
+        log.warn(String.format("Not caching response for %1$s with content type '%2$s' - it isn't an image", Arrays.toString(keyParts), contentType));
+        return new CachedImage(body, contentType);
+    }
+
+    /**
+     * Gets the cached HTML page identified by keyParts, making the request with loader if there is no such entry. The
+     * response is only cached if it has a text/html content type, is no larger than MAX_PAGE_BYTES and contains an img element.
+     *
+     * @param loader Makes the request if it isn't cached
+     * @param keyParts Uniquely identifies the request (eg - request type, serviceUrl, logId, width...)
+     * @return The response. The caller is responsible for closing it
+     * @throws Exception
+     */
+    public CachedImage getPage(Loader loader, Object... keyParts) throws Exception {
+        String key = DiskLruCache.keyFor(keyParts);
+        String eTag = "\"" + key + "\"";
+
+        CachedImage cached = openCached(key, eTag);
+        if (cached != null) {
+            return cached;
+        }
+
+        AbstractStreamResponse response = loader.load();
+        String contentType = response.getContentType() == null ? "" : response.getContentType();
+        InputStream body = response.getResponse();
+        byte[] page;
+        try {
+            page = body.readNBytes(MAX_PAGE_BYTES + 1);
+        } catch (IOException ex) {
+            body.close();
+            throw ex;
+        }
+
+        if (page.length <= MAX_PAGE_BYTES && hasContentType(contentType, "text/html")
+                && new String(page, StandardCharsets.UTF_8).toLowerCase().contains("<img")) {
+            body.close();
+            return putCached(key, eTag, contentType, new ByteArrayInputStream(page));
+        }
+
+        log.warn(String.format("Not caching response for %1$s with content type '%2$s' - it isn't an image page", Arrays.toString(keyParts), contentType));
+        return new CachedImage(new SequenceInputStream(new ByteArrayInputStream(page), body), contentType);
+    }
+}
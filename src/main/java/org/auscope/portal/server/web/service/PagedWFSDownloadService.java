@@ -0,0 +1,220 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker.ResultType;
+import org.auscope.portal.server.web.service.download.OrderedPageInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Downloads WFS features as CSV, splitting large downloads into pages that are requested in parallel.
+ *
+ * A resultType=hits request is made first to find how many features will be returned. Downloads larger than a
+ * single page are then split into startIndex/maxFeatures pages which are fetched on the shared ServiceFanOut (so the
+ * per host limit applies) and spooled to disk. The pages are streamed back in order (as soon as each is available)
+ * with only the first page's header line. At most maxPagesInFlight pages are requested ahead of the page being read.
+ *
+ * Paging relies on the service returning features in a stable order so every paged request (including the hits
+ * request) is sorted by the feature ID. If the sort can't be added to the request, the hits request fails (eg - the
+ * service rejects the sort) or the service doesn't report a count a single request is made for everything, as before.
+ */
+@Service
+public class PagedWFSDownloadService {
+
+    public static final String CSV_OUTPUT_FORMAT = "csv";
+
+    /** Matches the feature count in a WFS 2.0 (numberMatched) or 1.1 (numberOfFeatures) hits response */
+    private static final Pattern HITS_PATTERN = Pattern.compile("number(?:Matched|OfFeatures)\\s*=\\s*[\"'](\\d+)[\"']");
+    /** Matches the opening of the GetFeature element in a POST body */
+    private static final Pattern GET_FEATURE_PATTERN = Pattern.compile("<((?:[\\w-]+:)?GetFeature)(\\s|>)");
+    /** Matches the end of the (only) Query element in a POST body */
+    private static final Pattern QUERY_END_PATTERN = Pattern.compile("</(?:[\\w-]+:)?Query>");
+    /** Orders features by their ID (so that pages don't overlap or skip features) */
+    private static final String SORT_BY_FEATURE_ID = "<ogc:SortBy xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:gml=\"http://www.opengis.net/gml\">"
+            + "<ogc:SortProperty><ogc:PropertyName>@gml:id</ogc:PropertyName><ogc:SortOrder>ASC</ogc:SortOrder></ogc:SortProperty>"
+            + "</ogc:SortBy>";
+    public static final int DEFAULT_MAX_PAGES_IN_FLIGHT = 8;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private HttpServiceCaller httpServiceCaller;
+    private WFSGetFeatureMethodMaker methodMaker;
+    private ServiceFanOut serviceFanOut;
+    private int pageSize;
+    private int maxPagesInFlight;
+
+    /**
+     * @param pageSize The maximum number of features requested by each page
+     */
+    public PagedWFSDownloadService(HttpServiceCaller httpServiceCaller, WFSGetFeatureMethodMaker methodMaker,
+            ServiceFanOut serviceFanOut, int pageSize) {
+        this(httpServiceCaller, methodMaker, serviceFanOut, pageSize, DEFAULT_MAX_PAGES_IN_FLIGHT);
+    }
+
+    /**
+     * @param pageSize The maximum number of features requested by each page
+     * @param maxPagesInFlight The maximum number of pages of a single download requested (or downloaded but not yet read) at once
+     */
+    @Autowired
+    public PagedWFSDownloadService(HttpServiceCaller httpServiceCaller, WFSGetFeatureMethodMaker methodMaker,
+            ServiceFanOut serviceFanOut, @Value("${env.download.wfsPageSize:10000}") int pageSize,
+            @Value("${env.download.wfsMaxPagesInFlight:8}") int maxPagesInFlight) {
+        this.httpServiceCaller = httpServiceCaller;
+        this.methodMaker = methodMaker;
+        this.serviceFanOut = serviceFanOut;
+        this.pageSize = Math.max(1, pageSize);
+        this.maxPagesInFlight = Math.max(1, maxPagesInFlight);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Makes a WFS GetFeature POST request
+     *
+     * @param maxFeatures The maximum number of features to return (0 for no limit)
+     * @param startIndex [Optional] The (zero based) index of the first feature to return
+     * @param sorted Whether the features should be sorted by their ID
+     * @return
+     * @throws IOException If startIndex or the sort couldn't be added to the request
+     */
+    HttpRequestBase makeRequest(String serviceUrl, String typeName, String filterString, int maxFeatures,
+            ResultType resultType, String outputFormat, Integer startIndex, boolean sorted) throws IOException {
+        HttpRequestBase method = methodMaker.makePostMethod(serviceUrl, typeName, filterString, maxFeatures, null, resultType, outputFormat);
+        if (startIndex == null && !sorted) {
+            return method;
+        }
+        if (!(method instanceof HttpEntityEnclosingRequest)) {
+            throw new IOException("Unable to page a GetFeature request without a body");
+        }
+
+        //The core method maker has no notion of paging so startIndex/SortBy are added to the generated request
+        HttpEntityEnclosingRequest request = (HttpEntityEnclosingRequest) method;
+        HttpEntity entity = request.getEntity();
+        String body = EntityUtils.toString(entity, StandardCharsets.UTF_8);
+        if (startIndex != null) {
+            Matcher m = GET_FEATURE_PATTERN.matcher(body);
+            if (!m.find()) {
+                throw new IOException("Unable to add startIndex to GetFeature request");
+            }
+            body = body.substring(0, m.end(1)) + " startIndex=\"" + startIndex + "\"" + body.substring(m.end(1));
+        }
+        if (sorted) {
+            Matcher m = QUERY_END_PATTERN.matcher(body);
+            if (!m.find()) {
+                throw new IOException("Unable to add SortBy to GetFeature request");
+            }
+            body = body.substring(0, m.start()) + SORT_BY_FEATURE_ID + body.substring(m.start());
+        }
+
+        ContentType contentType = ContentType.get(entity);
+        request.setEntity(new StringEntity(body, contentType == null ? ContentType.create("text/xml", StandardCharsets.UTF_8) : contentType.withCharset(StandardCharsets.UTF_8)));
+        return method;
+    }
+
+    /**
+     * Asks serviceUrl how many features match filterString (with a resultType=hits request)
+     *
+     * @return The number of matching features or -1 if it couldn't be determined
+     */
+    public long getHitCount(String serviceUrl, String typeName, String filterString) {
+        return getHitCount(serviceUrl, typeName, filterString, false);
+    }
+
+    /**
+     * @param sorted Whether the request is sorted by feature ID (so that a service that can't sort reports no count)
+     */
+    private long getHitCount(String serviceUrl, String typeName, String filterString, boolean sorted) {
+        try {
+            HttpRequestBase method = makeRequest(serviceUrl, typeName, filterString, 0, ResultType.Hits, null, null, sorted);
+            String response = httpServiceCaller.getMethodResponseAsString(method);
+            Matcher m = HITS_PATTERN.matcher(response);
+            if (m.find()) {
+                return Long.parseLong(m.group(1));
+            }
+            log.debug(String.format("No feature count in hits response from %1$s", serviceUrl));
+        } catch (Exception ex) {
+            log.debug(String.format("Unable to get feature count for %1$s from %2$s: %3$s", typeName, serviceUrl, ex));
+        }
+        return -1;
+    }
+
+    /**
+     * Downloads a single page to file. The service reporting an error (as an XML exception report) is treated as a failure
+     */
+    private File downloadPage(HttpRequestBase method, File file) throws Exception {
+        try (PushbackInputStream is = new PushbackInputStream(httpServiceCaller.getMethodResponseAsStream(method))) {
+            int first = is.read();
+            if (first == '<') {
+                String report = IOUtils.toString(is, StandardCharsets.UTF_8);
+                throw new IOException("WFS returned an exception report: <" + report.substring(0, Math.min(report.length(), 512)));
+            }
+            if (first >= 0) {
+                is.unread(first);
+            }
+
+            try (OutputStream os = Files.newOutputStream(file.toPath())) {
+                IOUtils.copy(is, os, 64 * 1024);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Downloads the features of typeName matching filterString as CSV (with a single header line).
+     *
+     * @param maxFeatures [Optional] The maximum number of features to return (null or 0 for no limit)
+     * @return The CSV response. The caller is responsible for closing this
+     * @throws Exception
+     */
+    public InputStream downloadCSV(String serviceUrl, String typeName, String filterString, Integer maxFeatures) throws Exception {
+        int max = maxFeatures == null ? 0 : Math.max(0, maxFeatures);
+        long hits = getHitCount(serviceUrl, typeName, filterString, true);
+        final long total = (max > 0 && (hits < 0 || hits > max)) ? max : hits;
+        if (hits < 0 || total <= pageSize || total > Integer.MAX_VALUE) {
+            return httpServiceCaller.getMethodResponseAsStream(makeRequest(serviceUrl, typeName, filterString, max, ResultType.Results, CSV_OUTPUT_FORMAT, null, false));
+        }
+
+        int pageCount = (int) ((total + pageSize - 1) / pageSize);
+        log.debug(String.format("Downloading %1$d %2$s features from %3$s in %4$d pages", total, typeName, serviceUrl, pageCount));
+
+        final List<HttpRequestBase> methods = Collections.synchronizedList(new ArrayList<HttpRequestBase>());
+        return new OrderedPageInputStream(pageCount, maxPagesInFlight, (page, file) -> {
+            int startIndex = page * pageSize;
+            int count = (int) Math.min(pageSize, total - startIndex);
+            final HttpRequestBase method = makeRequest(serviceUrl, typeName, filterString, count, ResultType.Results, CSV_OUTPUT_FORMAT, startIndex, true);
+            methods.add(method);
+            return serviceFanOut.submit(new ServiceFanOut.Task<File>(serviceUrl, () -> downloadPage(method, file)));
+        }, null, serviceFanOut.getDeadlineMillis(), () -> {
+            synchronized (methods) {
+                for (HttpRequestBase method : methods) {
+                    method.abort();
+                }
+            }
+        });
+    }
+}
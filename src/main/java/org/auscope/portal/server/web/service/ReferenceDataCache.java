@@ -0,0 +1,191 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An in memory cache for near static reference data fetched from remote services.
+ *
+ * Entries younger than ttlMillis are served directly. Entries older than that (but younger than
+ * ttlMillis + maxStaleMillis) are still served but also trigger a single background refresh
+ * (stale-while-revalidate). Anything older is reloaded on the calling thread - if that reload fails
+ * the old entry is served instead of the error.
+ *
+ * Keys are derived from request parameters so the cache holds at most maxEntries (least recently used
+ * entries are evicted first). Entries past ttlMillis + maxStaleMillis are dropped whenever another entry
+ * is stored, so an expired entry is only kept as an error fallback until the cache is next written.
+ *
+ * @param <V> The type of the cached values
+ */
+public class ReferenceDataCache<V> {
+
+    /**
+     * Loads a fresh copy of the data for a key
+     */
+    public interface Loader<V> {
+        Entry<V> load() throws Exception;
+    }
+
+    /**
+     * A cached value and the ETag that identifies its content
+     */
+    public static class Entry<V> {
+        private V value;
+        private String eTag;
+        private long loadedMillis;
+
+        public Entry(V value, String eTag) {
+            this.value = value;
+            this.eTag = eTag;
+            this.loadedMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * The cached value
+         * @return
+         */
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * A quoted (strong) ETag identifying the content of value
+         * @return
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * When this entry was loaded (in milliseconds since the unix epoch)
+         * @return
+         */
+        public long getLoadedMillis() {
+            return loadedMillis;
+        }
+    }
+
+    /** The default for the maximum number of entries */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final Log log = LogFactory.getLog(getClass());
+    /** Entries keyed by key, in access order. Guarded by this */
+    private LinkedHashMap<String, Entry<V>> entries;
+    private Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private long ttlMillis;
+    private long maxStaleMillis;
+    private Executor refreshExecutor;
+
+    /**
+     * Creates a cache of at most DEFAULT_MAX_ENTRIES entries
+     * @param ttlMillis How long an entry is considered fresh
+     * @param maxStaleMillis How long past ttlMillis an entry can still be served while it is refreshed in the background
+     * @param refreshExecutor Runs the background refreshes
+     */
+    public ReferenceDataCache(long ttlMillis, long maxStaleMillis, Executor refreshExecutor) {
+        this(ttlMillis, maxStaleMillis, DEFAULT_MAX_ENTRIES, refreshExecutor);
+    }
+
+    /**
+     * @param ttlMillis How long an entry is considered fresh
+     * @param maxStaleMillis How long past ttlMillis an entry can still be served while it is refreshed in the background
+     * @param maxEntries The most entries that will be held (the least recently used are evicted first)
+     * @param refreshExecutor Runs the background refreshes
+     */
+    public ReferenceDataCache(long ttlMillis, long maxStaleMillis, final int maxEntries, Executor refreshExecutor) {
+        this.ttlMillis = ttlMillis;
+        this.maxStaleMillis = maxStaleMillis;
+        this.refreshExecutor = refreshExecutor;
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private synchronized Entry<V> getEntry(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Stores entry for key after dropping every other entry that is past the stale window
+     */
+    private synchronized void putEntry(String key, Entry<V> entry) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getLoadedMillis() > ttlMillis + maxStaleMillis) {
+                it.remove();
+            }
+        }
+        entries.put(key, entry);
+    }
+
+    /**
+     * The number of entries currently held
+     * @return
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the entry for key, using loader to populate/refresh it as required
+     * @param key
+     * @param loader
+     * @return
+     * @throws Exception If there is no usable cached entry and loader fails
+     */
+    public Entry<V> get(final String key, final Loader<V> loader) throws Exception {
+        Entry<V> entry = getEntry(key);
+        long age = entry == null ? Long.MAX_VALUE : System.currentTimeMillis() - entry.getLoadedMillis();
+        if (age < ttlMillis) {
+            return entry;
+        }
+
+        if (age < ttlMillis + maxStaleMillis) {
+            if (refreshing.add(key)) {
+                refreshExecutor.execute(() -> {
+                    try {
+                        putEntry(key, loader.load());
+                    } catch (Exception ex) {
+                        log.warn(String.format("Unable to refresh reference data for '%1$s': %2$s", key, ex));
+                        log.debug("Exception:", ex);
+                    } finally {
+                        refreshing.remove(key);
+                    }
+                });
+            }
+            return entry;
+        }
+
+        try {
+            Entry<V> newEntry = loader.load();
+            putEntry(key, newEntry);
+            return newEntry;
+        } catch (Exception ex) {
+            if (entry == null) {
+                throw ex;
+            }
+            log.warn(String.format("Unable to reload reference data for '%1$s', serving stale copy: %2$s", key, ex));
+            return entry;
+        }
+    }
+
+    /**
+     * Removes every entry from this cache
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -1,5 +1,6 @@
 package org.auscope.portal.server.web.service;
 
+import java.io.InputStream;
 import java.util.List;
 
 import org.apache.http.client.methods.HttpRequestBase;
@@ -26,11 +27,19 @@ public class SF0BoreholeService extends BoreholeService {
 
     // ----------------------------------------------------------- Constructors
 
-    @Autowired
     public SF0BoreholeService(HttpServiceCaller serviceCaller, WFSGetFeatureMethodMaker methodMaker) {
         super(serviceCaller, methodMaker);
     }
 
+    /**
+     * @param tileCache [Optional] Bounding box queries will be assembled from cached tiles
+     */
+    @Autowired
+    public SF0BoreholeService(HttpServiceCaller serviceCaller, WFSGetFeatureMethodMaker methodMaker,
+            ServiceFanOut serviceFanOut, TiledWFSFeatureCache tileCache) {
+        super(serviceCaller, methodMaker, serviceFanOut, tileCache, DEFAULT_MAX_FILTER_IDS, DEFAULT_MAX_FILTER_CHUNKS);
+    }
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -54,13 +63,19 @@ public class SF0BoreholeService extends BoreholeService {
     public WFSResponse getAllBoreholes(String serviceUrl, String boreholeName, String custodian,
             String dateOfDrillingStart, String dateOfDrillingEnd, int maxFeatures, FilterBoundingBox bbox, 
             String outputFormat, String typeName, Boolean omitGsmlpShapeProperty) throws Exception {
-        String filterString;
-        SF0BoreholeFilter sf0BoreholeFilter = new SF0BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, null, null, null, null, omitGsmlpShapeProperty);
-        if (bbox == null) {
-            filterString = sf0BoreholeFilter.getFilterStringAllRecords();
-        } else {
-            filterString = sf0BoreholeFilter.getFilterStringBoundingBox(bbox);
+        if (tileCache != null && tileCache.isCacheable(bbox, maxFeatures, outputFormat)) {
+            try {
+                String allRecordsFilter = getDownloadFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, null, omitGsmlpShapeProperty);
+                return tileCache.getFeatures(serviceUrl, typeName, allRecordsFilter, bbox, outputFormat,
+                        tile -> this.generateWFSRequest(serviceUrl, typeName, null,
+                                getDownloadFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, tile, omitGsmlpShapeProperty),
+                                0, null, ResultType.Results, outputFormat));
+            } catch (Exception ex) {
+                throw new PortalServiceException((HttpRequestBase) null, ex);
+            }
         }
+
+        String filterString = getDownloadFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, bbox, omitGsmlpShapeProperty);
         HttpRequestBase method = null;
         try {
             // Create a GetFeature request with an empty filter - get all
@@ -73,17 +88,59 @@ public class SF0BoreholeService extends BoreholeService {
         }
     }
 
+    /**
+     * Makes the same request as getAllBoreholes (in the service's default GML output format) but returns the response
+     * as it streams in rather than reading it into memory. The tile cache is not used.
+     *
+     * @param serviceUrl
+     * @param boreholeName
+     * @param custodian
+     * @param dateOfDrillingStart
+     * @param dateOfDrillingEnd
+     * @param maxFeatures
+     * @param bbox
+     * 			Set to the bounding box in which to fetch results, otherwise set it to null
+     * @param typeName
+     * @param omitGsmlpShapeProperty
+     * 			if true the gsmlp:shape property will be excluded from the download filter (can cause problems with GADDS 2.0)
+     * @return The response stream (to be closed by the caller)
+     * @throws PortalServiceException
+     */
+    public InputStream getAllBoreholesAsStream(String serviceUrl, String boreholeName, String custodian,
+            String dateOfDrillingStart, String dateOfDrillingEnd, int maxFeatures, FilterBoundingBox bbox,
+            String typeName, Boolean omitGsmlpShapeProperty) throws PortalServiceException {
+        String filterString = getDownloadFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, bbox, omitGsmlpShapeProperty);
+        HttpRequestBase method = null;
+        try {
+            method = this.generateWFSRequest(serviceUrl, typeName, null, filterString, maxFeatures, null,
+                    ResultType.Results, null);
+            return this.httpServiceCaller.getMethodResponseAsStream(method);
+        } catch (Exception ex) {
+            throw new PortalServiceException(method, ex);
+        }
+    }
+
+    /**
+     * Gets the (cached) filter used by getAllBoreholes/getAllBoreholesAsStream
+     */
+    private String getDownloadFilter(String boreholeName, String custodian, String dateOfDrillingStart, String dateOfDrillingEnd,
+            FilterBoundingBox bbox, Boolean omitGsmlpShapeProperty) {
+        return filterStringCache.getFilterString(SF0BoreholeFilter.class, bbox,
+                () -> new SF0BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, null, null, null, null, omitGsmlpShapeProperty),
+                boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, null, null, null, null, omitGsmlpShapeProperty);
+    }
+
     @Override
     public String getFilter(String boreholeName, String custodian, String dateOfDrillingStart, String dateOfDrillingEnd,
             int maxFeatures, FilterBoundingBox bbox, List<String> ids, Boolean justNVCL,String optionalFilters) throws Exception {
-        SF0BoreholeFilter filter = new SF0BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, null, justNVCL,optionalFilters);
-        return generateFilterString(filter, bbox);
+        return getFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, maxFeatures, bbox, ids, null, justNVCL, optionalFilters);
     }
 
     public String getFilter(String boreholeName, String custodian, String dateOfDrillingStart, String dateOfDrillingEnd,
             int maxFeatures, FilterBoundingBox bbox, List<String> ids, List<String> identifiers, Boolean justNVCL,String optionalFilters) throws Exception {
-        SF0BoreholeFilter filter = new SF0BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, identifiers, justNVCL,optionalFilters);
-        return generateFilterString(filter, bbox);
+        return filterStringCache.getFilterString(SF0BoreholeFilter.class, bbox,
+                () -> new SF0BoreholeFilter(boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, identifiers, justNVCL, optionalFilters),
+                boreholeName, custodian, dateOfDrillingStart, dateOfDrillingEnd, ids, identifiers, justNVCL, optionalFilters);
     }
 
     @Override
@@ -0,0 +1,257 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A compiled SLD template. Templates are parsed once into a list of tokens and every render is memoized by its
+ * values so that repeated style requests don't rebuild the SLD.
+ *
+ * Templates use the same [name] placeholders as the SLD resources in org/auscope/portal/slds plus sections:
+ * <ul>
+ * <li>[name] - replaced by the value of name (looked up in the innermost section first). Missing values are empty</li>
+ * <li>[#name]...[/name] - rendered once for each map in the list value of name (or once if the value is Boolean.TRUE)</li>
+ * <li>[^name]...[/name] - rendered once if the value of name is missing, false or an empty list</li>
+ * </ul>
+ *
+ * Each line of a template is trimmed and the lines are joined without any separator (so a template can be indented
+ * freely but no line break may fall inside a tag or text value).
+ */
+public class SLDTemplate {
+
+    /** The classpath location of SLD template resources */
+    public static final String RESOURCE_PATH = "org/auscope/portal/slds/";
+
+    private static final Pattern TAG = Pattern.compile("\\[([#^/]?)([A-Za-z][A-Za-z0-9_]*)\\]");
+    private static final int MAX_CACHED_RENDERS = 128;
+    private static final int MAX_POOLED_CAPACITY = 1024 * 1024;
+
+    private static final Map<String, SLDTemplate> RESOURCES = new ConcurrentHashMap<String, SLDTemplate>();
+    private static final ThreadLocal<StringBuilder> BUFFERS = ThreadLocal.withInitial(() -> new StringBuilder(8192));
+
+    /**
+     * A single parsed part of a template
+     */
+    private static class Token {
+        private char type;
+        private String text;
+        private List<Token> children;
+
+        private Token(char type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    private List<Token> tokens;
+
+    /** Rendered SLDs keyed by their values in access order */
+    private Map<String, String> renders = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_RENDERS;
+        }
+    });
+
+    private SLDTemplate(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Compiles a template
+     *
+     * @param template
+     * @return
+     * @throws IllegalArgumentException If a section is not closed (or closed out of order)
+     */
+    public static SLDTemplate compile(String template) {
+        StringBuilder joined = new StringBuilder(template.length());
+        for (String line : template.split("\r?\n")) {
+            joined.append(line.trim());
+        }
+
+        Deque<Token> sections = new ArrayDeque<Token>();
+        List<Token> tokens = new ArrayList<Token>();
+        List<Token> current = tokens;
+        Matcher m = TAG.matcher(joined);
+        int last = 0;
+        while (m.find()) {
+            if (m.start() > last) {
+                current.add(new Token('"', joined.substring(last, m.start())));
+            }
+            last = m.end();
+
+            String type = m.group(1);
+            String name = m.group(2);
+            if (type.isEmpty()) {
+                current.add(new Token('=', name));
+            } else if (type.equals("/")) {
+                if (sections.isEmpty() || !sections.peek().text.equals(name)) {
+                    throw new IllegalArgumentException("Unexpected [/" + name + "]");
+                }
+                sections.pop();
+                current = sections.isEmpty() ? tokens : sections.peek().children;
+            } else {
+                Token section = new Token(type.charAt(0), name);
+                section.children = new ArrayList<Token>();
+                current.add(section);
+                sections.push(section);
+                current = section.children;
+            }
+        }
+        if (!sections.isEmpty()) {
+            throw new IllegalArgumentException("Unclosed section [" + sections.peek().type + sections.peek().text + "]");
+        }
+        if (last < joined.length()) {
+            current.add(new Token('"', joined.substring(last)));
+        }
+
+        return new SLDTemplate(tokens);
+    }
+
+    /**
+     * Gets the (compiled once) template resource RESOURCE_PATH + name
+     *
+     * @param name eg - BoreholeService_getStyle.sld
+     * @return
+     * @throws IllegalArgumentException If the resource doesn't exist or isn't a valid template
+     */
+    public static SLDTemplate load(String name) {
+        return RESOURCES.computeIfAbsent(name, n -> {
+            try (InputStream is = SLDTemplate.class.getClassLoader().getResourceAsStream(RESOURCE_PATH + n)) {
+                if (is == null) {
+                    throw new IllegalArgumentException("No SLD template " + RESOURCE_PATH + n);
+                }
+                return compile(IOUtils.toString(is, StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("Unable to read SLD template " + RESOURCE_PATH + n, ex);
+            }
+        });
+    }
+
+    private static Object lookup(Deque<Map<String, ?>> scopes, String name) {
+        for (Map<String, ?> scope : scopes) {
+            if (scope.containsKey(name)) {
+                return scope.get(name);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isEmpty(Object value) {
+        return value == null || Boolean.FALSE.equals(value) || (value instanceof List && ((List<?>) value).isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void render(StringBuilder sb, List<Token> tokens, Deque<Map<String, ?>> scopes) {
+        for (Token token : tokens) {
+            switch (token.type) {
+            case '"':
+                sb.append(token.text);
+                break;
+            case '=':
+                Object value = lookup(scopes, token.text);
+                if (value != null) {
+                    sb.append(value);
+                }
+                break;
+            case '^':
+                if (isEmpty(lookup(scopes, token.text))) {
+                    render(sb, token.children, scopes);
+                }
+                break;
+            default:
+                Object section = lookup(scopes, token.text);
+                if (section instanceof List) {
+                    for (Object item : (List<?>) section) {
+                        scopes.push((Map<String, ?>) item);
+                        render(sb, token.children, scopes);
+                        scopes.pop();
+                    }
+                } else if (!isEmpty(section)) {
+                    render(sb, token.children, scopes);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Appends a canonical (map keys sorted) form of value to sb. Values are appended exactly (length prefixed)
+     */
+    @SuppressWarnings("unchecked")
+    private static void appendKey(StringBuilder sb, Object value) {
+        if (value instanceof Map) {
+            sb.append('{');
+            for (Map.Entry<String, ?> entry : new TreeMap<String, Object>((Map<String, ?>) value).entrySet()) {
+                sb.append(entry.getKey()).append('=');
+                appendKey(sb, entry.getValue());
+                sb.append('\u0000');
+            }
+            sb.append('}');
+        } else if (value instanceof List) {
+            sb.append('[');
+            for (Object item : (List<?>) value) {
+                appendKey(sb, item);
+                sb.append('\u0001');
+            }
+            sb.append(']');
+        } else if (value instanceof Boolean) {
+            sb.append('\u0002').append(value);
+        } else if (value != null) {
+            String s = value.toString();
+            sb.append(s.length()).append(':').append(s);
+        }
+    }
+
+    /**
+     * Renders this template into a pooled buffer without consulting/populating the memoized renders
+     */
+    private String renderUncached(Map<String, ?> values) {
+        StringBuilder sb = BUFFERS.get();
+        sb.setLength(0);
+        Deque<Map<String, ?>> scopes = new ArrayDeque<Map<String, ?>>();
+        scopes.push(values);
+        render(sb, tokens, scopes);
+        String sld = sb.toString();
+        if (sb.capacity() > MAX_POOLED_CAPACITY) {
+            BUFFERS.remove();
+        }
+        return sld;
+    }
+
+    /**
+     * Renders this template. Renders with the same values (ignoring map order) are only built once.
+     *
+     * @param values Each value is either a String (or anything with a suitable toString), a Boolean or a List of Maps (for sections)
+     * @return
+     */
+    public String render(Map<String, ?> values) {
+        StringBuilder keyBuffer = new StringBuilder();
+        appendKey(keyBuffer, values);
+        String key = DiskLruCache.keyFor(keyBuffer.toString());
+
+        String sld = renders.get(key);
+        if (sld == null) {
+            sld = renderUncached(values);
+            renders.put(key, sld);
+        }
+        return sld;
+    }
+}
@@ -0,0 +1,324 @@
+package org.auscope.portal.server.web.service;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs a batch of remote service calls in parallel on a shared thread pool.
+ *
+ * No more than maxPerHost calls will be made to any single host at the same time (across all batches)
+ * and every batch must complete within deadlineMillis. Results are handed back to the calling thread as
+ * they complete (not in submission order) along with the index of the call that produced them.
+ *
+ * Calls beyond a host's limit wait in a per host queue and are only handed to the thread pool once one of
+ * that host's calls finishes. A slow host therefore never ties up more than maxPerHost pool threads and
+ * can't starve calls to other hosts.
+ */
+public class ServiceFanOut {
+
+    /**
+     * A single remote call
+     */
+    public interface Call<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Receives each result (on the thread that started the batch) as soon as it is available.
+     */
+    public interface ResultHandler<T> {
+        /**
+         * @param index The index of the call (in the submitted list) that generated result
+         * @param result The result of the call
+         */
+        void handle(int index, T result) throws Exception;
+    }
+
+    /**
+     * A call bound to the host it will contact
+     */
+    public static class Task<T> {
+        private String host;
+        private Call<T> call;
+
+        public Task(String url, Call<T> call) {
+            this.host = hostOf(url);
+            this.call = call;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public Call<T> getCall() {
+            return call;
+        }
+    }
+
+    private static class IndexedResult<T> {
+        int index;
+        T result;
+
+        IndexedResult(int index, T result) {
+            this.index = index;
+            this.result = result;
+        }
+    }
+
+    /**
+     * The calls to a single host that are running (at most maxPerHost) or waiting to run
+     */
+    private class HostQueue {
+        private int running = 0;
+        private Deque<FutureTask<?>> pending = new ArrayDeque<FutureTask<?>>();
+
+        /**
+         * Claims a slot for a call that will run on the calling thread
+         * @return true if a slot was claimed (finished() must be called once the call completes)
+         */
+        synchronized boolean tryStart() {
+            if (running < maxPerHost) {
+                running++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Runs future on the thread pool as soon as this host has a free slot
+         */
+        synchronized void start(FutureTask<?> future) {
+            if (running < maxPerHost) {
+                running++;
+                try {
+                    execute(future);
+                } catch (RejectedExecutionException ex) {
+                    running--;
+                    throw ex;
+                }
+            } else {
+                pending.add(future);
+            }
+        }
+
+        /**
+         * Frees the slot of a completed call, handing it to the next pending call (if any)
+         */
+        synchronized void finished() {
+            FutureTask<?> next = pending.poll();
+            while (next != null && next.isDone()) {
+                next = pending.poll(); //Cancelled while waiting
+            }
+
+            if (next == null) {
+                running--;
+                return;
+            }
+
+            try {
+                execute(next);
+            } catch (RejectedExecutionException ex) {
+                //The pool has been shut down, nothing queued will ever run
+                running--;
+                next.cancel(false);
+                for (FutureTask<?> future : pending) {
+                    future.cancel(false);
+                }
+                pending.clear();
+            }
+        }
+
+        private void execute(final FutureTask<?> future) {
+            executor.execute(() -> {
+                try {
+                    future.run();
+                } finally {
+                    finished();
+                }
+            });
+        }
+    }
+
+    private final Log log = LogFactory.getLog(getClass());
+    private ExecutorService executor;
+    private int maxPerHost;
+    private long deadlineMillis;
+    private ConcurrentMap<String, HostQueue> hostQueues = new ConcurrentHashMap<String, HostQueue>();
+
+    /**
+     * @param maxThreads The size of the shared thread pool
+     * @param maxPerHost The maximum number of concurrent calls to any single host
+     * @param deadlineMillis The maximum time (in milliseconds) that a single batch may run for
+     */
+    public ServiceFanOut(int maxThreads, int maxPerHost, long deadlineMillis) {
+        this.maxPerHost = maxPerHost;
+        this.deadlineMillis = deadlineMillis;
+        this.executor = Executors.newFixedThreadPool(maxThreads, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "service-fanout-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Extracts the host portion of url (or the url itself if it can't be parsed)
+     * @param url
+     * @return
+     */
+    public static String hostOf(String url) {
+        try {
+            String host = new URI(url).getHost();
+            return host == null ? url : host.toLowerCase();
+        } catch (Exception ex) {
+            return url;
+        }
+    }
+
+    private HostQueue queueFor(String host) {
+        return hostQueues.computeIfAbsent(host, h -> new HostQueue());
+    }
+
+    /**
+     * Wraps task so that it fails (rather than contacting its host) if it wasn't able to start before deadline
+     */
+    private static <T> Callable<T> beforeDeadline(final Task<T> task, final long deadline) {
+        return () -> {
+            if (deadline - System.nanoTime() <= 0) {
+                throw new TimeoutException("Timed out waiting for a connection slot to " + task.getHost());
+            }
+            return task.getCall().call();
+        };
+    }
+
+    /**
+     * Runs every task and passes each result to handler as it arrives. If any task fails, the remaining
+     * tasks are cancelled and the failure is rethrown. A TimeoutException is thrown if the batch doesn't
+     * complete before the deadline.
+     *
+     * @param tasks The calls to make
+     * @param handler Receives the results (always on the calling thread)
+     * @throws Exception
+     */
+    public <T> void invokeAll(List<Task<T>> tasks, ResultHandler<T> handler) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
+        //No point paying for a thread hop if there's nothing to parallelise (and the host has a free slot)
+        if (tasks.size() == 1) {
+            HostQueue queue = queueFor(tasks.get(0).getHost());
+            if (queue.tryStart()) {
+                T result;
+                try {
+                    result = tasks.get(0).getCall().call();
+                } finally {
+                    queue.finished();
+                }
+                handler.handle(0, result);
+                return;
+            }
+        }
+
+        final BlockingQueue<Future<IndexedResult<T>>> completed = new LinkedBlockingQueue<Future<IndexedResult<T>>>();
+        List<Future<IndexedResult<T>>> futures = new ArrayList<Future<IndexedResult<T>>>(tasks.size());
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                final int index = i;
+                final Callable<T> call = beforeDeadline(tasks.get(i), deadline);
+                FutureTask<IndexedResult<T>> future = new FutureTask<IndexedResult<T>>(() -> new IndexedResult<T>(index, call.call())) {
+                    @Override
+                    protected void done() {
+                        completed.add(this);
+                    }
+                };
+                futures.add(future);
+                queueFor(tasks.get(i).getHost()).start(future);
+            }
+
+            for (int i = 0; i < tasks.size(); i++) {
+                Future<IndexedResult<T>> future = completed.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    throw new TimeoutException(String.format("Only %1$d of %2$d service calls completed within %3$dms", i, tasks.size(), deadlineMillis));
+                }
+
+                IndexedResult<T> result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+                handler.handle(result.index, result.result);
+            }
+        } finally {
+            for (Future<IndexedResult<T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Starts a single task on the shared thread pool without waiting for it. Unlike runInBackground the task
+     * is subject to the per host limit and must start before the deadline.
+     *
+     * @param task
+     * @return The pending result of task (cancel it to interrupt task)
+     */
+    public <T> Future<T> submit(final Task<T> task) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        FutureTask<T> future = new FutureTask<T>(beforeDeadline(task, deadline));
+        queueFor(task.getHost()).start(future);
+        return future;
+    }
+
+    /**
+     * Runs a single task on the shared thread pool without waiting for it. The task is not subject
+     * to any per host limit or deadline.
+     * @param task
+     */
+    public void runInBackground(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Stops the shared thread pool
+     */
+    public void shutdown() {
+        log.debug("Shutting down service fan out pool");
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,342 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.services.responses.wfs.WFSResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * An in memory cache of WFS GetFeature (GML) responses for bounding box queries.
+ *
+ * Every bounding box is snapped onto a fixed grid of tiles (halving in size with each level, like a map tile pyramid).
+ * The level is chosen so that a query never spans more than maxTilesPerRequest tiles. Each tile is requested (and cached)
+ * separately, keyed by endpoint, type name, output format, the normalised (non spatial) filter and the tile.
+ * Responses are assembled from the tiles with features appearing in several tiles only included once.
+ *
+ * As a result, panning or zooming the map only requests the tiles that haven't been seen before. The assembled response
+ * covers the tiles rather than the exact bounding box, so it may include features just outside the requested area.
+ *
+ * Only lon/lat (EPSG:4326 / CRS:84) and web mercator bounding boxes are tiled.
+ *
+ * Tiles are always requested without a feature limit. A limited query can't be tiled (the first maxFeatures of
+ * each tile are not the first maxFeatures of the query) so it should bypass this cache (see isCacheable).
+ */
+@Service
+public class TiledWFSFeatureCache {
+
+    /**
+     * Makes the request for a single tile
+     */
+    public interface TileRequestMaker {
+        /**
+         * @param tile The bounding box of the tile
+         * @return A GetFeature request for every feature in tile
+         */
+        HttpRequestBase makeRequest(FilterBoundingBox tile) throws Exception;
+    }
+
+    /**
+     * A tile in the grid for a particular CRS
+     */
+    public static class Tile {
+        private int level;
+        private long x;
+        private long y;
+        private FilterBoundingBox bbox;
+
+        public Tile(int level, long x, long y, FilterBoundingBox bbox) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.bbox = bbox;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public long getX() {
+            return x;
+        }
+
+        public long getY() {
+            return y;
+        }
+
+        public FilterBoundingBox getBbox() {
+            return bbox;
+        }
+    }
+
+    private static class CachedTile {
+        private String gml;
+        private long loadedMillis;
+
+        private CachedTile(String gml) {
+            this.gml = gml;
+            this.loadedMillis = System.currentTimeMillis();
+        }
+    }
+
+    public static final int MAX_LEVEL = 24;
+    private static final double MERCATOR_WIDTH = 40075016.68557849;
+
+    private final Log log = LogFactory.getLog(getClass());
+    private HttpServiceCaller httpServiceCaller;
+    private ServiceFanOut serviceFanOut;
+    private long maxBytes;
+    private long ttlMillis;
+    private int maxTilesPerRequest;
+
+    private long currentBytes = 0;
+    /** GML keyed by tile key, in access order. Guarded by this */
+    private LinkedHashMap<String, CachedTile> tiles = new LinkedHashMap<String, CachedTile>(256, 0.75f, true);
+    private AtomicLong tileHits = new AtomicLong();
+    private AtomicLong tileRequests = new AtomicLong();
+
+    /**
+     * @param serviceFanOut [Optional] Used for requesting tiles in parallel (otherwise they are requested one at a time)
+     * @param maxMegabytes The total size budget for all cached tiles
+     * @param ttlMinutes How long a tile is served from the cache before it is requested again
+     * @param maxTilesPerRequest The most tiles that a single query is split into
+     */
+    @Autowired
+    public TiledWFSFeatureCache(HttpServiceCaller httpServiceCaller, ServiceFanOut serviceFanOut,
+            @Value("${env.wfsTileCache.maxMegabytes:64}") long maxMegabytes,
+            @Value("${env.wfsTileCache.ttlMinutes:30}") long ttlMinutes,
+            @Value("${env.wfsTileCache.maxTilesPerRequest:4}") int maxTilesPerRequest) {
+        this.httpServiceCaller = httpServiceCaller;
+        this.serviceFanOut = serviceFanOut;
+        this.maxBytes = maxMegabytes * 1024L * 1024L;
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+        this.maxTilesPerRequest = Math.max(4, maxTilesPerRequest);
+    }
+
+    /**
+     * The number of tiles served from the cache
+     */
+    public long getTileHits() {
+        return tileHits.get();
+    }
+
+    /**
+     * The number of tiles requested from upstream services
+     */
+    public long getTileRequests() {
+        return tileRequests.get();
+    }
+
+    /**
+     * Gets the width of the world (in CRS units) for the CRS of a bounding box or NaN if it isn't tiled
+     */
+    private static double worldWidth(String srs) {
+        if (srs == null) {
+            return Double.NaN;
+        }
+        String upper = srs.toUpperCase();
+        if (upper.endsWith("EPSG:4326") || upper.endsWith("CRS:84") || upper.endsWith("CRS84") || upper.endsWith("EPSG::4326") || upper.endsWith("4326.XML#4326")) {
+            return 360.0;
+        }
+        if (upper.endsWith("EPSG:3857") || upper.endsWith("EPSG::3857") || upper.endsWith("EPSG:900913") || upper.endsWith("EPSG:102100")) {
+            return MERCATOR_WIDTH;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Returns true if a query for bbox (in outputFormat) can be assembled from tiles
+     *
+     * @param bbox [Optional] The bounding box of the query
+     * @param maxFeatures The query's feature limit. Limited (&gt; 0) queries are never cacheable
+     * @param outputFormat The requested output format (null for the default GML)
+     */
+    public boolean isCacheable(FilterBoundingBox bbox, int maxFeatures, String outputFormat) {
+        if (bbox == null || maxFeatures > 0 || maxBytes <= 0 || Double.isNaN(worldWidth(bbox.getBboxSrs()))) {
+            return false;
+        }
+        if (outputFormat != null && !outputFormat.isEmpty()) {
+            String format = outputFormat.toLowerCase();
+            if (!format.contains("gml") && !format.contains("xml")) {
+                return false;
+            }
+        }
+
+        double[] lower = bbox.getLowerCornerPoints();
+        double[] upper = bbox.getUpperCornerPoints();
+        //Boxes crossing the anti meridian (or otherwise inverted) are passed straight through
+        return lower != null && upper != null && lower.length >= 2 && upper.length >= 2
+                && upper[0] > lower[0] && upper[1] > lower[1];
+    }
+
+    /**
+     * Gets the tiles covering bbox. The level is the finest at which bbox spans no more than maxTilesPerRequest tiles
+     *
+     * @param bbox A cacheable bounding box (see isCacheable)
+     */
+    public List<Tile> getTiles(FilterBoundingBox bbox) {
+        double world = worldWidth(bbox.getBboxSrs());
+        double[] lower = bbox.getLowerCornerPoints();
+        double[] upper = bbox.getUpperCornerPoints();
+
+        //Allows for the box being misaligned with the grid (an extra tile in each direction)
+        int across = (int) Math.floor(Math.sqrt(maxTilesPerRequest));
+        double span = Math.max(upper[0] - lower[0], upper[1] - lower[1]);
+        int level = (int) Math.floor(Math.log((across - 1) * world / span) / Math.log(2));
+        level = Math.max(0, Math.min(MAX_LEVEL, level));
+
+        double size = world / (1L << level);
+        long minX = (long) Math.floor(lower[0] / size);
+        long minY = (long) Math.floor(lower[1] / size);
+        long maxX = (long) Math.ceil(upper[0] / size) - 1;
+        long maxY = (long) Math.ceil(upper[1] / size) - 1;
+
+        List<Tile> result = new ArrayList<Tile>();
+        for (long y = minY; y <= maxY; y++) {
+            for (long x = minX; x <= maxX; x++) {
+                result.add(new Tile(level, x, y, new FilterBoundingBox(bbox.getBboxSrs(),
+                        new double[] {x * size, y * size}, new double[] {(x + 1) * size, (y + 1) * size})));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collapses whitespace so that trivially different filters share tiles
+     */
+    static String normaliseFilter(String filter) {
+        return filter == null ? "" : filter.trim().replaceAll(">\\s+<", "><").replaceAll("\\s+", " ");
+    }
+
+    private synchronized String getCachedTile(String key) {
+        CachedTile tile = tiles.get(key);
+        if (tile == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - tile.loadedMillis > ttlMillis) {
+            tiles.remove(key);
+            currentBytes -= tile.gml.length() * 2L;
+            return null;
+        }
+        return tile.gml;
+    }
+
+    private synchronized void putCachedTile(String key, String gml) {
+        long size = gml.length() * 2L;
+        if (size > maxBytes) {
+            return;
+        }
+
+        CachedTile old = tiles.put(key, new CachedTile(gml));
+        if (old != null) {
+            currentBytes -= old.gml.length() * 2L;
+        }
+        currentBytes += size;
+
+        Iterator<Map.Entry<String, CachedTile>> it = tiles.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, CachedTile> eldest = it.next();
+            currentBytes -= eldest.getValue().gml.length() * 2L;
+            it.remove();
+        }
+    }
+
+    /**
+     * Removes every cached tile
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        currentBytes = 0;
+    }
+
+    /**
+     * Rejects anything that isn't a feature collection (so that errors aren't cached)
+     */
+    private static void checkTileResponse(String gml) throws PortalServiceException {
+        String start = gml.substring(0, Math.min(gml.length(), 1024));
+        if (start.contains("ExceptionReport") || !start.contains("FeatureCollection")) {
+            throw new PortalServiceException("Tile request didn't return a feature collection: " + start);
+        }
+    }
+
+    /**
+     * Gets the features in bbox by assembling the (cached or freshly requested) tiles covering it.
+     *
+     * @param serviceUrl The WFS endpoint
+     * @param typeName The feature type being requested
+     * @param filter The non spatial part of the query (eg - the query's filter for all records). Used to key the tiles
+     * @param bbox A cacheable bounding box (see isCacheable)
+     * @param outputFormat The requested output format
+     * @param requestMaker Makes the request for every feature in each tile (ie - without a feature limit)
+     * @return The assembled response. Its method is the (unsent) request for bbox itself
+     * @throws Exception
+     */
+    public WFSResponse getFeatures(String serviceUrl, String typeName, String filter, FilterBoundingBox bbox,
+            String outputFormat, TileRequestMaker requestMaker) throws Exception {
+        List<Tile> tileList = getTiles(bbox);
+        String filterKey = normaliseFilter(filter);
+        final String[] keys = new String[tileList.size()];
+        final String[] responses = new String[tileList.size()];
+
+        final List<Integer> missing = new ArrayList<Integer>();
+        List<ServiceFanOut.Task<String>> tasks = new ArrayList<ServiceFanOut.Task<String>>();
+        for (int i = 0; i < tileList.size(); i++) {
+            Tile tile = tileList.get(i);
+            keys[i] = DiskLruCache.keyFor(serviceUrl, typeName, outputFormat, filterKey, bbox.getBboxSrs(), tile.getLevel(), tile.getX(), tile.getY());
+            responses[i] = getCachedTile(keys[i]);
+            if (responses[i] != null) {
+                tileHits.incrementAndGet();
+                continue;
+            }
+
+            final HttpRequestBase method = requestMaker.makeRequest(tile.getBbox());
+            missing.add(i);
+            tasks.add(new ServiceFanOut.Task<String>(serviceUrl, () -> {
+                String gml = httpServiceCaller.getMethodResponseAsString(method);
+                checkTileResponse(gml);
+                return gml;
+            }));
+        }
+
+        tileRequests.addAndGet(tasks.size());
+        if (serviceFanOut == null) {
+            for (int i = 0; i < tasks.size(); i++) {
+                responses[missing.get(i)] = tasks.get(i).getCall().call();
+            }
+        } else if (!tasks.isEmpty()) {
+            serviceFanOut.invokeAll(tasks, (i, gml) -> responses[missing.get(i)] = gml);
+        }
+        for (int i : missing) {
+            putCachedTile(keys[i], responses[i]);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Assembled %1$s from %2$d tiles (%3$d requested)", typeName, tileList.size(), tasks.size()));
+        }
+
+        final Set<String> seenIds = new HashSet<String>();
+        List<Reader> readers = new ArrayList<Reader>(responses.length);
+        for (String response : responses) {
+            readers.add(new StringReader(response));
+        }
+        String gml = new GMLFeatureCollectionMerger(id -> id == null || seenIds.add(id), 0).merge(readers);
+        return new WFSResponse(gml, requestMaker.makeRequest(bbox));
+    }
+}
@@ -0,0 +1,409 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.apache.commons.io.IOUtils;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.CSVWriter;
+import com.opencsv.ICSVWriter;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * A streaming transformation of a CSV response (which must start with a header line) made up of a chain of row operators -
+ * filter, project, rename and distinct.
+ *
+ * Rows are read one at a time and passed through each operator in the order it was added. Operators transform rows in place
+ * (or into a buffer they reuse) and anything that survives is written to a single buffered CSV writer, so no row is ever
+ * copied or re-encoded more than once. Renames only touch the header so they're free for data rows.
+ *
+ * A pipeline can be reused for subsequent transforms but isn't thread safe.
+ */
+public class CSVPipeline {
+
+    private static final String BOM = "\uFEFF";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A single step in a CSVPipeline
+     */
+    public interface RowOperator {
+        /**
+         * Called before any rows are transformed (resetting any state from a previous transform)
+         *
+         * @param header The header output by the previous operator
+         * @return The header that will be passed to the next operator
+         * @throws IOException If this operator can't be applied to header (eg - a missing column)
+         */
+        String[] bind(String[] header) throws IOException;
+
+        /**
+         * @param row A row matching the bound header. May be modified in place.
+         * @return The row to pass on (which may be reused between calls) or null to drop it
+         */
+        String[] apply(String[] row);
+    }
+
+    private List<RowOperator> operators = new ArrayList<RowOperator>();
+
+    private static CSVReader newReader(InputStream csv) {
+        return new CSVReaderBuilder(new InputStreamReader(csv, StandardCharsets.UTF_8))
+                .withCSVParser(new RFC4180ParserBuilder().build()).build();
+    }
+
+    private static ICSVWriter newWriter(Writer writer) {
+        return new CSVWriter(writer, ICSVWriter.DEFAULT_SEPARATOR, ICSVWriter.DEFAULT_QUOTE_CHARACTER,
+                ICSVWriter.DEFAULT_ESCAPE_CHARACTER, ICSVWriter.DEFAULT_LINE_END);
+    }
+
+    private static int requireColumn(String[] header, String column) throws IOException {
+        int index = Arrays.asList(header).indexOf(column);
+        if (index < 0) {
+            throw new IOException(String.format("CSV has no column '%1$s'", column));
+        }
+        return index;
+    }
+
+    /**
+     * True if this pipeline has no operators (ie - the CSV can be copied as is)
+     * @return
+     */
+    public boolean isEmpty() {
+        return operators.isEmpty();
+    }
+
+    /**
+     * Appends an arbitrary operator to this pipeline
+     * @param operator
+     * @return this pipeline
+     */
+    public CSVPipeline then(RowOperator operator) {
+        operators.add(operator);
+        return this;
+    }
+
+    /**
+     * Appends every operator in pipeline to this pipeline
+     * @param pipeline
+     * @return this pipeline
+     */
+    public CSVPipeline then(CSVPipeline pipeline) {
+        operators.addAll(pipeline.operators);
+        return this;
+    }
+
+    /**
+     * Drops every row whose value for column doesn't match predicate
+     *
+     * @param column The column to test (must exist)
+     * @param predicate Tests the (never null) value of column
+     * @return this pipeline
+     */
+    public CSVPipeline filter(final String column, final Predicate<String> predicate) {
+        return then(new RowOperator() {
+            private int index;
+
+            @Override
+            public String[] bind(String[] header) throws IOException {
+                index = requireColumn(header, column);
+                return header;
+            }
+
+            @Override
+            public String[] apply(String[] row) {
+                String value = row[index];
+                return predicate.test(value == null ? "" : value) ? row : null;
+            }
+        });
+    }
+
+    /**
+     * Reduces every row to just columns (in the specified order)
+     *
+     * @param columns The columns to keep (every one must exist)
+     * @return this pipeline
+     */
+    public CSVPipeline project(final String... columns) {
+        return then(new RowOperator() {
+            private int[] indexes;
+            private String[] projected;
+
+            @Override
+            public String[] bind(String[] header) throws IOException {
+                indexes = new int[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    indexes[i] = requireColumn(header, columns[i]);
+                }
+                projected = new String[columns.length];
+                return columns.clone();
+            }
+
+            @Override
+            public String[] apply(String[] row) {
+                for (int i = 0; i < indexes.length; i++) {
+                    projected[i] = row[indexes[i]];
+                }
+                return projected;
+            }
+        });
+    }
+
+    /**
+     * Renames the column from to to. Does nothing if there is no column called from.
+     *
+     * @param from
+     * @param to
+     * @return this pipeline
+     */
+    public CSVPipeline rename(final String from, final String to) {
+        return then(new RowOperator() {
+            @Override
+            public String[] bind(String[] header) {
+                int index = Arrays.asList(header).indexOf(from);
+                if (index < 0) {
+                    return header;
+                }
+                String[] renamed = header.clone();
+                renamed[index] = to;
+                return renamed;
+            }
+
+            @Override
+            public String[] apply(String[] row) {
+                return row;
+            }
+        });
+    }
+
+    /**
+     * Drops every row that repeats an earlier row's values for columns. Every distinct key is held in memory for the
+     * duration of a transform.
+     *
+     * @param columns The columns that make up each row's key (every one must exist). If empty, the entire row is the key
+     * @return this pipeline
+     */
+    public CSVPipeline distinct(final String... columns) {
+        return then(new RowOperator() {
+            private int[] indexes;
+            private Set<String> seen;
+            private StringBuilder key = new StringBuilder();
+
+            @Override
+            public String[] bind(String[] header) throws IOException {
+                if (columns.length == 0) {
+                    indexes = new int[header.length];
+                    for (int i = 0; i < header.length; i++) {
+                        indexes[i] = i;
+                    }
+                } else {
+                    indexes = new int[columns.length];
+                    for (int i = 0; i < columns.length; i++) {
+                        indexes[i] = requireColumn(header, columns[i]);
+                    }
+                }
+                seen = new HashSet<String>();
+                return header;
+            }
+
+            @Override
+            public String[] apply(String[] row) {
+                key.setLength(0);
+                for (int index : indexes) {
+                    if (row[index] != null) {
+                        key.append(row[index]);
+                    }
+                    key.append('\0');
+                }
+                return seen.add(key.toString()) ? row : null;
+            }
+        });
+    }
+
+    /**
+     * Drops every row after the first maxRows (that reach this operator)
+     *
+     * @param maxRows
+     * @return this pipeline
+     */
+    public CSVPipeline limit(final long maxRows) {
+        return then(new RowOperator() {
+            private long count;
+
+            @Override
+            public String[] bind(String[] header) {
+                count = 0;
+                return header;
+            }
+
+            @Override
+            public String[] apply(String[] row) {
+                return count++ < maxRows ? row : null;
+            }
+        });
+    }
+
+    /**
+     * Writes csv to os, streaming it through this pipeline if it has any operators (otherwise it's copied byte for byte)
+     *
+     * @param csv A UTF-8 CSV starting with a header line. Will be closed by this method
+     * @param os Will be flushed but NOT closed by this method
+     * @throws IOException
+     */
+    public void transformOrCopy(InputStream csv, OutputStream os) throws IOException {
+        try {
+            if (isEmpty()) {
+                IOUtils.copy(csv, os, BUFFER_SIZE);
+                os.flush();
+            } else {
+                transform(csv, os);
+            }
+        } finally {
+            csv.close();
+        }
+    }
+
+    /**
+     * Streams csv through every operator of this pipeline, writing the result (with a header line) to os. Data rows with a
+     * different number of columns to the header are skipped.
+     *
+     * @param csv A UTF-8 CSV starting with a header line. Will NOT be closed by this method
+     * @param os Receives the UTF-8 transformed CSV. Will be flushed but NOT closed by this method
+     * @return The number of data rows written
+     * @throws IOException If csv has no header, is malformed or doesn't have a column required by an operator
+     */
+    public long transform(InputStream csv, OutputStream os) throws IOException {
+        CSVReader reader = newReader(csv);
+        try {
+            String[] header = reader.readNext();
+            if (header == null) {
+                throw new IOException("No CSV header sent");
+            }
+            if (header.length > 0 && header[0].startsWith(BOM)) {
+                header[0] = header[0].substring(BOM.length());
+            }
+            for (int i = 0; i < header.length; i++) {
+                header[i] = header[i].trim();
+            }
+
+            RowOperator[] chain = operators.toArray(new RowOperator[operators.size()]);
+            String[] outputHeader = header;
+            for (RowOperator operator : chain) {
+                outputHeader = operator.bind(outputHeader);
+            }
+
+            ICSVWriter writer = newWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), BUFFER_SIZE));
+            writer.writeNext(outputHeader, false);
+
+            long written = 0;
+            String[] row;
+            rows: while ((row = reader.readNext()) != null) {
+                if (row.length != header.length || (row.length == 1 && row[0].trim().isEmpty())) {
+                    continue; //skip malformed/blank lines
+                }
+                for (RowOperator operator : chain) {
+                    row = operator.apply(row);
+                    if (row == null) {
+                        continue rows;
+                    }
+                }
+                writer.writeNext(row, false);
+                written++;
+            }
+
+            writer.flush();
+            return written;
+        } catch (CsvValidationException ex) {
+            throw new IOException("Malformed CSV: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static String[] splitList(String list) {
+        List<String> values = new ArrayList<String>();
+        for (String value : list.split(",")) {
+            if (!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Builds a pipeline from a set of (optional) request parameters. Filters and distinct are applied first (against the
+     * original column names) followed by columns and then rename.
+     *
+     * @param filter [Optional] Semicolon separated conditions of the form column=value, column!=value or column^=prefix.
+     *               Values are trimmed and compared case insensitively
+     * @param distinct [Optional] Comma separated key columns for removing duplicate rows or * to compare entire rows
+     * @param columns [Optional] Comma separated list of the columns to output (in order)
+     * @param rename [Optional] Comma separated list of renames of the form oldName=newName
+     * @return
+     * @throws IllegalArgumentException If any parameter can't be parsed
+     */
+    public static CSVPipeline fromParameters(String filter, String distinct, String columns, String rename) {
+        CSVPipeline pipeline = new CSVPipeline();
+
+        if (filter != null) {
+            for (String condition : filter.split(";")) {
+                if (condition.trim().isEmpty()) {
+                    continue;
+                }
+                int eq = condition.indexOf('=');
+                if (eq <= 0) {
+                    throw new IllegalArgumentException(String.format("Malformed filter condition '%1$s'", condition));
+                }
+
+                char op = condition.charAt(eq - 1);
+                boolean negated = op == '!';
+                boolean prefix = op == '^';
+                String column = condition.substring(0, negated || prefix ? eq - 1 : eq).trim();
+                final String value = condition.substring(eq + 1).trim();
+                if (column.isEmpty()) {
+                    throw new IllegalArgumentException(String.format("Malformed filter condition '%1$s'", condition));
+                }
+
+                if (prefix) {
+                    pipeline.filter(column, v -> v.trim().regionMatches(true, 0, value, 0, value.length()));
+                } else if (negated) {
+                    pipeline.filter(column, v -> !v.trim().equalsIgnoreCase(value));
+                } else {
+                    pipeline.filter(column, v -> v.trim().equalsIgnoreCase(value));
+                }
+            }
+        }
+
+        if (distinct != null && !distinct.trim().isEmpty()) {
+            pipeline.distinct(distinct.trim().equals("*") ? new String[0] : splitList(distinct));
+        }
+
+        if (columns != null && !columns.trim().isEmpty()) {
+            pipeline.project(splitList(columns));
+        }
+
+        if (rename != null) {
+            for (String pair : splitList(rename)) {
+                int eq = pair.indexOf('=');
+                if (eq <= 0 || eq == pair.length() - 1) {
+                    throw new IllegalArgumentException(String.format("Malformed rename '%1$s'", pair));
+                }
+                pipeline.rename(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+            }
+        }
+
+        return pipeline;
+    }
+}
@@ -0,0 +1,341 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.server.MineralTenementServiceProviderType;
+import org.auscope.portal.server.domain.xml.GMLGeoJSONTranscoder;
+
+/**
+ * Evaluates the mineral tenement download predicates (name, type, owner, status and bbox/polygon) locally as
+ * CSVPipeline operators, for providers (ArcGIS) that ignore OGC filters and return every tenement.
+ *
+ * Text predicates follow the OGC PropertyIsLike filters the portal sends to other providers - case insensitive with
+ * * as a wildcard and an implicit wildcard at either end. Spatial predicates test whether the WKT geometry column
+ * intersects the bbox/polygon (coordinates are compared as is, so both must use the same lon/lat axis order).
+ *
+ * A name, owner or bbox/polygon predicate whose column isn't in the CSV fails the download (CSVPipeline.bind throws) rather
+ * than silently returning unfiltered tenements. The type/status column names haven't been confirmed against every ArcGIS
+ * provider (see MineralTenementServiceProviderType) so those predicates are skipped (with a warning) if their column is missing.
+ */
+public class MineralTenementLocalFilter {
+
+    private static final Log log = LogFactory.getLog(MineralTenementLocalFilter.class);
+
+    private static final Pattern WKT_RING = Pattern.compile("\\(([^()]*)\\)");
+    private static final Pattern GML_COORDINATES = Pattern.compile("<(?:[\\w-]+:)?(?:posList|coordinates|pos)\\b[^>]*>([^<]*)<", Pattern.CASE_INSENSITIVE);
+    private static final Pattern GML_POLYGON = Pattern.compile("<(?:[\\w-]+:)?Polygon\\b.*?</(?:[\\w-]+:)?Polygon>", Pattern.DOTALL);
+    private static final Pattern SRS_NAME = Pattern.compile("srsName\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    /**
+     * A set of rings (or lines/points) with a bounding envelope
+     */
+    static class Shape {
+        private List<double[]> rings = new ArrayList<double[]>();
+        private boolean polygonal;
+        private double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        private double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+
+        Shape(boolean polygonal) {
+            this.polygonal = polygonal;
+        }
+
+        /**
+         * @param xy x0,y0,x1,y1... (polygon rings should repeat their first point)
+         */
+        void addRing(double[] xy) {
+            if (xy.length < 2) {
+                return;
+            }
+            rings.add(xy);
+            for (int i = 0; i < xy.length; i += 2) {
+                minX = Math.min(minX, xy[i]);
+                maxX = Math.max(maxX, xy[i]);
+                minY = Math.min(minY, xy[i + 1]);
+                maxY = Math.max(maxY, xy[i + 1]);
+            }
+        }
+
+        boolean isEmpty() {
+            return rings.isEmpty();
+        }
+
+        /**
+         * Even-odd point in polygon test over every ring (so holes and multi polygons are handled)
+         */
+        boolean contains(double x, double y) {
+            if (!polygonal || x < minX || x > maxX || y < minY || y > maxY) {
+                return false;
+            }
+            boolean inside = false;
+            for (double[] ring : rings) {
+                for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+                    if ((ring[i + 1] > y) != (ring[j + 1] > y)
+                            && x < (ring[j] - ring[i]) * (y - ring[i + 1]) / (ring[j + 1] - ring[i + 1]) + ring[i]) {
+                        inside = !inside;
+                    }
+                }
+            }
+            return inside;
+        }
+
+        /**
+         * True if this shape and other share at least one point. Single point rings are treated as zero length segments
+         */
+        boolean intersects(Shape other) {
+            if (isEmpty() || other.isEmpty() || maxX < other.minX || other.maxX < minX || maxY < other.minY || other.maxY < minY) {
+                return false;
+            }
+            if (containsAnyVertex(other) || other.containsAnyVertex(this)) {
+                return true;
+            }
+            for (double[] a : rings) {
+                for (double[] b : other.rings) {
+                    for (int i = 0; i == 0 || i + 3 < a.length; i += 2) {
+                        int ai = Math.min(i + 2, a.length - 2);
+                        for (int j = 0; j == 0 || j + 3 < b.length; j += 2) {
+                            int bj = Math.min(j + 2, b.length - 2);
+                            if (segmentsIntersect(a[i], a[i + 1], a[ai], a[ai + 1], b[j], b[j + 1], b[bj], b[bj + 1])) {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean containsAnyVertex(Shape other) {
+            if (!polygonal) {
+                return false;
+            }
+            for (double[] ring : other.rings) {
+                for (int i = 0; i < ring.length; i += 2) {
+                    if (contains(ring[i], ring[i + 1])) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    private static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+        return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+    }
+
+    private static boolean onSegment(double px, double py, double ax, double ay, double bx, double by) {
+        return Math.min(ax, bx) <= px && px <= Math.max(ax, bx) && Math.min(ay, by) <= py && py <= Math.max(ay, by);
+    }
+
+    static boolean segmentsIntersect(double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy) {
+        double d1 = cross(cx, cy, dx, dy, ax, ay);
+        double d2 = cross(cx, cy, dx, dy, bx, by);
+        double d3 = cross(ax, ay, bx, by, cx, cy);
+        double d4 = cross(ax, ay, bx, by, dx, dy);
+        if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0))) {
+            return true;
+        }
+        return (d1 == 0 && onSegment(ax, ay, cx, cy, dx, dy)) || (d2 == 0 && onSegment(bx, by, cx, cy, dx, dy))
+                || (d3 == 0 && onSegment(cx, cy, ax, ay, bx, by)) || (d4 == 0 && onSegment(dx, dy, ax, ay, bx, by));
+    }
+
+    /**
+     * Parses a whitespace/comma separated list of coordinate pairs into x0,y0,x1,y1...
+     */
+    private static double[] parseCoordinates(String text, boolean swapAxes) {
+        String[] parts = text.trim().split("[\\s,]+");
+        double[] xy = new double[(parts.length / 2) * 2];
+        for (int i = 0; i < xy.length; i += 2) {
+            double first = Double.parseDouble(parts[i]);
+            double second = Double.parseDouble(parts[i + 1]);
+            xy[i] = swapAxes ? second : first;
+            xy[i + 1] = swapAxes ? first : second;
+        }
+        return xy;
+    }
+
+    /**
+     * Parses a WKT geometry (any 2D type, Z/M ordinates aren't supported)
+     *
+     * @return The shape or null if wkt is empty or can't be parsed
+     */
+    static Shape parseWKT(String wkt) {
+        String trimmed = wkt.trim().toUpperCase();
+        if (trimmed.isEmpty() || trimmed.endsWith("EMPTY")) {
+            return null;
+        }
+
+        try {
+            Shape shape = new Shape(trimmed.startsWith("POLYGON") || trimmed.startsWith("MULTIPOLYGON"));
+            Matcher m = WKT_RING.matcher(trimmed);
+            while (m.find()) {
+                shape.addRing(parseCoordinates(m.group(1), false));
+            }
+            return shape.isEmpty() ? null : shape;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses every gml:Polygon (or failing that every coordinate list) of an OGC filter into a single polygonal shape
+     *
+     * @throws IllegalArgumentException If filter has no coordinates
+     */
+    static Shape parseFilterPolygon(String filter) {
+        Matcher srs = SRS_NAME.matcher(filter);
+        boolean swapAxes = srs.find() && GMLGeoJSONTranscoder.isLatLonOrder(srs.group(1));
+
+        Shape shape = new Shape(true);
+        Matcher polygons = GML_POLYGON.matcher(filter);
+        boolean anyPolygon = false;
+        while (polygons.find()) {
+            anyPolygon = true;
+            addCoordinates(shape, polygons.group(), swapAxes);
+        }
+        if (!anyPolygon) {
+            addCoordinates(shape, filter, swapAxes);
+        }
+        if (shape.isEmpty()) {
+            throw new IllegalArgumentException("Filter has no polygon coordinates");
+        }
+        return shape;
+    }
+
+    private static void addCoordinates(Shape shape, String gml, boolean swapAxes) {
+        Matcher m = GML_COORDINATES.matcher(gml);
+        while (m.find()) {
+            shape.addRing(parseCoordinates(m.group(1), swapAxes));
+        }
+    }
+
+    static Shape fromBoundingBox(FilterBoundingBox bbox) {
+        double[] lower = bbox.getLowerCornerPoints();
+        double[] upper = bbox.getUpperCornerPoints();
+        Shape shape = new Shape(true);
+        shape.addRing(new double[] {lower[0], lower[1], upper[0], lower[1], upper[0], upper[1], lower[0], upper[1], lower[0], lower[1]});
+        return shape;
+    }
+
+    /**
+     * Builds a (case insensitive) predicate equivalent to an OGC PropertyIsLike match against *value*
+     */
+    static Predicate<String> like(String value) {
+        StringBuilder regex = new StringBuilder(".*");
+        for (String part : value.trim().split("\\*", -1)) {
+            if (!part.isEmpty()) {
+                regex.append(Pattern.quote(part));
+            }
+            regex.append(".*");
+        }
+        Pattern pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+        return v -> pattern.matcher(v).matches();
+    }
+
+    /**
+     * Finds the column for a (possibly namespace prefixed) field, ignoring case and the prefix
+     *
+     * @return The index of the column or -1 if there is no such column
+     */
+    public static int findColumn(String[] header, String field) {
+        String local = field.substring(field.indexOf(':') + 1);
+        for (int i = 0; i < header.length; i++) {
+            String column = header[i].substring(header[i].indexOf(':') + 1);
+            if (header[i].equalsIgnoreCase(field) || column.equalsIgnoreCase(local)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An operator that drops rows whose field value fails predicate
+     *
+     * @param required If true binding fails if there is no such column, otherwise the operator passes every row
+     */
+    private static CSVPipeline.RowOperator filter(final String field, final boolean required, final Predicate<String> predicate) {
+        return new CSVPipeline.RowOperator() {
+            private int index;
+
+            @Override
+            public String[] bind(String[] header) throws IOException {
+                index = findColumn(header, field);
+                if (index < 0) {
+                    if (required) {
+                        throw new IOException(String.format("Unable to filter tenements locally - CSV has no column '%1$s'", field));
+                    }
+                    log.warn(String.format("Not filtering tenements on '%1$s' - CSV has no such column", field));
+                }
+                return header;
+            }
+
+            @Override
+            public String[] apply(String[] row) {
+                if (index < 0) {
+                    return row;
+                }
+                String value = row[index];
+                return predicate.test(value == null ? "" : value) ? row : null;
+            }
+        };
+    }
+
+    private static void addLike(CSVPipeline pipeline, String field, boolean required, String value) {
+        if (value != null && !value.trim().isEmpty()) {
+            pipeline.then(filter(field, required, like(value)));
+        }
+    }
+
+    /**
+     * Builds a pipeline that only passes the tenements matching every specified predicate
+     *
+     * @param type Identifies the column names
+     * @param name [Optional] Tenement name (like)
+     * @param tenementType [Optional] Tenement type (like)
+     * @param owner [Optional] Tenement owner (like)
+     * @param status [Optional] Tenement status (like)
+     * @param bbox [Optional] Only tenements intersecting this box
+     * @param polygonFilter [Optional] Only tenements intersecting the gml:Polygon(s) of this OGC filter
+     * @return A pipeline that fails to bind (with an IOException) if the CSV lacks the name, owner or shape column of a specified predicate
+     * @throws IllegalArgumentException If polygonFilter has no coordinates
+     */
+    public static CSVPipeline build(MineralTenementServiceProviderType type, String name, String tenementType, String owner,
+            String status, FilterBoundingBox bbox, String polygonFilter) {
+        CSVPipeline pipeline = new CSVPipeline();
+        addLike(pipeline, type.nameField(), true, name);
+        addLike(pipeline, type.typeField(), false, tenementType);
+        addLike(pipeline, type.ownerField(), true, owner);
+        addLike(pipeline, type.statusField(), false, status);
+
+        List<Shape> areas = new ArrayList<Shape>();
+        if (bbox != null) {
+            areas.add(fromBoundingBox(bbox));
+        }
+        if (polygonFilter != null && !polygonFilter.isEmpty()) {
+            areas.add(parseFilterPolygon(polygonFilter));
+        }
+        if (!areas.isEmpty()) {
+            pipeline.then(filter(type.shapeField(), true, wkt -> {
+                Shape shape = parseWKT(wkt);
+                if (shape == null) {
+                    return false;
+                }
+                for (Shape area : areas) {
+                    if (!shape.intersects(area)) {
+                        return false;
+                    }
+                }
+                return true;
+            }));
+        }
+        return pipeline;
+    }
+}
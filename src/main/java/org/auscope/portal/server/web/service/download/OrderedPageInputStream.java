@@ -0,0 +1,219 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Concatenates the pages of a CSV download (each spooled to its own file by a concurrently running download) into
+ * a single stream, in page order. Reading blocks until the next page is available so earlier pages are streamed
+ * while later pages are still downloading.
+ *
+ * At most maxInFlight pages are started (or downloaded but not yet read) at any time - the remaining pages are only
+ * started as earlier pages are read. This bounds both the requests queued against a service and the disk used. As the
+ * client paces the download, the timeout applies to each page (from when it was started) rather than the whole stream.
+ *
+ * Every page is expected to start with the same header line - only the first page's header is kept.
+ *
+ * Closing this stream cancels any outstanding downloads and deletes every page file.
+ */
+public class OrderedPageInputStream extends InputStream {
+
+    /**
+     * Starts the download of a single page
+     */
+    public interface PageLoader {
+        /**
+         * @param page The (zero based) index of the page to download
+         * @param file Where the page should be spooled to
+         * @return The pending download, returning file once it has completed
+         * @throws Exception
+         */
+        Future<File> load(int page, File file) throws Exception;
+    }
+
+    private int pageCount;
+    private int maxInFlight;
+    private PageLoader loader;
+    private File spoolDir;
+    private List<Future<File>> pages = new ArrayList<Future<File>>();
+    private List<File> pageFiles = new ArrayList<File>();
+    /** When each page was started (System.nanoTime) */
+    private List<Long> startNanos = new ArrayList<Long>();
+    private long timeoutNanos;
+    private Runnable onClose;
+    private int nextPage = 0;
+    private InputStream current;
+    private int lastByte = '\n';
+    private boolean closed = false;
+
+    /**
+     * Starts downloading the first maxInFlight pages
+     *
+     * @param pageCount The number of pages
+     * @param maxInFlight The maximum number of pages started but not yet read
+     * @param loader Starts the download of each page
+     * @param spoolDir [Optional] Where page files will be created (java.io.tmpdir if null)
+     * @param timeoutMillis The maximum time to wait for each page to download (from when that page was started)
+     * @param onClose [Optional] Run when this stream is closed (eg - to abort outstanding requests)
+     * @throws IOException If the first pages couldn't be started (any started pages will have been cancelled)
+     */
+    public OrderedPageInputStream(int pageCount, int maxInFlight, PageLoader loader, File spoolDir, long timeoutMillis, Runnable onClose)
+            throws IOException {
+        this.pageCount = pageCount;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.loader = loader;
+        this.spoolDir = spoolDir;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.onClose = onClose;
+
+        try {
+            startPages();
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Starts pages until there are maxInFlight pages that haven't been read
+     */
+    private void startPages() throws IOException {
+        while (pages.size() < pageCount && pages.size() - nextPage < maxInFlight) {
+            File file = spoolDir == null ? File.createTempFile("wfs-page", ".csv") : File.createTempFile("wfs-page", ".csv", spoolDir);
+            pageFiles.add(file);
+            try {
+                startNanos.add(System.nanoTime());
+                pages.add(loader.load(pages.size(), file));
+            } catch (IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException(String.format("Unable to start page %1$d of %2$d: %3$s", pages.size() + 1, pageCount, ex), ex);
+            }
+        }
+    }
+
+    /**
+     * Skips up to (and including) the first new line of is
+     */
+    private static void skipLine(InputStream is) throws IOException {
+        int b;
+        while ((b = is.read()) >= 0 && b != '\n') {
+            //skipping
+        }
+    }
+
+    /**
+     * Blocks until the next page has downloaded and opens it
+     * @return false if there are no more pages
+     */
+    private boolean openNextPage() throws IOException {
+        if (nextPage >= pageCount) {
+            return false;
+        }
+
+        File file;
+        try {
+            long remainingNanos = startNanos.get(nextPage) + timeoutNanos - System.nanoTime();
+            file = pages.get(nextPage).get(remainingNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for page " + nextPage);
+        } catch (TimeoutException ex) {
+            throw new IOException(String.format("Timed out waiting for page %1$d of %2$d", nextPage + 1, pageCount), ex);
+        } catch (CancellationException ex) {
+            throw new IOException(String.format("Page %1$d of %2$d was cancelled", nextPage + 1, pageCount), ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(String.format("Unable to download page %1$d of %2$d: %3$s", nextPage + 1, pageCount, ex.getCause()), ex.getCause());
+        }
+
+        current = new BufferedInputStream(Files.newInputStream(file.toPath()));
+        if (nextPage > 0) {
+            skipLine(current);
+        }
+        nextPage++;
+        startPages();
+        return true;
+    }
+
+    /**
+     * Closes (and deletes) the page currently being read
+     */
+    private void closeCurrentPage() throws IOException {
+        current.close();
+        current = null;
+        Files.deleteIfExists(pageFiles.get(nextPage - 1).toPath());
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        while (true) {
+            if (current == null && !openNextPage()) {
+                return -1;
+            }
+
+            int count = current.read(b, off, len);
+            if (count >= 0) {
+                if (count > 0) {
+                    lastByte = b[off + count - 1];
+                }
+                return count;
+            }
+            closeCurrentPage();
+
+            //Don't let a page without a trailing new line run into the next page
+            if (lastByte != '\n' && nextPage < pageCount) {
+                lastByte = '\n';
+                b[off] = '\n';
+                return 1;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            for (Future<File> page : pages) {
+                page.cancel(true);
+            }
+            if (onClose != null) {
+                onClose.run();
+            }
+            if (current != null) {
+                current.close();
+            }
+        } finally {
+            for (File file : pageFiles) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+}
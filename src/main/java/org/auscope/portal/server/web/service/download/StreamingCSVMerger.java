@@ -0,0 +1,233 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.CSVWriter;
+import com.opencsv.ICSVWriter;
+import com.opencsv.RFC4180ParserBuilder;
+import com.opencsv.exceptions.CsvValidationException;
+
+/**
+ * Merges the CSV responses of a number of providers into a single CSV (with a single header line) written to an output stream.
+ *
+ * Providers don't always expose the same attributes (or expose them in the same order) so the output schema is the union
+ * of every provider's columns (in the order they were first seen) and each row is written against it by column name.
+ * Providers without any data rows don't contribute columns.
+ *
+ * The header can't be written until every provider's columns are known so rows are never held in memory. As each provider
+ * is added its rows are reconciled against the schema so far and appended to a temporary spool file. When the merge is
+ * finished the union header is written exactly once followed by the spooled rows. Because the schema only ever grows by
+ * appending columns the spool can be copied to the output byte for byte, it's only re-parsed (to pad the rows spooled
+ * before them) if a later provider added columns.
+ */
+public class StreamingCSVMerger implements Closeable {
+
+    private static final String BOM = "\uFEFF";
+
+    private OutputStream os;
+    private File spoolDir;
+    private File spoolFile;
+    private ICSVWriter spoolWriter;
+    private List<String> columns = new ArrayList<String>();
+    private Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+    private long rowCount = 0;
+    /** The number of columns when the first row was spooled */
+    private int firstSpooledWidth = -1;
+    private boolean finished = false;
+
+    /**
+     * Creates a new merger writing to os that spools to java.io.tmpdir
+     * @param os Will be flushed by finish but NOT closed
+     */
+    public StreamingCSVMerger(OutputStream os) {
+        this(os, null);
+    }
+
+    /**
+     * @param os Will be flushed by finish but NOT closed
+     * @param spoolDir [Optional] Where the spool file will be created (java.io.tmpdir if null)
+     */
+    public StreamingCSVMerger(OutputStream os, File spoolDir) {
+        this.os = os;
+        this.spoolDir = spoolDir;
+    }
+
+    private static CSVReader newReader(Reader reader) {
+        return new CSVReaderBuilder(reader).withCSVParser(new RFC4180ParserBuilder().build()).build();
+    }
+
+    private static ICSVWriter newWriter(Writer writer) {
+        return new CSVWriter(writer, ICSVWriter.DEFAULT_SEPARATOR, ICSVWriter.DEFAULT_QUOTE_CHARACTER,
+                ICSVWriter.DEFAULT_ESCAPE_CHARACTER, ICSVWriter.DEFAULT_LINE_END);
+    }
+
+    private static boolean isBlank(String[] row) {
+        return row.length == 1 && row[0].trim().isEmpty();
+    }
+
+    /**
+     * The merged header (so far)
+     * @return
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    /**
+     * The number of data rows merged (so far)
+     * @return
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Gets the index of column in the merged schema, appending it if necessary
+     */
+    private int indexOf(String column) {
+        Integer index = columnIndexes.get(column);
+        if (index == null) {
+            index = columns.size();
+            columns.add(column);
+            columnIndexes.put(column, index);
+        }
+        return index;
+    }
+
+    /**
+     * Merges a single provider's CSV response (which must start with a header line). Its rows are spooled until finish.
+     *
+     * @param csv The UTF-8 CSV response. Will NOT be closed by this method
+     * @return The number of data rows merged from csv
+     * @throws IOException
+     */
+    public long add(InputStream csv) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("The merge has already been finished");
+        }
+
+        CSVReader reader = newReader(new InputStreamReader(csv, StandardCharsets.UTF_8));
+        try {
+            String[] header = reader.readNext();
+            if (header == null) {
+                return 0;
+            }
+            if (header.length > 0 && header[0].startsWith(BOM)) {
+                header[0] = header[0].substring(BOM.length());
+            }
+
+            //Columns are only mapped (and added to the schema) once we know this provider has data
+            int[] mapping = null;
+            long added = 0;
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                if (isBlank(row)) {
+                    continue;
+                }
+
+                if (mapping == null) {
+                    mapping = new int[header.length];
+                    for (int i = 0; i < header.length; i++) {
+                        mapping[i] = indexOf(header[i].trim());
+                    }
+                }
+
+                String[] reconciled = new String[columns.size()];
+                for (int i = 0; i < mapping.length && i < row.length; i++) {
+                    reconciled[mapping[i]] = row[i];
+                }
+                spool(reconciled);
+                added++;
+            }
+
+            return added;
+        } catch (CsvValidationException ex) {
+            throw new IOException("Malformed CSV: " + ex.getMessage(), ex);
+        }
+    }
+
+    private void spool(String[] row) throws IOException {
+        if (spoolWriter == null) {
+            spoolFile = spoolDir == null ? File.createTempFile("csv-merge", ".csv") : File.createTempFile("csv-merge", ".csv", spoolDir);
+            spoolWriter = newWriter(new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(spoolFile.toPath()), StandardCharsets.UTF_8)));
+            firstSpooledWidth = row.length;
+        }
+
+        spoolWriter.writeNext(row, false);
+        rowCount++;
+    }
+
+    /**
+     * Writes the merged header and every merged row to the output. Nothing is written if no provider had any data. No
+     * further providers can be added after this.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        if (rowCount == 0) {
+            return;
+        }
+
+        spoolWriter.flush();
+        ICSVWriter output = newWriter(new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8)));
+        output.writeNext(columns.toArray(new String[columns.size()]), false);
+        output.flush();
+
+        if (firstSpooledWidth == columns.size()) {
+            //Every spooled row was written against the final schema
+            Files.copy(spoolFile.toPath(), os);
+        } else {
+            //Rows spooled before later providers added columns need padding
+            try (CSVReader reader = newReader(new InputStreamReader(Files.newInputStream(spoolFile.toPath()), StandardCharsets.UTF_8))) {
+                String[] row;
+                while ((row = reader.readNext()) != null) {
+                    output.writeNext(row.length == columns.size() ? row : Arrays.copyOf(row, columns.size()), false);
+                }
+            } catch (CsvValidationException ex) {
+                throw new IOException("Malformed spool file: " + ex.getMessage(), ex);
+            }
+            output.flush();
+        }
+
+        os.flush();
+    }
+
+    /**
+     * Deletes the spool file (the output is NOT closed)
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (spoolWriter != null) {
+                spoolWriter.close();
+            }
+        } finally {
+            if (spoolFile != null) {
+                Files.deleteIfExists(spoolFile.toPath());
+            }
+        }
+    }
+}
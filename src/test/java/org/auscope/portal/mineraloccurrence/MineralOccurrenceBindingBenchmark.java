@@ -0,0 +1,208 @@
+package org.auscope.portal.mineraloccurrence;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathFactory;
+
+import org.auscope.portal.core.util.DOMUtil;
+import org.auscope.portal.core.util.ResourceUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * JMH comparison of reading every value of the Commodity, Mine and MineralOccurrence wrappers from an ERML response:
+ *
+ * uncompiled - DOM wrappers evaluated the way the getters used to (a new XPathFactory and compile per getter call)
+ * compiled - DOM wrappers using the thread local compiled expressions
+ * stax - MineralOccurrenceStreamParser
+ *
+ * The large fixtures are built by repeating the features of the recorded MineralOccurrenceService getFeature responses
+ * recordCount times. The JDK XPath implementation walks the entire owner document whenever it evaluates against a node
+ * so the DOM benchmarks grow quadratically with recordCount - larger responses are only practical with stax.
+ *
+ * Run with main() (or org.openjdk.jmh.Main against the test classpath) - this is not part of the unit tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MineralOccurrenceBindingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int recordCount;
+
+    private byte[] commodities;
+    private byte[] mines;
+    private byte[] mineralOccurrences;
+
+    /**
+     * Repeats everything between the first recordStart and the last recordsEnd
+     */
+    private static byte[] repeatRecords(String fixture, String recordStart, String recordsEnd, int count) {
+        int start = fixture.indexOf(recordStart);
+        int end = fixture.lastIndexOf(recordsEnd);
+        String records = fixture.substring(start, end);
+
+        StringBuilder sb = new StringBuilder(fixture.substring(0, start));
+        for (int i = 0; i < count; i++) {
+            sb.append(records);
+        }
+        sb.append(fixture.substring(end));
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Evaluates expression against node the way the wrapper getters used to
+     */
+    private static Object uncompiled(Node node, String expression, QName returnType) throws Exception {
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        xPath.setNamespaceContext(new MineralOccurrenceNamespaceContext());
+        return xPath.compile(expression).evaluate(node, returnType);
+    }
+
+    private static NodeList features(byte[] xml, String expression) throws Exception {
+        Document doc = DOMUtil.buildDomFromStream(new ByteArrayInputStream(xml));
+        XPathExpression expr = DOMUtil.compileXPathExpr(expression, new MineralOccurrenceNamespaceContext());
+        return (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        commodities = repeatRecords(ResourceUtil.loadResourceAsString("org/auscope/portal/erml/commodity/commodityGetFeatureResponse.xml"),
+                "<gml:featureMember>", "</wfs:FeatureCollection>", recordCount / 2);
+        mines = repeatRecords(ResourceUtil.loadResourceAsString("org/auscope/portal/erml/mine/mineGetFeatureResponse.xml"),
+                "<er:MiningFeatureOccurrence", "</gml:featureMembers>", recordCount / 2);
+        mineralOccurrences = repeatRecords(ResourceUtil.loadResourceAsString("org/auscope/portal/erml/minocc/mineralOccurrenceNodeWithReserveAndResource.xml"),
+                "<gml:featureMember>", "</wfs:FeatureCollection>", recordCount);
+    }
+
+    @Benchmark
+    public void uncompiledCommodities(Blackhole bh) throws Exception {
+        NodeList nodes = features(commodities, "//er:Commodity");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            bh.consume(uncompiled(node, "gml:name", XPathConstants.NODESET));
+            bh.consume(uncompiled(node, "er:commodityName", XPathConstants.NODE));
+            bh.consume(uncompiled(node, "er:commodityImportance", XPathConstants.NODE));
+            bh.consume(uncompiled(node, "er:source", XPathConstants.NODE));
+        }
+    }
+
+    @Benchmark
+    public void compiledCommodities(Blackhole bh) throws Exception {
+        NodeList nodes = features(commodities, "//er:Commodity");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Commodity commodity = new Commodity(nodes.item(i));
+            bh.consume(commodity.getName());
+            bh.consume(commodity.getCommodityName());
+            bh.consume(commodity.getCommodityImportance());
+            bh.consume(commodity.getSource());
+        }
+    }
+
+    @Benchmark
+    public void staxCommodities(Blackhole bh) throws Exception {
+        for (Commodity commodity : MineralOccurrenceStreamParser.parseCommodities(new ByteArrayInputStream(commodities))) {
+            bh.consume(commodity.getName());
+            bh.consume(commodity.getCommodityName());
+            bh.consume(commodity.getCommodityImportance());
+            bh.consume(commodity.getSource());
+        }
+    }
+
+    @Benchmark
+    public void uncompiledMines(Blackhole bh) throws Exception {
+        NodeList nodes = features(mines, "//er:Mine");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            bh.consume(uncompiled(node, "er:mineName/er:MineName/er:isPreferred", XPathConstants.NODESET));
+            bh.consume(uncompiled(node, "er:mineName/er:MineName/er:mineName", XPathConstants.NODESET));
+            bh.consume(uncompiled(node, "er:occurrence/er:MiningFeatureOccurrence/er:specification", XPathConstants.NODE));
+            bh.consume(uncompiled(node, "er:relatedActivity/er:MiningActivity/er:occurrence/@xlink:href", XPathConstants.NODESET));
+            bh.consume(uncompiled(node, "er:occurrence/er:MiningFeatureOccurrence/er:specification/@xlink:href[starts-with(., '#')]", XPathConstants.NODESET));
+        }
+    }
+
+    @Benchmark
+    public void compiledMines(Blackhole bh) throws Exception {
+        NodeList nodes = features(mines, "//er:Mine");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Mine mine = new Mine(nodes.item(i));
+            bh.consume(mine.getMineNamePreffered());
+            bh.consume(mine.getMineNameURI());
+            bh.consume(mine.getRelatedActivities());
+            bh.consume(mine.getRelatedMiningActivities());
+        }
+    }
+
+    @Benchmark
+    public void staxMines(Blackhole bh) throws Exception {
+        for (Mine mine : MineralOccurrenceStreamParser.parseMines(new ByteArrayInputStream(mines))) {
+            bh.consume(mine.getMineNamePreffered());
+            bh.consume(mine.getMineNameURI());
+            bh.consume(mine.getRelatedActivities());
+            bh.consume(mine.getRelatedMiningActivities());
+        }
+    }
+
+    @Benchmark
+    public void uncompiledMineralOccurrences(Blackhole bh) throws Exception {
+        NodeList nodes = features(mineralOccurrences, "//er:MineralOccurrence");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            bh.consume(uncompiled(node, "gml:name", XPathConstants.NODESET));
+            bh.consume(uncompiled(node, "er:type", XPathConstants.NODE));
+            bh.consume(uncompiled(node, "er:classification/er:MineralDepositModel/er:mineralDepositGroup", XPathConstants.NODE));
+            bh.consume(uncompiled(node, "er:commodityDescription", XPathConstants.NODESET));
+        }
+    }
+
+    @Benchmark
+    public void compiledMineralOccurrences(Blackhole bh) throws Exception {
+        NodeList nodes = features(mineralOccurrences, "//er:MineralOccurrence");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            MineralOccurrence mineralOccurrence = new MineralOccurrence(nodes.item(i));
+            bh.consume(mineralOccurrence.getURN());
+            bh.consume(mineralOccurrence.getType());
+            bh.consume(mineralOccurrence.getMineralDepositGroup());
+            bh.consume(mineralOccurrence.getCommodityDescriptionURNs());
+        }
+    }
+
+    @Benchmark
+    public void staxMineralOccurrences(Blackhole bh) throws Exception {
+        for (MineralOccurrence mineralOccurrence : MineralOccurrenceStreamParser.parseMineralOccurrences(new ByteArrayInputStream(mineralOccurrences))) {
+            bh.consume(mineralOccurrence.getURN());
+            bh.consume(mineralOccurrence.getType());
+            bh.consume(mineralOccurrence.getMineralDepositGroup());
+            bh.consume(mineralOccurrence.getCommodityDescriptionURNs());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(MineralOccurrenceBindingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
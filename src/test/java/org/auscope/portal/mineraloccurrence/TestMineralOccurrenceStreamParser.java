@@ -0,0 +1,147 @@
+package org.auscope.portal.mineraloccurrence;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.DOMUtil;
+import org.auscope.portal.core.util.ResourceUtil;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+/**
+ * Unit tests for MineralOccurrenceStreamParser
+ */
+public class TestMineralOccurrenceStreamParser extends PortalTestClass {
+
+    private static final String LOCAL_MINE = "<er:Mine xmlns:er=\"urn:cgi:xmlns:GGIC:EarthResource:1.1\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">"
+            + "<er:occurrence><er:MiningFeatureOccurrence><er:specification xlink:href=\"urn:cgi:feature:GSV:Mine:1\"/></er:MiningFeatureOccurrence></er:occurrence>"
+            + "<er:occurrence><er:MiningFeatureOccurrence><er:specification xlink:href=\"#er.mine.361023\"/></er:MiningFeatureOccurrence></er:occurrence>"
+            + "<er:mineName><er:MineName><er:isPreferred>false</er:isPreferred><er:mineName>First</er:mineName></er:MineName></er:mineName>"
+            + "<er:mineName><er:MineName><er:isPreferred>false</er:isPreferred><er:mineName>Second</er:mineName></er:MineName></er:mineName>"
+            + "</er:Mine>";
+
+    /**
+     * Evaluates expression against a fixture (or xml if it isn't a resource path)
+     */
+    private static NodeList domNodes(String resource, String expression) throws Exception {
+        Document doc = DOMUtil.buildDomFromStream(resource.startsWith("<")
+                ? new ByteArrayInputStream(resource.getBytes(StandardCharsets.UTF_8))
+                : ResourceUtil.loadResourceAsStream(resource));
+        XPathExpression expr = DOMUtil.compileXPathExpr(expression, new MineralOccurrenceNamespaceContext());
+        return (NodeList) expr.evaluate(doc, XPathConstants.NODESET);
+    }
+
+    private static List<Commodity> domCommodities(String resource) throws Exception {
+        NodeList nodes = domNodes(resource, "//er:Commodity");
+        List<Commodity> commodities = new ArrayList<Commodity>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            commodities.add(new Commodity(nodes.item(i)));
+        }
+        return commodities;
+    }
+
+    private static List<Mine> domMines(String resource) throws Exception {
+        NodeList nodes = domNodes(resource, "//er:Mine");
+        List<Mine> mines = new ArrayList<Mine>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            mines.add(new Mine(nodes.item(i)));
+        }
+        return mines;
+    }
+
+    private static List<MineralOccurrence> domMineralOccurrences(String resource) throws Exception {
+        NodeList nodes = domNodes(resource, "//er:MineralOccurrence");
+        List<MineralOccurrence> mineralOccurrences = new ArrayList<MineralOccurrence>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            mineralOccurrences.add(new MineralOccurrence(nodes.item(i)));
+        }
+        return mineralOccurrences;
+    }
+
+    /**
+     * Tests commodities bind to the same values as their DOM wrappers
+     */
+    @Test
+    public void testParseCommodities() throws Exception {
+        for (String resource : new String[] {"org/auscope/portal/erml/commodity/commodityGetFeatureResponse.xml",
+                "org/auscope/portal/erml/commodity/commodityNodeValid.xml",
+                "org/auscope/portal/erml/commodity/commodityNodeInvalid.xml"}) {
+            List<Commodity> expected = domCommodities(resource);
+            List<Commodity> actual = MineralOccurrenceStreamParser.parseCommodities(ResourceUtil.loadResourceAsStream(resource));
+
+            Assert.assertEquals(resource, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(resource, expected.get(i).getName(), actual.get(i).getName());
+                Assert.assertEquals(resource, expected.get(i).getCommodityName(), actual.get(i).getCommodityName());
+                Assert.assertEquals(resource, expected.get(i).getCommodityImportance(), actual.get(i).getCommodityImportance());
+                Assert.assertEquals(resource, expected.get(i).getSource(), actual.get(i).getSource());
+            }
+        }
+
+        List<Commodity> commodities = MineralOccurrenceStreamParser.parseCommodities(ResourceUtil.loadResourceAsStream("org/auscope/portal/erml/commodity/commodityGetFeatureResponse.xml"));
+        Assert.assertEquals(2, commodities.size());
+        Assert.assertEquals("Gold", commodities.get(1).getCommodityName());
+        Assert.assertEquals("urn:cgi:feature:GSV:MineralOccurrence:361170", commodities.get(1).getSource());
+    }
+
+    /**
+     * Tests mines (including those nested inside other features) bind to the same values as their DOM wrappers
+     */
+    @Test
+    public void testParseMines() throws Exception {
+        for (String resource : new String[] {"org/auscope/portal/erml/mine/mineGetFeatureResponse.xml",
+                "org/auscope/portal/erml/mine/mineNode.xml",
+                LOCAL_MINE}) {
+            List<Mine> expected = domMines(resource);
+            List<Mine> actual = MineralOccurrenceStreamParser.parseMines(resource.startsWith("<")
+                    ? new ByteArrayInputStream(resource.getBytes(StandardCharsets.UTF_8))
+                    : ResourceUtil.loadResourceAsStream(resource));
+
+            Assert.assertEquals(resource, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(resource, expected.get(i).getMineNamePreffered(), actual.get(i).getMineNamePreffered());
+                Assert.assertEquals(resource, expected.get(i).getMineNameURI(), actual.get(i).getMineNameURI());
+                Assert.assertEquals(resource, expected.get(i).getRelatedActivities(), actual.get(i).getRelatedActivities());
+                Assert.assertEquals(resource, expected.get(i).getRelatedMiningActivities(), actual.get(i).getRelatedMiningActivities());
+            }
+        }
+
+        List<Mine> mines = MineralOccurrenceStreamParser.parseMines(new ByteArrayInputStream(LOCAL_MINE.getBytes(StandardCharsets.UTF_8)));
+        Assert.assertEquals("First", mines.get(0).getMineNamePreffered());
+        Assert.assertEquals("urn:cgi:feature:GSV:Mine:1", mines.get(0).getMineNameURI());
+        Assert.assertEquals(List.of("#er.mine.361023"), mines.get(0).getRelatedMiningActivities());
+    }
+
+    /**
+     * Tests mineral occurrences bind to the same values as their DOM wrappers
+     */
+    @Test
+    public void testParseMineralOccurrences() throws Exception {
+        for (String resource : new String[] {"org/auscope/portal/erml/minocc/mineralOccurrenceNodeWithReserveAndResource.xml",
+                "org/auscope/portal/erml/minocc/mineralOccurrenceNodeValid.xml",
+                "org/auscope/portal/erml/minocc/mineralOccurrenceNodeInvalid.xml"}) {
+            List<MineralOccurrence> expected = domMineralOccurrences(resource);
+            List<MineralOccurrence> actual = MineralOccurrenceStreamParser.parseMineralOccurrences(ResourceUtil.loadResourceAsStream(resource));
+
+            Assert.assertEquals(resource, expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(resource, expected.get(i).getURN(), actual.get(i).getURN());
+                Assert.assertEquals(resource, expected.get(i).getType(), actual.get(i).getType());
+                Assert.assertEquals(resource, expected.get(i).getMineralDepositGroup(), actual.get(i).getMineralDepositGroup());
+                Assert.assertEquals(resource, expected.get(i).getCommodityDescriptionURNs(), actual.get(i).getCommodityDescriptionURNs());
+            }
+        }
+
+        List<MineralOccurrence> mineralOccurrences = MineralOccurrenceStreamParser.parseMineralOccurrences(ResourceUtil.loadResourceAsStream("org/auscope/portal/erml/minocc/mineralOccurrenceNodeWithReserveAndResource.xml"));
+        Assert.assertEquals("mineral deposit", mineralOccurrences.get(0).getType());
+        Assert.assertEquals(4, mineralOccurrences.get(0).getCommodityDescriptionURNs().size());
+    }
+}
@@ -0,0 +1,174 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+
+import org.auscope.portal.core.util.DOMUtil;
+import org.auscope.portal.core.util.ResourceUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * JMH comparison of NVCLResponseParser against the DOM + XPath parsing that it replaced.
+ *
+ * The large fixtures are built by repeating the records of the recorded getDatasetCollection/getLogCollection
+ * responses (and a recorded style getImageTrayDepth record) recordCount times.
+ *
+ * Run with main() (or org.openjdk.jmh.Main against the test classpath) - this is not part of the unit tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NVCLResponseParserBenchmark {
+
+    private static final String IMAGE_TRAY = "<ImageTray><SampleNo>%1$d</SampleNo><StartValue>%2$.3f</StartValue><EndValue>%3$.3f</EndValue></ImageTray>";
+
+    @Param({"100", "10000", "100000"})
+    public int recordCount;
+
+    private byte[] datasetCollection;
+    private byte[] logCollection;
+    private byte[] imageTrayDepths;
+
+    /**
+     * Repeats every record between the first opening recordTag and the closing rootTag
+     */
+    private static byte[] repeatRecords(String fixture, String recordTag, String rootTag, int count) {
+        int recordsStart = fixture.indexOf("<" + recordTag + ">");
+        int recordsEnd = fixture.lastIndexOf("</" + rootTag + ">");
+        String records = fixture.substring(recordsStart, recordsEnd);
+
+        StringBuilder sb = new StringBuilder(fixture.substring(0, recordsStart));
+        for (int i = 0; i < count; i++) {
+            sb.append(records);
+        }
+        sb.append(fixture.substring(recordsEnd));
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        datasetCollection = repeatRecords(ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/NVCL_GetDatasetCollectionResponse.xml"), "Dataset", "DatasetCollection", recordCount / 2);
+        logCollection = repeatRecords(ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/NVCL_GetLogCollectionResponse.xml"), "Log", "LogCollection", recordCount / 2);
+
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<ImageTrayCollection>\n");
+        for (int i = 0; i < recordCount; i++) {
+            sb.append(String.format(IMAGE_TRAY, i, i * 1.2, (i + 1) * 1.2));
+            sb.append('\n');
+        }
+        sb.append("</ImageTrayCollection>");
+        imageTrayDepths = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<GetDatasetCollectionResponse> domDatasetCollection() throws Exception {
+        Document responseDoc = DOMUtil.buildDomFromStream(new ByteArrayInputStream(datasetCollection));
+        XPathExpression expr = DOMUtil.compileXPathExpr("DatasetCollection/Dataset");
+        NodeList nodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
+
+        List<GetDatasetCollectionResponse> responseObjs = new ArrayList<GetDatasetCollectionResponse>();
+        XPathExpression exprDatasetId = DOMUtil.compileXPathExpr("DatasetID");
+        XPathExpression exprDatasetName = DOMUtil.compileXPathExpr("DatasetName");
+        XPathExpression exprOmUrl = DOMUtil.compileXPathExpr("OmUrl");
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Node node = nodeList.item(i);
+            responseObjs.add(new GetDatasetCollectionResponse(
+                    (String) exprDatasetId.evaluate(node, XPathConstants.STRING),
+                    (String) exprDatasetName.evaluate(node, XPathConstants.STRING),
+                    (String) exprOmUrl.evaluate(node, XPathConstants.STRING)));
+        }
+        return responseObjs;
+    }
+
+    @Benchmark
+    public List<GetDatasetCollectionResponse> staxDatasetCollection() throws Exception {
+        return NVCLResponseParser.parseDatasetCollection(new ByteArrayInputStream(datasetCollection));
+    }
+
+    @Benchmark
+    public List<GetLogCollectionResponse> domLogCollection() throws Exception {
+        Document responseDoc = DOMUtil.buildDomFromStream(new ByteArrayInputStream(logCollection));
+        XPathExpression expr = DOMUtil.compileXPathExpr("LogCollection/Log");
+        NodeList nodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
+
+        List<GetLogCollectionResponse> responseObjs = new ArrayList<GetLogCollectionResponse>();
+        XPathExpression exprLogId = DOMUtil.compileXPathExpr("LogID");
+        XPathExpression exprLogName = DOMUtil.compileXPathExpr("LogName");
+        XPathExpression exprispublic = DOMUtil.compileXPathExpr("ispublic");
+        XPathExpression exprSampleCount = DOMUtil.compileXPathExpr("SampleCount");
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Node node = nodeList.item(i);
+
+            String logId = (String) exprLogId.evaluate(node, XPathConstants.STRING);
+            String logName = (String) exprLogName.evaluate(node, XPathConstants.STRING);
+            String sampleCountString = (String) exprSampleCount.evaluate(node, XPathConstants.STRING);
+            String ispub = (String) exprispublic.evaluate(node, XPathConstants.STRING);
+
+            int sampleCount = 0;
+            if (sampleCountString != null && !sampleCountString.isEmpty()) {
+                sampleCount = Integer.parseInt(sampleCountString);
+            }
+            if (ispub == null || ispub.isEmpty() || ispub.equals("true")) {
+                responseObjs.add(new GetLogCollectionResponse(logId, logName, sampleCount));
+            }
+        }
+        return responseObjs;
+    }
+
+    @Benchmark
+    public List<GetLogCollectionResponse> staxLogCollection() throws Exception {
+        return NVCLResponseParser.parseLogCollection(new ByteArrayInputStream(logCollection), "LogName", true);
+    }
+
+    @Benchmark
+    public List<ImageTrayDepthResponse> domImageTrayDepths() throws Exception {
+        Document responseDoc = DOMUtil.buildDomFromStream(new ByteArrayInputStream(imageTrayDepths));
+        XPathExpression expr = DOMUtil.compileXPathExpr("ImageTrayCollection/ImageTray");
+        NodeList nodeList = (NodeList) expr.evaluate(responseDoc, XPathConstants.NODESET);
+
+        List<ImageTrayDepthResponse> responseObjs = new ArrayList<ImageTrayDepthResponse>();
+        XPathExpression exprSampleNo = DOMUtil.compileXPathExpr("SampleNo");
+        XPathExpression exprStartValue = DOMUtil.compileXPathExpr("StartValue");
+        XPathExpression exprEndValue = DOMUtil.compileXPathExpr("EndValue");
+        for (int i = 0; i < nodeList.getLength(); i++) {
+            Node node = nodeList.item(i);
+            responseObjs.add(new ImageTrayDepthResponse(
+                    (String) exprSampleNo.evaluate(node, XPathConstants.STRING),
+                    (String) exprStartValue.evaluate(node, XPathConstants.STRING),
+                    (String) exprEndValue.evaluate(node, XPathConstants.STRING)));
+        }
+        return responseObjs;
+    }
+
+    @Benchmark
+    public List<ImageTrayDepthResponse> staxImageTrayDepths() throws Exception {
+        return NVCLResponseParser.parseImageTrayDepths(new ByteArrayInputStream(imageTrayDepths));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(NVCLResponseParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,22 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for ArrowMediaType
+ */
+public class TestArrowMediaType extends PortalTestClass {
+
+    /**
+     * Tests Accept header matching
+     */
+    @Test
+    public void testIsAccepted() {
+        Assert.assertTrue(ArrowMediaType.isAccepted("application/vnd.apache.arrow.stream"));
+        Assert.assertTrue(ArrowMediaType.isAccepted("application/json;q=0.5, application/vnd.apache.arrow.stream"));
+        Assert.assertFalse(ArrowMediaType.isAccepted("*/*"));
+        Assert.assertFalse(ArrowMediaType.isAccepted(null));
+    }
+}
@@ -0,0 +1,186 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamReader;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Unit tests for ArrowScalarWriter
+ */
+public class TestArrowScalarWriter extends PortalTestClass {
+
+    /**
+     * A single decoded row of an Arrow stream
+     */
+    private static class Row {
+        String name;
+        double depth;
+        Double value;
+        String classValue;
+        Integer count;
+    }
+
+    /**
+     * Decodes every row of an Arrow stream, also recording the size of each record batch in batchSizes
+     */
+    private static List<Row> read(byte[] bytes, List<Integer> batchSizes) throws Exception {
+        List<Row> rows = new ArrayList<Row>();
+        try (BufferAllocator allocator = new RootAllocator();
+                ArrowStreamReader reader = new ArrowStreamReader(new ByteArrayInputStream(bytes), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            while (reader.loadNextBatch()) {
+                VarCharVector names = (VarCharVector) root.getVector(ArrowScalarWriter.NAME);
+                Float8Vector depths = (Float8Vector) root.getVector(ArrowScalarWriter.DEPTH);
+                Float8Vector values = (Float8Vector) root.getVector(ArrowScalarWriter.VALUE);
+                VarCharVector classes = (VarCharVector) root.getVector(ArrowScalarWriter.CLASS);
+                IntVector counts = (IntVector) root.getVector(ArrowScalarWriter.COUNT);
+
+                if (batchSizes != null) {
+                    batchSizes.add(root.getRowCount());
+                }
+                for (int i = 0; i < root.getRowCount(); i++) {
+                    Row row = new Row();
+                    row.name = new String(names.get(i), StandardCharsets.UTF_8);
+                    row.depth = depths.get(i);
+                    row.value = values.isNull(i) ? null : values.get(i);
+                    row.classValue = classes.isNull(i) ? null : new String(classes.get(i), StandardCharsets.UTF_8);
+                    row.count = counts.isNull(i) ? null : counts.get(i);
+                    rows.add(row);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static void assertRow(Row row, String name, double depth, Double value, String classValue, Integer count) {
+        Assert.assertEquals(name, row.name);
+        Assert.assertEquals(depth, row.depth, 0.0001);
+        if (value == null) {
+            Assert.assertNull(row.value);
+        } else {
+            Assert.assertEquals(value, row.value, 0.0001);
+        }
+        Assert.assertEquals(classValue, row.classValue);
+        Assert.assertEquals(count, row.count);
+    }
+
+    /**
+     * Tests that numeric and string bins are written with their aggregate value/class
+     */
+    @Test
+    public void testWriteBins() throws Exception {
+        BinnedCSVResponse response = new BinnedCSVResponse();
+        BinnedCSVResponse.Bin numericBin = response.new Bin("Grp1 uTSAS", new double[] {1.0, 2.0}, true, null, null, null,
+                new double[] {0.5, 0.75}, new double[] {0.1, 0.2}, new double[] {0.9, 0.95}, new int[] {3, 4});
+        BinnedCSVResponse.Bin stringBin = response.new Bin("Min1 uTSAS", new double[] {1.0, 2.0}, false, new String[] {"Kaolinite", "Illite"},
+                new int[][] {{5, 1}, {2, 7}}, new String[] {"Kaolinite", "Illite"}, null, null, null, null);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ArrowScalarWriter writer = new ArrowScalarWriter(os)) {
+            writer.write(numericBin);
+            writer.write(stringBin);
+        }
+
+        List<Row> rows = read(os.toByteArray(), null);
+        Assert.assertEquals(4, rows.size());
+        assertRow(rows.get(0), "Grp1 uTSAS", 1.0, 0.5, null, 3);
+        assertRow(rows.get(1), "Grp1 uTSAS", 2.0, 0.75, null, 4);
+        assertRow(rows.get(2), "Min1 uTSAS", 1.0, null, "Kaolinite", 5);
+        assertRow(rows.get(3), "Min1 uTSAS", 2.0, null, "Illite", 7);
+    }
+
+    /**
+     * Tests that a (downsampled) ScalarSeries is written point by point
+     */
+    @Test
+    public void testWriteSeries() throws Exception {
+        String numericJson = "[{\"roundedDepth\":1.5,\"averageValue\":0.25},{\"roundedDepth\":2.5,\"averageValue\":0.5}]";
+        String classJson = "[{\"roundedDepth\":1.5,\"classCount\":6,\"classText\":\"Chlorite\",\"colour\":255}]";
+
+        ScalarSeries numeric;
+        ScalarSeries classified;
+        try (JsonParser parser = new JsonFactory().createParser(numericJson)) {
+            numeric = ScalarSeries.parse(parser);
+        }
+        try (JsonParser parser = new JsonFactory().createParser(classJson)) {
+            classified = ScalarSeries.parse(parser);
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ArrowScalarWriter writer = new ArrowScalarWriter(os)) {
+            writer.write("log-1", numeric);
+            writer.write("log-2", classified);
+        }
+
+        List<Row> rows = read(os.toByteArray(), null);
+        Assert.assertEquals(3, rows.size());
+        assertRow(rows.get(0), "log-1", 1.5, 0.25, null, null);
+        assertRow(rows.get(1), "log-1", 2.5, 0.5, null, null);
+        assertRow(rows.get(2), "log-2", 1.5, null, "Chlorite", 6);
+    }
+
+    /**
+     * Tests that downloadscalars CSV is written in long form with missing cells skipped
+     */
+    @Test
+    public void testWriteCSV() throws Exception {
+        String csv = "DEPTH,Grp1 uTSAS,Min1 uTSAS\n"
+                + "1.0,0.5,Kaolinite\n"
+                + "2.0,null,Illite\n"
+                + "notadepth,0.1,Illite\n"
+                + "3.0,0.75,\n";
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ArrowScalarWriter writer = new ArrowScalarWriter(os)) {
+            writer.writeCSV(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        List<Row> rows = read(os.toByteArray(), null);
+        Assert.assertEquals(4, rows.size());
+        assertRow(rows.get(0), "Grp1 uTSAS", 1.0, 0.5, null, null);
+        assertRow(rows.get(1), "Min1 uTSAS", 1.0, null, "Kaolinite", null);
+        assertRow(rows.get(2), "Min1 uTSAS", 2.0, null, "Illite", null);
+        assertRow(rows.get(3), "Grp1 uTSAS", 3.0, 0.75, null, null);
+    }
+
+    /**
+     * Tests that large outputs are split into record batches
+     */
+    @Test
+    public void testBatching() throws Exception {
+        int rowCount = ArrowScalarWriter.BATCH_SIZE * 2 + 10;
+        StringBuilder csv = new StringBuilder("DEPTH,Grp1 uTSAS\n");
+        for (int i = 0; i < rowCount; i++) {
+            csv.append(i).append(',').append(i * 0.5).append('\n');
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ArrowScalarWriter writer = new ArrowScalarWriter(os)) {
+            writer.writeCSV(new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        List<Integer> batchSizes = new ArrayList<Integer>();
+        List<Row> rows = read(os.toByteArray(), batchSizes);
+        Assert.assertEquals(rowCount, rows.size());
+        Assert.assertEquals(3, batchSizes.size());
+        Assert.assertEquals(ArrowScalarWriter.BATCH_SIZE, batchSizes.get(0).intValue());
+        Assert.assertEquals(10, batchSizes.get(2).intValue());
+        assertRow(rows.get(rowCount - 1), "Grp1 uTSAS", rowCount - 1, (rowCount - 1) * 0.5, null, null);
+    }
+}
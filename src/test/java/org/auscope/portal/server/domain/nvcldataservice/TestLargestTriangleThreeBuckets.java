@@ -0,0 +1,54 @@
+package org.auscope.portal.server.domain.nvcldataservice;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for LargestTriangleThreeBuckets
+ */
+public class TestLargestTriangleThreeBuckets extends PortalTestClass {
+
+    /**
+     * Tests that series no larger than the threshold are returned in full
+     */
+    @Test
+    public void testSmallSeries() {
+        double[] x = new double[] {1, 2, 3};
+        double[] y = new double[] {5, 6, 7};
+
+        Assert.assertArrayEquals(new int[] {0, 1, 2}, LargestTriangleThreeBuckets.select(x, y, 3));
+        Assert.assertArrayEquals(new int[] {0, 1, 2}, LargestTriangleThreeBuckets.select(x, y, 10));
+        Assert.assertArrayEquals(new int[] {0, 2}, LargestTriangleThreeBuckets.select(x, y, 2));
+        Assert.assertArrayEquals(new int[0], LargestTriangleThreeBuckets.select(new double[0], new double[0], 10));
+    }
+
+    /**
+     * Tests that the end points and local extremes survive downsampling
+     */
+    @Test
+    public void testSelect() {
+        double[] x = new double[100];
+        double[] y = new double[100];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = i;
+            y[i] = i == 37 ? 50 : (i == 71 ? -50 : 0);
+        }
+
+        int[] selected = LargestTriangleThreeBuckets.select(x, y, 10);
+        Assert.assertEquals(10, selected.length);
+        Assert.assertEquals(0, selected[0]);
+        Assert.assertEquals(99, selected[9]);
+        boolean hasMax = false;
+        boolean hasMin = false;
+        for (int i = 0; i < selected.length; i++) {
+            if (i > 0) {
+                Assert.assertTrue(selected[i] > selected[i - 1]);
+            }
+            hasMax |= selected[i] == 37;
+            hasMin |= selected[i] == 71;
+        }
+        Assert.assertTrue(hasMax);
+        Assert.assertTrue(hasMin);
+    }
+}
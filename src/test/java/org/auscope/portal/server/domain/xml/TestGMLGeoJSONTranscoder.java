@@ -0,0 +1,148 @@
+package org.auscope.portal.server.domain.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for GMLGeoJSONTranscoder
+ */
+public class TestGMLGeoJSONTranscoder {
+
+    private static final String NAMESPACES = "xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" "
+            + "xmlns:gsmlp=\"http://xmlns.geosciml.org/geosciml-portrayal/4.0\" xmlns:xlink=\"http://www.w3.org/1999/xlink\"";
+
+    private static final String BOREHOLE_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<wfs:FeatureCollection numberOfFeatures=\"2\" " + NAMESPACES + ">"
+            + "<gml:featureMembers>"
+            + "<gsmlp:BoreholeView gml:id=\"gsml.borehole.A\">"
+            + "<gsmlp:name>Borehole A</gsmlp:name>"
+            + "<gsmlp:identifier xlink:href=\"http://example.org/A\"/>"
+            + "<gsmlp:nvclCollection>true</gsmlp:nvclCollection>"
+            + "<gsmlp:shape><gml:Point srsName=\"urn:ogc:def:crs:EPSG::4326\"><gml:pos>-30.5 120.25</gml:pos></gml:Point></gsmlp:shape>"
+            + "</gsmlp:BoreholeView>"
+            + "<gsmlp:BoreholeView gml:id=\"gsml.borehole.B\">"
+            + "<gsmlp:name>Borehole B</gsmlp:name>"
+            + "<gsmlp:shape><gml:Point srsName=\"EPSG:4326\"><gml:pos>145.0 -20.0</gml:pos></gml:Point></gsmlp:shape>"
+            + "</gsmlp:BoreholeView>"
+            + "</gml:featureMembers></wfs:FeatureCollection>";
+
+    private static JSONObject transcode(String gml) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        int features = GMLGeoJSONTranscoder.transcode(new ByteArrayInputStream(gml.getBytes(StandardCharsets.UTF_8)), os);
+        JSONObject geoJson = new JSONObject(os.toString(StandardCharsets.UTF_8));
+        Assert.assertEquals("FeatureCollection", geoJson.getString("type"));
+        Assert.assertEquals(features, geoJson.getJSONArray("features").length());
+        return geoJson;
+    }
+
+    /**
+     * Tests that point features are transcoded (in lon/lat order) with their properties
+     */
+    @Test
+    public void testPoints() throws Exception {
+        JSONArray features = transcode(BOREHOLE_RESPONSE).getJSONArray("features");
+        Assert.assertEquals(2, features.length());
+
+        JSONObject a = features.getJSONObject(0);
+        Assert.assertEquals("Feature", a.getString("type"));
+        Assert.assertEquals("gsml.borehole.A", a.getString("id"));
+        Assert.assertEquals("Borehole A", a.getJSONObject("properties").getString("name"));
+        Assert.assertEquals("http://example.org/A", a.getJSONObject("properties").getString("identifier"));
+        Assert.assertEquals("true", a.getJSONObject("properties").getString("nvclCollection"));
+        Assert.assertEquals("Point", a.getJSONObject("geometry").getString("type"));
+        Assert.assertEquals(120.25, a.getJSONObject("geometry").getJSONArray("coordinates").getDouble(0), 0.0000001);
+        Assert.assertEquals(-30.5, a.getJSONObject("geometry").getJSONArray("coordinates").getDouble(1), 0.0000001);
+
+        JSONObject b = features.getJSONObject(1);
+        Assert.assertEquals(145.0, b.getJSONObject("geometry").getJSONArray("coordinates").getDouble(0), 0.0000001);
+        Assert.assertEquals(-20.0, b.getJSONObject("geometry").getJSONArray("coordinates").getDouble(1), 0.0000001);
+    }
+
+    /**
+     * Tests polygons (with holes), multi geometries, nested properties and repeated properties
+     */
+    @Test
+    public void testComplexFeatures() throws Exception {
+        String gml = "<wfs:FeatureCollection " + NAMESPACES + " xmlns:mt=\"http://example.org/mt\">"
+                + "<gml:featureMember><mt:Tenement gml:id=\"t.1\">"
+                + "<mt:owner><mt:Party><mt:name>Owner 1</mt:name></mt:Party></mt:owner>"
+                + "<mt:owner><mt:Party><mt:name>Owner 2</mt:name></mt:Party></mt:owner>"
+                + "<mt:shape><gml:MultiSurface srsName=\"EPSG:4326\"><gml:surfaceMember><gml:Polygon>"
+                + "<gml:exterior><gml:LinearRing><gml:posList srsDimension=\"2\">0 0 10 0 10 10 0 10 0 0</gml:posList></gml:LinearRing></gml:exterior>"
+                + "<gml:interior><gml:LinearRing><gml:posList>2 2 3 2 3 3 2 2</gml:posList></gml:LinearRing></gml:interior>"
+                + "</gml:Polygon></gml:surfaceMember><gml:surfaceMember><gml:Polygon>"
+                + "<gml:exterior><gml:LinearRing><gml:posList>20 20 21 20 21 21 20 20</gml:posList></gml:LinearRing></gml:exterior>"
+                + "</gml:Polygon></gml:surfaceMember></gml:MultiSurface></mt:shape>"
+                + "</mt:Tenement></gml:featureMember>"
+                + "<gml:featureMember><mt:Tenement gml:id=\"t.2\">"
+                + "<mt:route><gml:LineString><gml:coordinates>1,2 3,4 5,6</gml:coordinates></gml:LineString></mt:route>"
+                + "</mt:Tenement></gml:featureMember>"
+                + "<gml:featureMember><mt:Tenement gml:id=\"t.3\"><mt:name>No geometry</mt:name></mt:Tenement></gml:featureMember>"
+                + "</wfs:FeatureCollection>";
+
+        JSONArray features = transcode(gml).getJSONArray("features");
+        Assert.assertEquals(3, features.length());
+
+        JSONObject t1 = features.getJSONObject(0);
+        Assert.assertEquals("Owner 1", t1.getJSONObject("properties").getString("owner.Party.name"));
+        Assert.assertEquals("Owner 2", t1.getJSONObject("properties").getString("owner.Party.name_2"));
+        JSONObject multiPolygon = t1.getJSONObject("geometry");
+        Assert.assertEquals("MultiPolygon", multiPolygon.getString("type"));
+        JSONArray polygons = multiPolygon.getJSONArray("coordinates");
+        Assert.assertEquals(2, polygons.length());
+        Assert.assertEquals(2, polygons.getJSONArray(0).length());
+        Assert.assertEquals(5, polygons.getJSONArray(0).getJSONArray(0).length());
+        Assert.assertEquals(4, polygons.getJSONArray(0).getJSONArray(1).length());
+        Assert.assertEquals(1, polygons.getJSONArray(1).length());
+
+        JSONObject line = features.getJSONObject(1).getJSONObject("geometry");
+        Assert.assertEquals("LineString", line.getString("type"));
+        Assert.assertEquals(3, line.getJSONArray("coordinates").length());
+        Assert.assertEquals(6.0, line.getJSONArray("coordinates").getJSONArray(2).getDouble(1), 0.0000001);
+
+        Assert.assertTrue(features.getJSONObject(2).isNull("geometry"));
+        Assert.assertEquals("No geometry", features.getJSONObject(2).getJSONObject("properties").getString("name"));
+    }
+
+    /**
+     * Tests that an exception report fails without writing anything
+     */
+    @Test
+    public void testExceptionReport() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            GMLGeoJSONTranscoder.transcode(new ByteArrayInputStream("<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"/>".getBytes(StandardCharsets.UTF_8)), os);
+            Assert.fail("Expected exception");
+        } catch (XMLStreamException ex) {
+            //expected
+        }
+        Assert.assertEquals(0, os.size());
+    }
+
+    /**
+     * Tests the axis order of various srsName's and the outputFormat's requesting GeoJSON
+     */
+    @Test
+    public void testFormats() {
+        Assert.assertTrue(GMLGeoJSONTranscoder.isLatLonOrder("urn:ogc:def:crs:EPSG::4326"));
+        Assert.assertTrue(GMLGeoJSONTranscoder.isLatLonOrder("urn:x-ogc:def:crs:EPSG:4283"));
+        Assert.assertTrue(GMLGeoJSONTranscoder.isLatLonOrder("http://www.opengis.net/def/crs/EPSG/0/4326"));
+        Assert.assertFalse(GMLGeoJSONTranscoder.isLatLonOrder("EPSG:4326"));
+        Assert.assertFalse(GMLGeoJSONTranscoder.isLatLonOrder("http://www.opengis.net/gml/srs/epsg.xml#4326"));
+        Assert.assertFalse(GMLGeoJSONTranscoder.isLatLonOrder(null));
+
+        Assert.assertTrue(GMLGeoJSONTranscoder.isGeoJSON("geojson"));
+        Assert.assertTrue(GMLGeoJSONTranscoder.isGeoJSON("application/geo+json"));
+        Assert.assertFalse(GMLGeoJSONTranscoder.isGeoJSON(null));
+        Assert.assertFalse(GMLGeoJSONTranscoder.isGeoJSON("csv"));
+        Assert.assertFalse(GMLGeoJSONTranscoder.isGeoJSON("application/json"));
+    }
+}
@@ -0,0 +1,97 @@
+package org.auscope.portal.server.web.controllers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.auscope.portal.core.util.ResourceUtil;
+import org.auscope.portal.server.web.service.MineralTenementService;
+import org.auscope.portal.server.web.service.SLDTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH comparison of the precomputed mineral tenement styles against regenerating the style (building every rule
+ * filter and rendering the SLD) for each request.
+ *
+ * Every WMS tile of a tenement layer requests its style so the benchmarks run from several threads at once to
+ * approximate a map full of tiles loading.
+ *
+ * Run with main() (or org.openjdk.jmh.Main against the test classpath) - this is not part of the unit tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class MineralTenementStyleBenchmark {
+
+    private static final String LAYER_NAME = "mt:MineralTenement";
+    private static final String[] TYPES = {"exploration", "prospecting", "miscellaneous", "mining", "licence"};
+    private static final String[] STATUSES = {"LIVE", "CURRENT", "PENDING"};
+    private static final String[] TYPE_COLOURS = {"#0000FF", "#00FFFF", "#00FF00", "#FFFF00", "#FF0000"};
+    private static final String[] STATUS_COLOURS = {"#0000FF", "#00FF00", "#FF0000"};
+
+    @Param({"TenementType", "TenementStatus"})
+    public String ccProperty;
+
+    private MineralTenementService tenementService;
+    private MineralTenementController controller;
+    private String template;
+
+    @Setup
+    public void setup() throws Exception {
+        tenementService = new MineralTenementService(null, null);
+        controller = new MineralTenementController(tenementService, null, null, null);
+        template = ResourceUtil.loadResourceAsString(SLDTemplate.RESOURCE_PATH + "MineralTenement_getStyle.sld");
+    }
+
+    /**
+     * Builds every rule filter and renders a fresh template (nothing memoized) - the work done per tile request
+     * before styles were precomputed
+     */
+    @Benchmark
+    public String regeneratedStyle() throws Exception {
+        String[] ruleNames = ccProperty.equals("TenementType") ? TYPES : STATUSES;
+        String[] colours = ccProperty.equals("TenementType") ? TYPE_COLOURS : STATUS_COLOURS;
+        List<Map<String, Object>> rules = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < ruleNames.length; i++) {
+            Map<String, Object> rule = new HashMap<String, Object>();
+            rule.put("ruleName", ruleNames[i]);
+            rule.put("filter", tenementService.getMineralTenementFilterCCProperty(null, null, ccProperty, ruleNames[i] + "*"));
+            rule.put("color", colours[i]);
+            rules.add(rule);
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("legend", false);
+        values.put("layerName", LAYER_NAME);
+        values.put("rules", rules);
+        return SLDTemplate.compile(template).render(values);
+    }
+
+    @Benchmark
+    public String precomputedStyle() {
+        return controller.getStyle(false, ccProperty, LAYER_NAME, null);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(MineralTenementStyleBenchmark.class.getSimpleName()).build()).run();
+    }
+}
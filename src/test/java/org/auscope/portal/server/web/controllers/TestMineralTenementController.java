@@ -0,0 +1,151 @@
+package org.auscope.portal.server.web.controllers;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.auscope.portal.core.services.WMSService;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.test.ByteBufferedServletOutputStream;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.service.DiskLruCache;
+import org.auscope.portal.server.web.service.MineralTenementDatasetCache;
+import org.auscope.portal.server.web.service.MineralTenementService;
+import org.auscope.portal.server.web.service.PagedWFSDownloadService;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for MineralTenementController
+ */
+public class TestMineralTenementController extends PortalTestClass {
+
+    /** Rules (of the non legend styles) rendered at startup - 5 types + 3 statuses + 1 unstyled for both providers */
+    private static final int PRECOMPUTED_RULES = 18;
+
+    private MineralTenementService mockTenementService = context.mock(MineralTenementService.class);
+    private WMSService mockWmsService = context.mock(WMSService.class);
+    private PagedWFSDownloadService mockDownloadService = context.mock(PagedWFSDownloadService.class);
+    private MineralTenementDatasetCache mockDatasetCache = context.mock(MineralTenementDatasetCache.class);
+    private HttpServletRequest mockRequest = context.mock(HttpServletRequest.class);
+    private HttpServletResponse mockResponse = context.mock(HttpServletResponse.class);
+    private MineralTenementController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        context.checking(new Expectations() {
+            {
+                exactly(PRECOMPUTED_RULES).of(mockTenementService).getMineralTenementFilterCCProperty(with(aNull(String.class)),
+                        with(aNull(FilterBoundingBox.class)), with(any(String.class)), with(any(String.class)));
+                will(returnValue("<ogc:Filter>default</ogc:Filter>"));
+            }
+        });
+
+        controller = new MineralTenementController(mockTenementService, mockWmsService, mockDownloadService, mockDatasetCache);
+    }
+
+    /**
+     * Tests that styles without optional filters are served from the styles rendered at startup
+     */
+    @Test
+    public void testPrecomputedStyles() {
+        String byType = controller.getStyle(false, "TenementType", "mt:MineralTenement", null);
+        Assert.assertSame(byType, controller.getStyle(false, "TenementType", "mt:MineralTenement", ""));
+        Assert.assertTrue(byType.contains("<Title>exploration</Title><MaxScaleDenominator>4000000</MaxScaleDenominator><ogc:Filter>default</ogc:Filter>"));
+        Assert.assertTrue(byType.contains("<CssParameter name=\"fill\">#FFFF00</CssParameter>"));
+
+        String byStatus = controller.getStyle(false, "TenementStatus", "MineralTenement", null);
+        Assert.assertTrue(byStatus.contains("<Name>MineralTenement</Name>"));
+        Assert.assertTrue(byStatus.contains("<Title>PENDING1</Title>"));
+        Assert.assertFalse(byStatus.contains("exploration"));
+
+        String legend = controller.getStyle(true, "TenementStatus", "MineralTenement", null);
+        Assert.assertTrue(legend.startsWith("<StyledLayerDescriptor version=\"1.0.0\" xmlns:xsi="));
+        Assert.assertFalse(legend.contains("ogc:Filter"));
+
+        Assert.assertSame(controller.getStyle(false, null, "mt:MineralTenement", null), controller.getStyle(false, "unknown", "mt:MineralTenement", null));
+    }
+
+    /**
+     * Tests that optional filters are applied to every rule of a (freshly rendered) style
+     */
+    @Test
+    public void testOptionalFilters() {
+        final String optionalFilters = "[{\"type\":\"OPTIONAL.TEXT\"}]";
+        context.checking(new Expectations() {
+            {
+                exactly(3).of(mockTenementService).getMineralTenementFilterCCProperty(with(optionalFilters),
+                        with(aNull(FilterBoundingBox.class)), with("TenementStatus"), with(any(String.class)));
+                will(returnValue("<ogc:Filter>optional</ogc:Filter>"));
+            }
+        });
+
+        String style = controller.getStyle(false, "TenementStatus", "mt:MineralTenement", optionalFilters);
+        Assert.assertTrue(style.contains("<ogc:Filter>optional</ogc:Filter>"));
+        Assert.assertFalse(style.contains("<ogc:Filter>default</ogc:Filter>"));
+    }
+
+    /**
+     * Tests the style endpoint writes the SLD with an ETag and answers matching conditional requests with a 304
+     */
+    @Test
+    public void testGetStyleNotModified() throws Exception {
+        final String sld = controller.getStyle(false, "TenementType", "mt:MineralTenement", null);
+        final String eTag = "\"" + DiskLruCache.keyFor(sld) + "\"";
+        final ByteBufferedServletOutputStream outputStream = new ByteBufferedServletOutputStream(sld.length());
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockRequest).getHeader("If-None-Match");
+                will(returnValue(null));
+                oneOf(mockRequest).getHeader("If-None-Match");
+                will(returnValue(eTag));
+                oneOf(mockRequest).getMethod();
+                will(returnValue("GET"));
+
+                exactly(2).of(mockResponse).setContentType("text/xml");
+                exactly(2).of(mockResponse).setHeader("ETag", eTag);
+                oneOf(mockResponse).getOutputStream();
+                will(returnValue(outputStream));
+                oneOf(mockResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            }
+        });
+
+        controller.getMineralTenementStyle("TenementType", "mt:MineralTenement", false, null, mockRequest, mockResponse);
+        controller.getMineralTenementStyle("TenementType", "mt:MineralTenement", false, null, mockRequest, mockResponse);
+        Assert.assertEquals(sld, new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests that ArcGIS downloads are read from the dataset cache and filtered locally
+     */
+    @Test
+    public void testArcGISDownloadFilteredLocally() throws Exception {
+        final String serviceUrl = "http://example.org/arcgis/services/MapServer/WFSServer";
+        final String csv = "FID,TENNAME,TENTYPE,TENOWNER,TENSTATUS,SHAPE\n"
+                + "1,EL 1,Exploration Licence,Acme,LIVE,\"POLYGON ((120 -30, 121 -30, 121 -29, 120 -29, 120 -30))\"\n"
+                + "2,ML 2,Mining Lease,Acme,LIVE,\"POLYGON ((130 -30, 131 -30, 131 -29, 130 -29, 130 -30))\"\n"
+                + "3,EL 3,Exploration Licence,Other,LIVE,\"POLYGON ((120 -30, 121 -30, 121 -29, 120 -29, 120 -30))\"\n";
+        final String bbox = "{\"crs\":\"EPSG:4326\",\"eastBoundLongitude\":125,\"westBoundLongitude\":115,\"northBoundLatitude\":-20,\"southBoundLatitude\":-35}";
+        final ByteBufferedServletOutputStream outputStream = new ByteBufferedServletOutputStream(csv.length());
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockDatasetCache).open(with(any(MineralTenementDatasetCache.Loader.class)), with(equal(new String[] {"TENNAME", "SHAPE"})), with(any(Object[].class)));
+                will(returnValue(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))));
+
+                oneOf(mockResponse).getOutputStream();
+                will(returnValue(outputStream));
+                oneOf(mockResponse).setContentType("text/csv");
+            }
+        });
+
+        controller.doMineralTenementCSVDownload(serviceUrl, null, null, "acme", null, null, null, bbox, null, null,
+                null, null, "FID", null, mockResponse);
+        Assert.assertEquals("FID\n1\n", new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -3,11 +3,13 @@ package org.auscope.portal.server.web.controllers;
 import java.io.ByteArrayInputStream;
 import java.net.ConnectException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
 import org.apache.http.HttpStatus;
@@ -27,13 +29,18 @@ import org.auscope.portal.server.domain.nvcldataservice.TSGStatusResponse;
 import org.auscope.portal.server.domain.nvcldataservice.ImageTrayDepthResponse;
 import org.auscope.portal.server.web.service.BoreholeService;
 import org.auscope.portal.server.web.service.NVCL2_0_DataService;
+import org.auscope.portal.server.web.service.DiskLruCache;
 import org.auscope.portal.server.web.service.NVCLDataService;
+import org.auscope.portal.server.web.service.FederatedDownloadService;
+import org.auscope.portal.server.web.service.HyloggerBoreholeIndex;
+import org.auscope.portal.server.web.service.NVCLImageCache;
 import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.web.servlet.ModelAndView;
-import org.auscope.portal.core.configuration.ServiceConfiguration;
 
 
 /**
@@ -44,6 +51,12 @@ import org.auscope.portal.core.configuration.ServiceConfiguration;
 @SuppressWarnings("rawtypes")
 public class TestNVCLController extends PortalTestClass {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** The mock http request. */
+    private HttpServletRequest mockHttpRequest;
+
     /** The mock http response. */
     private HttpServletResponse mockHttpResponse;
 
@@ -64,21 +77,26 @@ public class TestNVCLController extends PortalTestClass {
 
     private HttpServiceCaller mockServiceCaller;
 
-    private ServiceConfiguration mockServiceConfiguration;
+    private FederatedDownloadService mockDownloadService;
+
+    private HyloggerBoreholeIndex mockHyloggerIndex;
     /**
      * Setup.
      */
     @Before
-    public void setUp() {
+    public void setUp() throws Exception {
+        this.mockHttpRequest = context.mock(HttpServletRequest.class);
         this.mockHttpResponse = context.mock(HttpServletResponse.class);
         this.mockBoreholeService = context.mock(BoreholeService.class);
         this.mockCSWService = context.mock(CSWCacheService.class);
         this.mockDataService = context.mock(NVCLDataService.class);
         this.mock2_0_DataService = context.mock(NVCL2_0_DataService.class);
         this.mockServiceCaller = context.mock(HttpServiceCaller.class);
-        this.mockServiceConfiguration = context.mock(ServiceConfiguration.class);  
+        this.mockDownloadService = context.mock(FederatedDownloadService.class);
+        this.mockHyloggerIndex = context.mock(HyloggerBoreholeIndex.class);
         this.nvclController = new NVCLController(this.mockBoreholeService, this.mockCSWService, this.mockDataService,
-                this.mock2_0_DataService, this.mockServiceCaller, this.mockServiceConfiguration );
+                this.mock2_0_DataService, this.mockServiceCaller, this.mockDownloadService,
+                new NVCLImageCache(new DiskLruCache(folder.newFolder("images"), 1024 * 1024)), this.mockHyloggerIndex);
     }
 
     /**
@@ -147,8 +165,7 @@ public class TestNVCLController extends PortalTestClass {
 
         context.checking(new Expectations() {
             {
-                oneOf(mockBoreholeService).discoverHyloggerBoreholeIDs(with(equal(mockCSWService)),
-                        with(any(CSWRecordsFilterVisitor.class)));
+                oneOf(mockHyloggerIndex).getBoreholeIDs(with(any(CSWRecordsFilterVisitor.class)));
                 will(returnValue(restrictedIds));
 
                 oneOf(mockBoreholeService).getAllBoreholes(serviceUrl, nameFilter, custodianFilter,
@@ -191,9 +208,8 @@ public class TestNVCLController extends PortalTestClass {
 
         context.checking(new Expectations() {
             {
-                oneOf(mockBoreholeService).discoverHyloggerBoreholeIDs(with(equal(mockCSWService)),
-                        with(any(CSWRecordsFilterVisitor.class)));
-                will(throwException(new ConnectException()));
+                oneOf(mockHyloggerIndex).getBoreholeIDs(with(any(CSWRecordsFilterVisitor.class)));
+                will(throwException(new IllegalStateException("CSW cache unavailable")));
 
                 allowing(mockHttpMethodBase).getURI();
                 will(returnValue(httpMethodURI));
@@ -227,8 +243,7 @@ public class TestNVCLController extends PortalTestClass {
 
         context.checking(new Expectations() {
             {
-                oneOf(mockBoreholeService).discoverHyloggerBoreholeIDs(with(equal(mockCSWService)),
-                        with(any(CSWRecordsFilterVisitor.class)));
+                oneOf(mockHyloggerIndex).getBoreholeIDs(with(any(CSWRecordsFilterVisitor.class)));
                 will(returnValue(new ArrayList<String>()));
 
                 allowing(mockHttpMethodBase).getURI();
@@ -348,7 +363,7 @@ public class TestNVCLController extends PortalTestClass {
         final Integer width = 1;
         final Integer start = 2;
         final Integer end = 3;
-        final byte[] data = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+        final byte[] data = new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 3, 4, 5, 6, 7, 8, 9};
         final String contentType = "image/jpeg";
         final MosaicResponse mockMosaicResponse = context.mock(MosaicResponse.class);
 
@@ -360,7 +375,13 @@ public class TestNVCLController extends PortalTestClass {
                 oneOf(mockDataService).getMosaic(serviceUrl, logId, width, start, end);
                 will(returnValue(mockMosaicResponse));
 
+                oneOf(mockHttpRequest).getHeader("If-None-Match");
+                will(returnValue(null));
+
+                oneOf(mockHttpResponse).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+                oneOf(mockHttpResponse).setHeader(with("ETag"), with(any(String.class)));
                 oneOf(mockHttpResponse).setContentType(contentType);
+                oneOf(mockHttpResponse).setContentLengthLong(data.length);
                 oneOf(mockHttpResponse).getOutputStream();
                 will(returnValue(outputStream));
 
@@ -371,12 +392,107 @@ public class TestNVCLController extends PortalTestClass {
             }
         });
 
-        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpResponse);
+        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpRequest, mockHttpResponse);
         Assert.assertArrayEquals(data, outputStream.toByteArray());
     }
+
+    /**
+     * Tests that a repeated mosaic request is served from the cache (and honours If-None-Match)
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGetMosaicCached() throws Exception {
+        final String serviceUrl = "http://example/url";
+        final String logId = "unique-id";
+        final Integer width = 1;
+        final Integer start = 2;
+        final Integer end = 3;
+        final byte[] data = new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 3, 4, 5, 6, 7, 8, 9};
+        final String contentType = "image/jpeg";
+        final MosaicResponse mockMosaicResponse = context.mock(MosaicResponse.class);
+        final ByteBufferedServletOutputStream outputStream1 = new ByteBufferedServletOutputStream(data.length);
+        final ByteBufferedServletOutputStream outputStream2 = new ByteBufferedServletOutputStream(data.length);
+        final String eTag = "\"" + DiskLruCache.keyFor("mosaic", serviceUrl, logId, width, start, end) + "\"";
+
+        context.checking(new Expectations() {
+            {
+                //Only a single request should make it to the service
+                oneOf(mockDataService).getMosaic(serviceUrl, logId, width, start, end);
+                will(returnValue(mockMosaicResponse));
+                allowing(mockMosaicResponse).getContentType();
+                will(returnValue(contentType));
+                allowing(mockMosaicResponse).getResponse();
+                will(returnValue(new ByteArrayInputStream(data)));
+
+                exactly(2).of(mockHttpRequest).getHeader("If-None-Match");
+                will(returnValue(null));
+                oneOf(mockHttpRequest).getHeader("If-None-Match");
+                will(returnValue("W/" + eTag));
+                oneOf(mockHttpRequest).getMethod();
+                will(returnValue("GET"));
+
+                exactly(3).of(mockHttpResponse).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+                exactly(3).of(mockHttpResponse).setHeader("ETag", eTag);
+                exactly(2).of(mockHttpResponse).setContentType(contentType);
+                exactly(2).of(mockHttpResponse).setContentLengthLong(data.length);
+                exactly(2).of(mockHttpResponse).getOutputStream();
+                will(onConsecutiveCalls(returnValue(outputStream1), returnValue(outputStream2)));
+                oneOf(mockHttpResponse).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            }
+        });
+
+        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpRequest, mockHttpResponse);
+        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpRequest, mockHttpResponse);
+        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpRequest, mockHttpResponse);
+        Assert.assertArrayEquals(data, outputStream1.toByteArray());
+        Assert.assertArrayEquals(data, outputStream2.toByteArray());
+    }
     
 
 
+    /**
+     * Tests that a mosaic request answered with something other than an image (eg - an error page) is passed
+     * through but never cached
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGetMosaicNotImage() throws Exception {
+        final String serviceUrl = "http://example/url";
+        final String logId = "unique-id";
+        final Integer width = 1;
+        final Integer start = 2;
+        final Integer end = 3;
+        final byte[] data = "<html><body>Internal error</body></html>".getBytes(StandardCharsets.UTF_8);
+        final String contentType = "text/html";
+        final MosaicResponse mockMosaicResponse = context.mock(MosaicResponse.class);
+        final ByteBufferedServletOutputStream outputStream1 = new ByteBufferedServletOutputStream(data.length);
+        final ByteBufferedServletOutputStream outputStream2 = new ByteBufferedServletOutputStream(data.length);
+
+        context.checking(new Expectations() {
+            {
+                //Every request should make it to the service
+                exactly(2).of(mockDataService).getMosaic(serviceUrl, logId, width, start, end);
+                will(returnValue(mockMosaicResponse));
+                allowing(mockMosaicResponse).getContentType();
+                will(returnValue(contentType));
+                exactly(2).of(mockMosaicResponse).getResponse();
+                will(onConsecutiveCalls(returnValue(new ByteArrayInputStream(data)), returnValue(new ByteArrayInputStream(data))));
+
+                exactly(2).of(mockHttpResponse).setHeader("Cache-Control", "no-store");
+                exactly(2).of(mockHttpResponse).setContentType(contentType);
+                exactly(2).of(mockHttpResponse).getOutputStream();
+                will(onConsecutiveCalls(returnValue(outputStream1), returnValue(outputStream2)));
+            }
+        });
+
+        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpRequest, mockHttpResponse);
+        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpRequest, mockHttpResponse);
+        Assert.assertArrayEquals(data, outputStream1.toByteArray());
+        Assert.assertArrayEquals(data, outputStream2.toByteArray());
+    }
+
     /**
      * Tests getting mosaic fails gracefully when the service fails.
      *
@@ -399,7 +515,7 @@ public class TestNVCLController extends PortalTestClass {
             }
         });
 
-        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpResponse);
+        this.nvclController.getNVCLMosaic(serviceUrl, logId, width, start, end, mockHttpRequest, mockHttpResponse);
     }
     
     
@@ -0,0 +1,173 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.auscope.portal.capdf.CapdfMeasurementLimitFilter;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.gsml.BoreholeFilter;
+import org.auscope.portal.gsml.SF0BoreholeFilter;
+import org.auscope.portal.gsml.TIMAGeosampleFilter;
+import org.auscope.portal.mineraloccurrence.MineFilter;
+import org.auscope.portal.mineraloccurrence.MineralOccurrenceFilter;
+import org.auscope.portal.mineraloccurrence.MineralTenementFilter;
+import org.auscope.portal.remanentanomalies.RemanentAnomaliesAutoSearchFilter;
+import org.auscope.portal.server.MineralTenementServiceProviderType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH comparison of generating filter strings for every filter class the portal builds:
+ *
+ * uncached - a new filter is constructed (parsing any optional filters) and its markup generated for every request
+ * cached - requests go through a FilterStringCache (with the default bounds)
+ *
+ * Requests are drawn from distinctRequests parameter sets (each with/without one of a handful of bounding boxes) with a
+ * Zipf-like distribution so that, like real map traffic, a few layers/filters account for most requests and there's a
+ * long tail of one off filters.
+ *
+ * Run with main() (or org.openjdk.jmh.Main against the test classpath) - this is not part of the unit tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterStringCacheBenchmark {
+
+    /** The number of requests in the (repeating) request sequence */
+    private static final int SEQUENCE_LENGTH = 4096;
+
+    @Param({"BoreholeFilter", "SF0BoreholeFilter", "MineralOccurrenceFilter", "MineFilter", "MineralTenementFilter",
+        "TIMAGeosampleFilter", "CapdfMeasurementLimitFilter", "RemanentAnomaliesAutoSearchFilter", "GenericFilter2"})
+    public String filterType;
+
+    @Param({"16", "1024"})
+    public int distinctRequests;
+
+    /**
+     * Generates a single filter string (using cache)
+     */
+    private interface FilterRequest {
+        String generate(FilterStringCache cache);
+    }
+
+    private FilterRequest[] sequence;
+    private int next = 0;
+    private FilterStringCache cache;
+
+    /**
+     * Builds the optional filters JSON that the UI sends for a layer with a text and date filter
+     */
+    private static String optionalFilters(String xpath, String value) {
+        return "[{\"value\":\"" + value + "\",\"label\":\"Name\",\"toolTip\":null,\"xpath\":\"" + xpath + "\",\"predicate\":\"ISLIKE\",\"type\":\"OPTIONAL.TEXT\",\"added\":true},"
+                + "{\"value\":\"2020-09-17\",\"label\":\"Start Date\",\"toolTip\":null,\"xpath\":\"" + xpath + "Date\",\"predicate\":\"BIGGER_THAN\",\"type\":\"OPTIONAL.DATE\",\"added\":true}]";
+    }
+
+    /**
+     * Returns the request for the i'th parameter set of filterType
+     */
+    private FilterRequest request(int i, FilterBoundingBox bbox) {
+        final String name = "Name " + i;
+        final List<String> ids = Arrays.asList("id-" + i, "id-" + (i + 1), "id-" + (i + 2));
+        switch (filterType) {
+        case "BoreholeFilter":
+            return c -> c.getFilterString(BoreholeFilter.class, bbox,
+                    () -> new BoreholeFilter(name, "GSV", "1990-01-01", "2020-01-01", ids, null),
+                    name, "GSV", "1990-01-01", "2020-01-01", ids, null);
+        case "SF0BoreholeFilter":
+            final String sf0Filters = optionalFilters("gsmlp:name", name);
+            return c -> c.getFilterString(SF0BoreholeFilter.class, bbox,
+                    () -> new SF0BoreholeFilter(null, null, null, null, ids, null, Boolean.TRUE, sf0Filters),
+                    null, null, null, null, ids, null, Boolean.TRUE, sf0Filters);
+        case "MineralOccurrenceFilter":
+            return c -> c.getFilterString(MineralOccurrenceFilter.class, bbox,
+                    () -> new MineralOccurrenceFilter(name, "Resource", "1000", "t", "10", "t", ""),
+                    name, "Resource", "1000", "t", "10", "t", "");
+        case "MineFilter":
+            final String mineFilters = optionalFilters("er:mineName", name);
+            return c -> c.getFilterString(MineFilter.class, bbox, () -> new MineFilter(name, mineFilters), name, mineFilters);
+        case "MineralTenementFilter":
+            final String tenementFilters = optionalFilters("mt:name", name);
+            return c -> c.getFilterString(MineralTenementFilter.class, bbox,
+                    () -> new MineralTenementFilter(tenementFilters, MineralTenementServiceProviderType.GeoServer),
+                    tenementFilters, MineralTenementServiceProviderType.GeoServer);
+        case "TIMAGeosampleFilter":
+            return c -> c.getFilterString(TIMAGeosampleFilter.class, bbox, () -> new TIMAGeosampleFilter(name, "IGSN" + i, null),
+                    name, "IGSN" + i, null);
+        case "CapdfMeasurementLimitFilter":
+            return c -> c.getFilterString(CapdfMeasurementLimitFilter.class, bbox, () -> new CapdfMeasurementLimitFilter(name), name);
+        case "RemanentAnomaliesAutoSearchFilter":
+            //Has no parameters - only the bounding box varies
+            return c -> c.getFilterString(RemanentAnomaliesAutoSearchFilter.class, bbox, () -> new RemanentAnomaliesAutoSearchFilter());
+        case "GenericFilter2":
+            final String genericFilters = optionalFilters("gsml:name", name);
+            return c -> c.getFilterString(GenericFilter2.class, bbox, () -> new GenericFilter2(genericFilters), genericFilters);
+        default:
+            throw new IllegalArgumentException(filterType);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        List<FilterBoundingBox> bboxes = new ArrayList<FilterBoundingBox>();
+        bboxes.add(null);
+        for (int i = 0; i < 7; i++) {
+            bboxes.add(new FilterBoundingBox("EPSG:4326", new double[] {110 + i * 5, -45 + i * 3}, new double[] {120 + i * 5, -35 + i * 3}));
+        }
+
+        //Rank r of the distinct requests is drawn with probability proportional to 1/r
+        List<FilterRequest> requests = new ArrayList<FilterRequest>();
+        double[] cumulative = new double[distinctRequests];
+        double total = 0;
+        for (int i = 0; i < distinctRequests; i++) {
+            requests.add(request(i / bboxes.size(), bboxes.get(i % bboxes.size())));
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        Random random = new Random(42);
+        sequence = new FilterRequest[SEQUENCE_LENGTH];
+        for (int i = 0; i < SEQUENCE_LENGTH; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            sequence[i] = requests.get(Math.min(rank < 0 ? -rank - 1 : rank, distinctRequests - 1));
+        }
+
+        cache = new FilterStringCache(10000, 16384, 0);
+    }
+
+    private FilterRequest nextRequest() {
+        FilterRequest request = sequence[next];
+        next = (next + 1) % SEQUENCE_LENGTH;
+        return request;
+    }
+
+    @Benchmark
+    public String uncached() {
+        return nextRequest().generate(FilterStringCache.UNCACHED);
+    }
+
+    @Benchmark
+    public String cached() {
+        return nextRequest().generate(cache);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(FilterStringCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
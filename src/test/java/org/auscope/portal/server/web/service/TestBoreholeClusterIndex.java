@@ -0,0 +1,97 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Unit tests for BoreholeClusterIndex
+ */
+public class TestBoreholeClusterIndex extends PortalTestClass {
+
+    private static BoreholeClusterIndex createIndex() {
+        BoreholeClusterIndex index = new BoreholeClusterIndex();
+        index.add(120.25, -30.5, true);
+        index.add(120.26, -30.51, false);
+        index.add(145.0, -20.0, true);
+        index.add(-179.5, 10.0, false);
+        return index;
+    }
+
+    private static int totalCount(List<BoreholeClusterIndex.Cluster> clusters) {
+        int count = 0;
+        for (BoreholeClusterIndex.Cluster cluster : clusters) {
+            count += cluster.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Tests that coarser levels merge points into fewer clusters without losing any
+     */
+    @Test
+    public void testLevels() {
+        BoreholeClusterIndex index = createIndex();
+        Assert.assertEquals(4, index.getPointCount());
+        Assert.assertEquals(2, index.getNvclCount());
+
+        Assert.assertEquals(4, index.getClusters(BoreholeClusterIndex.MAX_LEVEL, null).size());
+        Assert.assertEquals(3, index.getClusters(6, null).size());
+        for (int level = 0; level <= BoreholeClusterIndex.MAX_LEVEL; level++) {
+            Assert.assertEquals(4, totalCount(index.getClusters(level, null)));
+        }
+
+        List<BoreholeClusterIndex.Cluster> clusters = index.getClusters(6, new double[] {110, -40, 130, -25});
+        Assert.assertEquals(1, clusters.size());
+        Assert.assertEquals(2, clusters.get(0).getCount());
+        Assert.assertEquals(1, clusters.get(0).getNvclCount());
+        Assert.assertEquals(120.255, clusters.get(0).getLon(), 0.000001);
+        Assert.assertEquals(-30.505, clusters.get(0).getLat(), 0.000001);
+    }
+
+    /**
+     * Tests bounding boxes crossing the anti meridian
+     */
+    @Test
+    public void testAntiMeridian() {
+        BoreholeClusterIndex index = createIndex();
+        List<BoreholeClusterIndex.Cluster> clusters = index.getClusters(8, new double[] {170, 0, -170, 20});
+        Assert.assertEquals(1, clusters.size());
+        Assert.assertEquals(-179.5, clusters.get(0).getLon(), 0.000001);
+    }
+
+    /**
+     * Tests that points added after a level is used are still clustered, and invalid points are ignored
+     */
+    @Test
+    public void testAdd() {
+        BoreholeClusterIndex index = createIndex();
+        Assert.assertEquals(3, index.getClusters(6, null).size());
+        Assert.assertTrue(index.add(0.0, 0.0, false));
+        Assert.assertFalse(index.add(500000.0, 6000000.0, false));
+        Assert.assertFalse(index.add(Double.NaN, 0.0, false));
+        Assert.assertEquals(4, index.getClusters(6, null).size());
+        Assert.assertEquals(5, index.getPointCount());
+    }
+
+    /**
+     * Tests the JSON form of the clusters
+     */
+    @Test
+    public void testWrite() throws Exception {
+        BoreholeClusterIndex index = createIndex();
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = new JsonFactory().createGenerator(writer)) {
+            index.write(generator, 6, new double[] {110, -40, 130, -25});
+        }
+        Assert.assertEquals("{\"level\":6,\"pointCount\":4,\"nvclCount\":2,\"clusters\":[[120.255,-30.505,2,1]]}", writer.toString());
+        Assert.assertEquals(BoreholeClusterIndex.MAX_LEVEL, BoreholeClusterIndex.levelForZoom(30));
+        Assert.assertEquals(0, BoreholeClusterIndex.levelForZoom(-5));
+    }
+}
@@ -0,0 +1,121 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayInputStream;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker.ResultType;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for BoreholeClusterService
+ */
+public class TestBoreholeClusterService extends PortalTestClass {
+
+    private static final String SERVICE_URL = "http://example.org/wfs";
+    private static final String RESPONSE = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:gsmlp=\"http://xmlns.geosciml.org/geosciml-portrayal/4.0\">"
+            + "<gml:featureMembers>"
+            + "<gsmlp:BoreholeView gml:id=\"gsml.borehole.A\"><gsmlp:nvclCollection>true</gsmlp:nvclCollection>"
+            + "<gsmlp:shape><gml:Point srsName=\"urn:ogc:def:crs:EPSG::4326\"><gml:pos>-30.5 120.25</gml:pos></gml:Point></gsmlp:shape></gsmlp:BoreholeView>"
+            + "<gsmlp:BoreholeView gml:id=\"gsml.borehole.B\"><gsmlp:shape><gml:Point srsName=\"EPSG:4326\"><gml:pos>145.0 -20.0</gml:pos></gml:Point></gsmlp:shape>"
+            + "<gsmlp:nvclCollection>false</gsmlp:nvclCollection></gsmlp:BoreholeView>"
+            + "<gsmlp:BoreholeView gml:id=\"gsml.borehole.C\"><gsmlp:name>No location</gsmlp:name></gsmlp:BoreholeView>"
+            + "</gml:featureMembers></wfs:FeatureCollection>";
+
+    private HttpServiceCaller mockHttpServiceCaller = context.mock(HttpServiceCaller.class);
+    private WFSGetFeatureMethodMaker mockMethodMaker = context.mock(WFSGetFeatureMethodMaker.class);
+    private HttpRequestBase mockMethod = context.mock(HttpRequestBase.class);
+    private BoreholeClusterService service;
+
+    @Before
+    public void setup() {
+        service = new BoreholeClusterService(mockHttpServiceCaller, mockMethodMaker, 4, 60);
+    }
+
+    /**
+     * Tests that every feature's point is read in lon/lat order (regardless of the axis order of its CRS)
+     */
+    @Test
+    public void testReadFeatures() throws Exception {
+        BoreholeClusterIndex index = new BoreholeClusterIndex();
+        int features = BoreholeClusterService.readFeatures(new ByteArrayInputStream(RESPONSE.getBytes(StandardCharsets.UTF_8)), index);
+
+        Assert.assertEquals(3, features);
+        Assert.assertEquals(2, index.getPointCount());
+        Assert.assertEquals(1, index.getNvclCount());
+        Assert.assertEquals(1, index.getClusters(10, new double[] {120, -31, 121, -30}).size());
+        Assert.assertEquals(1, index.getClusters(10, new double[] {144, -21, 146, -19}).size());
+    }
+
+    /**
+     * Tests that an exception report is treated as an error
+     */
+    @Test(expected = javax.xml.stream.XMLStreamException.class)
+    public void testReadExceptionReport() throws Exception {
+        BoreholeClusterService.readFeatures(new ByteArrayInputStream("<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"/>".getBytes(StandardCharsets.UTF_8)),
+                new BoreholeClusterIndex());
+    }
+
+    /**
+     * Tests that an index is only requested from the WFS once per filter
+     */
+    @Test
+    public void testIndexCached() throws Exception {
+        context.checking(new Expectations() {
+            {
+                exactly(2).of(mockMethodMaker).makePostMethod(with(equal(SERVICE_URL)), with(equal("gsmlp:BoreholeView")),
+                        with(any(String.class)), with(equal(0)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal((String) null)), with(equal((String) null)));
+                will(returnValue(mockMethod));
+
+                exactly(2).of(mockHttpServiceCaller).getMethodResponseAsStream(mockMethod);
+                will(onConsecutiveCalls(returnValue(new ByteArrayInputStream(RESPONSE.getBytes(StandardCharsets.UTF_8))),
+                        returnValue(new ByteArrayInputStream(RESPONSE.getBytes(StandardCharsets.UTF_8)))));
+            }
+        });
+
+        BoreholeClusterIndex index = service.getClusterIndex(SERVICE_URL, null, "", "", "", "", false, null);
+        Assert.assertEquals(2, index.getPointCount());
+        Assert.assertSame(index, service.getClusterIndex(SERVICE_URL, "gsmlp:BoreholeView", "", "", "", "", false, null));
+
+        BoreholeClusterIndex nvclIndex = service.getClusterIndex(SERVICE_URL, null, "", "", "", "", true, null);
+        Assert.assertNotSame(index, nvclIndex);
+        Assert.assertSame(nvclIndex, service.getClusterIndex(SERVICE_URL, null, "", "", "", "", true, null));
+    }
+
+    /**
+     * Tests that failed requests aren't cached
+     */
+    @Test
+    public void testErrorNotCached() throws Exception {
+        context.checking(new Expectations() {
+            {
+                exactly(2).of(mockMethodMaker).makePostMethod(with(equal(SERVICE_URL)), with(equal("gsmlp:BoreholeView")),
+                        with(any(String.class)), with(equal(0)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal((String) null)), with(equal((String) null)));
+                will(returnValue(mockMethod));
+
+                exactly(2).of(mockHttpServiceCaller).getMethodResponseAsStream(mockMethod);
+                will(onConsecutiveCalls(throwException(new ConnectException()),
+                        returnValue(new ByteArrayInputStream(RESPONSE.getBytes(StandardCharsets.UTF_8)))));
+            }
+        });
+
+        try {
+            service.getClusterIndex(SERVICE_URL, null, "", "", "", "", false, null);
+            Assert.fail("Expected exception");
+        } catch (PortalServiceException ex) {
+            //expected
+        }
+
+        Assert.assertEquals(2, service.getClusterIndex(SERVICE_URL, null, "", "", "", "", false, null).getPointCount());
+    }
+}
@@ -1,6 +1,8 @@
 package org.auscope.portal.server.web.service;
 
+import java.io.ByteArrayInputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 
@@ -328,4 +330,133 @@ public class TestBoreholeService extends PortalTestClass {
         Assert.assertEquals(0, restrictedIDs.size());
     }
 
+    /**
+     * Generates a GML borehole collection containing the specified borehole ID's
+     */
+    private static String boreholeCollection(String... ids) {
+        StringBuilder sb = new StringBuilder("<wfs:FeatureCollection numberOfFeatures=\"" + ids.length + "\" xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:gsml=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\"><gml:featureMembers>");
+        for (String id : ids) {
+            sb.append("<gsml:Borehole gml:id=\"gsml.borehole." + id + "\"><gml:name>" + id + "</gml:name></gsml:Borehole>");
+        }
+        sb.append("</gml:featureMembers></wfs:FeatureCollection>");
+        return sb.toString();
+    }
+
+    private static int countOccurrences(String s, String substring) {
+        int count = 0;
+        for (int i = s.indexOf(substring); i >= 0; i = s.indexOf(substring, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Tests that the ID set strategy is chosen by the size of the set (and the output format)
+     */
+    @Test
+    public void testChooseIdSetStrategy() {
+        BoreholeService limitedService = new BoreholeService(mockHttpServiceCaller, mockMethodMaker, null, null, 10, 3);
+        Assert.assertEquals(BoreholeService.IdSetStrategy.SINGLE_FILTER, limitedService.chooseIdSetStrategy(0, null));
+        Assert.assertEquals(BoreholeService.IdSetStrategy.SINGLE_FILTER, limitedService.chooseIdSetStrategy(10, null));
+        Assert.assertEquals(BoreholeService.IdSetStrategy.CHUNKED_FILTER, limitedService.chooseIdSetStrategy(11, "text/xml"));
+        Assert.assertEquals(BoreholeService.IdSetStrategy.CHUNKED_FILTER, limitedService.chooseIdSetStrategy(30, "text/xml; subtype=gml/3.1.1"));
+        Assert.assertEquals(BoreholeService.IdSetStrategy.LOCAL_JOIN, limitedService.chooseIdSetStrategy(31, null));
+        Assert.assertEquals(BoreholeService.IdSetStrategy.SINGLE_FILTER, limitedService.chooseIdSetStrategy(31, "csv"));
+
+        List<List<String>> chunks = limitedService.chunkIds(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12"));
+        Assert.assertEquals(2, chunks.size());
+        Assert.assertEquals(6, chunks.get(0).size());
+        Assert.assertEquals(6, chunks.get(1).size());
+    }
+
+    /**
+     * Tests that a medium sized ID set is split into several filters (none exceeding the limit) and the responses are merged
+     */
+    @Test
+    public void testGetRestrictedBoreholesChunked() throws Exception {
+        final String serviceUrl = "http://example.com";
+        final int maxFeatures = 45;
+        final String outputFormat = "text/xml";
+        final List<String> restrictedIds = Arrays.asList("id1", "id2", "id3", "id4", "id5");
+        final HttpRequestBase mockMethod1 = context.mock(HttpRequestBase.class, "mockMethod1");
+        final HttpRequestBase mockMethod2 = context.mock(HttpRequestBase.class, "mockMethod2");
+        final HttpRequestBase mockMethod3 = context.mock(HttpRequestBase.class, "mockMethod3");
+        final List<String> filters = Arrays.asList(
+                new BoreholeFilter(null, null, null, null, Arrays.asList("id1", "id2"), null).getFilterStringAllRecords(),
+                new BoreholeFilter(null, null, null, null, Arrays.asList("id3", "id4"), null).getFilterStringAllRecords(),
+                new BoreholeFilter(null, null, null, null, Arrays.asList("id5"), null).getFilterStringAllRecords());
+        for (String filter : filters) {
+            Assert.assertTrue(countOccurrences(filter, "gsml.borehole.") <= 2);
+        }
+        service = new BoreholeService(mockHttpServiceCaller, mockMethodMaker, null, null, 2, 3);
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockMethodMaker).makePostMethod(with(equal(serviceUrl)), with(equal("gsml:Borehole")),
+                        with(equal(filters.get(0))), with(equal(maxFeatures)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal(outputFormat)), with(equal((String) null)));
+                will(returnValue(mockMethod1));
+                oneOf(mockMethodMaker).makePostMethod(with(equal(serviceUrl)), with(equal("gsml:Borehole")),
+                        with(equal(filters.get(1))), with(equal(maxFeatures)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal(outputFormat)), with(equal((String) null)));
+                will(returnValue(mockMethod2));
+                oneOf(mockMethodMaker).makePostMethod(with(equal(serviceUrl)), with(equal("gsml:Borehole")),
+                        with(equal(filters.get(2))), with(equal(maxFeatures)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal(outputFormat)), with(equal((String) null)));
+                will(returnValue(mockMethod3));
+
+                oneOf(mockHttpServiceCaller).getMethodResponseAsString(mockMethod1);
+                will(returnValue(boreholeCollection("id1", "id2")));
+                oneOf(mockHttpServiceCaller).getMethodResponseAsString(mockMethod2);
+                will(returnValue(boreholeCollection("id3")));
+                oneOf(mockHttpServiceCaller).getMethodResponseAsString(mockMethod3);
+                will(returnValue(boreholeCollection("id5")));
+            }
+        });
+
+        WFSResponse result = service.getAllBoreholes(serviceUrl, null, null, null, null, maxFeatures, null, restrictedIds, outputFormat, "");
+        Assert.assertSame(mockMethod1, result.getMethod());
+
+        String gml = result.getData();
+        Assert.assertEquals(4, countOccurrences(gml, "<gsml:Borehole "));
+        Assert.assertEquals(1, countOccurrences(gml, "<wfs:FeatureCollection"));
+        Assert.assertTrue(gml.indexOf("gsml.borehole.id2") < gml.indexOf("gsml.borehole.id3"));
+        Assert.assertTrue(gml.indexOf("gsml.borehole.id3") < gml.indexOf("gsml.borehole.id5"));
+    }
+
+    /**
+     * Tests that a large ID set is not sent upstream but joined locally against an unrestricted query
+     */
+    @Test
+    public void testGetRestrictedBoreholesJoined() throws Exception {
+        final String serviceUrl = "http://example.com";
+        final String outputFormat = null;
+        final List<String> restrictedIds = Arrays.asList("id1", "id3", "id4", "dne");
+        final String unrestrictedFilter = new BoreholeFilter("name", null, null, null, null, null).getFilterStringAllRecords();
+        final String response = boreholeCollection("id1", "id2", "id3", "id4", "id5");
+        service = new BoreholeService(mockHttpServiceCaller, mockMethodMaker, null, null, 1, 2);
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockMethodMaker).makePostMethod(with(equal(serviceUrl)), with(equal("gsml:Borehole")),
+                        with(equal(unrestrictedFilter)), with(equal(0)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal(outputFormat)), with(equal((String) null)));
+                will(returnValue(mockMethod));
+
+                oneOf(mockHttpServiceCaller).getMethodResponseAsStream(mockMethod);
+                will(returnValue(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8))));
+            }
+        });
+
+        WFSResponse result = service.getAllBoreholes(serviceUrl, "name", null, null, null, 2, null, restrictedIds, outputFormat, "");
+        Assert.assertSame(mockMethod, result.getMethod());
+
+        //Only the first 2 (of the 3 available) restricted boreholes
+        String gml = result.getData();
+        Assert.assertEquals(2, countOccurrences(gml, "<gsml:Borehole "));
+        Assert.assertTrue(gml.contains("gsml.borehole.id1"));
+        Assert.assertTrue(gml.contains("gsml.borehole.id3"));
+        Assert.assertFalse(gml.contains("gsml.borehole.id2"));
+        Assert.assertFalse(gml.contains("numberOfFeatures"));
+    }
 }
@@ -0,0 +1,77 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for ByteReplacingInputStream
+ */
+public class TestByteReplacingInputStream extends PortalTestClass {
+
+    /**
+     * Simulates a slow remote service by only ever returning a single byte per read
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static String rewrite(String input, Map<String, String> replacements, boolean trickle) throws IOException {
+        InputStream is = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+        if (trickle) {
+            is = new TrickleInputStream(is);
+        }
+        try (InputStream rewritten = new ByteReplacingInputStream(is, replacements)) {
+            return new String(rewritten.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Tests the NVCL thumbnail rewriting (including targets split across reads)
+     */
+    @Test
+    public void testThumbnailRewrite() throws Exception {
+        Map<String, String> replacements = new LinkedHashMap<String, String>();
+        replacements.put("./Display_Tray_Thumb.html", "http://example/nvcl/Display_Tray_Thumb.html");
+        replacements.put("<img", "<img style=\"max-width: 33%\" ");
+        replacements.put("<img style=\"max-width: 33%", "<img style=\"max-width: 33%");
+
+        String input = "<html><img src=\"./Display_Tray_Thumb.html?sampleno=1\"/>"
+                + "<img style=\"max-width: 33%\" src=\"./Display_Tray_Thumb.html?sampleno=2\"/></html>";
+        String expected = "<html><img style=\"max-width: 33%\"  src=\"http://example/nvcl/Display_Tray_Thumb.html?sampleno=1\"/>"
+                + "<img style=\"max-width: 33%\" src=\"http://example/nvcl/Display_Tray_Thumb.html?sampleno=2\"/></html>";
+
+        Assert.assertEquals(expected, rewrite(input, replacements, false));
+        Assert.assertEquals(expected, rewrite(input, replacements, true));
+    }
+
+    /**
+     * Tests that replacements aren't rescanned and that partial matches at the end of the stream are left alone
+     */
+    @Test
+    public void testNoRescan() throws Exception {
+        Map<String, String> replacements = new LinkedHashMap<String, String>();
+        replacements.put("downloadtsg.html", "http://example/href/downloadtsg.html");
+        replacements.put("href", " target='_blank' href");
+
+        Assert.assertEquals("<a  target='_blank' href=\"http://example/href/downloadtsg.html\">x</a> downloadtsg.ht",
+                rewrite("<a href=\"downloadtsg.html\">x</a> downloadtsg.ht", replacements, true));
+        Assert.assertEquals("", rewrite("", replacements, false));
+        Assert.assertEquals("hre", rewrite("hre", replacements, false));
+    }
+}
@@ -0,0 +1,157 @@
+package org.auscope.portal.server.web.service;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpClientInputStream;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.domain.nvcldataservice.ImageTrayDepthResponse;
+import org.auscope.portal.server.web.NVCL2_0_DataServiceMethodMaker;
+import org.jmock.Expectations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for CoreImageTileService
+ */
+public class TestCoreImageTileService extends PortalTestClass {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NVCL2_0_DataService mockDataService = context.mock(NVCL2_0_DataService.class);
+    private NVCL2_0_DataServiceMethodMaker mockMethodMaker = context.mock(NVCL2_0_DataServiceMethodMaker.class);
+    private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
+    private HttpRequestBase mockMethod1 = context.mock(HttpRequestBase.class, "mockMethod1");
+    private HttpRequestBase mockMethod2 = context.mock(HttpRequestBase.class, "mockMethod2");
+    private CoreImageTileService tileService;
+
+    private final String serviceUrl = "http://example/nvcl/";
+    private final String logId = "traylog";
+
+    @Before
+    public void setup() throws Exception {
+        tileService = new CoreImageTileService(mockDataService, mockMethodMaker, mockServiceCaller,
+                new ServiceFanOut(2, 2, 10000), new DiskLruCache(folder.newFolder("tiles"), 1024 * 1024));
+    }
+
+    private static HttpClientInputStream trayImage(Color color) throws Exception {
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, color.getRGB());
+            }
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", bos);
+        return new HttpClientInputStream(new ByteArrayInputStream(bos.toByteArray()), null);
+    }
+
+    private static BufferedImage read(CoreImageTileService.Tile tile) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(tile.getData()));
+    }
+
+    /**
+     * Asserts that the pixel at x,y is close to expected (allowing for JPEG artifacts)
+     */
+    private static void assertColor(Color expected, BufferedImage image, int x, int y) {
+        Color actual = new Color(image.getRGB(x, y));
+        Assert.assertTrue(String.format("Expected %1$s at %2$d,%3$d but got %4$s", expected, x, y, actual),
+                Math.abs(expected.getRed() - actual.getRed()) < 24
+                && Math.abs(expected.getGreen() - actual.getGreen()) < 24
+                && Math.abs(expected.getBlue() - actual.getBlue()) < 24);
+    }
+
+    /**
+     * Tests a level 0 tile is drawn from the tray images and that coarser levels are built from (cached) finer tiles
+     */
+    @Test
+    public void testGetTile() throws Exception {
+        context.checking(new Expectations() {{
+            oneOf(mockDataService).getImageTrayDepths(serviceUrl, logId);will(returnValue(Arrays.asList(
+                    new ImageTrayDepthResponse("1", "0.0", "2.5"),
+                    new ImageTrayDepthResponse("2", "2.5", "5.0"),
+                    new ImageTrayDepthResponse("3", "bad", "5.0"))));
+
+            oneOf(mockMethodMaker).getTrayImageMethod(serviceUrl, logId, "1");will(returnValue(mockMethod1));
+            oneOf(mockMethodMaker).getTrayImageMethod(serviceUrl, logId, "2");will(returnValue(mockMethod2));
+            oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod1);will(returnValue(trayImage(Color.RED)));
+            oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod2);will(returnValue(trayImage(Color.BLUE)));
+        }});
+
+        Assert.assertArrayEquals(new double[] {0.0, 5.0}, tileService.getDepthRange(serviceUrl, logId), 0.0001);
+
+        CoreImageTileService.Tile tile = tileService.getTile(serviceUrl, logId, 0, 0);
+        Assert.assertTrue(tile.isComplete());
+        BufferedImage image = read(tile);
+        Assert.assertEquals(CoreImageTileService.TILE_WIDTH, image.getWidth());
+        Assert.assertEquals(CoreImageTileService.TILE_HEIGHT, image.getHeight());
+        assertColor(Color.RED, image, 128, 256);
+
+        //Level 1 tile 0 spans both level 0 tiles - tile 0 should come from the cache (no more tray 1 requests)
+        image = read(tileService.getTile(serviceUrl, logId, 1, 0));
+        assertColor(Color.RED, image, 128, 128);
+        assertColor(Color.BLUE, image, 128, 384);
+
+        //Already rendered tiles shouldn't generate any further requests
+        Assert.assertArrayEquals(tile.getData(), tileService.getTile(serviceUrl, logId, 0, 0).getData());
+        Assert.assertNotNull(tileService.getTile(serviceUrl, logId, 0, 1));
+    }
+
+    /**
+     * Tests that tiles missing a tray (and the coarser tiles built from them) are flagged as incomplete and
+     * rendered again rather than being cached
+     */
+    @Test
+    public void testGetTileFailedTray() throws Exception {
+        context.checking(new Expectations() {{
+            oneOf(mockDataService).getImageTrayDepths(serviceUrl, logId);will(returnValue(Arrays.asList(
+                    new ImageTrayDepthResponse("1", "0.0", "2.5"))));
+
+            exactly(3).of(mockMethodMaker).getTrayImageMethod(serviceUrl, logId, "1");will(returnValue(mockMethod1));
+            exactly(2).of(mockServiceCaller).getMethodResponseAsStream(mockMethod1);will(returnValue(
+                    new HttpClientInputStream(new ByteArrayInputStream("<html>Error</html>".getBytes()), null)));
+            oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod1);will(returnValue(trayImage(Color.RED)));
+        }});
+
+        CoreImageTileService.Tile tile = tileService.getTile(serviceUrl, logId, 0, 0);
+        Assert.assertFalse(tile.isComplete());
+        Assert.assertEquals(CoreImageTileService.TILE_WIDTH, read(tile).getWidth());
+
+        //Built from the incomplete tile (which must be requested again)
+        Assert.assertFalse(tileService.getTile(serviceUrl, logId, 1, 0).isComplete());
+
+        //Once the tray loads the tile is complete (and cached)
+        tile = tileService.getTile(serviceUrl, logId, 0, 0);
+        Assert.assertTrue(tile.isComplete());
+        assertColor(Color.RED, read(tile), 128, 256);
+        Assert.assertTrue(tileService.getTile(serviceUrl, logId, 0, 0).isComplete());
+    }
+
+    /**
+     * Tests that tiles outside of the imaged depths aren't rendered
+     */
+    @Test
+    public void testGetTileOutOfRange() throws Exception {
+        context.checking(new Expectations() {{
+            oneOf(mockDataService).getImageTrayDepths(serviceUrl, logId);will(returnValue(Arrays.asList(
+                    new ImageTrayDepthResponse("1", "10.0", "12.0"))));
+        }});
+
+        Assert.assertNull(tileService.getTile(serviceUrl, logId, 0, 0));
+        Assert.assertNull(tileService.getTile(serviceUrl, logId, 0, 5));
+        Assert.assertNull(tileService.getTile(serviceUrl, logId, -1, 4));
+        Assert.assertNull(tileService.getTile(serviceUrl, logId, CoreImageTileService.LEVELS, 0));
+        Assert.assertNull(tileService.getTile(serviceUrl, logId, 0, -1));
+    }
+}
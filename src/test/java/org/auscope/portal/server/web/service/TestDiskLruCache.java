@@ -0,0 +1,114 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for DiskLruCache
+ */
+public class TestDiskLruCache extends PortalTestClass {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Tests storing and retrieving entries
+     */
+    @Test
+    public void testPutGet() throws Exception {
+        DiskLruCache cache = new DiskLruCache(folder.newFolder("cache"), 1000);
+
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", new byte[] {1, 2, 3});
+        cache.put("b", new ByteArrayInputStream(new byte[] {4, 5}));
+
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(cache.get("a").toPath()));
+        Assert.assertArrayEquals(new byte[] {4, 5}, Files.readAllBytes(cache.get("b").toPath()));
+        Assert.assertEquals(5, cache.getCurrentBytes());
+
+        //Replacing an entry shouldn't double count it
+        cache.put("a", new byte[] {6});
+        Assert.assertArrayEquals(new byte[] {6}, Files.readAllBytes(cache.get("a").toPath()));
+        Assert.assertEquals(3, cache.getCurrentBytes());
+    }
+
+    /**
+     * Tests that the least recently used entries are evicted once the size budget is exceeded
+     */
+    @Test
+    public void testEviction() throws Exception {
+        DiskLruCache cache = new DiskLruCache(folder.newFolder("cache"), 10);
+
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        Assert.assertNotNull(cache.get("a")); //b is now the least recently used
+        cache.put("c", new byte[4]);
+
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("c"));
+        Assert.assertEquals(8, cache.getCurrentBytes());
+
+        //An entry larger than the budget is still kept (until the next put)
+        File big = cache.put("d", new byte[20]);
+        Assert.assertTrue(big.isFile());
+        Assert.assertNull(cache.get("a"));
+        Assert.assertNull(cache.get("c"));
+        Assert.assertEquals(20, cache.getCurrentBytes());
+    }
+
+    /**
+     * Tests that opened entries can still be read after they are evicted
+     */
+    @Test
+    public void testOpen() throws Exception {
+        DiskLruCache cache = new DiskLruCache(folder.newFolder("cache"), 10);
+
+        Assert.assertNull(cache.open("a"));
+        try (InputStream a = cache.putAndOpen("a", new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6}));
+                InputStream reopened = cache.open("a")) {
+            cache.put("b", new byte[6]); //evicts a
+            Assert.assertNull(cache.open("a"));
+            Assert.assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, a.readAllBytes());
+            Assert.assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6}, reopened.readAllBytes());
+        }
+
+        //Deleted from underneath the cache
+        new File(folder.getRoot(), "cache/b").delete();
+        Assert.assertNull(cache.open("b"));
+        Assert.assertEquals(0, cache.getCurrentBytes());
+    }
+
+    /**
+     * Tests that entries written by an earlier instance are picked up (and partial writes discarded)
+     */
+    @Test
+    public void testReload() throws Exception {
+        File dir = folder.newFolder("cache");
+        new DiskLruCache(dir, 1000).put("a", new byte[] {1, 2});
+        Files.write(new File(dir, "partial.tmp").toPath(), new byte[] {3});
+
+        DiskLruCache cache = new DiskLruCache(dir, 1000);
+        Assert.assertArrayEquals(new byte[] {1, 2}, Files.readAllBytes(cache.get("a").toPath()));
+        Assert.assertEquals(2, cache.getCurrentBytes());
+        Assert.assertFalse(new File(dir, "partial.tmp").exists());
+    }
+
+    /**
+     * Tests key generation is stable and sensitive to part boundaries
+     */
+    @Test
+    public void testKeyFor() {
+        Assert.assertEquals(DiskLruCache.keyFor("a", 1, "b"), DiskLruCache.keyFor("a", 1, "b"));
+        Assert.assertNotEquals(DiskLruCache.keyFor("ab", "c"), DiskLruCache.keyFor("a", "bc"));
+        Assert.assertEquals(64, DiskLruCache.keyFor("a").length());
+    }
+}
@@ -0,0 +1,205 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Unit tests for FederatedDownloadService
+ */
+public class TestFederatedDownloadService extends PortalTestClass {
+
+    private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
+    private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private ServiceFanOut fanOut = new ServiceFanOut(4, 1, 10000);
+
+    @After
+    public void tearDown() {
+        fanOut.shutdown();
+    }
+
+    private static HttpResponse response(int status, String body) {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, ""));
+        response.setEntity(new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8)));
+        return response;
+    }
+
+    private long providerCount(String outcome) {
+        return meterRegistry.get(FederatedDownloadService.METRIC_PROVIDER).tag("outcome", outcome).timer().count();
+    }
+
+    /**
+     * Serves canned responses keyed by host. Hosts starting with "slow" block until their request is aborted
+     * (and no other host will respond until a slow request has started).
+     */
+    private static class StubServiceCaller extends HttpServiceCaller {
+        Map<String, HttpResponse> responses = new HashMap<String, HttpResponse>();
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        CountDownLatch aborted = new CountDownLatch(1);
+        boolean waitForSlow = false;
+        Map<String, Integer> requestCounts = new ConcurrentHashMap<String, Integer>();
+
+        StubServiceCaller() {
+            super(90000);
+        }
+
+        @Override
+        public HttpResponse getMethodResponseAsHttpResponse(HttpRequestBase method) throws IOException {
+            String host = method.getURI().getHost();
+            requestCounts.merge(host, 1, Integer::sum);
+            if (host.startsWith("slow")) {
+                slowStarted.countDown();
+                while (!method.isAborted()) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException ex) {
+                        //The abort is what we're waiting for
+                    }
+                }
+                aborted.countDown();
+                throw new IOException("Request aborted");
+            }
+
+            try {
+                if (waitForSlow && !slowStarted.await(5, TimeUnit.SECONDS)) {
+                    throw new IOException("Slow request never started");
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+
+            HttpResponse response = responses.get(host);
+            String body = EntityUtils.toString(response.getEntity());
+            return response(response.getStatusLine().getStatusCode(), body);
+        }
+    }
+
+    /**
+     * Tests that a connection failure is retried and the eventual response is passed on
+     */
+    @Test
+    public void testRetryThenSuccess() throws Exception {
+        final String serviceUrl = "http://example.org/wfs?request=GetFeature";
+        FederatedDownloadService service = new FederatedDownloadService(mockServiceCaller, meterRegistry, fanOut, 3, 1);
+        final Map<String, String> results = new HashMap<String, String>();
+
+        context.checking(new Expectations() {
+            {
+                exactly(2).of(mockServiceCaller).getMethodResponseAsHttpResponse(with(any(HttpRequestBase.class)));
+                will(onConsecutiveCalls(throwException(new ConnectException()), returnValue(response(200, "a,b\n1,2\n"))));
+            }
+        });
+
+        service.download("test", new String[] {serviceUrl}, (url, body) -> results.put(url, new String(body, StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("a,b\n1,2\n", results.get(serviceUrl));
+        Assert.assertEquals(1.0, meterRegistry.get(FederatedDownloadService.METRIC_RETRIES).counter().count(), 0.0);
+        Assert.assertEquals(1, providerCount("success"));
+    }
+
+    /**
+     * Tests that client errors are not retried and the provider is skipped
+     */
+    @Test
+    public void testNonRetryableStatus() throws Exception {
+        FederatedDownloadService service = new FederatedDownloadService(mockServiceCaller, meterRegistry, fanOut, 3, 1);
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockServiceCaller).getMethodResponseAsHttpResponse(with(any(HttpRequestBase.class)));
+                will(returnValue(response(404, "Not found")));
+            }
+        });
+
+        service.download("test", new String[] {"http://example.org/wfs"}, (url, body) -> Assert.fail("No response expected"));
+        Assert.assertEquals(1, providerCount("failure"));
+    }
+
+    /**
+     * Tests that providers are downloaded in parallel with failing providers retried and then skipped
+     */
+    @Test
+    public void testMultipleProviders() throws Exception {
+        StubServiceCaller stub = new StubServiceCaller();
+        stub.responses.put("a.example", response(200, "a"));
+        stub.responses.put("b.example", response(200, "b"));
+        stub.responses.put("c.example", response(503, "unavailable"));
+        FederatedDownloadService service = new FederatedDownloadService(stub, meterRegistry, fanOut, 2, 1);
+        final Map<String, String> results = new HashMap<String, String>();
+
+        service.download("test", new String[] {"http://a.example/wfs", "http://b.example/wfs", "http://c.example/wfs"},
+                (url, body) -> results.put(url, new String(body, StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("a", results.get("http://a.example/wfs"));
+        Assert.assertEquals("b", results.get("http://b.example/wfs"));
+        Assert.assertEquals(2, stub.requestCounts.get("c.example").intValue());
+        Assert.assertEquals(2, providerCount("success"));
+        Assert.assertEquals(1, providerCount("failure"));
+    }
+
+    /**
+     * Tests that outstanding requests are aborted when the handler fails (eg - the client disconnects)
+     */
+    @Test
+    public void testHandlerFailureAbortsDownload() throws Exception {
+        StubServiceCaller stub = new StubServiceCaller();
+        stub.responses.put("a.example", response(200, "a"));
+        stub.waitForSlow = true;
+        FederatedDownloadService service = new FederatedDownloadService(stub, meterRegistry, fanOut, 3, 1);
+
+        try {
+            service.download("test", new String[] {"http://a.example/wfs", "http://slow.example/wfs"}, (url, body) -> {
+                throw new IOException("Client disconnected");
+            });
+            Assert.fail("Expected the handler exception to be rethrown");
+        } catch (IOException ex) {
+            Assert.assertEquals("Client disconnected", ex.getMessage());
+        }
+
+        Assert.assertTrue(stub.aborted.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, stub.requestCounts.get("slow.example").intValue());
+    }
+
+    /**
+     * Tests that overly long URLs are sent as a POST
+     */
+    @Test
+    public void testMakeMethod() throws Exception {
+        FederatedDownloadService service = new FederatedDownloadService(mockServiceCaller, meterRegistry, fanOut, 3, 1);
+
+        Assert.assertEquals("GET", service.makeMethod("http://example.org/wfs?a=b").getMethod());
+
+        StringBuilder filter = new StringBuilder();
+        while (filter.length() <= FederatedDownloadService.MAX_GET_LENGTH) {
+            filter.append("x");
+        }
+        HttpRequestBase method = service.makeMethod("http://example.org/wfs?filter=" + filter);
+        Assert.assertTrue(method instanceof HttpPost);
+        Assert.assertEquals("http://example.org/wfs", method.getURI().toString());
+        Assert.assertEquals("filter=" + filter, EntityUtils.toString(((HttpPost) method).getEntity()));
+    }
+}
@@ -0,0 +1,166 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.auscope.portal.capdf.CapdfMeasurementLimitFilter;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for FilterStringCache
+ */
+public class TestFilterStringCache extends PortalTestClass {
+
+    private static final String SRS = "EPSG:4326";
+
+    private static Supplier<CapdfMeasurementLimitFilter> countingFilter(final String group, final AtomicInteger count) {
+        return () -> {
+            count.incrementAndGet();
+            return new CapdfMeasurementLimitFilter(group);
+        };
+    }
+
+    private static String get(FilterStringCache cache, String group, FilterBoundingBox bbox, AtomicInteger count) {
+        return cache.getFilterString(CapdfMeasurementLimitFilter.class, bbox, countingFilter(group, count), group);
+    }
+
+    /**
+     * Tests that filters are only generated once per distinct set of parameters
+     */
+    @Test
+    public void testCachedByParameters() {
+        FilterStringCache cache = new FilterStringCache(100, 1024, 0);
+        AtomicInteger count = new AtomicInteger();
+        FilterBoundingBox bbox = new FilterBoundingBox(SRS, new double[] {120, -30}, new double[] {121, -29});
+
+        String filter = get(cache, "group-a", null, count);
+        Assert.assertEquals(new CapdfMeasurementLimitFilter("group-a").getFilterStringAllRecords(), filter);
+        Assert.assertSame(filter, get(cache, "group-a", null, count));
+        Assert.assertEquals(1, count.get());
+
+        Assert.assertEquals(new CapdfMeasurementLimitFilter("group-a").getFilterStringBoundingBox(bbox), get(cache, "group-a", bbox, count));
+        get(cache, "group-a", new FilterBoundingBox(SRS, new double[] {120, -30}, new double[] {121, -29}), count);
+        get(cache, "group-b", null, count);
+        get(cache, "", null, count);
+        get(cache, null, null, count);
+        Assert.assertEquals(5, count.get());
+
+        Assert.assertEquals(7, cache.getRequests());
+        Assert.assertEquals(2, cache.getHits());
+    }
+
+    /**
+     * Tests that keys distinguish parameters that would concatenate to the same string
+     */
+    @Test
+    public void testKeysUnambiguous() {
+        Assert.assertNotEquals(FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, "ab", "c"),
+                FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, "a", "bc"));
+        Assert.assertNotEquals(FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, Arrays.asList("a,b")),
+                FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, Arrays.asList("a", "b")));
+        Assert.assertNotEquals(FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, "true"),
+                FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, Boolean.TRUE));
+        Assert.assertNotEquals(FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, (Object) null),
+                FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, "null"));
+        Assert.assertEquals(FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, Arrays.asList("a", "b")),
+                FilterStringCache.keyFor(CapdfMeasurementLimitFilter.class, null, Arrays.asList("a", "b")));
+    }
+
+    /**
+     * Tests bounding boxes are widened to the grid (without floating point noise)
+     */
+    @Test
+    public void testQuantise() {
+        FilterBoundingBox bbox = new FilterBoundingBox(SRS, new double[] {120.25, -30.71}, new double[] {120.31, -30.05});
+        Assert.assertSame(bbox, FilterStringCache.quantise(bbox, 0));
+        Assert.assertNull(FilterStringCache.quantise(null, 0.1));
+
+        FilterBoundingBox quantised = FilterStringCache.quantise(bbox, 0.1);
+        Assert.assertEquals(SRS, quantised.getBboxSrs());
+        Assert.assertArrayEquals(new double[] {120.2, -30.8}, quantised.getLowerCornerPoints(), 0);
+        Assert.assertArrayEquals(new double[] {120.4, -30.0}, quantised.getUpperCornerPoints(), 0);
+    }
+
+    /**
+     * Tests that nearby bounding boxes share the filter for their quantised box
+     */
+    @Test
+    public void testQuantisedBoundingBoxes() {
+        FilterStringCache cache = new FilterStringCache(100, 1024, 1);
+        AtomicInteger count = new AtomicInteger();
+
+        String filter = get(cache, "group-a", new FilterBoundingBox(SRS, new double[] {120.2, -30.7}, new double[] {120.8, -29.1}), count);
+        Assert.assertSame(filter, get(cache, "group-a", new FilterBoundingBox(SRS, new double[] {120.5, -30.1}, new double[] {120.9, -29.9}), count));
+        Assert.assertEquals(1, count.get());
+        Assert.assertEquals(new CapdfMeasurementLimitFilter("group-a").getFilterStringBoundingBox(
+                new FilterBoundingBox(SRS, new double[] {120, -31}, new double[] {121, -29})), filter);
+    }
+
+    /**
+     * Tests the least recently used filters are evicted once there are too many
+     */
+    @Test
+    public void testBoundedByEntries() {
+        FilterStringCache cache = new FilterStringCache(2, 1024, 0);
+        AtomicInteger count = new AtomicInteger();
+
+        get(cache, "group-a", null, count);
+        get(cache, "group-b", null, count);
+        get(cache, "group-a", null, count);
+        get(cache, "group-c", null, count);
+        Assert.assertEquals(3, count.get());
+
+        get(cache, "group-a", null, count);
+        Assert.assertEquals(3, count.get());
+        get(cache, "group-b", null, count);
+        Assert.assertEquals(4, count.get());
+    }
+
+    /**
+     * Tests the least recently used filters are evicted once they exceed the size budget
+     */
+    @Test
+    public void testBoundedByBytes() {
+        char[] padding = new char[4096];
+        Arrays.fill(padding, 'x');
+        String groupA = "a" + new String(padding);
+        String groupB = "b" + new String(padding);
+
+        //Room for one of these filters (and its key) but not two
+        long entryBytes = (64 + new CapdfMeasurementLimitFilter(groupA).getFilterStringAllRecords().length()) * 2L;
+        long maxKilobytes = (entryBytes * 3 / 2 + 1023) / 1024;
+        FilterStringCache cache = new FilterStringCache(100, maxKilobytes, 0);
+        AtomicInteger count = new AtomicInteger();
+
+        get(cache, groupA, null, count);
+        get(cache, groupA, null, count);
+        Assert.assertEquals(1, count.get());
+
+        get(cache, groupB, null, count);
+        get(cache, groupA, null, count);
+        Assert.assertEquals(3, count.get());
+
+        //Larger than the entire budget
+        char[] large = new char[(int) maxKilobytes * 1024];
+        Arrays.fill(large, 'x');
+        get(cache, new String(large), null, count);
+        get(cache, new String(large), null, count);
+        Assert.assertEquals(5, count.get());
+    }
+
+    /**
+     * Tests UNCACHED generates every filter
+     */
+    @Test
+    public void testUncached() {
+        AtomicInteger count = new AtomicInteger();
+        get(FilterStringCache.UNCACHED, "group-a", null, count);
+        get(FilterStringCache.UNCACHED, "group-a", null, count);
+        Assert.assertEquals(2, count.get());
+        Assert.assertEquals(0, FilterStringCache.UNCACHED.getRequests());
+    }
+}
@@ -0,0 +1,92 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for GMLFeatureCollectionMerger
+ */
+public class TestGMLFeatureCollectionMerger extends PortalTestClass {
+
+    private static final String MEMBERS_RESPONSE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<wfs:FeatureCollection numberOfFeatures=\"2\" xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:gsml=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\">"
+            + "<gml:featureMembers>"
+            + "<gsml:Borehole gml:id=\"gsml.borehole.A\"><gml:name>A</gml:name></gsml:Borehole>"
+            + "<gsml:Borehole gml:id=\"gsml.borehole.B\"><gml:name>B</gml:name></gsml:Borehole>"
+            + "</gml:featureMembers></wfs:FeatureCollection>";
+
+    private static final String MEMBER_RESPONSE = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:g=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\">"
+            + "<gml:featureMember><g:Borehole gml:id=\"gsml.borehole.C\"><gml:name>C</gml:name></g:Borehole></gml:featureMember>"
+            + "</wfs:FeatureCollection>";
+
+    private static final String EMPTY_RESPONSE = "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\"/>";
+
+    private static String merge(GMLFeatureCollectionMerger merger, String... responses) throws XMLStreamException {
+        Reader[] readers = new Reader[responses.length];
+        for (int i = 0; i < responses.length; i++) {
+            readers[i] = new StringReader(responses[i]);
+        }
+        return merger.merge(Arrays.asList(readers));
+    }
+
+    /**
+     * Tests that features from every response end up (in order) inside the first response's collection
+     */
+    @Test
+    public void testMerge() throws Exception {
+        GMLFeatureCollectionMerger merger = new GMLFeatureCollectionMerger(null, 0);
+        String gml = merge(merger, MEMBERS_RESPONSE, MEMBER_RESPONSE);
+
+        Assert.assertEquals(3, merger.getFeatureCount());
+        Assert.assertFalse(merger.isTruncated());
+        Assert.assertTrue(gml.indexOf("gsml.borehole.A") < gml.indexOf("gsml.borehole.B"));
+        Assert.assertTrue(gml.indexOf("gsml.borehole.B") < gml.indexOf("gsml.borehole.C"));
+        Assert.assertTrue(gml.indexOf("gsml.borehole.C") < gml.indexOf("</gml:featureMembers>"));
+        Assert.assertFalse(gml.contains("numberOfFeatures"));
+    }
+
+    /**
+     * Tests that only accepted features are kept (and wrapped appropriately for a featureMember collection)
+     */
+    @Test
+    public void testFilteredMerge() throws Exception {
+        GMLFeatureCollectionMerger merger = new GMLFeatureCollectionMerger(id -> !id.endsWith("A"), 0);
+        String gml = merge(merger, MEMBER_RESPONSE, MEMBERS_RESPONSE);
+
+        Assert.assertEquals(2, merger.getFeatureCount());
+        Assert.assertFalse(gml.contains("gsml.borehole.A"));
+        Assert.assertTrue(gml.contains("gsml.borehole.B"));
+        Assert.assertTrue(gml.contains("gsml.borehole.C"));
+        Assert.assertEquals(2, gml.split("<gml:featureMember>", -1).length - 1);
+    }
+
+    /**
+     * Tests that maxFeatures is applied across all responses
+     */
+    @Test
+    public void testMaxFeatures() throws Exception {
+        GMLFeatureCollectionMerger merger = new GMLFeatureCollectionMerger(null, 2);
+        String gml = merge(merger, EMPTY_RESPONSE, MEMBERS_RESPONSE, MEMBER_RESPONSE);
+
+        Assert.assertEquals(2, merger.getFeatureCount());
+        Assert.assertTrue(merger.isTruncated());
+        Assert.assertTrue(gml.contains("gsml.borehole.B"));
+        Assert.assertFalse(gml.contains("gsml.borehole.C"));
+    }
+
+    /**
+     * Tests that an exception report is treated as an error
+     */
+    @Test(expected = XMLStreamException.class)
+    public void testExceptionReport() throws Exception {
+        merge(new GMLFeatureCollectionMerger(null, 0), MEMBERS_RESPONSE,
+                "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"><ows:Exception><ows:ExceptionText>Bad filter</ows:ExceptionText></ows:Exception></ows:ExceptionReport>");
+    }
+}
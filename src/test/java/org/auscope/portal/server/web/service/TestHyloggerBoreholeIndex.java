@@ -0,0 +1,164 @@
+package org.auscope.portal.server.web.service;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.auscope.portal.core.services.CSWCacheService;
+import org.auscope.portal.core.services.PortalServiceException;
+import org.auscope.portal.core.services.csw.CSWRecordsHostFilter;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource;
+import org.auscope.portal.core.services.responses.csw.AbstractCSWOnlineResource.OnlineResourceType;
+import org.auscope.portal.core.services.responses.csw.CSWOnlineResourceImpl;
+import org.auscope.portal.core.services.responses.csw.CSWRecord;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.nvcl.NVCLNamespaceContext;
+import org.jmock.Expectations;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for HyloggerBoreholeIndex
+ */
+public class TestHyloggerBoreholeIndex extends PortalTestClass {
+
+    private static final String URL1 = "http://record.1.resource.1";
+    private static final String URL2 = "http://record.2.resource.1";
+    private static final String URL3 = "http://record.3.resource.1";
+
+    private CSWCacheService mockCSWService = context.mock(CSWCacheService.class);
+    private CSWRecord mockRecord1 = context.mock(CSWRecord.class, "mockRecord1");
+    private CSWRecord mockRecord2 = context.mock(CSWRecord.class, "mockRecord2");
+    private CSWRecordsHostFilter hostFilter = new CSWRecordsHostFilter("");
+    private ServiceFanOut fanOut = new ServiceFanOut(4, 1, 10000);
+    private StubBoreholeService boreholeService = new StubBoreholeService();
+    private HyloggerBoreholeIndex index;
+
+    /**
+     * Responds with a fixed set of ID's per service (from any thread). Services without ID's fail
+     */
+    private static class StubBoreholeService extends BoreholeService {
+        Map<String, List<String>> responses = new ConcurrentHashMap<String, List<String>>();
+        Map<String, AtomicInteger> requests = new ConcurrentHashMap<String, AtomicInteger>();
+
+        public StubBoreholeService() {
+            super(null, null);
+        }
+
+        @Override
+        public List<String> getHyloggerBoreholeIDs(String url, String typeName) throws PortalServiceException {
+            requests.computeIfAbsent(url, k -> new AtomicInteger()).incrementAndGet();
+            List<String> ids = responses.get(url);
+            if (ids == null) {
+                throw new PortalServiceException("Connection refused");
+            }
+            return ids;
+        }
+
+        int requestCount(String url) {
+            AtomicInteger count = requests.get(url);
+            return count == null ? 0 : count.get();
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        final AbstractCSWOnlineResource record1Resource1 = new CSWOnlineResourceImpl(new URL(URL1), "wfs", NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME, "description");
+        final AbstractCSWOnlineResource record1Resource2 = new CSWOnlineResourceImpl(new URL("http://record.1.resource.2"), "wfs", "dne", "description");
+        final AbstractCSWOnlineResource record2Resource1 = new CSWOnlineResourceImpl(new URL(URL2), "wfs", NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME, "description");
+        final AbstractCSWOnlineResource record2Resource2 = new CSWOnlineResourceImpl(new URL(URL3), "wfs", NVCLNamespaceContext.PUBLISHED_DATASETS_TYPENAME, "description");
+
+        context.checking(new Expectations() {
+            {
+                allowing(mockCSWService).getWFSRecords();
+                will(returnValue(Arrays.asList(mockRecord1, mockRecord2)));
+
+                allowing(mockRecord1).getOnlineResourcesByType(hostFilter, OnlineResourceType.WFS);
+                will(returnValue(Arrays.asList(record1Resource1, record1Resource2)));
+                allowing(mockRecord1).getOnlineResourcesByType(null, OnlineResourceType.WFS);
+                will(returnValue(Arrays.asList(record1Resource1, record1Resource2)));
+
+                allowing(mockRecord2).getOnlineResourcesByType(hostFilter, OnlineResourceType.WFS);
+                will(returnValue(Arrays.asList(record2Resource1, record2Resource2)));
+                allowing(mockRecord2).getOnlineResourcesByType(null, OnlineResourceType.WFS);
+                will(returnValue(Arrays.asList(record2Resource1, record2Resource2)));
+            }
+        });
+
+        boreholeService.responses.put(URL1, Arrays.asList("WTB5", "GSDD006", "WTB5"));
+        boreholeService.responses.put(URL2, Arrays.asList("GDDH7", "ABDP1", "GSDD006"));
+        index = new HyloggerBoreholeIndex(boreholeService, mockCSWService, fanOut, 0);
+    }
+
+    @After
+    public void teardown() {
+        fanOut.shutdown();
+    }
+
+    /**
+     * Tests that every service is requested once and the ID's are merged into a single sorted list
+     */
+    @Test
+    public void testGetBoreholeIDs() throws Exception {
+        List<String> ids = index.getBoreholeIDs(hostFilter);
+        Assert.assertEquals(Arrays.asList("ABDP1", "GDDH7", "GSDD006", "WTB5"), ids);
+
+        //Subsequent lookups are served from the index (the failing service won't be retried for a while)
+        Assert.assertEquals(ids, index.getBoreholeIDs(hostFilter));
+        Assert.assertEquals(1, boreholeService.requestCount(URL1));
+        Assert.assertEquals(1, boreholeService.requestCount(URL2));
+        Assert.assertEquals(1, boreholeService.requestCount(URL3));
+    }
+
+    /**
+     * Tests that a service failing on first use is requested again (once its retry delay passes) rather than
+     * being treated as having no boreholes until the next refresh
+     */
+    @Test
+    public void testFailureRetried() throws Exception {
+        index = new HyloggerBoreholeIndex(boreholeService, mockCSWService, fanOut, 0, 0);
+
+        Assert.assertEquals(Arrays.asList("ABDP1", "GDDH7", "GSDD006", "WTB5"), index.getBoreholeIDs(hostFilter));
+        Assert.assertEquals(Arrays.asList("ABDP1", "GDDH7", "GSDD006", "WTB5"), index.getBoreholeIDs(hostFilter));
+        Assert.assertEquals(2, boreholeService.requestCount(URL3));
+
+        boreholeService.responses.put(URL3, Arrays.asList("NEW3"));
+        Assert.assertEquals(Arrays.asList("ABDP1", "GDDH7", "GSDD006", "NEW3", "WTB5"), index.getBoreholeIDs(hostFilter));
+        Assert.assertEquals(Arrays.asList("ABDP1", "GDDH7", "GSDD006", "NEW3", "WTB5"), index.getBoreholeIDs(hostFilter));
+        Assert.assertEquals(3, boreholeService.requestCount(URL3));
+        Assert.assertEquals(1, boreholeService.requestCount(URL1));
+    }
+
+    /**
+     * Tests that a refresh re-requests every service, keeping the previous ID's of any service that fails
+     */
+    @Test
+    public void testRefresh() throws Exception {
+        index.refresh();
+        Assert.assertEquals(Arrays.asList("ABDP1", "GDDH7", "GSDD006", "WTB5"), index.getBoreholeIDs(hostFilter));
+        Assert.assertEquals(1, boreholeService.requestCount(URL1));
+
+        boreholeService.responses.remove(URL1);
+        boreholeService.responses.put(URL2, Arrays.asList("NEW1"));
+        boreholeService.responses.put(URL3, Arrays.asList("NEW3"));
+        index.refresh();
+
+        Assert.assertEquals(Arrays.asList("GSDD006", "NEW1", "NEW3", "WTB5"), index.getBoreholeIDs(hostFilter));
+        Assert.assertEquals(2, boreholeService.requestCount(URL1));
+        Assert.assertEquals(2, boreholeService.requestCount(URL3));
+    }
+
+    /**
+     * Tests sorting/de-duplicating ID's
+     */
+    @Test
+    public void testToSortedArray() {
+        Assert.assertArrayEquals(new String[0], HyloggerBoreholeIndex.toSortedArray(new String[0]));
+        Assert.assertArrayEquals(new String[] {"a", "b", "c"}, HyloggerBoreholeIndex.toSortedArray(new String[] {"c", "a", "b", "a", "c"}));
+    }
+}
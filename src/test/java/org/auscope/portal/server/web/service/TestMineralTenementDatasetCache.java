@@ -0,0 +1,110 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for MineralTenementDatasetCache
+ */
+public class TestMineralTenementDatasetCache extends PortalTestClass {
+
+    private static final String[] COLUMNS = new String[] {"TENNAME", "SHAPE"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String dataset(int n) {
+        return "FID,TENNAME,SHAPE\n" + n + ",dataset-" + n + ",POINT (1 2)\n";
+    }
+
+    private MineralTenementDatasetCache.Loader countingLoader(final AtomicInteger count) {
+        return () -> new ByteArrayInputStream(dataset(count.incrementAndGet()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests that datasets are only downloaded once while fresh (and separately for each key)
+     */
+    @Test
+    public void testCachedUntilExpiry() throws Exception {
+        MineralTenementDatasetCache cache = new MineralTenementDatasetCache(new DiskLruCache(folder.newFolder("cache"), 1024 * 1024), 60000);
+        AtomicInteger count = new AtomicInteger();
+
+        Assert.assertEquals(dataset(1), read(cache.open(countingLoader(count), COLUMNS, "csv", "http://example.org/wfs")));
+        Assert.assertEquals(dataset(1), read(cache.open(countingLoader(count), COLUMNS, "csv", "http://example.org/wfs")));
+        Assert.assertEquals(dataset(2), read(cache.open(countingLoader(count), COLUMNS, "csv", "http://example.org/other")));
+        Assert.assertEquals(2, count.get());
+    }
+
+    /**
+     * Tests that expired datasets are downloaded again
+     */
+    @Test
+    public void testExpired() throws Exception {
+        MineralTenementDatasetCache cache = new MineralTenementDatasetCache(new DiskLruCache(folder.newFolder("cache"), 1024 * 1024), 0);
+        AtomicInteger count = new AtomicInteger();
+
+        Assert.assertEquals(dataset(1), read(cache.open(countingLoader(count), COLUMNS, "csv", "http://example.org/wfs")));
+        Assert.assertEquals(dataset(2), read(cache.open(countingLoader(count), COLUMNS, "csv", "http://example.org/wfs")));
+    }
+
+    /**
+     * Tests that failed downloads aren't cached
+     */
+    @Test
+    public void testLoaderFailure() throws Exception {
+        MineralTenementDatasetCache cache = new MineralTenementDatasetCache(new DiskLruCache(folder.newFolder("cache"), 1024 * 1024), 60000);
+        AtomicInteger count = new AtomicInteger();
+
+        try {
+            cache.open(() -> {
+                throw new IOException("unavailable");
+            }, COLUMNS, "csv", "http://example.org/wfs");
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals("unavailable", ex.getMessage());
+        }
+
+        Assert.assertEquals(dataset(1), read(cache.open(countingLoader(count), COLUMNS, "csv", "http://example.org/wfs")));
+    }
+
+    /**
+     * Tests that responses without the required columns (eg - OWS exception reports) fail and aren't cached
+     */
+    @Test
+    public void testMissingColumnsNotCached() throws Exception {
+        MineralTenementDatasetCache cache = new MineralTenementDatasetCache(new DiskLruCache(folder.newFolder("cache"), 1024 * 1024), 60000);
+        AtomicInteger count = new AtomicInteger();
+
+        final String exceptionReport = "<?xml version=\"1.0\"?><ows:ExceptionReport><ows:Exception/></ows:ExceptionReport>";
+        try {
+            cache.open(() -> new ByteArrayInputStream(exceptionReport.getBytes(StandardCharsets.UTF_8)), COLUMNS, "csv", "http://example.org/wfs");
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("TENNAME"));
+        }
+
+        //Column names are matched ignoring case and any namespace prefix
+        Assert.assertEquals("fid,mt:tenname,mt:shape\n", read(cache.open(() -> new ByteArrayInputStream("fid,mt:tenname,mt:shape\n".getBytes(StandardCharsets.UTF_8)),
+                COLUMNS, "csv", "http://example.org/other")));
+        Assert.assertEquals(dataset(1), read(cache.open(countingLoader(count), COLUMNS, "csv", "http://example.org/wfs")));
+        Assert.assertEquals(1, count.get());
+    }
+}
@@ -1,6 +1,22 @@
 package org.auscope.portal.server.web.service;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.http.client.methods.HttpRequestBase;
 import org.auscope.portal.core.server.http.HttpClientInputStream;
@@ -12,7 +28,9 @@ import org.auscope.portal.server.domain.nvcldataservice.AlgorithmOutputResponse;
 import org.auscope.portal.server.domain.nvcldataservice.AnalyticalJobResults;
 import org.auscope.portal.server.domain.nvcldataservice.AnalyticalJobStatus;
 import org.auscope.portal.server.domain.nvcldataservice.BinnedCSVResponse;
+import org.auscope.portal.server.domain.nvcldataservice.ImageTrayDepthResponse;
 import org.auscope.portal.server.web.NVCL2_0_DataServiceMethodMaker;
+import org.auscope.portal.server.web.service.download.CSVPipeline;
 import org.jmock.Expectations;
 import org.junit.Assert;
 import org.junit.Before;
@@ -21,6 +39,11 @@ import org.junit.Test;
 import org.json.JSONObject;
 import org.json.JSONArray;
 
+import com.opencsv.CSVParser;
+import com.opencsv.CSVParserBuilder;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+
 /**
  * Unit tests for NVCLDataService
  *
@@ -119,6 +142,46 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
     }
 
 
+    /**
+     * Tests that numeric logs are reduced to targetPoints (keeping the end points and any spike) and that
+     * repeated requests for the same log are served from memory
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGetNVCL2_0_JSONDataBinned_TargetPoints() throws Exception {
+        final String serviceUrl = "http://example/url/wfs";
+        final String[] logIds = new String[] {"id1"};
+
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++) {
+            sb.append(i == 0 ? "" : ",");
+            sb.append(String.format("{\"roundedDepth\":%1$d.5,\"averageValue\":%2$s}", i, i == 500 ? "100.0" : "1.0"));
+        }
+        final String responseStr = sb.append("]").toString();
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockMethodMaker).getDownloadJSONMethod(serviceUrl + "getDownsampledData.html", "id1");will(returnValue(mockMethod));
+                oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);will(returnValue(responseStr));
+            }
+        });
+
+        JSONArray values = new JSONArray(dataService.getNVCL2_0_JSONDownsampledData(serviceUrl, logIds, 50)).getJSONObject(0).getJSONArray("numericValues");
+        Assert.assertEquals(50, values.length());
+        Assert.assertEquals(0.5, values.getJSONObject(0).getDouble("roundedDepth"), 0.0001);
+        Assert.assertEquals(999.5, values.getJSONObject(49).getDouble("roundedDepth"), 0.0001);
+        boolean hasSpike = false;
+        for (int i = 0; i < values.length(); i++) {
+            hasSpike |= values.getJSONObject(i).getDouble("averageValue") == 100.0;
+        }
+        Assert.assertTrue(hasSpike);
+
+        //Second request is served from memory
+        values = new JSONArray(dataService.getNVCL2_0_JSONDownsampledData(serviceUrl, logIds)).getJSONObject(0).getJSONArray("numericValues");
+        Assert.assertEquals(1000, values.length());
+    }
+
     /**
      * Tests parsing of an empty downloadscalars JSON request
      *
@@ -181,26 +244,26 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
         Assert.assertEquals("job2", response.getBinnedValues()[1].getName());
         Assert.assertEquals("job3", response.getBinnedValues()[2].getName());
 
-        Assert.assertEquals(2, response.getBinnedValues()[0].getNumericValues().size());
-        Assert.assertEquals(2, response.getBinnedValues()[0].getStartDepths().size());
-        Assert.assertEquals(2, response.getBinnedValues()[1].getNumericValues().size());
-        Assert.assertEquals(2, response.getBinnedValues()[1].getStartDepths().size());
-        Assert.assertEquals(2, response.getBinnedValues()[2].getNumericValues().size());
-        Assert.assertEquals(2, response.getBinnedValues()[2].getStartDepths().size());
-
-        Assert.assertEquals(106.936996459961, (Double)response.getBinnedValues()[0].getStartDepths().get(0), 0.0000001);
-        Assert.assertEquals(108.004341125488, (Double)response.getBinnedValues()[0].getStartDepths().get(1), 0.0000001);
-        Assert.assertEquals(106.936996459961, (Double)response.getBinnedValues()[1].getStartDepths().get(0), 0.0000001);
-        Assert.assertEquals(108.004341125488, (Double)response.getBinnedValues()[1].getStartDepths().get(1), 0.0000001);
-        Assert.assertEquals(106.936996459961, (Double)response.getBinnedValues()[2].getStartDepths().get(0), 0.0000001);
-        Assert.assertEquals(108.004341125488, (Double)response.getBinnedValues()[2].getStartDepths().get(1), 0.0000001);
+        Assert.assertEquals(2, response.getBinnedValues()[0].getNumericValues().length);
+        Assert.assertEquals(2, response.getBinnedValues()[0].getStartDepths().length);
+        Assert.assertEquals(2, response.getBinnedValues()[1].getNumericValues().length);
+        Assert.assertEquals(2, response.getBinnedValues()[1].getStartDepths().length);
+        Assert.assertEquals(2, response.getBinnedValues()[2].getNumericValues().length);
+        Assert.assertEquals(2, response.getBinnedValues()[2].getStartDepths().length);
+
+        Assert.assertEquals(106.936996459961, response.getBinnedValues()[0].getStartDepths()[0], 0.0000001);
+        Assert.assertEquals(108.004341125488, response.getBinnedValues()[0].getStartDepths()[1], 0.0000001);
+        Assert.assertEquals(106.936996459961, response.getBinnedValues()[1].getStartDepths()[0], 0.0000001);
+        Assert.assertEquals(108.004341125488, response.getBinnedValues()[1].getStartDepths()[1], 0.0000001);
+        Assert.assertEquals(106.936996459961, response.getBinnedValues()[2].getStartDepths()[0], 0.0000001);
+        Assert.assertEquals(108.004341125488, response.getBinnedValues()[2].getStartDepths()[1], 0.0000001);
         
-        Assert.assertEquals(1.0, (Double)response.getBinnedValues()[0].getNumericValues().get(0), 0.001);
-        Assert.assertEquals(1.7, (Double)response.getBinnedValues()[0].getNumericValues().get(1), 0.001);
-        Assert.assertEquals(1.0, (Double)response.getBinnedValues()[1].getNumericValues().get(0), 0.001);
-        Assert.assertEquals(1.7, (Double)response.getBinnedValues()[1].getNumericValues().get(1), 0.001);
-        Assert.assertEquals(1.0, (Double)response.getBinnedValues()[2].getNumericValues().get(0), 0.001);
-        Assert.assertEquals(1.7, (Double)response.getBinnedValues()[2].getNumericValues().get(1), 0.001);
+        Assert.assertEquals(1.0, response.getBinnedValues()[0].getNumericValues()[0], 0.001);
+        Assert.assertEquals(1.7, response.getBinnedValues()[0].getNumericValues()[1], 0.001);
+        Assert.assertEquals(1.0, response.getBinnedValues()[1].getNumericValues()[0], 0.001);
+        Assert.assertEquals(1.7, response.getBinnedValues()[1].getNumericValues()[1], 0.001);
+        Assert.assertEquals(1.0, response.getBinnedValues()[2].getNumericValues()[0], 0.001);
+        Assert.assertEquals(1.7, response.getBinnedValues()[2].getNumericValues()[1], 0.001);
     }
     
     
@@ -236,9 +299,251 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
         Assert.assertEquals("job2", response.getBinnedValues()[1].getName());
         Assert.assertEquals("job3", response.getBinnedValues()[2].getName());
 
-        Assert.assertEquals(0, response.getBinnedValues()[0].getNumericValues().size());
-        Assert.assertEquals(0, response.getBinnedValues()[1].getNumericValues().size());
-        Assert.assertEquals(0, response.getBinnedValues()[2].getNumericValues().size());
+        Assert.assertEquals(0, response.getBinnedValues()[0].getNumericValues().length);
+        Assert.assertEquals(0, response.getBinnedValues()[1].getNumericValues().length);
+        Assert.assertEquals(0, response.getBinnedValues()[2].getNumericValues().length);
+    }
+
+    /**
+     * Tests that coarser bin sizes and depth ranges are served from the cached depth pyramid
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGetNVCL2_0_JobsScalarBinned_Pyramid() throws Exception {
+        final String boreholeId = "BOREHOLE_1234";
+        final String[] jobIds = new String[] {"job1"};
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockMethodMaker).getNVCLJobsScalarMethod(ANALYTICAL_SERVICES_URL, "job1", boreholeId);
+                will(returnValue(mockMethod));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);
+                will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/downloadjobscalar.csv"), null)));
+            }
+        });
+
+        BinnedCSVResponse response = dataService.getNVCL2_0_JobsScalarBinned(jobIds, boreholeId, 1.0);
+        Assert.assertEquals(2, response.getBinnedValues()[0].getNumericValues().length);
+
+        //Coarser level is derived from the 1m level (11 samples averaging 1.0 and 3 samples averaging 1.7)
+        response = dataService.getNVCL2_0_JobsScalarBinned(jobIds, boreholeId, 2.0, null, null);
+        Assert.assertEquals(2.0, response.getBinSize(), 0.0);
+        Assert.assertEquals(1, response.getBinnedValues()[0].getNumericValues().length);
+        Assert.assertEquals(106.936996459961, response.getBinnedValues()[0].getStartDepths()[0], 0.0000001);
+        Assert.assertEquals(1.15, response.getBinnedValues()[0].getNumericValues()[0], 0.001);
+        Assert.assertEquals(0.5, response.getBinnedValues()[0].getMinValues()[0], 0.001);
+        Assert.assertEquals(1.8, response.getBinnedValues()[0].getMaxValues()[0], 0.001);
+        Assert.assertEquals(14, response.getBinnedValues()[0].getSampleCounts()[0]);
+
+        //Depth range is sliced from memory
+        response = dataService.getNVCL2_0_JobsScalarBinned(jobIds, boreholeId, 1.0, 108.0, 109.0);
+        Assert.assertEquals(1, response.getBinnedValues()[0].getNumericValues().length);
+        Assert.assertEquals(108.004341125488, response.getBinnedValues()[0].getStartDepths()[0], 0.0000001);
+        Assert.assertEquals(1.7, response.getBinnedValues()[0].getNumericValues()[0], 0.001);
+
+        //The cached level must be unaffected by the slice
+        response = dataService.getNVCL2_0_JobsScalarBinned(jobIds, boreholeId, 1.0);
+        Assert.assertEquals(2, response.getBinnedValues()[0].getNumericValues().length);
+    }
+
+    /**
+     * Tests that non positive bin sizes are rejected before any job data is requested
+     *
+     * @throws Exception
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetNVCL2_0_JobsScalarBinned_InvalidBinSize() throws Exception {
+        dataService.getNVCL2_0_JobsScalarBinned(new String[] {"job1"}, "BOREHOLE_1234", 0.0, null, null);
+    }
+
+    /**
+     * Tests that binning a synthetic multi-million row CSV produces identical output to the original
+     * (boxed List/HashMap based) binning algorithm.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDoBinning_LargeCSVMatchesLegacy() throws Exception {
+        final int rowCount = 2000000;
+        final double binSizeMetres = 1.0;
+        File csvFile = File.createTempFile("nvcl-binning", ".csv");
+        try {
+            writeSyntheticScalarCSV(csvFile, rowCount);
+
+            List<LegacyBin> expected;
+            try (InputStream is = new FileInputStream(csvFile)) {
+                expected = legacyBinning(is, binSizeMetres, 1, -1);
+            }
+
+            BinnedCSVResponse response = new BinnedCSVResponse();
+            BinnedCSVResponse.Bin[] actual = dataService.doBinning(response, new FileInputStream(csvFile), binSizeMetres, '"', 1, -1, null);
+
+            Assert.assertEquals(expected.size(), actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                LegacyBin legacy = expected.get(i);
+                BinnedCSVResponse.Bin bin = actual[i];
+
+                Assert.assertEquals(legacy.name, bin.getName());
+                Assert.assertEquals(legacy.numeric, bin.isNumeric());
+                Assert.assertEquals(legacy.startDepths.size(), bin.getStartDepths().length);
+                for (int j = 0; j < bin.getStartDepths().length; j++) {
+                    Assert.assertEquals(legacy.startDepths.get(j), bin.getStartDepths()[j], 0.0);
+                }
+                Assert.assertEquals(legacy.numericValues.size(), bin.getNumericValues().length);
+                for (int j = 0; j < bin.getNumericValues().length; j++) {
+                    Assert.assertEquals(legacy.numericValues.get(j), bin.getNumericValues()[j], 0.0);
+                }
+                Assert.assertEquals(legacy.highStringValues, Arrays.asList(bin.getHighStringValues()));
+                Assert.assertEquals(legacy.stringValues, bin.getStringValues());
+            }
+
+            //Sanity check the synthetic data actually exercised every code path
+            Assert.assertTrue(actual[0].isNumeric());
+            Assert.assertEquals(rowCount / 4, actual[0].getNumericValues().length);
+            Assert.assertFalse(actual[1].isNumeric());
+            Assert.assertEquals(rowCount / 4, actual[1].getHighStringValues().length);
+            Assert.assertFalse(actual[3].isNumeric());
+            Assert.assertTrue(actual[3].getNumericValues().length > 0);
+            Assert.assertTrue(actual[3].getHighStringValues().length > 0);
+        } finally {
+            csvFile.delete();
+        }
+    }
+
+    /**
+     * Writes a CSV with a depth column (4 rows per metre) followed by a numeric column, a class column (no ties
+     * within any 1m window), a sparse numeric column and a column that switches from numeric to string halfway through.
+     */
+    private static void writeSyntheticScalarCSV(File file, int rowCount) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.write("Depth,Numeric,Class,Sparse,Mixed\n");
+            for (int i = 0; i < rowCount; i++) {
+                int window = i / 4;
+                double depth = 10.0 + (i * 0.25);
+                String clazz = (i % 4) < 3 ? "Class" + (window % 7) : "Class" + ((window + 3) % 7);
+                String sparse = (i % 3) == 0 ? "null" : ((i % 5) == 0 ? "" : Integer.toString(i % 11));
+                String mixed = i < (rowCount / 2) + 2 ? Double.toString((i % 13) * 0.1) : "M" + (window % 5);
+                writer.write(depth + "," + ((i % 97) * 0.5) + "," + clazz + "," + sparse + "," + mixed + "\n");
+            }
+        }
+    }
+
+    /**
+     * The original NVCL2_0_DataService binning algorithm, kept as a reference implementation
+     */
+    private static List<LegacyBin> legacyBinning(InputStream responseStream, double binSizeMetres, int startAtCol, int stopAtCol) throws Exception {
+        CSVParser parser = new CSVParserBuilder().withSeparator(',').withQuoteChar('"').build();
+        CSVReader reader = new CSVReaderBuilder(new InputStreamReader(responseStream)).withCSVParser(parser).build();
+        String[] headerLine = reader.readNext();
+        if (stopAtCol < 0) {
+            stopAtCol = headerLine.length;
+        }
+
+        List<LegacyBin> bins = new ArrayList<LegacyBin>();
+        List<HashMap<String, Integer>> valueCounts = new ArrayList<HashMap<String, Integer>>();
+        double[] numericTotal = new double[stopAtCol - startAtCol];
+        int[] numericCount = new int[stopAtCol - startAtCol];
+        for (int i = startAtCol; i < stopAtCol; i++) {
+            bins.add(new LegacyBin(headerLine[i]));
+            valueCounts.add(new HashMap<String, Integer>());
+        }
+
+        double currentBinStartDepth = -Double.MAX_VALUE;
+        int currentBinSize = 0;
+        String[] dataLine = null;
+        while ((dataLine = reader.readNext()) != null) {
+            if (dataLine.length != headerLine.length) {
+                continue;
+            }
+
+            double depth = Double.parseDouble(dataLine[0]);
+            if (depth - currentBinStartDepth >= binSizeMetres) {
+                if (currentBinStartDepth == -Double.MAX_VALUE) {
+                    currentBinStartDepth = depth;
+                }
+                for (int i = 0; i < bins.size(); i++) {
+                    bins.get(i).flush(currentBinStartDepth, numericTotal[i], numericCount[i], valueCounts.get(i));
+                    valueCounts.set(i, new HashMap<String, Integer>());
+                    numericTotal[i] = 0.0;
+                    numericCount[i] = 0;
+                }
+                currentBinStartDepth = depth;
+                currentBinSize = 0;
+            }
+
+            boolean dataAdded = false;
+            for (int i = 0; i < bins.size(); i++) {
+                String rawBinData = dataLine[startAtCol + i];
+                if (rawBinData == null || rawBinData.isEmpty() || rawBinData.equals("null")) {
+                    continue;
+                }
+                dataAdded = true;
+
+                if (bins.get(i).numeric) {
+                    try {
+                        double newData = Double.parseDouble(rawBinData);
+                        numericCount[i]++;
+                        numericTotal[i] += newData;
+                    } catch (NumberFormatException nfe) {
+                        bins.get(i).numeric = false;
+                    }
+                }
+
+                if (!bins.get(i).numeric) {
+                    Integer currentCount = valueCounts.get(i).get(rawBinData);
+                    valueCounts.get(i).put(rawBinData, currentCount == null ? 1 : currentCount + 1);
+                }
+            }
+            if (dataAdded) {
+                currentBinSize++;
+            }
+        }
+
+        if (currentBinSize > 0) {
+            for (int i = 0; i < bins.size(); i++) {
+                bins.get(i).flush(currentBinStartDepth, numericTotal[i], numericCount[i], valueCounts.get(i));
+            }
+        }
+        reader.close();
+        return bins;
+    }
+
+    private static class LegacyBin {
+        String name;
+        boolean numeric = true;
+        List<Double> startDepths = new ArrayList<Double>();
+        List<Double> numericValues = new ArrayList<Double>();
+        List<Map<String, Integer>> stringValues = new ArrayList<Map<String, Integer>>();
+        List<String> highStringValues = new ArrayList<String>();
+
+        LegacyBin(String name) {
+            this.name = name;
+        }
+
+        void flush(double startDepth, double numericTotal, int numericCount, HashMap<String, Integer> valueCounts) {
+            if (numeric) {
+                if (numericCount > 0) {
+                    numericValues.add(numericTotal / (double) numericCount);
+                    startDepths.add(startDepth);
+                }
+                return;
+            }
+
+            String largestValue = null;
+            int largestCount = Integer.MIN_VALUE;
+            for (Entry<String, Integer> entry : valueCounts.entrySet()) {
+                if (entry.getValue() > largestCount) {
+                    largestCount = entry.getValue();
+                    largestValue = entry.getKey();
+                }
+            }
+            if (largestValue != null) {
+                startDepths.add(startDepth);
+                highStringValues.add(largestValue);
+                stringValues.add(valueCounts);
+            }
+        }
     }
 
     /**
@@ -248,11 +553,10 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
     @Test
     public void testGetAlgorithms() throws Exception {
         final String serviceUrl = "http://example/url/wfs";
-        final String responseString = ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/NVCL_GetAlgorithmsResponse.xml");
-
+        
         context.checking(new Expectations() {{
                 oneOf(mockMethodMaker).getAlgorithms(serviceUrl);will(returnValue(mockMethod));
-                oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);will(returnValue(responseString));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetAlgorithmsResponse.xml"), null)));
         }});
 
         List<AlgorithmOutputResponse> responses = dataService.getAlgorithms(serviceUrl);
@@ -287,11 +591,10 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
     public void testGetClassifications() throws Exception {
         final String serviceUrl = "http://example/url/wfs";
         final int algorithmOutputId = 123;
-        final String responseString = ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse.xml");
 
         context.checking(new Expectations() {{
                 oneOf(mockMethodMaker).getClassifications(serviceUrl, algorithmOutputId);will(returnValue(mockMethod));
-                oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);will(returnValue(responseString));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse.xml"), null)));
         }});
 
         List<AlgorithmOutputClassification> responses = dataService.getClassifications(serviceUrl, algorithmOutputId);
@@ -314,15 +617,14 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
     public void testGetManyClassifications() throws Exception {
         final String serviceUrl = "http://example/url/wfs";
         final int[] algorithmOutputIds = new int[] {123, 456};
-        final String responseString1 = ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse.xml");
-        final String responseString2 = ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse2.xml");
+        final HttpRequestBase mockMethod2 = context.mock(HttpRequestBase.class, "mockMethod2");
 
         context.checking(new Expectations() {{
                 oneOf(mockMethodMaker).getClassifications(serviceUrl, algorithmOutputIds[0]);will(returnValue(mockMethod));
-                oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);will(returnValue(responseString1));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse.xml"), null)));
 
-                oneOf(mockMethodMaker).getClassifications(serviceUrl, algorithmOutputIds[1]);will(returnValue(mockMethod));
-                oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);will(returnValue(responseString2));
+                oneOf(mockMethodMaker).getClassifications(serviceUrl, algorithmOutputIds[1]);will(returnValue(mockMethod2));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod2);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse2.xml"), null)));
         }});
 
         List<AlgorithmOutputClassification> responses = dataService.getClassifications(serviceUrl, algorithmOutputIds);
@@ -362,17 +664,87 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
     public void testGetClassifications_Error() throws Exception {
         final String serviceUrl = "http://example/url/wfs";
         final int algorithmOutputId = 123;
-        final String responseString = ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse_Error.xml");
 
         context.checking(new Expectations() {{
                 oneOf(mockMethodMaker).getClassifications(serviceUrl, algorithmOutputId);will(returnValue(mockMethod));
-                oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);will(returnValue(responseString));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse_Error.xml"), null)));
         }});
 
         List<AlgorithmOutputClassification> responses = dataService.getClassifications(serviceUrl, algorithmOutputId);
         Assert.assertEquals(0, responses.size());
     }
 
+    /**
+     * Tests streaming an example getImageTrayDepth response
+     * @throws Exception
+     */
+    @Test
+    public void testGetImageTrayDepths() throws Exception {
+        final String serviceUrl = "http://example/url/wfs";
+        final String logId = "logid-1";
+        final String responseString = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<ImageTrayCollection>\n"
+                + "  <ImageTray><SampleNo>0</SampleNo><StartValue>1.5</StartValue><EndValue>4.5</EndValue></ImageTray>\n"
+                + "  <ImageTray><!-- comment --><SampleNo>1</SampleNo><EndValue>7.5</EndValue><StartValue>4.5</StartValue></ImageTray>\n"
+                + "  <Other><SampleNo>99</SampleNo></Other>\n"
+                + "</ImageTrayCollection>";
+
+        context.checking(new Expectations() {{
+                oneOf(mockMethodMaker).getImageTrayDepthMethod(serviceUrl, logId);will(returnValue(mockMethod));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(new HttpClientInputStream(new ByteArrayInputStream(responseString.getBytes(StandardCharsets.UTF_8)), null)));
+        }});
+
+        List<ImageTrayDepthResponse> responses = dataService.getImageTrayDepths(serviceUrl, logId);
+        Assert.assertEquals(2, responses.size());
+        Assert.assertEquals("0", responses.get(0).getSampleNo());
+        Assert.assertEquals("1.5", responses.get(0).getStartValue());
+        Assert.assertEquals("4.5", responses.get(0).getEndValue());
+        Assert.assertEquals("1", responses.get(1).getSampleNo());
+        Assert.assertEquals("4.5", responses.get(1).getStartValue());
+        Assert.assertEquals("7.5", responses.get(1).getEndValue());
+    }
+
+    /**
+     * Tests that repeated reference data requests are served from memory with a stable ETag
+     * @throws Exception
+     */
+    @Test
+    public void testReferenceDataCached() throws Exception {
+        final String serviceUrl = "http://example/url/wfs";
+        final int[] algorithmOutputIds = new int[] {123, 456};
+        final HttpRequestBase mockMethod2 = context.mock(HttpRequestBase.class, "mockMethod2");
+        final HttpRequestBase mockMethod3 = context.mock(HttpRequestBase.class, "mockMethod3");
+
+        context.checking(new Expectations() {{
+                oneOf(mockMethodMaker).getAlgorithms(serviceUrl);will(returnValue(mockMethod));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetAlgorithmsResponse.xml"), null)));
+
+                oneOf(mockMethodMaker).getClassifications(serviceUrl, algorithmOutputIds[0]);will(returnValue(mockMethod2));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod2);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse.xml"), null)));
+                oneOf(mockMethodMaker).getClassifications(serviceUrl, algorithmOutputIds[1]);will(returnValue(mockMethod3));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod3);will(returnValue(new HttpClientInputStream(ClassLoader.getSystemResourceAsStream("org/auscope/portal/nvcl/NVCL_GetClassificationsResponse2.xml"), null)));
+
+                oneOf(mockMethodMaker).getTsgAlgorithms(ANALYTICAL_SERVICES_URL, "tsgAlg");will(returnValue(mockMethod));
+                oneOf(mockServiceCaller).getMethodResponseAsString(mockMethod);will(returnValue("{\"algorithms\":[]}"));
+        }});
+
+        ReferenceDataCache.Entry<List<AlgorithmOutputResponse>> algorithms1 = dataService.getCachedAlgorithms(serviceUrl);
+        ReferenceDataCache.Entry<List<AlgorithmOutputResponse>> algorithms2 = dataService.getCachedAlgorithms(serviceUrl);
+        Assert.assertEquals(31, algorithms2.getValue().size());
+        Assert.assertNotNull(algorithms1.getETag());
+        Assert.assertEquals(algorithms1.getETag(), algorithms2.getETag());
+
+        //The union is built from the cached individual responses (the single id request must not refetch)
+        ReferenceDataCache.Entry<List<AlgorithmOutputClassification>> union1 = dataService.getCachedClassifications(serviceUrl, algorithmOutputIds);
+        ReferenceDataCache.Entry<List<AlgorithmOutputClassification>> union2 = dataService.getCachedClassifications(serviceUrl, algorithmOutputIds);
+        Assert.assertEquals(23, union2.getValue().size());
+        Assert.assertEquals(union1.getETag(), union2.getETag());
+        Assert.assertEquals(22, dataService.getClassifications(serviceUrl, algorithmOutputIds[0]).size());
+        Assert.assertNotEquals(union1.getETag(), dataService.getCachedClassifications(serviceUrl, algorithmOutputIds[0]).getETag());
+
+        Assert.assertEquals("{\"algorithms\":[]}", dataService.getTsgAlgorithms("tsgAlg"));
+        Assert.assertEquals(dataService.getCachedTsgAlgorithms("tsgAlg").getETag(), dataService.getCachedTsgAlgorithms("tsgAlg").getETag());
+    }
+
     /**
      * Tests parsing an example submit processing response
      * @throws Exception
@@ -404,6 +776,30 @@ public class TestNVCL2_0_DataService extends PortalTestClass {
         Assert.assertTrue(result);
     }
 
+    /**
+     * Tests that non nvclCollection boreholes are filtered before the (optional) pipeline is applied
+     * @throws Exception
+     */
+    @Test
+    public void testNvclCollectionFilter() throws Exception {
+        final String csv = "FID,gsmlp:identifier,gsmlp:name,gsmlp:nvclCollection\n"
+                + "BoreholeView.1,http://example.org/borehole/ABDP1,\"ABDP1, deepened\",true\n"
+                + "BoreholeView.2,http://example.org/borehole/ABDP2,ABDP2,false\n"
+                + "BoreholeView.3,ABDP3,ABDP3,true\n"
+                + "BoreholeView.4,http://example.org/borehole/ABDP4,ABDP4, TRUE\n";
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Assert.assertEquals(2, dataService.nvclCollectionFilter(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), os));
+        Assert.assertEquals("FID,gsmlp:identifier,gsmlp:name,gsmlp:nvclCollection\n"
+                + "BoreholeView.1,http://example.org/borehole/ABDP1,\"ABDP1, deepened\",true\n"
+                + "BoreholeView.4,http://example.org/borehole/ABDP4,ABDP4, TRUE\n", new String(os.toByteArray(), StandardCharsets.UTF_8));
+
+        os = new ByteArrayOutputStream();
+        CSVPipeline pipeline = new CSVPipeline().project("gsmlp:name").rename("gsmlp:name", "Name");
+        Assert.assertEquals(2, dataService.nvclCollectionFilter(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), os, pipeline));
+        Assert.assertEquals("Name\n\"ABDP1, deepened\"\nABDP4\n", new String(os.toByteArray(), StandardCharsets.UTF_8));
+    }
+
     /**
      * Tests parsing an example submit processing response
      * @throws Exception
@@ -1,7 +1,9 @@
 package org.auscope.portal.server.web.service;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import org.apache.http.client.methods.HttpRequestBase;
@@ -17,7 +19,9 @@ import org.auscope.portal.server.web.NVCLDataServiceMethodMaker;
 
 import org.jmock.Expectations;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Unit tests for NVCLDataService
@@ -28,6 +32,22 @@ import org.junit.Test;
 public class TestNVCLDataService extends PortalTestClass {
     private static final String TSGFILECache_SERVICES_URL = "http://foo.bar/service";
     private static final String TSGFILECache_SERVICES_MSG = "someMessage";
+    private static final String TSG_ENDPOINT = "http://example.org/";
+    private static final String TSG_CACHE_CONFIG = "DEFAULT, https://cache.example, " + TSG_ENDPOINT + ",$DEFAULT/WA/";
+    private static final String TSG_DATASET_COLLECTION_JSON = "{\"datasetCollection\":["
+            + "{\"datasetID\":\"1\",\"boreholeURI\":\"http://example.org/borehole/BH1\",\"datasetName\":\"DS1\",\"trayID\":{\"id\":1}},"
+            + "{\"datasetID\":\"2\",\"boreholeURI\":\"http://example.org/borehole/BH3\",\"datasetName\":null}],"
+            + "\"other\":[1,2]}";
+    private static final String TSG_CSV = "gsmlp:name,gsmlp:identifier,gsmlp:nvclCollection\n"
+            + "BH1,http://example.org/borehole/BH1,true\n"
+            + "BH2,http://example.org/borehole/BH2,true\n"
+            + "BH3,http://example.org/borehole/BH3,false\n";
+    private static final String TSG_EXPECTED_URLS = "https://cache.example/WA/DS1.zip\n"
+            + "NoMatchedDatasetName-https://example.org/borehole/BH2\n";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private HttpServiceCaller mockServiceCaller = context.mock(HttpServiceCaller.class);
     private NVCLDataServiceMethodMaker mockMethodMaker = context.mock(NVCLDataServiceMethodMaker.class);
     private HttpRequestBase mockMethod = context.mock(HttpRequestBase.class);
@@ -167,6 +187,40 @@ public class TestNVCLDataService extends PortalTestClass {
         Assert.assertEquals("logname-2", response.get(1).getLogName());
     }
 
+    /**
+     * Tests that logs explicitly marked as non public are dropped while streaming a getLogCollectionResponse
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testGetLogCollection_NonPublic() throws Exception {
+        final String serviceUrl = "http://example/url";
+        final String datasetId = "datasetId";
+        final String responseString = "<?xml version=\"1.0\" encoding=\"utf-8\"?><LogCollection>"
+                + "<Log><LogID>logid-1</LogID><logName>public</logName><ispublic>true</ispublic><SampleCount>10</SampleCount></Log>"
+                + "<Log><LogID>logid-2</LogID><logName>private</logName><ispublic>false</ispublic></Log>"
+                + "<Log><LogID>logid-3</LogID><logName><![CDATA[unset & public]]></logName><SampleCount> 3 </SampleCount></Log>"
+                + "</LogCollection>";
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockMethodMaker).getLogCollectionMethod(serviceUrl, datasetId, false);
+                will(returnValue(mockMethod));
+                oneOf(mockServiceCaller).getMethodResponseAsStream(mockMethod);
+                will(returnValue(new HttpClientInputStream(new ByteArrayInputStream(responseString.getBytes()), null)));
+            }
+        });
+
+        List<GetLogCollectionResponse> response = dataService.getLogCollection(serviceUrl, datasetId, false);
+        Assert.assertEquals(2, response.size());
+        Assert.assertEquals("logid-1", response.get(0).getLogId());
+        Assert.assertEquals("public", response.get(0).getLogName());
+        Assert.assertEquals(10, response.get(0).getSampleCount());
+        Assert.assertEquals("logid-3", response.get(1).getLogId());
+        Assert.assertEquals("unset & public", response.get(1).getLogName());
+        Assert.assertEquals(3, response.get(1).getSampleCount());
+    }
+
     /**
      * Tests parsing of a getDatasetCollectionResponse fails when we fail to connect to the service
      *
@@ -219,4 +273,52 @@ public class TestNVCLDataService extends PortalTestClass {
         dataService.getMosaic(serviceUrl, logId, width, startSampleNo, endSampleNo);
     }
 
+    /**
+     * Tests that the TSG download map is loaded on refresh, persisted and then served from the snapshot after a restart
+     */
+    @Test
+    public void testTsgDownloadMapRefreshAndSnapshot() throws Exception {
+        final File snapshot = new File(temporaryFolder.getRoot(), "tsg-map.json");
+        final NVCLDataService service = new NVCLDataService(mockServiceCaller, mockMethodMaker, mockWFSMethodMaker,
+                TSG_CACHE_CONFIG, TSGFILECache_SERVICES_MSG, new ServiceFanOut(1, 1, 10000), snapshot, 24);
+
+        context.checking(new Expectations() {
+            {
+                oneOf(mockServiceCaller).getMethodResponseAsStream(with(any(HttpRequestBase.class)));
+                will(returnValue(new HttpClientInputStream(new ByteArrayInputStream(TSG_DATASET_COLLECTION_JSON.getBytes(StandardCharsets.UTF_8)), null)));
+            }
+        });
+
+        Assert.assertNull(service.getTsgFileUrls(TSG_ENDPOINT, TSG_CSV));
+        service.refreshTsgDownloadMaps();
+        Assert.assertEquals(TSG_EXPECTED_URLS, service.getTsgFileUrls(TSG_ENDPOINT, TSG_CSV));
+        Assert.assertTrue(snapshot.isFile());
+
+        //No further requests are expected - the restarted service should be serving the snapshot
+        final NVCLDataService restarted = new NVCLDataService(mockServiceCaller, mockMethodMaker, mockWFSMethodMaker,
+                TSG_CACHE_CONFIG, TSGFILECache_SERVICES_MSG, new ServiceFanOut(1, 1, 10000), snapshot, 24);
+        Assert.assertEquals(TSG_EXPECTED_URLS, restarted.getTsgFileUrls(TSG_ENDPOINT, TSG_CSV));
+    }
+
+    /**
+     * Tests that a failed refresh leaves the previously loaded TSG download map in place
+     */
+    @Test
+    public void testTsgDownloadMapRefreshFailure() throws Exception {
+        final NVCLDataService service = new NVCLDataService(mockServiceCaller, mockMethodMaker, mockWFSMethodMaker,
+                TSG_CACHE_CONFIG, TSGFILECache_SERVICES_MSG, new ServiceFanOut(1, 1, 10000), null, 24);
+
+        context.checking(new Expectations() {
+            {
+                exactly(2).of(mockServiceCaller).getMethodResponseAsStream(with(any(HttpRequestBase.class)));
+                will(onConsecutiveCalls(
+                        returnValue(new HttpClientInputStream(new ByteArrayInputStream(TSG_DATASET_COLLECTION_JSON.getBytes(StandardCharsets.UTF_8)), null)),
+                        throwException(new ConnectException())));
+            }
+        });
+
+        service.refreshTsgDownloadMaps();
+        service.refreshTsgDownloadMaps();
+        Assert.assertEquals(TSG_EXPECTED_URLS, service.getTsgFileUrls(TSG_ENDPOINT, TSG_CSV));
+    }
 }
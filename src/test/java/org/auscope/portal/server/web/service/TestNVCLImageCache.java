@@ -0,0 +1,129 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.domain.nvcldataservice.MosaicResponse;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for NVCLImageCache
+ */
+public class TestNVCLImageCache extends PortalTestClass {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AtomicInteger loads = new AtomicInteger();
+
+    private NVCLImageCache.Loader loader(final byte[] data, final String contentType) {
+        return () -> {
+            loads.incrementAndGet();
+            return new MosaicResponse(new ByteArrayInputStream(data), contentType);
+        };
+    }
+
+    /**
+     * Tests that responses are only requested once and that the cached body/content type round trip
+     */
+    @Test
+    public void testGet() throws Exception {
+        NVCLImageCache cache = new NVCLImageCache(new DiskLruCache(folder.newFolder("images"), 1024 * 1024));
+        byte[] data = new byte[] {(byte) 0x89, 'P', 'N', 'G', '\n', 1, 2, 3};
+
+        NVCLImageCache.CachedImage first = cache.get(loader(data, "image/png"), "mosaic", "http://example/url", "log1", 100);
+        NVCLImageCache.CachedImage second = cache.get(loader(data, "image/png"), "mosaic", "http://example/url", "log1", 100);
+        NVCLImageCache.CachedImage other = cache.get(loader(data, "image/png"), "mosaic", "http://example/url", "log1", 200);
+
+        Assert.assertEquals(2, loads.get());
+        Assert.assertTrue(second.isCached());
+        Assert.assertEquals(first.getETag(), second.getETag());
+        Assert.assertNotEquals(first.getETag(), other.getETag());
+        Assert.assertEquals("image/png", second.getContentType());
+        Assert.assertEquals(data.length, second.getLength());
+        try (NVCLImageCache.CachedImage image = first) {
+            Assert.assertArrayEquals(data, image.getBody().readAllBytes());
+        }
+        try (NVCLImageCache.CachedImage image = second) {
+            Assert.assertArrayEquals(data, image.getBody().readAllBytes());
+        }
+        try (NVCLImageCache.CachedImage image = other) {
+            Assert.assertArrayEquals(data, image.getBody().readAllBytes());
+        }
+    }
+
+    /**
+     * Tests that responses that aren't images are passed back but never cached
+     */
+    @Test
+    public void testGetNotImage() throws Exception {
+        NVCLImageCache cache = new NVCLImageCache(new DiskLruCache(folder.newFolder("images"), 1024 * 1024));
+        byte[] errorPage = "<html><body>Error</body></html>".getBytes(StandardCharsets.UTF_8);
+        byte[] image = new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDB, 1, 2};
+
+        for (int i = 0; i < 2; i++) {
+            try (NVCLImageCache.CachedImage response = cache.get(loader(errorPage, "text/html"), "mosaic", "http://example/url", "log1", 100)) {
+                Assert.assertFalse(response.isCached());
+                Assert.assertNull(response.getETag());
+                Assert.assertEquals(-1, response.getLength());
+                Assert.assertEquals("text/html", response.getContentType());
+                Assert.assertArrayEquals(errorPage, response.getBody().readAllBytes());
+            }
+        }
+        Assert.assertEquals(2, loads.get());
+
+        //Image content type but not image data (and vice versa)
+        try (NVCLImageCache.CachedImage response = cache.get(loader(errorPage, "image/jpeg"), "mosaic", "http://example/url", "log1", 100)) {
+            Assert.assertFalse(response.isCached());
+        }
+        try (NVCLImageCache.CachedImage response = cache.get(loader(image, null), "mosaic", "http://example/url", "log1", 100)) {
+            Assert.assertFalse(response.isCached());
+        }
+        try (NVCLImageCache.CachedImage response = cache.get(loader(image, "image/jpeg"), "mosaic", "http://example/url", "log1", 100)) {
+            Assert.assertTrue(response.isCached());
+        }
+    }
+
+    /**
+     * Tests that only HTML pages referencing an image are cached by getPage
+     */
+    @Test
+    public void testGetPage() throws Exception {
+        NVCLImageCache cache = new NVCLImageCache(new DiskLruCache(folder.newFolder("images"), 1024 * 1024));
+        byte[] page = "<html><body><IMG src=\"./Display_Tray_Thumb.html?id=1\"/></body></html>".getBytes(StandardCharsets.UTF_8);
+        byte[] errorPage = "<html><body>Error</body></html>".getBytes(StandardCharsets.UTF_8);
+
+        try (NVCLImageCache.CachedImage response = cache.getPage(loader(errorPage, "text/html"), "thumbnail", "http://example/url", "log1")) {
+            Assert.assertFalse(response.isCached());
+            Assert.assertArrayEquals(errorPage, response.getBody().readAllBytes());
+        }
+        try (NVCLImageCache.CachedImage response = cache.getPage(loader(page, "text/html;charset=UTF-8"), "thumbnail", "http://example/url", "log1")) {
+            Assert.assertTrue(response.isCached());
+            Assert.assertArrayEquals(page, response.getBody().readAllBytes());
+        }
+        try (NVCLImageCache.CachedImage response = cache.getPage(loader(errorPage, "text/html"), "thumbnail", "http://example/url", "log1")) {
+            Assert.assertTrue(response.isCached());
+            Assert.assertArrayEquals(page, response.getBody().readAllBytes());
+        }
+        Assert.assertEquals(2, loads.get());
+    }
+
+    /**
+     * Tests image signature detection
+     */
+    @Test
+    public void testHasImageSignature() {
+        Assert.assertTrue(NVCLImageCache.hasImageSignature(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0}));
+        Assert.assertTrue(NVCLImageCache.hasImageSignature(new byte[] {'G', 'I', 'F', '8', '9', 'a'}));
+        Assert.assertTrue(NVCLImageCache.hasImageSignature("RIFF1234WEBP".getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertFalse(NVCLImageCache.hasImageSignature("RIFF1234WAVE".getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertFalse(NVCLImageCache.hasImageSignature("<?xml".getBytes(StandardCharsets.US_ASCII)));
+        Assert.assertFalse(NVCLImageCache.hasImageSignature(new byte[] {(byte) 0xFF}));
+    }
+}
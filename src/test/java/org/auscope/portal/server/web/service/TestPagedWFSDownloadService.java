@@ -0,0 +1,250 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for PagedWFSDownloadService (against a stub WFS)
+ */
+public class TestPagedWFSDownloadService extends PortalTestClass {
+
+    private static final String TYPE_NAME = "gsmlp:BoreholeView";
+    private static final String FILTER = "<ogc:Filter><ogc:PropertyIsEqualTo><ogc:PropertyName>gsmlp:nvclCollection</ogc:PropertyName><ogc:Literal>true</ogc:Literal></ogc:PropertyIsEqualTo></ogc:Filter>";
+    private static final Pattern START_INDEX = Pattern.compile("startIndex=\"(\\d+)\"");
+    private static final Pattern MAX_FEATURES = Pattern.compile("maxFeatures=\"(\\d+)\"");
+
+    private HttpServer stubServer;
+    private String serviceUrl;
+    private volatile int featureCount = 25;
+    private volatile int latencyMs = 0;
+    private volatile boolean hitsSupported = true;
+    private volatile boolean sortSupported = true;
+    private AtomicInteger sortedPageRequests = new AtomicInteger();
+    private List<Integer> pageStarts = new CopyOnWriteArrayList<Integer>();
+    private AtomicInteger hitRequests = new AtomicInteger();
+    private AtomicInteger activeRequests = new AtomicInteger();
+    private AtomicInteger maxActiveRequests = new AtomicInteger();
+
+    /**
+     * The CSV (with header) for features start (inclusive) to end (exclusive)
+     */
+    private static String csv(int start, int end) {
+        StringBuilder sb = new StringBuilder("FID,gsmlp:name\n");
+        for (int i = start; i < end; i++) {
+            sb.append(String.format("BoreholeView.%1$d,\"Borehole, %1$d\"\n", i));
+        }
+        return sb.toString();
+    }
+
+    private static String expectedCSV(int count) {
+        return csv(0, count);
+    }
+
+    private static int parse(Pattern pattern, String body, int defaultValue) {
+        Matcher m = pattern.matcher(body);
+        return m.find() ? Integer.parseInt(m.group(1)) : defaultValue;
+    }
+
+    /**
+     * Starts a stub WFS that answers hits requests and (paged) CSV GetFeature requests for featureCount features
+     */
+    @Before
+    public void setup() throws Exception {
+        stubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stubServer.setExecutor(Executors.newCachedThreadPool());
+        stubServer.createContext("/wfs", exchange -> {
+            int active = activeRequests.incrementAndGet();
+            maxActiveRequests.accumulateAndGet(active, Math::max);
+            try {
+                String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+                String response;
+                boolean sorted = body.contains("<ogc:SortBy") && body.contains("@gml:id");
+                if (sorted && !sortSupported) {
+                    response = "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"/>";
+                } else if (body.toLowerCase().contains("resulttype=\"hits\"")) {
+                    hitRequests.incrementAndGet();
+                    response = hitsSupported ?
+                            String.format("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" numberOfFeatures=\"%1$d\"/>", featureCount) :
+                            "<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"/>";
+                } else {
+                    Thread.sleep(latencyMs);
+                    int start = parse(START_INDEX, body, 0);
+                    int max = parse(MAX_FEATURES, body, 0);
+                    int end = max == 0 ? featureCount : Math.min(featureCount, start + max);
+                    pageStarts.add(start);
+                    if (sorted) {
+                        sortedPageRequests.incrementAndGet();
+                    }
+                    response = csv(start, end);
+                }
+
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(bytes);
+                }
+            } catch (InterruptedException e) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                activeRequests.decrementAndGet();
+                exchange.close();
+            }
+        });
+        stubServer.start();
+        serviceUrl = "http://localhost:" + stubServer.getAddress().getPort() + "/wfs";
+    }
+
+    @After
+    public void teardown() {
+        stubServer.stop(0);
+    }
+
+    private String download(ServiceFanOut fanOut, int pageSize, Integer maxFeatures) throws Exception {
+        return download(fanOut, pageSize, PagedWFSDownloadService.DEFAULT_MAX_PAGES_IN_FLIGHT, maxFeatures);
+    }
+
+    private String download(ServiceFanOut fanOut, int pageSize, int maxPagesInFlight, Integer maxFeatures) throws Exception {
+        PagedWFSDownloadService service = new PagedWFSDownloadService(new HttpServiceCaller(90000), new WFSGetFeatureMethodMaker(), fanOut, pageSize, maxPagesInFlight);
+        try (InputStream is = service.downloadCSV(serviceUrl, TYPE_NAME, FILTER, maxFeatures)) {
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Tests that a large download is split into pages which are concatenated in order under a single header
+     */
+    @Test
+    public void testPagedDownload() throws Exception {
+        ServiceFanOut fanOut = new ServiceFanOut(4, 4, 60000);
+        try {
+            Assert.assertEquals(expectedCSV(25), download(fanOut, 10, 100000));
+            Assert.assertEquals(1, hitRequests.get());
+            Assert.assertEquals(3, pageStarts.size());
+            Assert.assertTrue(pageStarts.containsAll(Arrays.asList(0, 10, 20)));
+            Assert.assertEquals(3, sortedPageRequests.get());
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that only maxPagesInFlight pages are requested at once (regardless of the pool size)
+     */
+    @Test
+    public void testMaxPagesInFlight() throws Exception {
+        featureCount = 100;
+        latencyMs = 50;
+        ServiceFanOut fanOut = new ServiceFanOut(8, 8, 60000);
+        try {
+            Assert.assertEquals(expectedCSV(100), download(fanOut, 10, 2, null));
+            Assert.assertEquals(10, pageStarts.size());
+            Assert.assertTrue(maxActiveRequests.get() <= 2);
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that services that can't sort by feature ID fall back to a single request
+     */
+    @Test
+    public void testSortUnsupported() throws Exception {
+        sortSupported = false;
+        ServiceFanOut fanOut = new ServiceFanOut(4, 4, 60000);
+        try {
+            Assert.assertEquals(expectedCSV(25), download(fanOut, 10, null));
+            Assert.assertEquals(Arrays.asList(0), pageStarts);
+            Assert.assertEquals(0, sortedPageRequests.get());
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that maxFeatures limits the pages requested
+     */
+    @Test
+    public void testMaxFeatures() throws Exception {
+        ServiceFanOut fanOut = new ServiceFanOut(4, 4, 60000);
+        try {
+            Assert.assertEquals(expectedCSV(15), download(fanOut, 10, 15));
+            Assert.assertEquals(2, pageStarts.size());
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that small downloads (and services that can't count features) fall back to a single request
+     */
+    @Test
+    public void testSingleRequest() throws Exception {
+        ServiceFanOut fanOut = new ServiceFanOut(4, 4, 60000);
+        try {
+            Assert.assertEquals(expectedCSV(25), download(fanOut, 100, null));
+            Assert.assertEquals(1, pageStarts.size());
+
+            hitsSupported = false;
+            pageStarts.clear();
+            Assert.assertEquals(expectedCSV(25), download(fanOut, 10, null));
+            Assert.assertEquals(1, pageStarts.size());
+            Assert.assertEquals(2, hitRequests.get());
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Benchmarks a paged download from a slow WFS against downloading the same pages one at a time
+     */
+    @Test
+    public void testPagedDownloadSpeedup() throws Exception {
+        final int maxPerHost = 4;
+        featureCount = 8000;
+        latencyMs = 250;
+
+        ServiceFanOut sequentialFanOut = new ServiceFanOut(8, 1, 60000);
+        ServiceFanOut parallelFanOut = new ServiceFanOut(8, maxPerHost, 60000);
+        try {
+            long start = System.currentTimeMillis();
+            String sequentialResponse = download(sequentialFanOut, 1000, null);
+            long sequentialElapsed = System.currentTimeMillis() - start;
+            Assert.assertEquals(1, maxActiveRequests.get());
+
+            maxActiveRequests.set(0);
+            start = System.currentTimeMillis();
+            String parallelResponse = download(parallelFanOut, 1000, null);
+            long parallelElapsed = System.currentTimeMillis() - start;
+
+            Assert.assertTrue(sequentialElapsed >= 8 * latencyMs);
+            Assert.assertTrue(String.format("Expected a wall clock speedup (sequential %1$dms, parallel %2$dms)", sequentialElapsed, parallelElapsed),
+                    parallelElapsed < sequentialElapsed * 0.5);
+            Assert.assertTrue(maxActiveRequests.get() <= maxPerHost);
+            Assert.assertEquals(expectedCSV(featureCount), sequentialResponse);
+            Assert.assertEquals(sequentialResponse, parallelResponse);
+        } finally {
+            sequentialFanOut.shutdown();
+            parallelFanOut.shutdown();
+        }
+    }
+}
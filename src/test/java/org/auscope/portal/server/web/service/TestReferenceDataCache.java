@@ -0,0 +1,113 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for ReferenceDataCache
+ */
+public class TestReferenceDataCache extends PortalTestClass {
+
+    private List<Runnable> pendingRefreshes = new ArrayList<Runnable>();
+    private AtomicInteger loads = new AtomicInteger();
+
+    private ReferenceDataCache.Loader<String> countingLoader() {
+        return () -> {
+            int n = loads.incrementAndGet();
+            return new ReferenceDataCache.Entry<String>("value" + n, "\"etag" + n + "\"");
+        };
+    }
+
+    /**
+     * Tests that fresh entries are served without reloading
+     */
+    @Test
+    public void testFresh() throws Exception {
+        ReferenceDataCache<String> cache = new ReferenceDataCache<String>(60000, 60000, pendingRefreshes::add);
+
+        Assert.assertEquals("value1", cache.get("key", countingLoader()).getValue());
+        Assert.assertEquals("value1", cache.get("key", countingLoader()).getValue());
+        Assert.assertEquals("\"etag1\"", cache.get("key", countingLoader()).getETag());
+        Assert.assertEquals("value2", cache.get("otherKey", countingLoader()).getValue());
+        Assert.assertEquals(2, loads.get());
+        Assert.assertTrue(pendingRefreshes.isEmpty());
+    }
+
+    /**
+     * Tests that stale entries are served immediately while a single background refresh is scheduled
+     */
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        ReferenceDataCache<String> cache = new ReferenceDataCache<String>(0, 60000, pendingRefreshes::add);
+
+        Assert.assertEquals("value1", cache.get("key", countingLoader()).getValue());
+        Assert.assertEquals("value1", cache.get("key", countingLoader()).getValue());
+        Assert.assertEquals("value1", cache.get("key", countingLoader()).getValue());
+        Assert.assertEquals(1, pendingRefreshes.size());
+        Assert.assertEquals(1, loads.get());
+
+        pendingRefreshes.remove(0).run();
+        Assert.assertEquals("value2", cache.get("key", countingLoader()).getValue());
+    }
+
+    /**
+     * Tests that a failed synchronous reload falls back to the expired entry
+     */
+    @Test
+    public void testStaleIfError() throws Exception {
+        ReferenceDataCache<String> cache = new ReferenceDataCache<String>(0, 0, pendingRefreshes::add);
+
+        Assert.assertEquals("value1", cache.get("key", countingLoader()).getValue());
+        Assert.assertEquals("value1", cache.get("key", () -> {
+            throw new IllegalStateException("Remote failure");
+        }).getValue());
+        Assert.assertTrue(pendingRefreshes.isEmpty());
+    }
+
+    /**
+     * Tests that the least recently used entries are evicted once the cache is full
+     */
+    @Test
+    public void testBoundedEntries() throws Exception {
+        ReferenceDataCache<String> cache = new ReferenceDataCache<String>(60000, 60000, 2, pendingRefreshes::add);
+
+        cache.get("key1", countingLoader());
+        cache.get("key2", countingLoader());
+        cache.get("key1", countingLoader());
+        cache.get("key3", countingLoader());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(3, loads.get());
+
+        Assert.assertEquals("value1", cache.get("key1", countingLoader()).getValue());
+        Assert.assertEquals("value4", cache.get("key2", countingLoader()).getValue());
+    }
+
+    /**
+     * Tests that entries past the stale window are dropped when other entries are stored
+     */
+    @Test
+    public void testExpiredEntriesDropped() throws Exception {
+        ReferenceDataCache<String> cache = new ReferenceDataCache<String>(0, 0, pendingRefreshes::add);
+
+        cache.get("key1", countingLoader());
+        Thread.sleep(10);
+        cache.get("key2", countingLoader());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    /**
+     * Tests that a failed load with nothing cached is rethrown
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testErrorNoEntry() throws Exception {
+        ReferenceDataCache<String> cache = new ReferenceDataCache<String>(60000, 60000, pendingRefreshes::add);
+        cache.get("key", () -> {
+            throw new IllegalStateException("Remote failure");
+        });
+    }
+}
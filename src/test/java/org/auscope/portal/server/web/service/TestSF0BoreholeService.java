@@ -97,6 +97,45 @@ public class TestSF0BoreholeService extends PortalTestClass {
     }
 
 
+    /**
+     * Tests that download filters go through the filter string cache (keyed by whether gsmlp:shape is omitted)
+     *
+     * @throws Exception
+     *             the exception
+     */
+    @Test
+    public void testGetAllBoreholesAsStreamCachedFilter() throws Exception {
+        final FilterBoundingBox bbox = new FilterBoundingBox("EPSG:4326", new double[] {120, -30}, new double[] {121, -29});
+        final String serviceUrl = "http://example.com";
+        final int maxFeatures = 45;
+        final String withShape = new SF0BoreholeFilter("borehole-name", null, null, null, null, null, null, null, false).getFilterStringBoundingBox(bbox);
+        final String withoutShape = new SF0BoreholeFilter("borehole-name", null, null, null, null, null, null, null, true).getFilterStringBoundingBox(bbox);
+        final FilterStringCache filterStringCache = new FilterStringCache(100, 1024, 0);
+        service.filterStringCache = filterStringCache;
+
+        context.checking(new Expectations() {
+            {
+                exactly(2).of(mockMethodMaker).makePostMethod(with(equal(serviceUrl)), with(equal("gsmlp:BoreholeView")),
+                        with(equal(withShape)), with(equal(maxFeatures)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal((String) null)), with(equal((String) null)));
+                will(returnValue(mockMethod));
+                oneOf(mockMethodMaker).makePostMethod(with(equal(serviceUrl)), with(equal("gsmlp:BoreholeView")),
+                        with(equal(withoutShape)), with(equal(maxFeatures)), with(any(String.class)),
+                        with(equal(ResultType.Results)), with(equal((String) null)), with(equal((String) null)));
+                will(returnValue(mockMethod));
+
+                exactly(3).of(mockHttpServiceCaller).getMethodResponseAsStream(mockMethod);
+                will(returnValue(null));
+            }
+        });
+
+        service.getAllBoreholesAsStream(serviceUrl, "borehole-name", null, null, null, maxFeatures, bbox, "gsmlp:BoreholeView", false);
+        service.getAllBoreholesAsStream(serviceUrl, "borehole-name", null, null, null, maxFeatures, bbox, "gsmlp:BoreholeView", false);
+        service.getAllBoreholesAsStream(serviceUrl, "borehole-name", null, null, null, maxFeatures, bbox, "gsmlp:BoreholeView", true);
+        Assert.assertEquals(3, filterStringCache.getRequests());
+        Assert.assertEquals(1, filterStringCache.getHits());
+    }
+
     /**
      * Test get all boreholes bbox.
      *
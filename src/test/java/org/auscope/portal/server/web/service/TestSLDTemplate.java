@@ -0,0 +1,114 @@
+package org.auscope.portal.server.web.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for SLDTemplate
+ */
+public class TestSLDTemplate extends PortalTestClass {
+
+    private static Map<String, Object> map(Object... keyValues) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    /**
+     * Tests placeholders are replaced (missing values are empty) and lines are trimmed/joined
+     */
+    @Test
+    public void testPlaceholders() {
+        SLDTemplate template = SLDTemplate.compile("<a>\n    <b>[first]</b>\r\n    <c>[missing]</c>\n</a>");
+        Assert.assertEquals("<a><b>val</b><c></c></a>", template.render(map("first", "val")));
+    }
+
+    /**
+     * Tests sections repeat for each map in a list and can refer to values of enclosing scopes
+     */
+    @Test
+    public void testSections() {
+        SLDTemplate template = SLDTemplate.compile("[#rules]<r n=\"[name]\" o=\"[outer]\"/>[/rules][#flag]F[/flag][#off]X[/off]");
+        List<Map<String, Object>> rules = Arrays.asList(map("name", "a"), map("name", "b"));
+
+        Assert.assertEquals("<r n=\"a\" o=\"o\"/><r n=\"b\" o=\"o\"/>F",
+                template.render(map("rules", rules, "outer", "o", "flag", true, "off", false)));
+    }
+
+    /**
+     * Tests inverted sections only render for missing/false/empty values
+     */
+    @Test
+    public void testInvertedSections() {
+        SLDTemplate template = SLDTemplate.compile("[#legend]L[/legend][^legend]N[/legend]");
+        Assert.assertEquals("L", template.render(map("legend", true)));
+        Assert.assertEquals("N", template.render(map("legend", false)));
+        Assert.assertEquals("N", template.render(new HashMap<String, Object>()));
+        Assert.assertEquals("N", template.render(map("legend", Arrays.asList())));
+    }
+
+    /**
+     * Tests the same values (in a different map order) reuse the same render but any other difference doesn't
+     */
+    @Test
+    public void testMemoized() {
+        SLDTemplate template = SLDTemplate.compile("<a>[x][y]</a>");
+        String first = template.render(map("x", "<f>1</f>", "y", "2"));
+        String second = template.render(map("y", "2", "x", "<f>1</f>"));
+        String third = template.render(map("x", "<f>1</f>  \n", "y", "2"));
+
+        Assert.assertEquals("<a><f>1</f>2</a>", first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals("<a><f>1</f>  \n2</a>", third);
+        Assert.assertNotSame(first, template.render(map("x", "<f>2</f>", "y", "2")));
+    }
+
+    /**
+     * Tests mismatched sections fail to compile
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedSection() {
+        SLDTemplate.compile("[#a][#b][/a][/b]");
+    }
+
+    /**
+     * Tests unclosed sections fail to compile
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosedSection() {
+        SLDTemplate.compile("[#a]text");
+    }
+
+    /**
+     * Tests the bundled templates compile and render
+     */
+    @Test
+    public void testResources() {
+        Map<String, Object> style = map("name", "n", "filter", "<ogc:Filter/>", "color", "#FF0000", "mark", "circle", "geometryName", "gsmlp:shape");
+        String sld = SLDTemplate.load("BoreholeService_getStyle.sld").render(map("gsmlpNameSpace", "ns", "typeName", "gsmlp:BoreholeView", "styles", Arrays.asList(style)));
+        Assert.assertTrue(sld.contains("<Name>gsmlp:BoreholeView</Name>"));
+        Assert.assertTrue(sld.contains("<MaxScaleDenominator>4000000</MaxScaleDenominator><ogc:Filter/><PointSymbolizer>"));
+        Assert.assertTrue(sld.endsWith("</StyledLayerDescriptor>"));
+
+        sld = SLDTemplate.load("MineralTenement_getStyle.sld").render(map("legend", true, "layerName", "mt:MineralTenement",
+                "rules", Arrays.asList(map("ruleName", "LIVE", "filter", "", "color", "#0000FF"))));
+        Assert.assertTrue(sld.startsWith("<StyledLayerDescriptor version=\"1.0.0\" xmlns:xsi="));
+        Assert.assertTrue(sld.contains("<Title>LIVE1</Title>"));
+
+        sld = SLDTemplate.load("GenericController_getStyle.sld").render(map("layerName", "l", "line", true, "color", "#00FF00"));
+        Assert.assertTrue(sld.contains("<sld:LineSymbolizer>"));
+        Assert.assertFalse(sld.contains("PointSymbolizer"));
+        Assert.assertFalse(sld.contains("TextSymbolizer"));
+
+        Assert.assertSame(SLDTemplate.load("GenericController_getStyle.sld"), SLDTemplate.load("GenericController_getStyle.sld"));
+    }
+}
@@ -0,0 +1,231 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.web.NVCL2_0_DataServiceMethodMaker;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for ServiceFanOut (including against a local stub NVCL server)
+ */
+public class TestServiceFanOut extends PortalTestClass {
+
+    private static final int LATENCY_MS = 250;
+    private static final int MAX_PER_HOST = 4;
+
+    private HttpServer stubServer;
+    private String serviceUrl;
+    private AtomicInteger activeRequests = new AtomicInteger();
+    private AtomicInteger maxActiveRequests = new AtomicInteger();
+
+    /**
+     * Starts a stub NVCL server that answers getDownsampledData.html requests after LATENCY_MS
+     */
+    @Before
+    public void setup() throws Exception {
+        stubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stubServer.setExecutor(Executors.newCachedThreadPool());
+        stubServer.createContext("/NVCLDataServices/getDownsampledData.html", exchange -> {
+            int active = activeRequests.incrementAndGet();
+            maxActiveRequests.accumulateAndGet(active, Math::max);
+            try {
+                Thread.sleep(LATENCY_MS);
+                String logId = exchange.getRequestURI().getQuery().replaceAll(".*logid=([^&]*).*", "$1");
+                byte[] body = String.format("[{\"roundedDepth\":1.5,\"averageValue\":0.5,\"logId\":\"%1$s\"}]", logId).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            } catch (InterruptedException e) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                activeRequests.decrementAndGet();
+                exchange.close();
+            }
+        });
+        stubServer.start();
+        serviceUrl = "http://localhost:" + stubServer.getAddress().getPort() + "/NVCLDataServices/";
+    }
+
+    @After
+    public void teardown() {
+        stubServer.stop(0);
+    }
+
+    private NVCL2_0_DataService createDataService(ServiceFanOut fanOut) {
+        return new NVCL2_0_DataService(new HttpServiceCaller(90000), new NVCL2_0_DataServiceMethodMaker(), "http://foo.bar/service", fanOut);
+    }
+
+    /**
+     * Tests that calls to a slow NVCL server overlap when fanned out, that the per host limit is respected
+     * and that results are returned in logId order
+     */
+    @Test
+    public void testJSONDownsampledDataSpeedup() throws Exception {
+        final String[] logIds = new String[] {"log1", "log2", "log3", "log4", "log5", "log6", "log7", "log8"};
+
+        ServiceFanOut sequentialFanOut = new ServiceFanOut(8, 1, 60000);
+        ServiceFanOut parallelFanOut = new ServiceFanOut(8, MAX_PER_HOST, 60000);
+        try {
+            String sequentialResponse = createDataService(sequentialFanOut).getNVCL2_0_JSONDownsampledData(serviceUrl, logIds);
+            Assert.assertEquals(1, maxActiveRequests.get());
+
+            maxActiveRequests.set(0);
+            String parallelResponse = createDataService(parallelFanOut).getNVCL2_0_JSONDownsampledData(serviceUrl, logIds);
+            Assert.assertTrue("Expected overlapping requests, saw " + maxActiveRequests.get(), maxActiveRequests.get() > 1);
+            Assert.assertTrue("Exceeded the per host limit, saw " + maxActiveRequests.get(), maxActiveRequests.get() <= MAX_PER_HOST);
+
+            Assert.assertEquals(sequentialResponse, parallelResponse);
+            JSONArray arr = new JSONArray(parallelResponse);
+            Assert.assertEquals(logIds.length, arr.length());
+            for (int i = 0; i < logIds.length; i++) {
+                Assert.assertEquals(logIds[i], arr.getJSONObject(i).getString("logId"));
+            }
+        } finally {
+            sequentialFanOut.shutdown();
+            parallelFanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that calls beyond the per host limit are never running (or holding a pool thread) at the same time
+     */
+    @Test
+    public void testPerHostLimit() throws Exception {
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        ServiceFanOut fanOut = new ServiceFanOut(8, 2, 60000);
+        try {
+            List<ServiceFanOut.Task<Integer>> tasks = new ArrayList<ServiceFanOut.Task<Integer>>();
+            for (int i = 0; i < 12; i++) {
+                final int value = i;
+                tasks.add(new ServiceFanOut.Task<Integer>("http://example.org/", () -> {
+                    maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                    return value;
+                }));
+            }
+
+            final AtomicInteger total = new AtomicInteger();
+            fanOut.invokeAll(tasks, (index, result) -> total.addAndGet(result));
+            Assert.assertEquals(66, total.get());
+            Assert.assertEquals(2, maxActive.get());
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that calls queued behind a blocked host don't starve calls to other hosts of pool threads
+     */
+    @Test
+    public void testBlockedHostDoesntStarveOthers() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        ServiceFanOut fanOut = new ServiceFanOut(2, 1, 60000);
+        try {
+            List<Future<Integer>> slowCalls = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 4; i++) {
+                slowCalls.add(fanOut.submit(new ServiceFanOut.Task<Integer>("http://slow.example.org/", () -> {
+                    blocked.await();
+                    return 1;
+                })));
+            }
+
+            Future<Integer> fastCall = fanOut.submit(new ServiceFanOut.Task<Integer>("http://fast.example.org/", () -> 2));
+            Assert.assertEquals(Integer.valueOf(2), fastCall.get(10, TimeUnit.SECONDS));
+
+            blocked.countDown();
+            for (Future<Integer> slowCall : slowCalls) {
+                Assert.assertEquals(Integer.valueOf(1), slowCall.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            blocked.countDown();
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that results are handed over as they complete rather than in submission order
+     */
+    @Test
+    public void testResultsArriveAsCompleted() throws Exception {
+        ServiceFanOut fanOut = new ServiceFanOut(4, 4, 60000);
+        try {
+            List<ServiceFanOut.Task<Integer>> tasks = new ArrayList<ServiceFanOut.Task<Integer>>();
+            for (final int delay : new int[] {400, 200, 10}) {
+                tasks.add(new ServiceFanOut.Task<Integer>("http://example.org/", () -> {
+                    Thread.sleep(delay);
+                    return delay;
+                }));
+            }
+
+            final List<Integer> order = new ArrayList<Integer>();
+            fanOut.invokeAll(tasks, (index, result) -> order.add(index));
+            Assert.assertEquals(Arrays.asList(2, 1, 0), order);
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a batch that exceeds its deadline fails with a TimeoutException
+     */
+    @Test(expected = TimeoutException.class)
+    public void testDeadline() throws Exception {
+        ServiceFanOut fanOut = new ServiceFanOut(2, 2, 100);
+        try {
+            List<ServiceFanOut.Task<Integer>> tasks = new ArrayList<ServiceFanOut.Task<Integer>>();
+            for (int i = 0; i < 2; i++) {
+                tasks.add(new ServiceFanOut.Task<Integer>("http://example.org/", () -> {
+                    Thread.sleep(5000);
+                    return 1;
+                }));
+            }
+            fanOut.invokeAll(tasks, (index, result) -> Assert.fail("Unexpected result"));
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a failing call is rethrown to the caller
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testFailure() throws Exception {
+        ServiceFanOut fanOut = new ServiceFanOut(2, 2, 60000);
+        try {
+            List<ServiceFanOut.Task<Integer>> tasks = new ArrayList<ServiceFanOut.Task<Integer>>();
+            tasks.add(new ServiceFanOut.Task<Integer>("http://example.org/", () -> 1));
+            tasks.add(new ServiceFanOut.Task<Integer>("http://example.org/", () -> {
+                throw new IllegalStateException("Remote failure");
+            }));
+            fanOut.invokeAll(tasks, (index, result) -> { });
+        } finally {
+            fanOut.shutdown();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.auscope.portal.server.web.service;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.auscope.portal.core.server.http.HttpServiceCaller;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker;
+import org.auscope.portal.core.services.methodmakers.WFSGetFeatureMethodMaker.ResultType;
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for TiledWFSFeatureCache (against a stub WFS)
+ */
+public class TestTiledWFSFeatureCache extends PortalTestClass {
+
+    private static final String TYPE_NAME = "gsml:Borehole";
+    private static final String SRS = "EPSG:4326";
+    private static final Pattern LOWER_CORNER = Pattern.compile("<gml:lowerCorner>([^ ]+) ([^<]+)</gml:lowerCorner>");
+    private static final Pattern UPPER_CORNER = Pattern.compile("<gml:upperCorner>([^ ]+) ([^<]+)</gml:upperCorner>");
+    private static final Pattern GML_ID = Pattern.compile("gml:id=\"([^\"]+)\"");
+
+    private HttpServer stubServer;
+    private String serviceUrl;
+    private volatile boolean failRequests = false;
+    private AtomicInteger upstreamRequests = new AtomicInteger();
+    private WFSGetFeatureMethodMaker methodMaker = new WFSGetFeatureMethodMaker();
+    private HttpServiceCaller httpServiceCaller = new HttpServiceCaller(90000);
+    private ServiceFanOut fanOut = new ServiceFanOut(4, 4, 60000);
+
+    /**
+     * A BBOX filter for the features in bbox
+     */
+    private static String bboxFilter(FilterBoundingBox bbox) {
+        return String.format("<ogc:Filter xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:gml=\"http://www.opengis.net/gml\"><ogc:BBOX>"
+                + "<ogc:PropertyName>gsml:collarLocation/gsml:BoreholeCollar/gsml:location</ogc:PropertyName>"
+                + "<gml:Envelope srsName=\"%1$s\"><gml:lowerCorner>%2$s %3$s</gml:lowerCorner><gml:upperCorner>%4$s %5$s</gml:upperCorner></gml:Envelope>"
+                + "</ogc:BBOX></ogc:Filter>", bbox.getBboxSrs(), bbox.getLowerCornerPoints()[0], bbox.getLowerCornerPoints()[1],
+                bbox.getUpperCornerPoints()[0], bbox.getUpperCornerPoints()[1]);
+    }
+
+    private HttpRequestBase makeRequest(FilterBoundingBox bbox) throws Exception {
+        return methodMaker.makePostMethod(serviceUrl, TYPE_NAME, bboxFilter(bbox), 0, null, ResultType.Results, null);
+    }
+
+    private static FilterBoundingBox viewport(double centreX, double centreY, double span) {
+        return new FilterBoundingBox(SRS, new double[] {centreX - span / 2, centreY - span / 2}, new double[] {centreX + span / 2, centreY + span / 2});
+    }
+
+    private static List<String> featureIds(String gml) {
+        List<String> ids = new ArrayList<String>();
+        Matcher m = GML_ID.matcher(gml);
+        while (m.find()) {
+            ids.add(m.group(1));
+        }
+        return ids;
+    }
+
+    /**
+     * Starts a stub WFS with a borehole at every whole degree, answering BBOX queries
+     */
+    @Before
+    public void setup() throws Exception {
+        stubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        stubServer.setExecutor(Executors.newCachedThreadPool());
+        stubServer.createContext("/wfs", exchange -> {
+            upstreamRequests.incrementAndGet();
+            try {
+                String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+                StringBuilder response = new StringBuilder();
+                Matcher lower = LOWER_CORNER.matcher(body);
+                Matcher upper = UPPER_CORNER.matcher(body);
+                if (failRequests || !lower.find() || !upper.find()) {
+                    response.append("<ows:ExceptionReport xmlns:ows=\"http://www.opengis.net/ows\"><ows:Exception><ows:ExceptionText>Failed</ows:ExceptionText></ows:Exception></ows:ExceptionReport>");
+                } else {
+                    response.append("<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:gsml=\"urn:cgi:xmlns:CGI:GeoSciML:2.0\"><gml:featureMembers>");
+                    for (int y = (int) Math.ceil(Double.parseDouble(lower.group(2))); y <= Double.parseDouble(upper.group(2)); y++) {
+                        for (int x = (int) Math.ceil(Double.parseDouble(lower.group(1))); x <= Double.parseDouble(upper.group(1)); x++) {
+                            response.append(String.format("<gsml:Borehole gml:id=\"gsml.borehole.%1$d_%2$d\"><gml:name>%1$d %2$d</gml:name></gsml:Borehole>", x, y));
+                        }
+                    }
+                    response.append("</gml:featureMembers></wfs:FeatureCollection>");
+                }
+
+                byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(bytes);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        stubServer.start();
+        serviceUrl = "http://localhost:" + stubServer.getAddress().getPort() + "/wfs";
+    }
+
+    @After
+    public void teardown() {
+        stubServer.stop(0);
+        fanOut.shutdown();
+    }
+
+    /**
+     * Tests that the tiles cover a bounding box without exceeding the tile limit
+     */
+    @Test
+    public void testGetTiles() {
+        TiledWFSFeatureCache cache = new TiledWFSFeatureCache(httpServiceCaller, fanOut, 64, 30, 4);
+        FilterBoundingBox bbox = viewport(121.3, -29.7, 20);
+        List<TiledWFSFeatureCache.Tile> tiles = cache.getTiles(bbox);
+        Assert.assertTrue(tiles.size() >= 1 && tiles.size() <= 4);
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (TiledWFSFeatureCache.Tile tile : tiles) {
+            Assert.assertEquals(tiles.get(0).getLevel(), tile.getLevel());
+            minX = Math.min(minX, tile.getBbox().getLowerCornerPoints()[0]);
+            minY = Math.min(minY, tile.getBbox().getLowerCornerPoints()[1]);
+            maxX = Math.max(maxX, tile.getBbox().getUpperCornerPoints()[0]);
+            maxY = Math.max(maxY, tile.getBbox().getUpperCornerPoints()[1]);
+        }
+        Assert.assertTrue(minX <= bbox.getLowerCornerPoints()[0] && minY <= bbox.getLowerCornerPoints()[1]);
+        Assert.assertTrue(maxX >= bbox.getUpperCornerPoints()[0] && maxY >= bbox.getUpperCornerPoints()[1]);
+
+        //A small pan stays on the same tiles
+        List<TiledWFSFeatureCache.Tile> panned = cache.getTiles(viewport(121.4, -29.6, 20));
+        Assert.assertEquals(tiles.get(0).getX(), panned.get(0).getX());
+        Assert.assertEquals(tiles.get(0).getY(), panned.get(0).getY());
+    }
+
+    /**
+     * Tests which queries can be tiled
+     */
+    @Test
+    public void testIsCacheable() {
+        TiledWFSFeatureCache cache = new TiledWFSFeatureCache(httpServiceCaller, fanOut, 64, 30, 4);
+        Assert.assertTrue(cache.isCacheable(viewport(120, -30, 10), 0, null));
+        Assert.assertTrue(cache.isCacheable(viewport(120, -30, 10), 0, "text/xml; subtype=gml/3.1.1"));
+        Assert.assertFalse(cache.isCacheable(null, 0, null));
+        Assert.assertFalse(cache.isCacheable(viewport(120, -30, 10), 0, "csv"));
+        Assert.assertFalse(cache.isCacheable(new FilterBoundingBox("EPSG:28355", new double[] {0, 0}, new double[] {10, 10}), 0, null));
+        Assert.assertFalse(cache.isCacheable(new FilterBoundingBox(SRS, new double[] {179, 0}, new double[] {-179, 10}), 0, null));
+        Assert.assertFalse(cache.isCacheable(viewport(120, -30, 10), 100, null));
+        Assert.assertFalse(new TiledWFSFeatureCache(httpServiceCaller, fanOut, 0, 30, 4).isCacheable(viewport(120, -30, 10), 0, null));
+    }
+
+    /**
+     * Tests that failed tile requests are reported and not cached
+     */
+    @Test
+    public void testErrorsNotCached() throws Exception {
+        TiledWFSFeatureCache cache = new TiledWFSFeatureCache(httpServiceCaller, fanOut, 64, 30, 4);
+        FilterBoundingBox bbox = viewport(120, -30, 10);
+        failRequests = true;
+        try {
+            cache.getFeatures(serviceUrl, TYPE_NAME, "", bbox, null, this::makeRequest);
+            Assert.fail("Expected exception");
+        } catch (Exception ex) {
+            //expected
+        }
+
+        failRequests = false;
+        String gml = cache.getFeatures(serviceUrl, TYPE_NAME, "", bbox, null, this::makeRequest).getData();
+        Assert.assertFalse(featureIds(gml).isEmpty());
+    }
+
+    /**
+     * Replays a pan/zoom trace against the stub WFS, first requesting every viewport directly and then through the
+     * tile cache. The cached responses must include every feature of the direct responses (exactly once) while making
+     * far fewer upstream requests.
+     */
+    @Test
+    public void testPanZoomTrace() throws Exception {
+        List<FilterBoundingBox> trace = new ArrayList<FilterBoundingBox>();
+        double x = 120, y = -30, span = 20;
+        trace.add(viewport(x, y, span));
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 8; i++) {
+                trace.add(viewport(x += 2.5, y, span));
+            }
+            for (int i = 0; i < 8; i++) {
+                trace.add(viewport(x, y += 2.5, span));
+            }
+            trace.add(viewport(x, y, span /= 2));
+            for (int i = 0; i < 8; i++) {
+                trace.add(viewport(x -= 1.25, y, span));
+            }
+            trace.add(viewport(x, y, span *= 2));
+            for (int i = 0; i < 8; i++) {
+                trace.add(viewport(x, y -= 2.5, span));
+            }
+            for (int i = 0; i < 8; i++) {
+                trace.add(viewport(x -= 2.5, y, span));
+            }
+        }
+
+        List<List<String>> directIds = new ArrayList<List<String>>();
+        for (FilterBoundingBox bbox : trace) {
+            directIds.add(featureIds(httpServiceCaller.getMethodResponseAsString(makeRequest(bbox))));
+        }
+        int directRequests = upstreamRequests.getAndSet(0);
+        Assert.assertEquals(trace.size(), directRequests);
+
+        TiledWFSFeatureCache cache = new TiledWFSFeatureCache(httpServiceCaller, fanOut, 64, 30, 4);
+        for (int i = 0; i < trace.size(); i++) {
+            String gml = cache.getFeatures(serviceUrl, TYPE_NAME, "", trace.get(i), null, this::makeRequest).getData();
+            List<String> ids = featureIds(gml);
+            Set<String> uniqueIds = new HashSet<String>(ids);
+            Assert.assertEquals("Duplicate features in response " + i, ids.size(), uniqueIds.size());
+            Assert.assertTrue("Missing features in response " + i, uniqueIds.containsAll(directIds.get(i)));
+        }
+        int tiledRequests = upstreamRequests.get();
+
+        Assert.assertEquals(cache.getTileRequests(), tiledRequests);
+        Assert.assertTrue(String.format("Expected fewer upstream requests (direct %1$d, tiled %2$d)", directRequests, tiledRequests),
+                tiledRequests * 4 < directRequests);
+    }
+}
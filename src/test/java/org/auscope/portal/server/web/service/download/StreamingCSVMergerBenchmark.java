@@ -0,0 +1,96 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH measurement of merging two multi hundred MB provider CSVs (~130MB each at the default row count):
+ *
+ * matching - both providers share a schema (the spool is copied to the output byte for byte)
+ * addedColumn - the second provider adds a column (the spool is re-parsed to pad the first provider's rows)
+ *
+ * Runs with a small heap (-Xmx64m) so that any attempt to hold the rows in memory fails.
+ *
+ * Run with main() (or org.openjdk.jmh.Main against the test classpath) - this is not part of the unit tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx64m")
+public class StreamingCSVMergerBenchmark {
+
+    @Param({"2500000"})
+    public long rowsPerProvider;
+
+    private File spoolDir;
+
+    /**
+     * Discards everything written, counting the bytes
+     */
+    private static class NullOutputStream extends OutputStream {
+        long bytes = 0;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        spoolDir = Files.createTempDirectory("csv-merge-benchmark").toFile();
+    }
+
+    @TearDown
+    public void tearDown() {
+        spoolDir.delete();
+    }
+
+    private long merge(String secondColumn) throws Exception {
+        NullOutputStream os = new NullOutputStream();
+        try (StreamingCSVMerger merger = new StreamingCSVMerger(os, spoolDir)) {
+            merger.add(new TestStreamingCSVMerger.SyntheticCSVInputStream("depth", rowsPerProvider));
+            merger.add(new TestStreamingCSVMerger.SyntheticCSVInputStream(secondColumn, rowsPerProvider));
+            merger.finish();
+        }
+        return os.bytes;
+    }
+
+    @Benchmark
+    public long matching() throws Exception {
+        return merge("depth");
+    }
+
+    @Benchmark
+    public long addedColumn() throws Exception {
+        return merge("length");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(StreamingCSVMergerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,157 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.opencsv.CSVReader;
+
+/**
+ * Unit tests for CSVPipeline
+ */
+public class TestCSVPipeline extends PortalTestClass {
+
+    private static final String CSV = "\uFEFFFID,gsmlp:identifier,gsmlp:name,gsmlp:nvclCollection\n"
+            + "BoreholeView.1,http://example.org/borehole/ABDP1,ABDP1,true\n"
+            + "BoreholeView.2,http://example.org/borehole/ABDP2,\"ABDP2, deepened\",false\n"
+            + "BoreholeView.3,http://example.org/borehole/ABDP1,ABDP1,TRUE\n"
+            + "malformed,line\n"
+            + "\n"
+            + "BoreholeView.4,urn:example:borehole:ABDP4,ABDP4,true\n";
+
+    private static List<String[]> transform(CSVPipeline pipeline, String csv, long expectedRows) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Assert.assertEquals(expectedRows, pipeline.transform(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), os));
+        try (CSVReader reader = new CSVReader(new InputStreamReader(new ByteArrayInputStream(os.toByteArray()), StandardCharsets.UTF_8))) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Tests that an empty pipeline only drops malformed lines (and correctly quotes values)
+     */
+    @Test
+    public void testEmptyPipeline() throws Exception {
+        List<String[]> rows = transform(new CSVPipeline(), CSV, 4);
+        Assert.assertEquals(5, rows.size());
+        Assert.assertArrayEquals(new String[] {"FID", "gsmlp:identifier", "gsmlp:name", "gsmlp:nvclCollection"}, rows.get(0));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.2", "http://example.org/borehole/ABDP2", "ABDP2, deepened", "false"}, rows.get(2));
+    }
+
+    /**
+     * Tests chaining every operator together
+     */
+    @Test
+    public void testChainedOperators() throws Exception {
+        CSVPipeline pipeline = new CSVPipeline()
+                .filter("gsmlp:nvclCollection", v -> v.equalsIgnoreCase("true"))
+                .distinct("gsmlp:identifier")
+                .project("gsmlp:name", "gsmlp:identifier")
+                .rename("gsmlp:name", "Name");
+
+        List<String[]> rows = transform(pipeline, CSV, 2);
+        Assert.assertEquals(3, rows.size());
+        Assert.assertArrayEquals(new String[] {"Name", "gsmlp:identifier"}, rows.get(0));
+        Assert.assertArrayEquals(new String[] {"ABDP1", "http://example.org/borehole/ABDP1"}, rows.get(1));
+        Assert.assertArrayEquals(new String[] {"ABDP4", "urn:example:borehole:ABDP4"}, rows.get(2));
+
+        //Reusing the pipeline must reset the distinct state
+        Assert.assertEquals(3, transform(pipeline, CSV, 2).size());
+    }
+
+    /**
+     * Tests distinct across entire rows
+     */
+    @Test
+    public void testDistinctRows() throws Exception {
+        String csv = "a,b\n1,2\n1,3\n1,2\n";
+        List<String[]> rows = transform(new CSVPipeline().distinct(), csv, 2);
+        Assert.assertArrayEquals(new String[] {"1", "3"}, rows.get(2));
+    }
+
+    /**
+     * Tests limit only counts the rows that reach it (and resets between transforms)
+     */
+    @Test
+    public void testLimit() throws Exception {
+        CSVPipeline pipeline = new CSVPipeline().filter("gsmlp:nvclCollection", v -> v.equalsIgnoreCase("true")).limit(2);
+        List<String[]> rows = transform(pipeline, CSV, 2);
+        Assert.assertEquals("BoreholeView.1", rows.get(1)[0]);
+        Assert.assertEquals("BoreholeView.3", rows.get(2)[0]);
+        Assert.assertEquals(3, transform(pipeline, CSV, 2).size());
+    }
+
+    /**
+     * Tests that operators referencing missing columns fail (other than rename)
+     */
+    @Test
+    public void testMissingColumns() throws Exception {
+        Assert.assertEquals(5, transform(new CSVPipeline().rename("missing", "other"), CSV, 4).size());
+
+        try {
+            transform(new CSVPipeline().project("FID", "missing"), CSV, 0);
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("missing"));
+        }
+
+        try {
+            transform(new CSVPipeline(), "", 0);
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+
+    /**
+     * Tests building a pipeline from request parameters
+     */
+    @Test
+    public void testFromParameters() throws Exception {
+        Assert.assertTrue(CSVPipeline.fromParameters(null, null, null, null).isEmpty());
+        Assert.assertTrue(CSVPipeline.fromParameters("", " ", "", "").isEmpty());
+
+        CSVPipeline pipeline = CSVPipeline.fromParameters("gsmlp:nvclCollection=TRUE; gsmlp:identifier^=HTTP:", "*",
+                "FID, gsmlp:name", "gsmlp:name=Name,FID=Id");
+        List<String[]> rows = transform(pipeline, CSV, 2);
+        Assert.assertEquals(3, rows.size());
+        Assert.assertArrayEquals(new String[] {"Id", "Name"}, rows.get(0));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.1", "ABDP1"}, rows.get(1));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.3", "ABDP1"}, rows.get(2));
+
+        rows = transform(CSVPipeline.fromParameters("gsmlp:nvclCollection!=true", null, "FID", null), CSV, 1);
+        Assert.assertArrayEquals(new String[] {"BoreholeView.2"}, rows.get(1));
+
+        try {
+            CSVPipeline.fromParameters("novalue", null, null, null);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+
+        try {
+            CSVPipeline.fromParameters(null, null, null, "nonewname=");
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            //expected
+        }
+    }
+
+    /**
+     * Tests that an empty pipeline copies the input verbatim
+     */
+    @Test
+    public void testTransformOrCopy() throws Exception {
+        String csv = "a,b\n1,2\nmalformed\n";
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new CSVPipeline().transformOrCopy(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), os);
+        Assert.assertEquals(csv, new String(os.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,156 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.auscope.portal.core.services.methodmakers.filter.FilterBoundingBox;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.server.MineralTenementServiceProviderType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.opencsv.CSVReader;
+
+/**
+ * Unit tests for MineralTenementLocalFilter
+ */
+public class TestMineralTenementLocalFilter extends PortalTestClass {
+
+    private static final String CSV = "FID,TENNAME,TENTYPE,TENOWNER,TENSTATUS,SHAPE\n"
+            + "1,EL 1234,Exploration Licence,Acme Mining,LIVE,\"POLYGON ((120 -30, 121 -30, 121 -29, 120 -29, 120 -30))\"\n"
+            + "2,ML 55,Mining Lease,Other Pty Ltd,PENDING,\"MULTIPOLYGON (((130 -20, 131 -20, 131 -19, 130 -20)), ((140 -20, 141 -20, 141 -19, 140 -20)))\"\n"
+            + "3,PL 7,Prospecting Licence,ACME MINING,CURRENT,\"POLYGON ((100 -10, 110 -10, 110 0, 100 0, 100 -10), (102 -8, 108 -8, 108 -2, 102 -2, 102 -8))\"\n"
+            + "4,Point,Miscellaneous Licence,Acme Mining,LIVE,POINT (145.5 -37.5)\n"
+            + "5,Empty,Miscellaneous Licence,Acme Mining,LIVE,\n";
+
+    private static final String POLYGON_FILTER = "<ogc:Filter><ogc:Intersects><ogc:PropertyName>mt:shape</ogc:PropertyName>"
+            + "<gml:Polygon srsName=\"urn:ogc:def:crs:EPSG::4326\"><gml:exterior><gml:LinearRing>"
+            + "<gml:posList>-30.5 120.5 -30.5 131 -19.5 131 -19.5 120.5 -30.5 120.5</gml:posList>"
+            + "</gml:LinearRing></gml:exterior></gml:Polygon></ogc:Intersects></ogc:Filter>";
+
+    private static List<String> filterIds(CSVPipeline pipeline) throws Exception {
+        return filterIds(pipeline, CSV);
+    }
+
+    private static List<String> filterIds(CSVPipeline pipeline, String csv) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        pipeline.transform(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)), os);
+        List<String> ids = new ArrayList<String>();
+        try (CSVReader reader = new CSVReader(new InputStreamReader(new ByteArrayInputStream(os.toByteArray()), StandardCharsets.UTF_8))) {
+            reader.readNext();
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                ids.add(row[0]);
+            }
+        }
+        return ids;
+    }
+
+    private static List<String> filterIds(String name, String type, String owner, String status, FilterBoundingBox bbox, String polygon) throws Exception {
+        return filterIds(MineralTenementLocalFilter.build(MineralTenementServiceProviderType.ArcGIS, name, type, owner, status, bbox, polygon));
+    }
+
+    /**
+     * Tests the text predicates match like an OGC PropertyIsLike (case insensitive, implicit/explicit wildcards)
+     */
+    @Test
+    public void testTextPredicates() throws Exception {
+        Assert.assertEquals(5, filterIds(null, "", null, null, null, null).size());
+        Assert.assertEquals(List.of("1", "3", "4", "5"), filterIds(null, null, "acme", null, null, null));
+        Assert.assertEquals(List.of("3"), filterIds(null, "*ing licence", "acme", null, null, null));
+        Assert.assertEquals(List.of("2"), filterIds("ml*5", "mining", null, "pend", null, null));
+        Assert.assertEquals(List.of(), filterIds("EL 1234", null, null, "PENDING", null, null));
+    }
+
+    /**
+     * Tests bounding boxes select every geometry they intersect (but not those in polygon holes)
+     */
+    @Test
+    public void testBoundingBox() throws Exception {
+        //Overlaps the corner of 1 only
+        Assert.assertEquals(List.of("1"), filterIds(null, null, null, null,
+                new FilterBoundingBox("EPSG:4326", new double[] {120.5, -31}, new double[] {125, -29.5}), null));
+        //Entirely inside 1
+        Assert.assertEquals(List.of("1"), filterIds(null, null, null, null,
+                new FilterBoundingBox("EPSG:4326", new double[] {120.2, -29.8}, new double[] {120.4, -29.6}), null));
+        //Inside the hole of 3
+        Assert.assertEquals(List.of(), filterIds(null, null, null, null,
+                new FilterBoundingBox("EPSG:4326", new double[] {104, -6}, new double[] {106, -4}), null));
+        //Crosses every edge of 3 without containing a vertex of it
+        Assert.assertEquals(List.of("3"), filterIds(null, null, null, null,
+                new FilterBoundingBox("EPSG:4326", new double[] {99, -9.5}, new double[] {111, -9.2}), null));
+        //Second polygon of 2 and the point
+        Assert.assertEquals(List.of("2", "4"), filterIds(null, null, null, null,
+                new FilterBoundingBox("EPSG:4326", new double[] {139, -38}, new double[] {146, -19.5}), null));
+        //Combined with a text predicate
+        Assert.assertEquals(List.of("4"), filterIds(null, null, "acme", null,
+                new FilterBoundingBox("EPSG:4326", new double[] {139, -38}, new double[] {146, -19.5}), null));
+    }
+
+    /**
+     * Tests polygon filters (in lat/lon axis order) select every geometry they intersect
+     */
+    @Test
+    public void testPolygonFilter() throws Exception {
+        Assert.assertEquals(List.of("1", "2"), filterIds(null, null, null, null, null, POLYGON_FILTER));
+    }
+
+    /**
+     * Tests name/owner/shape predicates for columns that don't exist fail the transform (rather than passing every row)
+     * but type/status predicates are skipped
+     */
+    @Test
+    public void testMissingColumns() throws Exception {
+        Assert.assertEquals(List.of("1", "4", "5"),
+                filterIds(MineralTenementLocalFilter.build(MineralTenementServiceProviderType.ArcGIS, null, null, null, "LIVE", null, null)));
+        Assert.assertEquals(List.of("1", "2", "3", "4", "5"),
+                filterIds(MineralTenementLocalFilter.build(MineralTenementServiceProviderType.GeoServer, null, "Mining", null, "LIVE", null, null)));
+
+        try {
+            filterIds(MineralTenementLocalFilter.build(MineralTenementServiceProviderType.GeoServer, "EL", null, null, null, null, null));
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("mt:name"));
+        }
+
+        //Unused columns don't matter but the shape column is required for spatial predicates
+        String noShape = "FID,TENNAME\n1,EL 1234\n";
+        Assert.assertEquals(List.of("1"), filterIds(MineralTenementLocalFilter.build(MineralTenementServiceProviderType.ArcGIS, "EL", null, null, null, null, null), noShape));
+        try {
+            filterIds(MineralTenementLocalFilter.build(MineralTenementServiceProviderType.ArcGIS, null, null, null, null,
+                    new FilterBoundingBox("EPSG:4326", new double[] {120, -30}, new double[] {121, -29}), null), noShape);
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("SHAPE"));
+        }
+    }
+
+    /**
+     * Tests parsing and intersecting WKT
+     */
+    @Test
+    public void testWKT() {
+        MineralTenementLocalFilter.Shape square = MineralTenementLocalFilter.parseWKT("polygon((0 0, 2 0, 2 2, 0 2, 0 0))");
+        Assert.assertTrue(square.contains(1, 1));
+        Assert.assertFalse(square.contains(3, 1));
+        Assert.assertTrue(square.intersects(MineralTenementLocalFilter.parseWKT("LINESTRING (-1 1, 3 1)")));
+        Assert.assertTrue(square.intersects(MineralTenementLocalFilter.parseWKT("POINT (2 2)")));
+        Assert.assertFalse(square.intersects(MineralTenementLocalFilter.parseWKT("LINESTRING (3 0, 3 3)")));
+        Assert.assertNull(MineralTenementLocalFilter.parseWKT("POLYGON EMPTY"));
+        Assert.assertNull(MineralTenementLocalFilter.parseWKT("POINT (abc)"));
+        Assert.assertNull(MineralTenementLocalFilter.parseWKT(""));
+    }
+
+    /**
+     * Tests polygon filters without coordinates are rejected
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPolygonFilter() {
+        MineralTenementLocalFilter.build(MineralTenementServiceProviderType.ArcGIS, null, null, null, null, null, "<ogc:Filter/>");
+    }
+}
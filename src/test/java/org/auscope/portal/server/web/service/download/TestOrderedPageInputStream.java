@@ -0,0 +1,176 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.auscope.portal.core.test.PortalTestClass;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for OrderedPageInputStream
+ */
+public class TestOrderedPageInputStream extends PortalTestClass {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private List<String> contents = new ArrayList<String>();
+    private List<File> pageFiles = new ArrayList<File>();
+    private List<CompletableFuture<File>> pages = new ArrayList<CompletableFuture<File>>();
+    private boolean completeOnLoad = false;
+
+    /**
+     * Writes the content of each page as it's started. Pages are completed by the test (unless completeOnLoad is set)
+     */
+    private OrderedPageInputStream.PageLoader loader = (page, file) -> {
+        Files.write(file.toPath(), contents.get(page).getBytes(StandardCharsets.UTF_8));
+        pageFiles.add(file);
+        CompletableFuture<File> future = new CompletableFuture<File>();
+        if (completeOnLoad) {
+            future.complete(file);
+        }
+        pages.add(future);
+        return future;
+    };
+
+    private OrderedPageInputStream newStream(int maxInFlight, long timeoutMillis, Runnable onClose) throws IOException {
+        return new OrderedPageInputStream(contents.size(), maxInFlight, loader, temporaryFolder.getRoot(), timeoutMillis, onClose);
+    }
+
+    /**
+     * Tests that pages are concatenated in order (regardless of completion order) with a single header
+     */
+    @Test
+    public void testConcatenation() throws Exception {
+        contents.addAll(Arrays.asList("a,b\n1,2\n", "a,b\n3,4", "a,b\n5,6\n"));
+
+        try (InputStream is = newStream(3, 10000, null)) {
+            Assert.assertEquals(3, pages.size());
+            pages.get(2).complete(pageFiles.get(2));
+            pages.get(1).complete(pageFiles.get(1));
+            pages.get(0).complete(pageFiles.get(0));
+            Assert.assertEquals("a,b\n1,2\n3,4\n5,6\n", IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+
+        for (File file : pageFiles) {
+            Assert.assertFalse(file.exists());
+        }
+    }
+
+    /**
+     * Tests that no more than maxInFlight pages are started ahead of the page being read
+     */
+    @Test
+    public void testMaxInFlight() throws Exception {
+        contents.addAll(Arrays.asList("a,b\n1,2\n", "a,b\n3,4\n", "a,b\n5,6\n", "a,b\n7,8\n", "a,b\n9,10\n"));
+        completeOnLoad = true;
+
+        try (InputStream is = newStream(2, 10000, null)) {
+            Assert.assertEquals(2, pages.size());
+            Assert.assertEquals('a', is.read());
+            Assert.assertEquals(3, pages.size());
+            Assert.assertEquals(",b\n1,2\n", new String(IOUtils.toByteArray(is, 7), StandardCharsets.UTF_8));
+            Assert.assertEquals(3, pages.size());
+            Assert.assertEquals('3', is.read());
+            Assert.assertEquals(4, pages.size());
+            Assert.assertEquals(",4\n5,6\n7,8\n9,10\n", IOUtils.toString(is, StandardCharsets.UTF_8));
+            Assert.assertEquals(5, pages.size());
+        }
+
+        Assert.assertEquals(0, temporaryFolder.getRoot().list().length);
+    }
+
+    /**
+     * Tests that a failed page is reported (after the earlier pages have been read) and closing cancels/cleans up
+     */
+    @Test
+    public void testFailedPage() throws Exception {
+        final boolean[] onCloseRan = new boolean[] {false};
+        contents.addAll(Arrays.asList("a,b\n1,2\n", "a,b\n3,4\n", "a,b\n5,6\n"));
+
+        InputStream is = newStream(3, 10000, () -> onCloseRan[0] = true);
+        pages.get(0).complete(pageFiles.get(0));
+        pages.get(1).completeExceptionally(new IOException("Service unavailable"));
+        byte[] buf = new byte[8];
+        Assert.assertEquals(8, IOUtils.read(is, buf));
+        Assert.assertEquals("a,b\n1,2\n", new String(buf, StandardCharsets.UTF_8));
+        try {
+            is.read();
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("page 2 of 3"));
+        }
+
+        is.close();
+        Assert.assertTrue(onCloseRan[0]);
+        Assert.assertTrue(pages.get(2).isCancelled());
+        for (File file : pageFiles) {
+            Assert.assertFalse(file.exists());
+        }
+    }
+
+    /**
+     * Tests that a page that can't be started cancels (and cleans up) the pages that were
+     */
+    @Test
+    public void testLoaderFailure() throws Exception {
+        contents.add("a,b\n1,2\n");
+        try {
+            new OrderedPageInputStream(2, 2, loader, temporaryFolder.getRoot(), 10000, null);
+            Assert.fail("Expected IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("page 2 of 2"));
+        }
+
+        Assert.assertTrue(pages.get(0).isCancelled());
+        Assert.assertEquals(0, temporaryFolder.getRoot().list().length);
+    }
+
+    /**
+     * Tests that the timeout applies to each page (from when it started) so a slow reader doesn't time out later pages
+     */
+    @Test
+    public void testTimeoutPerPage() throws Exception {
+        contents.addAll(Arrays.asList("a,b\n1,2\n", "a,b\n3,4\n", "a,b\n5,6\n"));
+
+        try (InputStream is = newStream(1, 200, null)) {
+            pages.get(0).complete(pageFiles.get(0));
+            Assert.assertEquals("a,b\n1,2\n", new String(IOUtils.toByteArray(is, 8), StandardCharsets.UTF_8));
+            pages.get(1).complete(pageFiles.get(1));
+
+            //The client takes longer than the timeout to get to the next page
+            Thread.sleep(300);
+            Assert.assertEquals("3,4\n", new String(IOUtils.toByteArray(is, 4), StandardCharsets.UTF_8));
+
+            //The last page (started when the previous page was opened) takes a little while to download
+            Assert.assertEquals(3, pages.size());
+            final CompletableFuture<File> lastPage = pages.get(2);
+            final File lastFile = pageFiles.get(2);
+            CompletableFuture.runAsync(() -> lastPage.complete(lastFile), CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS));
+            Assert.assertEquals("5,6\n", IOUtils.toString(is, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Tests that waiting for a page respects the timeout
+     */
+    @Test(expected = IOException.class)
+    public void testTimeout() throws Exception {
+        contents.add("a,b\n1,2\n");
+        try (InputStream is = newStream(1, 100, null)) {
+            is.read();
+        }
+    }
+}
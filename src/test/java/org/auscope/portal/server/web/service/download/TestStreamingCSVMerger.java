@@ -0,0 +1,178 @@
+package org.auscope.portal.server.web.service.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.auscope.portal.core.test.PortalTestClass;
+import org.auscope.portal.core.util.ResourceUtil;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.opencsv.CSVReader;
+
+/**
+ * Unit tests for StreamingCSVMerger
+ */
+public class TestStreamingCSVMerger extends PortalTestClass {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static InputStream fixture(String name) throws Exception {
+        String csv = ResourceUtil.loadResourceAsString("org/auscope/portal/nvcl/" + name);
+        return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String[]> parse(byte[] csv) throws Exception {
+        try (CSVReader reader = new CSVReader(new InputStreamReader(new ByteArrayInputStream(csv), StandardCharsets.UTF_8))) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * Generates a large CSV without holding it in memory. The second column is named column2 (with the values 0,1,2...)
+     */
+    static class SyntheticCSVInputStream extends InputStream {
+        private long rowsRemaining;
+        private String column2;
+        private byte[] line;
+        private int linePos;
+        private long row = 0;
+
+        SyntheticCSVInputStream(String column2, long rows) {
+            this.column2 = column2;
+            this.rowsRemaining = rows;
+            this.line = ("FID," + column2 + ",gsmlp:name\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int read() {
+            if (linePos == line.length) {
+                if (rowsRemaining-- <= 0) {
+                    return -1;
+                }
+                line = String.format("BoreholeView.%1$d,%1$d,\"Synthetic borehole, number %1$d\"\n", row++).getBytes(StandardCharsets.UTF_8);
+                linePos = 0;
+            }
+            return line[linePos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = 0;
+            int next;
+            while (count < len && (next = read()) >= 0) {
+                b[off + count++] = (byte) next;
+            }
+            return count == 0 ? -1 : count;
+        }
+    }
+
+    /**
+     * Tests merging a provider with reordered and additional columns under a single header
+     */
+    @Test
+    public void testMismatchedProviders() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (StreamingCSVMerger merger = new StreamingCSVMerger(os, temporaryFolder.getRoot())) {
+            Assert.assertEquals(2, merger.add(fixture("merge-provider-wa.csv")));
+            Assert.assertEquals(0, os.size()); //nothing is written until the header is final
+            Assert.assertEquals(0, merger.add(fixture("merge-provider-empty.csv")));
+            Assert.assertEquals(2, merger.add(fixture("merge-provider-nt.csv")));
+            Assert.assertEquals(4, merger.getRowCount());
+            merger.finish();
+
+            //Nothing more can be added after finish
+            try {
+                merger.add(fixture("merge-provider-wa.csv"));
+                Assert.fail();
+            } catch (IllegalStateException ex) {
+                //expected
+            }
+        }
+
+        List<String[]> rows = parse(os.toByteArray());
+        Assert.assertEquals(5, rows.size());
+        Assert.assertArrayEquals(new String[] {"FID", "gsmlp:identifier", "gsmlp:name", "gsmlp:nvclCollection", "gsmlp:drillingMethod"}, rows.get(0));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.1", "http://geossdi.dmp.wa.gov.au/resource/feature/gswa/borehole/ABDP1", "ABDP1", "true", ""}, rows.get(1));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.2", "http://geossdi.dmp.wa.gov.au/resource/feature/gswa/borehole/ABDP2", "ABDP2, deepened", "false", ""}, rows.get(2));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.10", "http://geology.data.nt.gov.au/resource/feature/ntgs/borehole/NTGS1", "NTGS1", "true", "diamond"}, rows.get(3));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.11", "http://geology.data.nt.gov.au/resource/feature/ntgs/borehole/NTGS2", "NTGS2\n(redrill)", "false", ""}, rows.get(4));
+
+        //Exactly one header line
+        long headers = rows.stream().filter(row -> row[0].equals("FID")).count();
+        Assert.assertEquals(1, headers);
+
+        //The spool file must be cleaned up
+        Assert.assertEquals(0, temporaryFolder.getRoot().list().length);
+    }
+
+    /**
+     * Tests that providers sharing a schema are written under a single header
+     */
+    @Test
+    public void testMatchingProviders() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (StreamingCSVMerger merger = new StreamingCSVMerger(os, temporaryFolder.getRoot())) {
+            merger.add(fixture("merge-provider-wa.csv"));
+            merger.add(fixture("merge-provider-wa.csv"));
+            merger.finish();
+        }
+        Assert.assertEquals(0, temporaryFolder.getRoot().list().length);
+
+        List<String[]> rows = parse(os.toByteArray());
+        Assert.assertEquals(5, rows.size());
+        Assert.assertArrayEquals(new String[] {"FID", "gsmlp:identifier", "gsmlp:name", "gsmlp:nvclCollection"}, rows.get(0));
+        Assert.assertArrayEquals(rows.get(1), rows.get(3));
+        Assert.assertArrayEquals(rows.get(2), rows.get(4));
+    }
+
+    /**
+     * Tests that nothing is written if no provider has any data
+     */
+    @Test
+    public void testNoData() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (StreamingCSVMerger merger = new StreamingCSVMerger(os, temporaryFolder.getRoot())) {
+            merger.add(fixture("merge-provider-empty.csv"));
+            merger.add(new ByteArrayInputStream(new byte[0]));
+            merger.finish();
+        }
+
+        Assert.assertEquals(0, os.size());
+    }
+
+    /**
+     * Tests that rows spooled before a later provider adds yet more columns are padded to the final schema
+     */
+    @Test
+    public void testSpooledRowsPadded() throws Exception {
+        final long rowsPerProvider = 1000;
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (StreamingCSVMerger merger = new StreamingCSVMerger(os, temporaryFolder.getRoot())) {
+            Assert.assertEquals(rowsPerProvider, merger.add(new SyntheticCSVInputStream("depth", rowsPerProvider)));
+            Assert.assertEquals(rowsPerProvider, merger.add(new SyntheticCSVInputStream("length", rowsPerProvider)));
+            Assert.assertEquals(rowsPerProvider, merger.add(new SyntheticCSVInputStream("width", rowsPerProvider)));
+            Assert.assertEquals(rowsPerProvider, merger.add(new SyntheticCSVInputStream("depth", rowsPerProvider)));
+            Assert.assertEquals(Arrays.asList("FID", "depth", "gsmlp:name", "length", "width"), merger.getColumns());
+            Assert.assertEquals(rowsPerProvider * 4, merger.getRowCount());
+            merger.finish();
+        }
+
+        List<String[]> rows = parse(os.toByteArray());
+        Assert.assertEquals(1 + rowsPerProvider * 4, rows.size());
+        Assert.assertArrayEquals(new String[] {"FID", "depth", "gsmlp:name", "length", "width"}, rows.get(0));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.999", "999", "Synthetic borehole, number 999", "", ""}, rows.get((int) rowsPerProvider));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.0", "", "Synthetic borehole, number 0", "0", ""}, rows.get((int) rowsPerProvider + 1));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.999", "", "Synthetic borehole, number 999", "", "999"}, rows.get((int) rowsPerProvider * 3));
+        Assert.assertArrayEquals(new String[] {"BoreholeView.999", "999", "Synthetic borehole, number 999", "", ""}, rows.get(rows.size() - 1));
+        Assert.assertEquals(0, temporaryFolder.getRoot().list().length);
+    }
+}